@@ -24,11 +24,32 @@ package weka.classifiers.lazy;
 
 import weka.classifiers.Classifier;
 import weka.classifiers.UpdateableClassifier;
-import weka.classifiers.rules.ZeroR;
+import weka.classifiers.lazy.ear4.AllocationMeter;
+import weka.classifiers.lazy.ear4.AnytimePrediction;
+import weka.classifiers.lazy.ear4.ArenaPool;
+import weka.classifiers.lazy.ear4.CaseBase;
+import weka.classifiers.lazy.ear4.CaseFile;
+import weka.classifiers.lazy.ear4.Condensation;
+import weka.classifiers.lazy.ear4.EnsembleSpread;
+import weka.classifiers.lazy.ear4.Explanation;
+import weka.classifiers.lazy.ear4.ModelSnapshot;
+import weka.classifiers.lazy.ear4.NeighbourSelector;
+import weka.classifiers.lazy.ear4.PageHinkley;
+import weka.classifiers.lazy.ear4.PredictionCache;
+import weka.classifiers.lazy.ear4.Projection;
+import weka.classifiers.lazy.ear4.RuleSearch;
+import weka.classifiers.lazy.ear4.RunningMoments;
+import weka.classifiers.lazy.ear4.ScratchArena;
+import weka.classifiers.lazy.ear4.SpaceFillingCurve;
+import weka.classifiers.lazy.ear4.StageTimes;
+import weka.classifiers.lazy.ear4.Telemetry;
+import weka.classifiers.lazy.ear4.WindowMaintenance;
 import weka.core.Attribute;
 import weka.core.Capabilities;
+import weka.core.EuclideanDistance;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.NormalizableDistance;
 import weka.core.neighboursearch.LinearNNSearch;
 import weka.core.neighboursearch.NearestNeighbourSearch;
 import weka.core.Option;
@@ -46,11 +67,14 @@ import weka.core.TechnicalInformation.Field;
 import weka.core.TechnicalInformation.Type;
 import weka.core.AdditionalMeasureProducer;
 
+import java.lang.management.ManagementFactory;
 import java.util.Enumeration;
 import java.util.Vector;
 import java.util.Collections;
 import java.util.List;
 
+import javax.management.ObjectName;
+
 /**
  <!-- globalinfo-start -->
  * Ensembles of Adaptations for Regression.<br/>
@@ -114,6 +138,60 @@ import java.util.List;
  *  Maximum number of training instances maintained.
  *  Training instances are dropped FIFO. (Default = no window)</pre>
  * 
+ * <pre> -R &lt;range tolerance&gt;
+ *  Relative drift of the attribute ranges tolerated before the
+ *  neighbour search is re-normalised when the window drops
+ *  instances. (Default = 0, always exact)</pre>
+ * 
+ * <pre> -Y &lt;drift threshold&gt;
+ *  Page-Hinkley threshold on the normalised prequential error of
+ *  updates; on drift the window shrinks to the instances since
+ *  the change. (Default = 0, no drift detection)</pre>
+ * 
+ * <pre> -Z &lt;redundancy threshold&gt;
+ *  Fraction of the mean prequential error below which a new
+ *  instance is not stored. (Default = 0, store all)</pre>
+ * 
+ * <pre> -C &lt;cache size&gt;
+ *  Maximum number of predictions kept in the prediction cache.
+ *  (Default = 0, no caching)</pre>
+ * 
+ * <pre> -Q &lt;grid step&gt;
+ *  Quantisation step applied to the attribute values before
+ *  looking up the prediction cache. (Default = 0, exact match)</pre>
+ * 
+ * <pre> -P &lt;engine&gt;
+ *  The prediction engine: 1 = Instances-based reference
+ *  implementation, 2 = primitive rule matrices with pruned rule
+ *  retrieval, 3 = lazy pair-space rule retrieval. (Default = 2)</pre>
+ * 
+ * <pre> -N &lt;tie handling&gt;
+ *  How base cases tied with the k-th nearest are selected: 1 = in
+ *  the order of the neighbour search, 2 = in attribute value order,
+ *  3 = all of them, splitting the weight of the k-th. (Default = 1)</pre>
+ * 
+ * <pre> -V &lt;precision&gt;
+ *  The precision the primitive engine stores the cases and the
+ *  rule matrices in, set when the classifier is built: 1 = double,
+ *  2 = float32, 3 = int8. (Default = 1)</pre>
+ * 
+ * <pre> -J &lt;projection&gt;
+ *  The projection of the features fitted when the classifier is
+ *  built: 1 = none, 2 = principal components, 3 = random
+ *  projection. (Default = 1)</pre>
+ * 
+ * <pre> -G &lt;dimensions&gt;
+ *  The number of projected dimensions. (Default = 0, the components
+ *  covering 95% of the variance, or half of the features for
+ *  random projections)</pre>
+ * 
+ * <pre> -H &lt;refit interval&gt;
+ *  The number of updates after which the projection is refitted
+ *  and the cases are projected again. (Default = 0, never)</pre>
+ * 
+ * <pre> -T
+ *  Measure the bytes allocated by every prediction.</pre>
+ * 
  * <pre> -X
  *  Select the number of nearest neighbours (base cases) between 1
  *  and the k value specified and the number of adaptations to apply per base case between
@@ -149,6 +227,15 @@ public class EAR4
   /** The training instances used for regression. */
   protected Instances m_Train;
 
+  /**
+   * Whether m_Train holds only the format of the training data, the cases
+   * being in the case base alone (see buildClassifier(CaseFile)).
+   */
+  protected boolean m_TrainDeferred;
+
+  /** Primitive copy of the training instances, scanned by the primitive engine. */
+  protected CaseBase m_CaseBase;
+
   /** The number of class values (or 1 if predicting numeric). */
   protected int m_NumClasses;
 
@@ -191,6 +278,24 @@ public class EAR4
    */
   protected int m_WindowSize;
 
+  /**
+   * The relative drift of the attribute ranges tolerated, when the window
+   * drops instances, before the neighbour search is re-normalised.
+   */
+  protected double m_RangeTolerance;
+
+  /** The Page-Hinkley threshold on the prequential error (0 = no drift detection). */
+  protected double m_DriftThreshold;
+
+  /** The fraction of the mean prequential error below which new cases are not stored. */
+  protected double m_RedundancyThreshold;
+
+  /** The maintenance of the training window, null without drift detection or redundancy. */
+  protected WindowMaintenance m_Maintenance;
+
+  /** The last condensation of the training data, null if not condensed since built. */
+  protected Condensation m_Condensation;
+
   /** Whether the neighbours should be distance-weighted. (distance weighting is not supported yet) */
   protected int m_DistanceWeighting;
 
@@ -215,6 +320,112 @@ public class EAR4
     new Tag(WEIGHT_INVERSE, "Weight by 1/distance"),
     new Tag(WEIGHT_SIMILARITY, "Weight by 1-distance")
   };
+
+  /** predict with the Instances-based reference implementation. */
+  public static final int ENGINE_INSTANCES = 1;
+  /** predict with primitive rule matrices and pruned rule retrieval. */
+  public static final int ENGINE_PRIMITIVE = 2;
+  /** predict on primitive buffers, searching rules in pair space without a rule matrix. */
+  public static final int ENGINE_LAZY = 3;
+  /** possible prediction engines. */
+  public static final Tag [] TAGS_ENGINE = {
+    new Tag(ENGINE_INSTANCES, "Instances-based reference implementation"),
+    new Tag(ENGINE_PRIMITIVE, "Primitive rule matrices with pruned rule retrieval"),
+    new Tag(ENGINE_LAZY, "Lazy pair-space rule retrieval without a rule matrix")
+  };
+
+  /** The prediction engine to use. */
+  protected int m_Engine = ENGINE_PRIMITIVE;
+
+  /** take the first k neighbours in the order the search returned them. */
+  public static final int TIES_SEARCH_ORDER = NeighbourSelector.TIES_SEARCH_ORDER;
+  /** order neighbours at the same distance on their attribute values. */
+  public static final int TIES_CANONICAL = NeighbourSelector.TIES_CANONICAL;
+  /** keep all neighbours tied with the k-th, splitting its weight. */
+  public static final int TIES_SPLIT = NeighbourSelector.TIES_SPLIT;
+  /** possible tie handling policies. */
+  public static final Tag [] TAGS_TIES = {
+    new Tag(TIES_SEARCH_ORDER, "Order returned by the neighbour search"),
+    new Tag(TIES_CANONICAL, "Attribute value order"),
+    new Tag(TIES_SPLIT, "Keep all ties, splitting the weight of the k-th")
+  };
+
+  /** How base cases tied with the k-th nearest are selected. */
+  protected int m_TieHandling = TIES_SEARCH_ORDER;
+
+  /** store cases and rules in double. */
+  public static final int PRECISION_DOUBLE = 1;
+  /** store cases and rules in float32. */
+  public static final int PRECISION_FLOAT = 2;
+  /** store cases and rules in int8. */
+  public static final int PRECISION_BYTE = 3;
+  /** possible storage precisions. */
+  public static final Tag [] TAGS_PRECISION = {
+    new Tag(PRECISION_DOUBLE, "Double"),
+    new Tag(PRECISION_FLOAT, "Float32, re-ranked in double"),
+    new Tag(PRECISION_BYTE, "Int8, re-ranked in double")
+  };
+
+  /** The precision the primitive engine stores cases and rules in. */
+  protected int m_StoragePrecision = PRECISION_DOUBLE;
+
+  /** no projection. */
+  public static final int PROJECTION_NONE = 1;
+  /** project onto principal components. */
+  public static final int PROJECTION_PCA = 2;
+  /** project with a random matrix. */
+  public static final int PROJECTION_RANDOM = 3;
+  /** possible projections. */
+  public static final Tag [] TAGS_PROJECTION = {
+    new Tag(PROJECTION_NONE, "No projection"),
+    new Tag(PROJECTION_PCA, "Principal components"),
+    new Tag(PROJECTION_RANDOM, "Random projection")
+  };
+
+  /** The fraction of the variance the principal components cover by default. */
+  public static final double PROJECTION_COVERED = 0.95;
+
+  /** The seed of random projections. */
+  protected static final long PROJECTION_SEED = 1;
+
+  /** The projection to fit. */
+  protected int m_ProjectionMethod = PROJECTION_NONE;
+
+  /** The number of projected dimensions, 0 to choose automatically. */
+  protected int m_ProjectionDimensions;
+
+  /** The number of updates after which the projection is refitted, 0 for never. */
+  protected int m_ProjectionRefit;
+
+  /** The fitted projection, null if the features are not projected. */
+  protected Projection m_Projection;
+
+  /** The moments of the original features of all training instances. */
+  protected RunningMoments m_Moments;
+
+  /** The format of the original instances. */
+  protected Instances m_RawHeader;
+
+  /** The original instances in the window, kept if the projection is refitted. */
+  protected Instances m_RawTrain;
+
+  /** The number of updates since the projection was fitted. */
+  protected int m_UpdatesSinceFit;
+
+  /** The estimated bytes per instance of an Instances object, besides the values. */
+  public static final int INSTANCE_BYTES = 48;
+
+  /** Whether the bytes allocated by every prediction are measured. */
+  protected boolean m_AllocationTelemetry;
+
+  /** The name the telemetry MBean is registered under, null if it is not. */
+  protected transient ObjectName m_TelemetryName;
+
+  /** Whether l_NNSearch can be replaced by a primitive rule search. */
+  protected boolean m_PrimitiveRuleSearch;
+
+  /** Whether m_NNSearch can be replaced by a scan of the case base. */
+  protected boolean m_PrimitiveCaseSearch;
   
   /** for nearest-neighbor search. */
   protected NearestNeighbourSearch m_NNSearch = new LinearNNSearch();
@@ -225,8 +436,29 @@ public class EAR4
   /** The number of attributes the contribute to a prediction. */
   protected double m_NumAttributesUsed;
   
-  /** Default ZeroR model to use when there are no training instances */
-  protected ZeroR m_defaultModel;
+  /** Default prediction (the ZeroR mean) to use when there are no training instances */
+  protected double m_DefaultPrediction;
+
+  /** The maximum number of predictions to cache (0 = no caching). */
+  protected int m_CacheSize;
+
+  /** The quantisation step applied to the cache keys (0 = exact keys). */
+  protected double m_CacheGrid;
+
+  /** The cache of recent predictions, created on demand. */
+  protected transient volatile PredictionCache m_Cache;
+
+  /** The attribute values of the last rule generation neighbourhood. */
+  protected transient double[] m_LastNeighbourhood;
+
+  /** The adaptation rules generated from the last neighbourhood. */
+  protected transient Instances m_LastRules;
+
+  /** The per-thread working memory of the prediction path. */
+  protected transient ArenaPool m_Arena;
+
+  /** The latest immutable version of the model, for concurrent readers. */
+  protected transient volatile ModelSnapshot m_Snapshot;
   
   /**
    * EAR4 learner. Case-based learner that uses ensembles of adaptations to adjust the value
@@ -327,6 +559,8 @@ public class EAR4
     m_kNN = k;
     m_kNNUpper = k;
     m_kNNValid = false;
+    invalidateCache();
+    publishSnapshot();
   }
 
   /**
@@ -338,6 +572,8 @@ public class EAR4
     m_l = l;
     m_lUpper = l;
     m_kNNValid = false;
+    invalidateCache();
+    publishSnapshot();
   }
 
   /**
@@ -347,6 +583,8 @@ public class EAR4
    */
   public void seto(double o) {
     m_o = o;
+    invalidateCache();
+    publishSnapshot();
   }
 
   /**
@@ -416,6 +654,274 @@ public class EAR4
   public void setWindowSize(int newWindowSize) {
     
     m_WindowSize = newWindowSize;
+    if (m_Maintenance != null) {
+      m_Maintenance.setLimit(newWindowSize);
+    }
+    if (m_CaseBase != null) {
+      try {
+        enforceWindow();
+      } catch (Exception e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+      publishSnapshot();
+    }
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String rangeToleranceTipText() {
+    return "How far the attribute ranges may drift, as a fraction of the " +
+      "width of an attribute, before the neighbour search is re-normalised " +
+      "when the window drops instances. The ranges are tracked " +
+      "incrementally; a value of 0 always normalises with the exact ranges " +
+      "of the windowed instances.";
+  }
+
+  /**
+   * Gets the relative drift of the attribute ranges tolerated before the
+   * neighbour search is re-normalised.
+   *
+   * @return the range tolerance, 0 for exact ranges.
+   */
+  public double getRangeTolerance() {
+
+    return m_RangeTolerance;
+  }
+
+  /**
+   * Sets the relative drift of the attribute ranges tolerated before the
+   * neighbour search is re-normalised. Takes effect with the next
+   * instances the window drops.
+   *
+   * @param newRangeTolerance the range tolerance, 0 for exact ranges.
+   */
+  public void setRangeTolerance(double newRangeTolerance) {
+
+    m_RangeTolerance = newRangeTolerance;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String driftThresholdTipText() {
+    return "The threshold of the Page-Hinkley test on the prequential error " +
+      "of updateClassifier(): every new instance is predicted before it is " +
+      "stored, and its absolute error, divided by the class range, is " +
+      "watched for an increase. On drift the window shrinks to the " +
+      "instances stored since the change began and then grows back to the " +
+      "window size. A value of 0 disables drift detection.";
+  }
+
+  /**
+   * Gets the threshold of the drift test on the prequential error.
+   *
+   * @return the drift threshold, 0 if drift is not detected.
+   */
+  public double getDriftThreshold() {
+
+    return m_DriftThreshold;
+  }
+
+  /**
+   * Sets the threshold of the drift test on the prequential error. Takes
+   * effect with the next update; the maintenance state starts afresh.
+   *
+   * @param newDriftThreshold the drift threshold, 0 to not detect drift.
+   */
+  public void setDriftThreshold(double newDriftThreshold) {
+
+    m_DriftThreshold = newDriftThreshold;
+    if (m_CaseBase != null) {
+      m_Maintenance = createMaintenance();
+    }
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String redundancyThresholdTipText() {
+    return "The fraction of the mean prequential error of updateClassifier() " +
+      "below which a new instance is redundant: the stored instances already " +
+      "predict it, so it is not stored and does not push an older instance " +
+      "out of the window. A value of 0 stores every instance.";
+  }
+
+  /**
+   * Gets the fraction of the mean prequential error below which new
+   * instances are not stored.
+   *
+   * @return the redundancy threshold, 0 if every instance is stored.
+   */
+  public double getRedundancyThreshold() {
+
+    return m_RedundancyThreshold;
+  }
+
+  /**
+   * Sets the fraction of the mean prequential error below which new
+   * instances are not stored. Takes effect with the next update; the
+   * maintenance state starts afresh.
+   *
+   * @param newRedundancyThreshold the redundancy threshold, 0 to store
+   * every instance.
+   */
+  public void setRedundancyThreshold(double newRedundancyThreshold) {
+
+    m_RedundancyThreshold = newRedundancyThreshold;
+    if (m_CaseBase != null) {
+      m_Maintenance = createMaintenance();
+    }
+  }
+
+  /**
+   * Creates the maintenance of the training window for the current
+   * settings.
+   *
+   * @return the maintenance, null without drift detection or redundancy
+   */
+  protected WindowMaintenance createMaintenance() {
+
+    if ((m_DriftThreshold <= 0) && (m_RedundancyThreshold <= 0)) {
+      return null;
+    }
+    return new WindowMaintenance(m_DriftThreshold, m_RedundancyThreshold, m_WindowSize);
+  }
+
+  /**
+   * Returns the number of training instances to keep: the window size, or
+   * the window adapted to drift by m_Maintenance.
+   *
+   * @return the number of instances, 0 for no limit
+   */
+  protected int windowLimit() {
+
+    WindowMaintenance maintenance = m_Maintenance;
+    return (maintenance != null) ? maintenance.window() : m_WindowSize;
+  }
+
+  /**
+   * Predicts a new training instance before it is stored and lets
+   * m_Maintenance decide, from the error of the prediction, whether to
+   * store it and how large the window is to be.
+   *
+   * @param instance the new instance, with a class value
+   * @return true if the instance is to be stored
+   * @throws Exception if the instance cannot be predicted
+   */
+  protected boolean admit(Instance instance) throws Exception {
+
+    double error = Math.abs(distributionForInstance(instance)[0] - instance.classValue());
+    double width = m_CaseBase.ranges()[m_CaseBase.classIndex()][2];
+    if ((width > 0) && !Double.isInfinite(width)) {
+      error /= width;
+    }
+    int minimumSize = Math.max(PageHinkley.MIN_OBSERVATIONS,
+                               (int) Math.round(m_kNN * effectiveO()) + 1);
+    return m_Maintenance.observe(error, minimumSize);
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String cacheSizeTipText() {
+    return "The maximum number of predictions kept in the prediction cache. " +
+      "Repeated queries are answered from the cache until the training " +
+      "data changes. A value of 0 disables caching.";
+  }
+
+  /**
+   * Gets the maximum number of predictions kept in the prediction cache.
+   *
+   * @return the cache size, 0 if caching is disabled.
+   */
+  public int getCacheSize() {
+
+    return m_CacheSize;
+  }
+
+  /**
+   * Sets the maximum number of predictions kept in the prediction cache.
+   * A value of 0 disables caching.
+   *
+   * @param newCacheSize the cache size.
+   */
+  public void setCacheSize(int newCacheSize) {
+
+    m_CacheSize = newCacheSize;
+    m_Cache = null;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String cacheGridTipText() {
+    return "The quantisation step applied to the attribute values of a " +
+      "query before looking up the prediction cache. Queries falling in " +
+      "the same grid cell share a prediction. A value of 0 only matches " +
+      "identical queries.";
+  }
+
+  /**
+   * Gets the quantisation step used for the prediction cache keys.
+   *
+   * @return the grid step, 0 for exact keys.
+   */
+  public double getCacheGrid() {
+
+    return m_CacheGrid;
+  }
+
+  /**
+   * Sets the quantisation step used for the prediction cache keys.
+   *
+   * @param newCacheGrid the grid step, 0 for exact keys.
+   */
+  public void setCacheGrid(double newCacheGrid) {
+
+    m_CacheGrid = newCacheGrid;
+    m_Cache = null;
+  }
+
+  /**
+   * Returns the prediction cache, creating it if necessary.
+   *
+   * @return the cache, or null if caching is disabled
+   */
+  protected PredictionCache getPredictionCache() {
+
+    PredictionCache cache = m_Cache;
+    if ((cache == null) && (m_CacheSize > 0)) {
+      synchronized (this) {
+        if (m_Cache == null) {
+          m_Cache = new PredictionCache(m_CacheSize, m_CacheGrid);
+        }
+        cache = m_Cache;
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Drops all cached predictions. Called whenever the training data or a
+   * parameter affecting the predictions changes.
+   */
+  protected void invalidateCache() {
+
+    PredictionCache cache = m_Cache;
+    if (cache != null) {
+      cache.clear();
+    }
   }
   
   /**
@@ -554,6 +1060,9 @@ public class EAR4
    */
   public void setNearestNeighbourSearchAlgorithm(NearestNeighbourSearch nearestNeighbourSearchAlgorithm) {
     m_NNSearch = nearestNeighbourSearchAlgorithm;
+    checkPrimitiveSearches();
+    materialiseIfNeeded();
+    invalidateCache();
   }
  
   /**
@@ -570,149 +1079,928 @@ public class EAR4
    */
   public void setRuleNearestNeighbourSearchAlgorithm(NearestNeighbourSearch nearestNeighbourSearchAlgorithm) {
     l_NNSearch = nearestNeighbourSearchAlgorithm;
+    m_LastNeighbourhood = null;
+    m_LastRules = null;
+    checkPrimitiveSearches();
+    materialiseIfNeeded();
+    invalidateCache();
   }
-  
+
   /**
-   * Get the number of training instances the classifier is currently using.
-   * 
-   * @return the number of training instances the classifier is currently using
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
    */
-  public int getNumTraining() {
-
-    return m_Train.numInstances();
+  public String predictionEngineTipText() {
+    return "The prediction engine to use. The primitive engine works on " +
+      "reusable primitive buffers, keeps the rules in a primitive matrix " +
+      "and prunes the rule retrieval; it gives the same predictions as the " +
+      "reference implementation and is used only when rules are retrieved " +
+      "with a LinearNNSearch using the default EuclideanDistance and the " +
+      "class is the last attribute. The lazy engine is the primitive engine " +
+      "without the rule matrix: it searches the pairs of neighbours nearest " +
+      "to each base case directly, so rule generation no longer grows with " +
+      "the square of the neighbourhood and large o values become practical.";
   }
 
   /**
-   * Returns default capabilities of the classifier.
+   * Gets the prediction engine used. Will be one of ENGINE_INSTANCES,
+   * ENGINE_PRIMITIVE or ENGINE_LAZY.
    *
-   * @return      the capabilities of this classifier
+   * @return the prediction engine used.
    */
-  public Capabilities getCapabilities() {
-    Capabilities result = super.getCapabilities();
-    result.disableAll();
-
-    // attributes
-    //result.enable(Capability.NOMINAL_ATTRIBUTES);
-    result.enable(Capability.NUMERIC_ATTRIBUTES);
-    //result.enable(Capability.DATE_ATTRIBUTES);
-    //result.enable(Capability.MISSING_VALUES);
+  public SelectedTag getPredictionEngine() {
 
-    // class
-    //result.enable(Capability.NOMINAL_CLASS);
-    result.enable(Capability.NUMERIC_CLASS);
-    //result.enable(Capability.DATE_CLASS);
-    //result.enable(Capability.MISSING_CLASS_VALUES);
+    return new SelectedTag(m_Engine, TAGS_ENGINE);
+  }
 
-    // instances
-    result.setMinimumNumberInstances(0);
-    
-    return result;
+  /**
+   * Sets the prediction engine used. Values other than ENGINE_INSTANCES,
+   * ENGINE_PRIMITIVE or ENGINE_LAZY will be ignored.
+   *
+   * @param newEngine the prediction engine to use
+   */
+  public void setPredictionEngine(SelectedTag newEngine) {
+
+    if (newEngine.getTags() == TAGS_ENGINE) {
+      m_Engine = newEngine.getSelectedTag().getID();
+      m_LastNeighbourhood = null;
+      m_LastRules = null;
+      materialiseIfNeeded();
+      invalidateCache();
+      publishSnapshot();
+    }
   }
   
   /**
-   * Generates the classifier.
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String tieHandlingTipText() {
+    return "How the base cases are selected among neighbours at the same " +
+      "distance as the k-th nearest. The order the neighbour search returns " +
+      "them in differs between searches and engines; ordering them on their " +
+      "attribute values gives the same base cases whatever retrieved them, " +
+      "and splitting keeps all of them, sharing the weight of the slots left.";
+  }
+
+  /**
+   * Gets the tie handling policy. Will be one of TIES_SEARCH_ORDER,
+   * TIES_CANONICAL or TIES_SPLIT.
    *
-   * @param instances set of instances serving as training data 
-   * @throws Exception if the classifier has not been generated successfully
+   * @return the tie handling policy.
    */
-  public void buildClassifier(Instances instances) throws Exception {
-    
-    // can classifier handle the data?
-    getCapabilities().testWithFail(instances);
+  public SelectedTag getTieHandling() {
 
-    // remove instances with missing class
-    instances = new Instances(instances);
-    instances.deleteWithMissingClass();
-    //inja add filtering for non numerical attributes
+    return new SelectedTag(m_TieHandling, TAGS_TIES);
+  }
 
-    m_NumClasses = instances.numClasses();
-    m_ClassType = instances.classAttribute().type();
-    m_Train = new Instances(instances, 0, instances.numInstances());
+  /**
+   * Sets the tie handling policy. Values other than TIES_SEARCH_ORDER,
+   * TIES_CANONICAL or TIES_SPLIT will be ignored.
+   *
+   * @param newTieHandling the tie handling policy to use
+   */
+  public void setTieHandling(SelectedTag newTieHandling) {
 
-    // Throw away initial instances until within the specified window size
-    if ((m_WindowSize > 0) && (instances.numInstances() > m_WindowSize)) {
-      m_Train = new Instances(m_Train, 
-			      m_Train.numInstances()-m_WindowSize, 
-			      m_WindowSize);
+    if (newTieHandling.getTags() == TAGS_TIES) {
+      m_TieHandling = newTieHandling.getSelectedTag().getID();
+      invalidateCache();
+      publishSnapshot();
     }
+  }
 
-    m_NumAttributesUsed = 0.0;
-    
-	for (int i = 0; i < m_Train.numAttributes(); i++) {
-      if ((i != m_Train.classIndex()) && 
-	  (m_Train.attribute(i).isNominal() ||
-	   m_Train.attribute(i).isNumeric())) {
-	m_NumAttributesUsed += 1.0;
-      }
-    }
+  /**
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String storagePrecisionTipText() {
+    return "The precision the primitive engine stores the cases and the " +
+      "rule matrices in. Float32 and int8 read a half or an eighth of the " +
+      "bytes of double; every attribute is stored with its own offset and " +
+      "scale. The case values are rounded to the stored precision, which " +
+      "may change the predictions; candidates are re-ranked in double, so " +
+      "the rules retrieved are the same as with a double rule matrix.";
+  }
+
+  /**
+   * Gets the storage precision. Will be one of PRECISION_DOUBLE,
+   * PRECISION_FLOAT or PRECISION_BYTE.
+   *
+   * @return the storage precision.
+   */
+  public SelectedTag getStoragePrecision() {
+
+    return new SelectedTag(m_StoragePrecision, TAGS_PRECISION);
+  }
+
+  /**
+   * Sets the storage precision. Values other than PRECISION_DOUBLE,
+   * PRECISION_FLOAT or PRECISION_BYTE will be ignored. Takes effect
+   * when the classifier is built.
+   *
+   * @param newPrecision the storage precision to use
+   */
+  public void setStoragePrecision(SelectedTag newPrecision) {
+
+    if (newPrecision.getTags() == TAGS_PRECISION) {
+      m_StoragePrecision = newPrecision.getSelectedTag().getID();
+    }
+  }
+
+  /**
+   * Returns the bytes per value of the storage precision.
+   *
+   * @return 8, 4 or 1
+   */
+  protected int bytesPerValue() {
+
+    switch (m_StoragePrecision) {
+      case PRECISION_FLOAT:
+        return 4;
+      case PRECISION_BYTE:
+        return 1;
+      default:
+        return 8;
+    }
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String projectionMethodTipText() {
+    return "The projection of the features fitted when the classifier is " +
+      "built. The cases are projected once and every query is projected " +
+      "before prediction, so neighbour and rule retrieval work in the " +
+      "reduced space. The features are standardised first.";
+  }
+
+  /**
+   * Gets the projection method. Will be one of PROJECTION_NONE,
+   * PROJECTION_PCA or PROJECTION_RANDOM.
+   *
+   * @return the projection method.
+   */
+  public SelectedTag getProjectionMethod() {
+
+    return new SelectedTag(m_ProjectionMethod, TAGS_PROJECTION);
+  }
+
+  /**
+   * Sets the projection method. Values other than PROJECTION_NONE,
+   * PROJECTION_PCA or PROJECTION_RANDOM will be ignored. Takes effect
+   * when the classifier is built.
+   *
+   * @param newMethod the projection method to use
+   */
+  public void setProjectionMethod(SelectedTag newMethod) {
+
+    if (newMethod.getTags() == TAGS_PROJECTION) {
+      m_ProjectionMethod = newMethod.getSelectedTag().getID();
+    }
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String projectionDimensionsTipText() {
+    return "The number of projected dimensions. With 0, principal " +
+      "components are kept until they cover 95% of the variance and " +
+      "random projections use half of the features.";
+  }
+
+  /**
+   * Gets the number of projected dimensions.
+   *
+   * @return the number of dimensions, 0 if chosen automatically.
+   */
+  public int getProjectionDimensions() {
+
+    return m_ProjectionDimensions;
+  }
+
+  /**
+   * Sets the number of projected dimensions. Takes effect when the
+   * classifier is built.
+   *
+   * @param newDimensions the number of dimensions, 0 to choose automatically.
+   */
+  public void setProjectionDimensions(int newDimensions) {
+
+    m_ProjectionDimensions = newDimensions;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String projectionRefitTipText() {
+    return "The number of updates after which the projection is refitted " +
+      "to the moments of all instances seen so far and the instances in " +
+      "the window are projected again. The moments are updated with every " +
+      "instance. A value of 0 keeps the projection fitted when the " +
+      "classifier was built.";
+  }
+
+  /**
+   * Gets the number of updates after which the projection is refitted.
+   *
+   * @return the refit interval, 0 for never.
+   */
+  public int getProjectionRefit() {
+
+    return m_ProjectionRefit;
+  }
+
+  /**
+   * Sets the number of updates after which the projection is refitted.
+   * Takes effect when the classifier is built.
+   *
+   * @param newRefit the refit interval, 0 for never.
+   */
+  public void setProjectionRefit(int newRefit) {
+
+    m_ProjectionRefit = newRefit;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String allocationTelemetryTipText() {
+    return "Whether the bytes every prediction allocates are measured with " +
+      "the ThreadMXBean of the JVM and reported by the additional measure " +
+      "measureAllocatedBytesPerPrediction. Costs a few hundred nanoseconds " +
+      "per prediction; ignored if the JVM does not report allocations.";
+  }
+
+  /**
+   * Gets whether the allocations of predictions are measured.
+   *
+   * @return true if allocations are measured.
+   */
+  public boolean getAllocationTelemetry() {
+
+    return m_AllocationTelemetry;
+  }
+
+  /**
+   * Sets whether the allocations of predictions are measured.
+   *
+   * @param newTelemetry true to measure allocations.
+   */
+  public void setAllocationTelemetry(boolean newTelemetry) {
+
+    m_AllocationTelemetry = newTelemetry;
+  }
+
+  /**
+   * Get the number of training instances the classifier is currently using.
+   * 
+   * @return the number of training instances the classifier is currently using
+   */
+  public int getNumTraining() {
+
+    return m_CaseBase.numCases();
+  }
+
+  /**
+   * Returns default capabilities of the classifier.
+   *
+   * @return      the capabilities of this classifier
+   */
+  public Capabilities getCapabilities() {
+    Capabilities result = super.getCapabilities();
+    result.disableAll();
+
+    // attributes
+    //result.enable(Capability.NOMINAL_ATTRIBUTES);
+    result.enable(Capability.NUMERIC_ATTRIBUTES);
+    //result.enable(Capability.DATE_ATTRIBUTES);
+    //result.enable(Capability.MISSING_VALUES);
+
+    // class
+    //result.enable(Capability.NOMINAL_CLASS);
+    result.enable(Capability.NUMERIC_CLASS);
+    //result.enable(Capability.DATE_CLASS);
+    //result.enable(Capability.MISSING_CLASS_VALUES);
+
+    // instances
+    result.setMinimumNumberInstances(0);
+    
+    return result;
+  }
+  
+  /**
+   * Generates the classifier.
+   *
+   * @param instances set of instances serving as training data 
+   * @throws Exception if the classifier has not been generated successfully
+   */
+  public void buildClassifier(Instances instances) throws Exception {
+    
+    // can classifier handle the data?
+    getCapabilities().testWithFail(instances);
+
+    m_NumClasses = instances.numClasses();
+    m_ClassType = instances.classAttribute().type();
+    instances = fitProjection(instances);
+
+    // copy the instances with a class value (within the window) and
+    // compute the default prediction in a single pass
+    loadTrainingData(instances);
+    m_TrainDeferred = false;
+    initialiseModel();
+  }
+
+  /**
+   * Generates the classifier from a case file (see CaseFile). The cases are
+   * copied from the mapped file into the case base without creating
+   * Instance objects; m_Train holds them only once the model is updated or
+   * configured with an engine or search that needs Instance objects (see
+   * materialiseIfNeeded()). Until then, queries with missing values are
+   * rejected, as they would need the training instances. With a
+   * projection, the cases are loaded as instances and projected.
+   *
+   * @param file the training data
+   * @throws Exception if the classifier has not been generated successfully
+   */
+  public void buildClassifier(CaseFile file) throws Exception {
+
+    Instances header = file.header();
+    if (m_ProjectionMethod != PROJECTION_NONE) {
+      buildClassifier(file.instances(0));
+      return;
+    }
+    getCapabilities().testWithFail(header);
+
+    m_NumClasses = header.numClasses();
+    m_ClassType = header.classAttribute().type();
+    fitProjection(header);
+    m_CaseBase = file.caseBase(m_WindowSize);
+    m_CaseBase.setPrecision(bytesPerValue());
+    m_Train = header;
+    m_TrainDeferred = true;
+    m_DefaultPrediction = file.classMean();
+    initialiseModel();
+  }
+
+  /**
+   * Sets up the model around the training data just loaded: counts the
+   * attributes used, builds the neighbour search and resets the state
+   * derived from the training data.
+   *
+   * @throws Exception if the neighbour search cannot be built
+   */
+  protected void initialiseModel() throws Exception {
+
+    m_NumAttributesUsed = 0.0;
+    
+	for (int i = 0; i < m_Train.numAttributes(); i++) {
+      if ((i != m_Train.classIndex()) && 
+	  (m_Train.attribute(i).isNominal() ||
+	   m_Train.attribute(i).isNumeric())) {
+	m_NumAttributesUsed += 1.0;
+      }
+    }
+
+   
+    m_NNSearch.setInstances(m_Train);
+    checkPrimitiveSearches();
+    materialiseIfNeeded();
+    m_Maintenance = createMaintenance();
+    m_Condensation = null;
+
+    // Invalidate any currently cross-validation selected k
+    m_kNNValid = false;
+
+    invalidateCache();
+    publishSnapshot();
+  }
+
+  /**
+   * Adds the supplied instance to the training set. With a drift or
+   * redundancy threshold, the instance is predicted first and the window
+   * maintained on the error (see WindowMaintenance); a redundant instance
+   * is not added.
+   *
+   * @param instance the instance to add
+   * @throws Exception if instance could not be incorporated
+   * successfully
+   */
+  public void updateClassifier(Instance instance) throws Exception {
+
+    materialiseTrain();
+    if (m_Maintenance != null) {
+      Instances header = (m_Projection != null) ? m_RawHeader : m_Train;
+      if (header.equalHeaders(instance.dataset()) == false) {
+        throw new Exception("Incompatible instance types");
+      }
+      if (instance.classIsMissing() || !admit(instance)) {
+        return;
+      }
+    }
+    if (m_Projection != null) {
+      if (m_RawHeader.equalHeaders(instance.dataset()) == false) {
+        throw new Exception("Incompatible instance types");
+      }
+      if (instance.classIsMissing()) {
+        return;
+      }
+      if (updateProjection(instance)) {
+        // the instance is part of the re-projected window
+        return;
+      }
+      instance = m_Projection.project(instance);
+    }
+    if (m_Train.equalHeaders(instance.dataset()) == false) {
+      throw new Exception("Incompatible instance types");
+    }
+    if (instance.classIsMissing()) {
+      return;
+    }
+
+    m_Train.add(instance);
+    m_CaseBase.add(instance);
+    m_NNSearch.update(instance);
+    m_kNNValid = false;
+    invalidateCache();
+    enforceWindow();
+    publishSnapshot();
+  }
+
+  /**
+   * Creates the training instances right away if a case file left them out
+   * and the engine or one of the searches needs them, so that predictions
+   * never have to (see checkTrainAvailable()). Called whenever the model is
+   * built or its engine or searches change.
+   */
+  protected void materialiseIfNeeded() {
+
+    if (m_TrainDeferred && (m_CaseBase != null)
+        && !(usePrimitiveRules() && usePrimitiveBaseCases())) {
+      try {
+        materialiseTrain();
+      } catch (Exception e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Checks that a query needing Instance objects can be predicted without
+   * changing the model. A model built from a case file holds no training
+   * instances as long as the primitive engine serves all queries; a query
+   * with missing values is then rejected rather than materialising the
+   * training instances (and rebuilding the neighbour search) on the
+   * prediction path.
+   *
+   * @throws Exception if the training instances are not available
+   */
+  protected void checkTrainAvailable() throws Exception {
+
+    if (m_TrainDeferred) {
+      throw new Exception("A model built from a case file predicts queries with "
+                          + "missing values only after updateClassifier() or a "
+                          + "non-primitive engine or search have created the "
+                          + "training instances!");
+    }
+  }
+
+  /**
+   * Creates the training instances from the case base, if a case file left
+   * them out, and rebuilds the neighbour search over them. Called by the
+   * writer paths that need Instance objects.
+   *
+   * @throws Exception if the neighbour search cannot be rebuilt
+   */
+  protected synchronized void materialiseTrain() throws Exception {
+
+    if (!m_TrainDeferred) {
+      return;
+    }
+    int numAttributes = m_Train.numAttributes();
+    Instances train = new Instances(m_Train, m_CaseBase.numCases());
+    for (int i = 0; i < m_CaseBase.numCases(); i++) {
+      double[] values = new double[numAttributes];
+      m_CaseBase.copyCase(i, values, 0);
+      train.add(new Instance(1, values));
+    }
+    m_Train = train;
+    m_NNSearch.setInstances(m_Train);
+    m_TrainDeferred = false;
+  }
+
+  /**
+   * Condenses the training data of the built model: drops the instances
+   * whose removal changes no hold-one-out prediction by more than the
+   * given fraction of the class range, then rebuilds the case base and the
+   * neighbour search over the instances kept (see Condensation). The
+   * hold-one-out predictions are made by the primitive engine, so the
+   * class has to be the last attribute and no training value may be
+   * missing. Instances added afterwards are stored as usual.
+   *
+   * @param tolerance the largest change of a hold-one-out prediction
+   * allowed, as a fraction of the class range
+   * @return the condensation, with the size reduction and the change of
+   * the hold-one-out error
+   * @throws Exception if the model has not been built or cannot be
+   * condensed
+   */
+  public Condensation condense(double tolerance) throws Exception {
+
+    if (m_CaseBase == null) {
+      throw new Exception("No model built yet!");
+    }
+    if ((m_Train.classIndex() != m_Train.numAttributes() - 1)
+        || m_CaseBase.hasMissingValues()) {
+      throw new Exception("Condensation needs the class as the last attribute "
+                          + "and no missing training values!");
+    }
+    if (tolerance < 0) {
+      throw new Exception("The tolerance must not be negative!");
+    }
+    materialiseTrain();
+
+    Condensation condensation = Condensation.condense(
+      m_CaseBase, m_kNN, m_l, (int) Math.round(m_kNN * effectiveO()),
+      m_TieHandling, tolerance);
+    int numKept = condensation.casesAfter();
+    Instances train = new Instances(m_Train, numKept);
+    CaseBase cases = new CaseBase(m_Train, numKept);
+    for (int i = 0; i < m_Train.numInstances(); i++) {
+      if (condensation.kept(i)) {
+        train.add(m_Train.instance(i));
+        cases.add(m_Train.instance(i));
+      }
+    }
+    cases.setPrecision(bytesPerValue());
+    if ((m_RawTrain != null) && (m_RawTrain.numInstances() == m_Train.numInstances())) {
+      // the original instances re-projected on refits follow the window
+      Instances raw = new Instances(m_RawTrain, numKept);
+      for (int i = 0; i < m_RawTrain.numInstances(); i++) {
+        if (condensation.kept(i)) {
+          raw.add(m_RawTrain.instance(i));
+        }
+      }
+      m_RawTrain = raw;
+    }
+    m_Train = train;
+    m_CaseBase = cases;
+    m_NNSearch.setInstances(m_Train);
+    checkPrimitiveSearches();
+    m_Condensation = condensation;
+    m_kNNValid = false;
+    invalidateCache();
+    publishSnapshot();
+    return condensation;
+  }
+
+  /**
+   * Fits the projection to the training data, if one is to be used.
+   *
+   * @param instances the training data
+   * @return the training data in the projected space, or the training
+   * data itself if there is no projection
+   */
+  protected Instances fitProjection(Instances instances) {
+
+    m_Projection = null;
+    m_Moments = null;
+    m_RawHeader = null;
+    m_RawTrain = null;
+    if (m_ProjectionMethod == PROJECTION_NONE) {
+      return instances;
+    }
+
+    m_RawHeader = new Instances(instances, 0);
+    m_Moments = new RunningMoments(instances.numAttributes() - 1);
+    if (m_ProjectionRefit > 0) {
+      m_RawTrain = new Instances(instances, instances.numInstances());
+    }
+    for (int i = 0; i < instances.numInstances(); i++) {
+      Instance current = instances.instance(i);
+      if (!current.classIsMissing()) {
+        addMoments(current);
+        if (m_RawTrain != null) {
+          m_RawTrain.add(current);
+        }
+      }
+    }
+    if (m_RawTrain != null) {
+      trimRawWindow();
+    }
+    m_Projection = createProjection();
+    m_UpdatesSinceFit = 0;
+    return m_Projection.project(instances);
+  }
+
+  /**
+   * Creates the projection from the current moments.
+   *
+   * @return the projection
+   */
+  protected Projection createProjection() {
+
+    if (m_ProjectionMethod == PROJECTION_PCA) {
+      return Projection.pca(m_RawHeader, m_Moments, m_ProjectionDimensions,
+                            PROJECTION_COVERED);
+    }
+    int dimensions = m_ProjectionDimensions;
+    if (dimensions <= 0) {
+      dimensions = (m_Moments.dimensions() + 1) / 2;
+    }
+    return Projection.random(m_RawHeader, m_Moments, dimensions, PROJECTION_SEED);
+  }
+
+  /**
+   * Adds the features of an instance to the moments, unless one of them
+   * is missing.
+   *
+   * @param instance the instance, in the original format
+   */
+  protected void addMoments(Instance instance) {
+
+    double[] values = new double[m_Moments.dimensions()];
+    Projection.featureValues(instance, Projection.features(m_RawHeader), values);
+    for (int f = 0; f < values.length; f++) {
+      if (Instance.isMissingValue(values[f])) {
+        return;
+      }
+    }
+    m_Moments.add(values);
+  }
+
+  /**
+   * Drops the oldest original instances that no longer fit into the window.
+   */
+  protected void trimRawWindow() {
+
+    int window = windowLimit();
+    if (window > 0) {
+      while (m_RawTrain.numInstances() > window) {
+        m_RawTrain.delete(0);
+      }
+    }
+  }
+
+  /**
+   * Updates the moments with an instance and, every m_ProjectionRefit
+   * updates, refits the projection and rebuilds the model on the window of
+   * original instances, projected again.
+   *
+   * @param instance the new instance, in the original format
+   * @return true if the model has been rebuilt (including the instance)
+   * @throws Exception if the neighbour search cannot be rebuilt
+   */
+  protected boolean updateProjection(Instance instance) throws Exception {
+
+    addMoments(instance);
+    if (m_RawTrain == null) {
+      return false;
+    }
+    m_RawTrain.add(instance);
+    trimRawWindow();
+    m_UpdatesSinceFit++;
+    if (m_UpdatesSinceFit < m_ProjectionRefit) {
+      return false;
+    }
+
+    m_Projection = createProjection();
+    m_UpdatesSinceFit = 0;
+    double defaultPrediction = m_DefaultPrediction;
+    loadTrainingData(m_Projection.project(m_RawTrain));
+    m_DefaultPrediction = defaultPrediction;
+    m_NNSearch.setInstances(m_Train);
+    checkPrimitiveSearches();
+    m_kNNValid = false;
+    invalidateCache();
+    publishSnapshot();
+    return true;
+  }
+
+  /**
+   * Throws away the oldest training instances until the training data fits
+   * into the window (see windowLimit()). Only the methods changing the model call this, so
+   * predictions never modify the model.
+   *
+   * @throws Exception if the neighbour search cannot be rebuilt
+   */
+  protected void enforceWindow() throws Exception {
+
+    int window = windowLimit();
+    if ((window > 0) && (m_Train.numInstances() > window)) {
+      int excess = m_Train.numInstances() - window;
+      NormalizableDistance distance = inPlaceDistance();
+      if (distance != null) {
+	// the search scans m_Train itself, so it needs no rebuild; its
+	// ranges (validated before the drop, hence equal to those of the
+	// case base) are only replaced if they drift past the tolerance
+	double[][] ranges = distance.getRanges();
+	for (int i = 0; i < excess; i++) {
+	  m_Train.delete(0);
+	}
+	if (m_CaseBase.removeFirst(excess, m_RangeTolerance)) {
+	  double[][] exact = m_CaseBase.ranges();
+	  for (int a = 0; a < ranges.length; a++) {
+	    System.arraycopy(exact[a], 0, ranges[a], 0, ranges[a].length);
+	  }
+	}
+      } else {
+	for (int i = 0; i < excess; i++) {
+	  m_Train.delete(0);
+	}
+	m_CaseBase.removeFirst(excess);
+	//rebuild datastructure KDTree currently can't delete
+	m_NNSearch.setInstances(m_Train);
+      }
+      m_kNNValid = false;
+      invalidateCache();
+    }
+  }
+
+  /**
+   * Returns the distance of m_NNSearch if the search can follow the window
+   * without being rebuilt: a LinearNNSearch scans m_Train itself and its
+   * NormalizableDistance keeps its ranges in an array that can be updated
+   * in place.
+   *
+   * @return the distance, or null if the search has to be rebuilt
+   */
+  protected NormalizableDistance inPlaceDistance() {
+
+    if ((m_NNSearch.getClass() == LinearNNSearch.class)
+        && (m_NNSearch.getInstances() == m_Train)
+        && (m_NNSearch.getDistanceFunction() instanceof NormalizableDistance)) {
+      return (NormalizableDistance) m_NNSearch.getDistanceFunction();
+    }
+    return null;
+  }
+
+  /**
+   * Publishes an immutable snapshot of the current cases and parameters
+   * for concurrent readers. The snapshot shares the storage of the case
+   * base, so publishing costs little more than copying the attribute
+   * ranges. Called by the (single) writer after every change of the model.
+   */
+  protected void publishSnapshot() {
+
+    if (m_CaseBase != null) {
+      m_Snapshot = new ModelSnapshot(m_CaseBase, m_kNN, m_l, effectiveO(),
+                                     m_DefaultPrediction, arenas(), m_Projection,
+                                     m_Engine == ENGINE_LAZY, m_TieHandling);
+    }
+  }
+
+  /**
+   * Returns the latest immutable snapshot of the model. Readers can score
+   * queries against it from any number of threads without locking, while
+   * a single writer keeps calling updateClassifier(), which publishes a
+   * new snapshot after every update.
+   *
+   * @return the snapshot
+   * @throws Exception if the model has not been built yet
+   */
+  public ModelSnapshot snapshot() throws Exception {
+
+    ModelSnapshot current = m_Snapshot;
+    if (current == null) {
+      if (m_CaseBase == null) {
+        throw new Exception("No model built yet!");
+      }
+      synchronized (this) {
+        if (m_Snapshot == null) {
+          publishSnapshot();
+        }
+        current = m_Snapshot;
+      }
+    }
+    return current;
+  }
 
-   
-    m_NNSearch.setInstances(m_Train);
+  /**
+   * Returns whether the snapshots of the model predict exactly like the
+   * model itself: the primitive engine retrieves both the base cases and
+   * the rules. Queries with missing values have to be scored by the model
+   * even then.
+   *
+   * @return true if snapshot() can stand in for the model
+   */
+  public boolean snapshotsPredictExactly() {
 
-    // Invalidate any currently cross-validation selected k
-    m_kNNValid = false;
-    
-    m_defaultModel = new ZeroR();
-    m_defaultModel.buildClassifier(instances);
+    return (m_CaseBase != null) && usePrimitiveRules() && usePrimitiveBaseCases();
   }
 
   /**
-   * Adds the supplied instance to the training set.
+   * Loads the training data in a single pass. Instances with a missing class
+   * are skipped, the weighted mean class value of the others is kept as the
+   * default prediction, and only the last m_WindowSize of them (all of them
+   * if there is no window) are copied - once - into m_Train and the case
+   * base, which computes the attribute ranges as the cases arrive.
    *
-   * @param instance the instance to add
-   * @throws Exception if instance could not be incorporated
-   * successfully
+   * @param instances the training data
    */
-  public void updateClassifier(Instance instance) throws Exception {
+  protected void loadTrainingData(Instances instances) {
 
-    if (m_Train.equalHeaders(instance.dataset()) == false) {
-      throw new Exception("Incompatible instance types");
-    }
-    if (instance.classIsMissing()) {
-      return;
+    int numInstances = instances.numInstances();
+    int capacity = numInstances;
+    if ((m_WindowSize > 0) && (m_WindowSize < numInstances)) {
+      capacity = m_WindowSize;
     }
 
-    m_Train.add(instance);
-    m_NNSearch.update(instance);
-    m_kNNValid = false;
-    if ((m_WindowSize > 0) && (m_Train.numInstances() > m_WindowSize)) {
-      boolean deletedInstance=false;
-      while (m_Train.numInstances() > m_WindowSize) {
-	m_Train.delete(0);
-        deletedInstance=true;
+    // ring of the indices of the last instances with a class value
+    int[] kept = new int[capacity];
+    int numKept = 0;
+    int oldest = 0;
+    double sumOfWeights = 0;
+    double classSum = 0;
+    for (int i = 0; i < numInstances; i++) {
+      Instance current = instances.instance(i);
+      if (current.classIsMissing()) {
+        continue;
       }
-      //rebuild datastructure KDTree currently can't delete
-      if(deletedInstance==true)
-        m_NNSearch.setInstances(m_Train);
+      classSum += current.weight() * current.classValue();
+      sumOfWeights += current.weight();
+      if (numKept < capacity) {
+        kept[numKept++] = i;
+      } else {
+        kept[oldest] = i;
+        oldest = (oldest + 1) % capacity;
+      }
+    }
+
+    m_Train = new Instances(instances, numKept);
+    m_CaseBase = new CaseBase(instances, numKept);
+    for (int j = 0; j < numKept; j++) {
+      Instance current = instances.instance(kept[(oldest + j) % numKept]);
+      m_Train.add(current);
+      m_CaseBase.add(current);
+    }
+    m_CaseBase.setPrecision(bytesPerValue());
+
+    m_DefaultPrediction = 0;
+    if (Utils.gr(sumOfWeights, 0)) {
+      m_DefaultPrediction = classSum / sumOfWeights;
     }
   }
 
   /**
-   * Calculates the class membership probabilities for the given test instance.
+   * Calculates the class membership probabilities for the given test
+   * instance. With allocation telemetry on, the bytes the prediction
+   * allocates are counted on the scratch arena of the calling thread.
    *
    * @param instance the instance to be classified
    * @return predicted class probability distribution
    * @throws Exception if an error occurred during the prediction
    */
   public double [] distributionForInstance(Instance instance) throws Exception {
-	if (m_kNN * m_o > m_Train.numInstances() * (m_Train.numInstances() - 1))
-	{
-		//if m_kNN * m_o is larger than the maximum possible or rules, set m_o to the maximum feasible value
-		m_o = (int) java.lang.Math.round(m_Train.numInstances() * (m_Train.numInstances() - 1)/m_kNN);
-	}
-    if (m_Train.numInstances() == 0) {
+
+    if (!m_AllocationTelemetry) {
+      return predictDistribution(instance);
+    }
+    long before = AllocationMeter.threadAllocatedBytes();
+    double[] result = predictDistribution(instance);
+    if (before >= 0) {
+      long allocated = AllocationMeter.threadAllocatedBytes() - before;
+      scratchArena().countAllocation(allocated - AllocationMeter.overhead());
+    }
+    return result;
+  }
+
+  /**
+   * Calculates the prediction for the given test instance, from the
+   * prediction cache if possible.
+   *
+   * @param instance the instance to be classified
+   * @return predicted class probability distribution
+   * @throws Exception if an error occurred during the prediction
+   */
+  protected double [] predictDistribution(Instance instance) throws Exception {
+    if (m_CaseBase.numCases() == 0) {
       //throw new Exception("No training instances!");
-      return m_defaultModel.distributionForInstance(instance);
+      return new double[] {m_DefaultPrediction};
     }
-    if ((m_WindowSize > 0) && (m_Train.numInstances() > m_WindowSize)) {
-      m_kNNValid = false;
-      boolean deletedInstance=false;
-      while (m_Train.numInstances() > m_WindowSize) {
-	m_Train.delete(0);
+    Projection projection = m_Projection;
+    if (projection != null) {
+      instance = projection.project(instance);
+    }
+
+    PredictionCache cache = getPredictionCache();
+    long generation = 0;
+    if (cache != null) {
+      generation = cache.generation();
+      double[] cached = cache.get(instance);
+      if (cached != null) {
+        return cached;
       }
-      //rebuild datastructure KDTree currently can't delete
-      if(deletedInstance==true)
-        m_NNSearch.setInstances(m_Train);
     }
 
     // Select k by cross validation ( cross validation is not supported yet)
@@ -720,32 +2008,473 @@ public class EAR4
     //	crossValidate();
     //}
 
-    m_NNSearch.addInstanceInfo(instance);
-
-    Instances neighbours = m_NNSearch.kNearestNeighbours(instance, (int) java.lang.Math.round(m_kNN * m_o));
-	Instances rules = generateRules(neighbours);
-	rules.setClassIndex(rules.numAttributes() -1);
-	while(neighbours.numInstances() > m_kNN)
-		neighbours.delete(neighbours.numInstances() - 1);
-	double  prediction = predictValue(instance, neighbours, rules);
-	return new double[]{prediction};
+	double prediction;
+	if (usePrimitiveRules() && !hasMissingFeatures(instance))
+	{
+		prediction = predictPrimitive(instance, scratchArena());
+	}
+	else
+	{
+		// the Weka searches keep per-query state, so this path runs on one
+		// thread at a time
+		checkTrainAvailable();
+		synchronized (this)
+		{
+			Instances neighbours = m_NNSearch.kNearestNeighbours(instance, Math.max(1, (int) java.lang.Math.round(m_kNN * effectiveO())));
+			ScratchArena arena = scratchArena();
+			int numBaseCases = selectBaseCases(neighbours, m_NNSearch.getDistances(), m_kNN, arena);
+			Instances rules = rulesForNeighbourhood(neighbours);
+			prediction = predictValue(instance, neighbours, numBaseCases, arena, rules);
+		}
+	}
+	double[] result = new double[]{prediction};
+	if (cache != null) {
+	  cache.put(instance, result, generation);
+	}
+	return result;
     //double [] distances = m_NNSearch.getDistances();
     //double [] distribution = makeDistribution( neighbours, distances);
 
     //return distribution;
   }
 
-	private double predictValue(Instance target, Instances neighbors, Instances rules) throws Exception
+  /**
+   * Predicts the target value of an instance and explains the prediction:
+   * the base cases, the rules applied to each of them, their adjustments
+   * and distances. The explanation is copied from the buffers of the
+   * prediction itself (the rule search keeps the rules it retrieves for
+   * this call), so explaining costs one prediction plus the copy. The
+   * prediction cache is bypassed.
+   *
+   * @param instance the instance to explain the prediction for
+   * @return the explanation
+   * @throws Exception if there are no training instances or the primitive
+   * engine cannot predict for the instance
+   */
+  public Explanation explain(Instance instance) throws Exception {
+
+    if (m_CaseBase.numCases() == 0) {
+      throw new Exception("No training instances to explain a prediction with!");
+    }
+    Projection projection = m_Projection;
+    if (projection != null) {
+      instance = projection.project(instance);
+    }
+    if (!usePrimitiveRules() || hasMissingFeatures(instance)) {
+      throw new Exception("Explanations need the primitive prediction engine "
+                          + "and a query without missing values!");
+    }
+    ScratchArena arena = scratchArena();
+    arena.rules().setCapture(true);
+    try {
+      double prediction = predictPrimitive(instance, arena);
+      return Explanation.fromArena(arena, m_Train.numAttributes(), m_kNN, m_l,
+                                   prediction, usePrimitiveBaseCases());
+    } finally {
+      arena.rules().setCapture(false);
+    }
+  }
+
+  /**
+   * Predicts the target value of an instance together with the spread of
+   * the k x l candidate predictions it averages (base case target plus
+   * rule adjustment). The mean and variance are accumulated while the
+   * adjustments are summed; the candidates are copied from the prediction
+   * buffers for quantiles, so no second prediction is made. The prediction
+   * cache is bypassed.
+   *
+   * @param instance the instance to predict
+   * @return the prediction and the spread of its candidates
+   * @throws Exception if there are no training instances or the primitive
+   * engine cannot predict for the instance
+   */
+  public EnsembleSpread predictWithSpread(Instance instance) throws Exception {
+
+    if (m_CaseBase.numCases() == 0) {
+      throw new Exception("No training instances to predict with!");
+    }
+    Projection projection = m_Projection;
+    if (projection != null) {
+      instance = projection.project(instance);
+    }
+    if (!usePrimitiveRules() || hasMissingFeatures(instance)) {
+      throw new Exception("Prediction spreads need the primitive prediction engine "
+                          + "and a query without missing values!");
+    }
+    ScratchArena arena = scratchArena();
+    arena.rules().setCapture(true);
+    try {
+      double prediction = predictPrimitive(instance, arena);
+      return EnsembleSpread.fromArena(arena, m_Train.numAttributes(), m_kNN, m_l,
+                                      prediction);
+    } finally {
+      arena.rules().setCapture(false);
+    }
+  }
+  /**
+   * Predicts the target value of an instance within a time budget. The
+   * neighbourhood is always retrieved; then the mean target of the base
+   * cases is refined by generating the rules and adapting the base cases,
+   * nearest first, for as long as the per-thread estimates of the stage
+   * costs say the next stage fits in what is left of the budget. The
+   * result tells how far the prediction got; a complete one equals
+   * classifyInstance(). The prediction cache is bypassed.
+   *
+   * @param instance the instance to predict
+   * @param budgetNanos the time budget in nanoseconds
+   * @return the best prediction reached and how far it got
+   * @throws Exception if there are no training instances or the primitive
+   * engine cannot predict for the instance
+   */
+  public AnytimePrediction predictWithin(Instance instance, long budgetNanos) throws Exception {
+
+    long start = System.nanoTime();
+    if (m_CaseBase.numCases() == 0) {
+      throw new Exception("No training instances to predict with!");
+    }
+    Projection projection = m_Projection;
+    if (projection != null) {
+      instance = projection.project(instance);
+    }
+    if (!usePrimitiveRules() || hasMissingFeatures(instance)) {
+      throw new Exception("Deadline-bounded predictions need the primitive prediction "
+                          + "engine and a query without missing values!");
+    }
+    ScratchArena arena = scratchArena();
+    int numNeighbours = retrievePrimitive(instance, arena);
+    arena.recordStage(StageTimes.RETRIEVAL, System.nanoTime() - start, 1);
+    return arena.adaptWithin(numNeighbours, m_Train.numAttributes(), m_kNN, m_l,
+                             start, start + budgetNanos);
+  }
+
+
+  /**
+   * Returns the rule generation neighbourhood coefficient in effect: o,
+   * lowered if k*o exceeds the number of rules the training data allows.
+   *
+   * @return the effective o
+   */
+  protected double effectiveO() {
+
+    long numRules = (long) m_CaseBase.numCases() * (m_CaseBase.numCases() - 1);
+    if (m_kNN * m_o > numRules)
+    {
+      //if m_kNN * m_o is larger than the maximum possible or rules, use the maximum feasible value
+      return java.lang.Math.round(numRules / m_kNN);
+    }
+    return m_o;
+  }
+
+  /**
+   * Calculates the predictions for a batch of test instances. The
+   * instances are scored in Morton order over their normalised attributes,
+   * so that consecutive queries tend to share their rule generation
+   * neighbourhood (whose rules are reused only if it is exactly the same,
+   * see SpaceFillingCurve), and the predictions are returned in the
+   * original order.
+   *
+   * @param instances the instances to be classified
+   * @return the predicted distribution of each instance, in input order
+   * @throws Exception if an error occurred during the prediction
+   */
+  public double [][] distributionsForInstances(Instances instances) throws Exception {
+
+    double[][] result = new double[instances.numInstances()][];
+    int[] order = SpaceFillingCurve.mortonOrder(instances);
+    for (int i = 0; i < order.length; i++) {
+      result[order[i]] = distributionForInstance(instances.instance(order[i]));
+    }
+    return result;
+  }
+
+	/**
+	 * Returns the adaptation rules for the given rule generation
+	 * neighbourhood and prepares the rule retrieval search for them.
+	 * The rules are generated from the neighbours in a canonical order
+	 * (lexicographic on their attribute values), so that they depend only
+	 * on the set of neighbours. If that set is identical to the previous
+	 * one, the rules generated for it are reused.
+	 *
+	 * @param neighbours the rule generation neighbourhood
+	 * @return the adaptation rules
+	 * @throws Exception if the rule retrieval search cannot be initialised
+	 */
+	protected Instances rulesForNeighbourhood(Instances neighbours) throws Exception
 	{
+		int[] order = new int[neighbours.numInstances()];
+		double[] values = canonicalValues(neighbours, order);
+		if ((m_LastRules != null) && java.util.Arrays.equals(values, m_LastNeighbourhood))
+		{
+			scratchArena().countNeighbourhood(true);
+			return m_LastRules;
+		}
+		scratchArena().countNeighbourhood(false);
+
+		Instances canonical = new Instances(neighbours, order.length);
+		for (int i = 0; i < order.length; i++)
+			canonical.add(neighbours.instance(order[i]));
+		Instances rules = generateRules(canonical);
+		rules.setClassIndex(rules.numAttributes() -1);
 		l_NNSearch.setInstances(rules);
+		m_LastNeighbourhood = values;
+		m_LastRules = rules;
+		return rules;
+	}
+
+	/**
+	 * Sorts a neighbourhood lexicographically on the attribute values and
+	 * flattens the values of the sorted neighbours.
+	 *
+	 * @param neighbours the neighbourhood
+	 * @param order receives the neighbour indices in canonical order
+	 * @return the attribute values of all neighbours, in canonical order
+	 */
+	private double[] canonicalValues(Instances neighbours, int[] order)
+	{
+		final double[][] rows = new double[neighbours.numInstances()][];
+		Integer[] sorted = new Integer[rows.length];
+		for (int i = 0; i < rows.length; i++)
+		{
+			rows[i] = neighbours.instance(i).toDoubleArray();
+			sorted[i] = Integer.valueOf(i);
+		}
+		java.util.Arrays.sort(sorted, new java.util.Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				double[] r1 = rows[o1.intValue()];
+				double[] r2 = rows[o2.intValue()];
+				for (int j = 0; j < r1.length; j++)
+				{
+					int c = Double.compare(r1[j], r2[j]);
+					if (c != 0)
+						return c;
+				}
+				return 0;
+			}
+		});
+
+		int numAttributes = neighbours.numAttributes();
+		double[] values = new double[rows.length * numAttributes];
+		for (int i = 0; i < rows.length; i++)
+		{
+			order[i] = sorted[i].intValue();
+			System.arraycopy(rows[order[i]], 0, values, i * numAttributes, numAttributes);
+		}
+		return values;
+	}
+
+	/**
+	 * Whether rules can be kept in a primitive matrix and retrieved with
+	 * RuleSearch: the primitive engine is selected, rules are retrieved with
+	 * a plain LinearNNSearch over a default EuclideanDistance (whose results
+	 * RuleSearch reproduces) and the class is the last attribute. The search
+	 * is checked by checkPrimitiveSearches().
+	 *
+	 * @return true if the primitive rule path can be used
+	 */
+	protected boolean usePrimitiveRules()
+	{
+		return ((m_Engine == ENGINE_PRIMITIVE) || (m_Engine == ENGINE_LAZY))
+		  && (m_Train.classIndex() == m_Train.numAttributes() - 1)
+		  && m_PrimitiveRuleSearch;
+	}
+
+	/**
+	 * Whether the primitive engine can retrieve the base cases by scanning
+	 * the case base itself: m_NNSearch is a plain LinearNNSearch over a
+	 * default EuclideanDistance (checked by checkPrimitiveSearches()) and no
+	 * training value is missing.
+	 *
+	 * @return true if the case base can be scanned directly
+	 */
+	protected boolean usePrimitiveBaseCases()
+	{
+		return m_PrimitiveCaseSearch && !m_CaseBase.hasMissingValues();
+	}
+
+	/**
+	 * Checks which of the two searches the primitive engine can reproduce.
+	 * Done when the searches are set and when the classifier is built,
+	 * rather than for every query.
+	 */
+	protected void checkPrimitiveSearches()
+	{
+		m_PrimitiveCaseSearch = isDefaultLinearSearch(m_NNSearch);
+		m_PrimitiveRuleSearch = isDefaultLinearSearch(l_NNSearch);
+	}
+
+	/**
+	 * Whether a search is a LinearNNSearch, not skipping identical instances,
+	 * over a normalised EuclideanDistance on all attributes.
+	 *
+	 * @param search the search to check
+	 * @return true if the primitive engine reproduces the search
+	 */
+	private boolean isDefaultLinearSearch(NearestNeighbourSearch search)
+	{
+		if ((search.getClass() != LinearNNSearch.class)
+		    || ((LinearNNSearch) search).getSkipIdentical()
+		    || (search.getDistanceFunction().getClass() != EuclideanDistance.class))
+			return false;
+		EuclideanDistance distance = (EuclideanDistance) search.getDistanceFunction();
+		return !distance.getDontNormalize() && !distance.getInvertSelection()
+		  && distance.getAttributeIndices().equals("first-last");
+	}
 
+	/**
+	 * Predicts the target value of a query on the primitive buffers of the
+	 * given arena: retrieves the base cases (scanning the case base directly
+	 * when m_NNSearch is a plain LinearNNSearch), generates the rules of
+	 * their neighbourhood into the arena's rule matrix and applies the l
+	 * nearest rules to each base case. Gives the same predictions as the
+	 * Instances-based path and allocates nothing once the arena buffers have
+	 * grown to the largest neighbourhood.
+	 *
+	 * @param target the query, without missing feature values
+	 * @param arena the working memory of the calling thread
+	 * @return the predicted target value
+	 * @throws Exception if the base cases cannot be retrieved
+	 */
+	protected double predictPrimitive(Instance target, ScratchArena arena) throws Exception
+	{
+		int numNeighbours = retrievePrimitive(target, arena);
+		return arena.adapt(numNeighbours, m_Train.numAttributes(), m_kNN, m_l);
+	}
+
+	/**
+	 * Copies a query into the given arena and retrieves its rule generation
+	 * neighbourhood into the arena's rows, nearest first, as
+	 * predictPrimitive() does before adapting.
+	 *
+	 * @param target the query, without missing feature values
+	 * @param arena the working memory of the calling thread
+	 * @return the number of neighbours retrieved
+	 * @throws Exception if the base cases cannot be retrieved
+	 */
+	protected int retrievePrimitive(Instance target, ScratchArena arena) throws Exception
+	{
+		int numAttributes = m_Train.numAttributes();
+		int kNN = Math.max(1, (int) java.lang.Math.round(m_kNN * effectiveO()));
+		arena.ensureCapacity(kNN, numAttributes);
+		arena.setQuery(target);
+
+		int numNeighbours;
+		if (usePrimitiveBaseCases())
+		{
+			// the ranges the distance of m_NNSearch has over the training data
+			numNeighbours = arena.retrieve(m_CaseBase, m_CaseBase.ranges(), kNN);
+		}
+		else
+		{
+			Instances neighbours;
+			double[] distances;
+			synchronized (this)
+			{
+				neighbours = m_NNSearch.kNearestNeighbours(target, kNN);
+				distances = m_NNSearch.getDistances().clone();
+			}
+			numNeighbours = arena.loadNeighbours(neighbours, distances, false);
+		}
+
+		arena.setLazyRules(m_Engine == ENGINE_LAZY);
+		arena.setRulePrecision(m_CaseBase.getPrecision());
+		arena.setTieHandling(m_TieHandling);
+		return numNeighbours;
+	}
+
+	/**
+	 * Returns the scratch arena of the calling thread, creating it if
+	 * necessary.
+	 *
+	 * @return the arena
+	 */
+	protected ScratchArena scratchArena()
+	{
+		return arenas().get();
+	}
+
+	/**
+	 * Returns the per-thread scratch arenas of this model (shared with its
+	 * snapshots), creating them if necessary.
+	 *
+	 * @return the arenas
+	 */
+	protected ArenaPool arenas()
+	{
+		ArenaPool arenas = m_Arena;
+		if (arenas == null)
+		{
+			synchronized (this)
+			{
+				if (m_Arena == null)
+					m_Arena = new ArenaPool();
+				arenas = m_Arena;
+			}
+		}
+		return arenas;
+	}
+
+	/**
+	 * Whether a query has a missing value in an attribute other than the
+	 * class. Such queries are left to the Instances-based path, whose
+	 * distance function treats missing values specially.
+	 *
+	 * @param instance the query
+	 * @return true if a feature value is missing
+	 */
+	protected boolean hasMissingFeatures(Instance instance)
+	{
+		for (int j = 0; j < instance.numAttributes(); j++)
+			if ((j != instance.classIndex()) && instance.isMissing(j))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Selects the base cases among neighbours returned by a Weka search,
+	 * as the primitive engine does (see NeighbourSelector): the values,
+	 * distances and positions of the neighbours are loaded into the
+	 * arena, and the positions of the selected neighbours in the given
+	 * Instances are left at the front of its neighbour indices, with their
+	 * weights (see ScratchArena.neighbourIndex() and weight()).
+	 *
+	 * @param neighbours the neighbours, nearest first
+	 * @param distances the distances of the neighbours, as the search
+	 * reports them
+	 * @param k the number of base cases
+	 * @param arena the working memory of the calling thread
+	 * @return the number of base cases selected
+	 */
+	protected int selectBaseCases(Instances neighbours, double[] distances, int k,
+				      ScratchArena arena)
+	{
+		int numNeighbours = arena.loadNeighbours(neighbours, distances, true);
+		arena.setTieHandling(m_TieHandling);
+		return arena.select(numNeighbours, neighbours.numAttributes(), k);
+	}
+
+	/**
+	 * Adapts the selected base cases with the rules retrieved by
+	 * l_NNSearch and averages their estimates by weight.
+	 *
+	 * @param target the query
+	 * @param neighbors the neighbours of the query
+	 * @param numBaseCases the number of base cases (see selectBaseCases())
+	 * @param arena the arena holding the selection
+	 * @param rules the rules of the neighbourhood
+	 * @return the predicted target value
+	 * @throws Exception if the rules cannot be retrieved
+	 */
+	private double predictValue(Instance target, Instances neighbors, int numBaseCases,
+				    ScratchArena arena, Instances rules) throws Exception
+	{
 		double prediction = 0;
-		for(int i =0; i < neighbors.numInstances(); i++)
+		for(int i =0; i < numBaseCases; i++)
 		{
+			Instance baseCase = neighbors.instance(arena.neighbourIndex(i));
 			double adjustment = 0;
 			if (m_l > 0)
 			{
-				Instance diffToAddress = generateRule(target, neighbors.instance(i));
+				Instance diffToAddress = generateRule(target, baseCase);
 				Instances rulesToApply = l_NNSearch.kNearestNeighbours(diffToAddress, m_l);
 				for (int j = 0; j < rulesToApply.numInstances(); j++)
 				{
@@ -754,10 +2483,10 @@ public class EAR4
 		
 				adjustment = adjustment / m_l;
 			}
-			prediction += neighbors.instance(i).value(neighbors.instance(i).classAttribute()) + adjustment;
+			prediction += arena.weight(i) * (baseCase.value(baseCase.classAttribute()) + adjustment);
 			//System.out.println(adjustment + " " + neighbors.instance(i).value(neighbors.instance(i).classAttribute()));
 		}
-		prediction = prediction / m_kNN;
+		prediction = prediction / Math.min(m_kNN, numBaseCases);
 		return prediction;
 	}
 
@@ -782,12 +2511,16 @@ public class EAR4
 
 	private Instance generateRule(Instance case1, Instance case2)
 	{
-		Instance tempInst = (Instance)case1.copy();
-		for (int i = 0; i < tempInst.numAttributes(); i++)
+		// one values array per rule, rather than a copy whose values are
+		// copied again by the first setValue()
+		double[] values = new double[case1.numAttributes()];
+		for (int i = 0; i < values.length; i++)
 		{
-			tempInst.setValue(i, tempInst.value(i) - case2.value(i));
-			//System.out.print(tempInst.value(i) + " " +  case2.value(i) +  ",     ");
+			values[i] = case1.value(i) - case2.value(i);
+			//System.out.print(case1.value(i) + " " +  case2.value(i) +  ",     ");
 		}
+		Instance tempInst = new Instance(case1.weight(), values);
+		tempInst.setDataset(case1.dataset());
 
 		/*java.util.Enumeration<Attribute> attrs = tempInst.enumerateAttributes();
 		System.out.println(case1.toString() + " before +++++++++++++++++++++ ");
@@ -806,10 +2539,10 @@ public class EAR4
    *
    * @return an enumeration of all the available options.
    */
-  public Enumeration listOptions() {
+  public Enumeration<Option> listOptions() {
 
 	//inja make sure if it should be 8 rather than 9
-    Vector newVector = new Vector(8);
+    Vector<Option> newVector = new Vector<Option>(8);
 
     /*newVector.addElement(new Option(
 	      "\tWeight neighbours by the inverse of their distance\n"+
@@ -839,6 +2572,60 @@ public class EAR4
           "\tMaximum number of training instances maintained.\n"+
 	      "\tTraining instances are dropped FIFO. (Default = no window)",
 	      "W", 1,"-W <window size>"));
+    newVector.addElement(new Option(
+          "\tRelative drift of the attribute ranges tolerated before the\n"+
+	      "\tneighbour search is re-normalised when the window drops\n"+
+	      "\tinstances. (Default = 0, always exact)",
+	      "R", 1,"-R <range tolerance>"));
+    newVector.addElement(new Option(
+          "\tPage-Hinkley threshold on the normalised prequential error of\n"+
+	      "\tupdates; on drift the window shrinks to the instances since\n"+
+	      "\tthe change. (Default = 0, no drift detection)",
+	      "Y", 1,"-Y <drift threshold>"));
+    newVector.addElement(new Option(
+          "\tFraction of the mean prequential error below which a new\n"+
+	      "\tinstance is not stored. (Default = 0, store all)",
+	      "Z", 1,"-Z <redundancy threshold>"));
+    newVector.addElement(new Option(
+          "\tMaximum number of predictions kept in the prediction cache.\n"+
+	      "\t(Default = 0, no caching)",
+	      "C", 1,"-C <cache size>"));
+    newVector.addElement(new Option(
+          "\tQuantisation step applied to the attribute values before\n"+
+	      "\tlooking up the prediction cache. (Default = 0, exact match)",
+	      "Q", 1,"-Q <grid step>"));
+    newVector.addElement(new Option(
+          "\tThe prediction engine: 1 = Instances-based reference\n"+
+	      "\timplementation, 2 = primitive rule matrices with pruned rule\n"+
+	      "\tretrieval, 3 = lazy pair-space rule retrieval. (Default = 2)",
+	      "P", 1,"-P <engine>"));
+    newVector.addElement(new Option(
+          "\tHow base cases tied with the k-th nearest are selected: 1 = in\n"+
+	      "\tthe order of the neighbour search, 2 = in attribute value order,\n"+
+	      "\t3 = all of them, splitting the weight of the k-th. (Default = 1)",
+	      "N", 1,"-N <tie handling>"));
+    newVector.addElement(new Option(
+          "\tThe precision the primitive engine stores the cases and the\n"+
+	      "\trule matrices in, set when the classifier is built: 1 = double,\n"+
+	      "\t2 = float32, 3 = int8. (Default = 1)",
+	      "V", 1,"-V <precision>"));
+    newVector.addElement(new Option(
+          "\tThe projection of the features fitted when the classifier is\n"+
+	      "\tbuilt: 1 = none, 2 = principal components, 3 = random\n"+
+	      "\tprojection. (Default = 1)",
+	      "J", 1,"-J <projection>"));
+    newVector.addElement(new Option(
+          "\tThe number of projected dimensions. (Default = 0, the components\n"+
+	      "\tcovering 95% of the variance, or half of the features for\n"+
+	      "\trandom projections)",
+	      "G", 1,"-G <dimensions>"));
+    newVector.addElement(new Option(
+          "\tThe number of updates after which the projection is refitted\n"+
+	      "\tand the cases are projected again. (Default = 0, never)",
+	      "H", 1,"-H <refit interval>"));
+    newVector.addElement(new Option(
+          "\tMeasure the bytes allocated by every prediction.",
+	      "T", 0,"-T"));
     newVector.addElement(new Option(
 	      "\tSelect the number of nearest neighbours between 1\n"+
 	      "\tand the k value specified using hold-one-out evaluation\n"+
@@ -891,6 +2678,60 @@ public class EAR4
    *  Maximum number of training instances maintained.
    *  Training instances are dropped FIFO. (Default = no window)</pre>
    * 
+   * <pre> -R &lt;range tolerance&gt;
+   *  Relative drift of the attribute ranges tolerated before the
+   *  neighbour search is re-normalised when the window drops
+   *  instances. (Default = 0, always exact)</pre>
+   * 
+   * <pre> -Y &lt;drift threshold&gt;
+   *  Page-Hinkley threshold on the normalised prequential error of
+   *  updates; on drift the window shrinks to the instances since
+   *  the change. (Default = 0, no drift detection)</pre>
+   * 
+   * <pre> -Z &lt;redundancy threshold&gt;
+   *  Fraction of the mean prequential error below which a new
+   *  instance is not stored. (Default = 0, store all)</pre>
+   * 
+   * <pre> -C &lt;cache size&gt;
+   *  Maximum number of predictions kept in the prediction cache.
+   *  (Default = 0, no caching)</pre>
+   * 
+   * <pre> -Q &lt;grid step&gt;
+   *  Quantisation step applied to the attribute values before
+   *  looking up the prediction cache. (Default = 0, exact match)</pre>
+   * 
+   * <pre> -P &lt;engine&gt;
+   *  The prediction engine: 1 = Instances-based reference
+   *  implementation, 2 = primitive rule matrices with pruned rule
+   *  retrieval, 3 = lazy pair-space rule retrieval. (Default = 2)</pre>
+   * 
+   * <pre> -N &lt;tie handling&gt;
+   *  How base cases tied with the k-th nearest are selected: 1 = in
+   *  the order of the neighbour search, 2 = in attribute value order,
+   *  3 = all of them, splitting the weight of the k-th. (Default = 1)</pre>
+   * 
+   * <pre> -V &lt;precision&gt;
+   *  The precision the primitive engine stores the cases and the
+   *  rule matrices in, set when the classifier is built: 1 = double,
+   *  2 = float32, 3 = int8. (Default = 1)</pre>
+   * 
+   * <pre> -J &lt;projection&gt;
+   *  The projection of the features fitted when the classifier is
+   *  built: 1 = none, 2 = principal components, 3 = random
+   *  projection. (Default = 1)</pre>
+   * 
+   * <pre> -G &lt;dimensions&gt;
+   *  The number of projected dimensions. (Default = 0, the components
+   *  covering 95% of the variance, or half of the features for
+   *  random projections)</pre>
+   * 
+   * <pre> -H &lt;refit interval&gt;
+   *  The number of updates after which the projection is refitted
+   *  and the cases are projected again. (Default = 0, never)</pre>
+   * 
+   * <pre> -T
+   *  Measure the bytes allocated by every prediction.</pre>
+   * 
    * <pre> -X
    *  Select the number of nearest neighbours between 1
    *  and the k value specified using hold-one-out evaluation
@@ -934,6 +2775,73 @@ public class EAR4
     } else {
       setWindowSize(0);
     }
+    String toleranceString = Utils.getOption('R', options);
+    if (toleranceString.length() != 0) {
+      setRangeTolerance(Double.parseDouble(toleranceString));
+    } else {
+      setRangeTolerance(0);
+    }
+    String driftString = Utils.getOption('Y', options);
+    if (driftString.length() != 0) {
+      setDriftThreshold(Double.parseDouble(driftString));
+    } else {
+      setDriftThreshold(0);
+    }
+    String redundancyString = Utils.getOption('Z', options);
+    if (redundancyString.length() != 0) {
+      setRedundancyThreshold(Double.parseDouble(redundancyString));
+    } else {
+      setRedundancyThreshold(0);
+    }
+    String cacheString = Utils.getOption('C', options);
+    if (cacheString.length() != 0) {
+      setCacheSize(Integer.parseInt(cacheString));
+    } else {
+      setCacheSize(0);
+    }
+    String gridString = Utils.getOption('Q', options);
+    if (gridString.length() != 0) {
+      setCacheGrid(Double.parseDouble(gridString));
+    } else {
+      setCacheGrid(0);
+    }
+    String engineString = Utils.getOption('P', options);
+    if (engineString.length() != 0) {
+      setPredictionEngine(new SelectedTag(Integer.parseInt(engineString), TAGS_ENGINE));
+    } else {
+      setPredictionEngine(new SelectedTag(ENGINE_PRIMITIVE, TAGS_ENGINE));
+    }
+    String tiesString = Utils.getOption('N', options);
+    if (tiesString.length() != 0) {
+      setTieHandling(new SelectedTag(Integer.parseInt(tiesString), TAGS_TIES));
+    } else {
+      setTieHandling(new SelectedTag(TIES_SEARCH_ORDER, TAGS_TIES));
+    }
+    String precisionString = Utils.getOption('V', options);
+    if (precisionString.length() != 0) {
+      setStoragePrecision(new SelectedTag(Integer.parseInt(precisionString), TAGS_PRECISION));
+    } else {
+      setStoragePrecision(new SelectedTag(PRECISION_DOUBLE, TAGS_PRECISION));
+    }
+    String projectionString = Utils.getOption('J', options);
+    if (projectionString.length() != 0) {
+      setProjectionMethod(new SelectedTag(Integer.parseInt(projectionString), TAGS_PROJECTION));
+    } else {
+      setProjectionMethod(new SelectedTag(PROJECTION_NONE, TAGS_PROJECTION));
+    }
+    String dimensionsString = Utils.getOption('G', options);
+    if (dimensionsString.length() != 0) {
+      setProjectionDimensions(Integer.parseInt(dimensionsString));
+    } else {
+      setProjectionDimensions(0);
+    }
+    String refitString = Utils.getOption('H', options);
+    if (refitString.length() != 0) {
+      setProjectionRefit(Integer.parseInt(refitString));
+    } else {
+      setProjectionRefit(0);
+    }
+    setAllocationTelemetry(Utils.getFlag('T', options));
     /*if (Utils.getFlag('I', options)) {
       setDistanceWeighting(new SelectedTag(WEIGHT_INVERSE, TAGS_WEIGHTING));
     } else if (Utils.getFlag('F', options)) {
@@ -992,12 +2900,26 @@ public class EAR4
    */
   public String [] getOptions() {
 
-    String [] options = new String [12];
+    String [] options = new String [35];
     int current = 0;
     options[current++] = "-K"; options[current++] = "" + getKNN();
 	options[current++] = "-L"; options[current++] = "" + getl();
 	options[current++] = "-O"; options[current++] = "" + geto();
     options[current++] = "-W"; options[current++] = "" + m_WindowSize;
+    options[current++] = "-R"; options[current++] = "" + m_RangeTolerance;
+    options[current++] = "-Y"; options[current++] = "" + m_DriftThreshold;
+    options[current++] = "-Z"; options[current++] = "" + m_RedundancyThreshold;
+    options[current++] = "-C"; options[current++] = "" + m_CacheSize;
+    options[current++] = "-Q"; options[current++] = "" + m_CacheGrid;
+    options[current++] = "-P"; options[current++] = "" + m_Engine;
+    options[current++] = "-N"; options[current++] = "" + m_TieHandling;
+    options[current++] = "-V"; options[current++] = "" + m_StoragePrecision;
+    options[current++] = "-J"; options[current++] = "" + m_ProjectionMethod;
+    options[current++] = "-G"; options[current++] = "" + m_ProjectionDimensions;
+    options[current++] = "-H"; options[current++] = "" + m_ProjectionRefit;
+    if (m_AllocationTelemetry) {
+      options[current++] = "-T";
+    }
     /*if (getCrossValidate()) {
       options[current++] = "-X";
     }
@@ -1026,28 +2948,53 @@ public class EAR4
   /**
    * Returns an enumeration of the additional measure names 
    * produced by the neighbour search algorithm, plus the chosen K in case
-   * cross-validation is enabled. (cross validation is not supported yet)
+   * cross-validation is enabled (cross validation is not supported yet)
+   * and the prediction cache statistics in case caching is enabled.
    * 
    * @return an enumeration of the measure names
    */
-  public Enumeration enumerateMeasures() {
+  public Enumeration<String> enumerateMeasures() {
+    Enumeration<?> enm = m_NNSearch.enumerateMeasures();
+    Vector<String> measures = new Vector<String>();
+    while (enm.hasMoreElements())
+      measures.add((String) enm.nextElement());
     if (m_CrossValidate) {
-      Enumeration enm = m_NNSearch.enumerateMeasures();
-      Vector measures = new Vector();
-      while (enm.hasMoreElements())
-	measures.add(enm.nextElement());
       measures.add("measureKNN");
-      return measures.elements();
     }
-    else {
-      return m_NNSearch.enumerateMeasures();
+    if (m_CacheSize > 0) {
+      measures.add("measureCacheHitRate");
+      measures.add("measureCacheLookupTime");
+    }
+    if ((m_DriftThreshold > 0) || (m_RedundancyThreshold > 0)) {
+      measures.add("measureEffectiveWindow");
+      measures.add("measureDrifts");
+      measures.add("measureSkippedInstances");
+    }
+    measures.add("measureNeighbourhoodReuseRate");
+    measures.add("measureRuleCoordinateFraction");
+    if (m_AllocationTelemetry) {
+      measures.add("measureAllocatedBytesPerPrediction");
+      measures.add("measureMeasuredPredictions");
     }
+    measures.add("measureCaseBaseBytes");
+    measures.add("measureTrainingWindowBytes");
+    measures.add("measureCacheBytes");
+    measures.add("measureArenaBytes");
+    measures.add("measurePeakRuleBytes");
+    return measures.elements();
   }
   
   /**
    * Returns the value of the named measure from the 
    * neighbour search algorithm, plus the chosen K in case
-   * cross-validation is enabled. (cross validation is not supported yet)
+   * cross-validation is enabled (cross validation is not supported yet)
+   * and the prediction cache hit rate and average lookup time (in
+   * nanoseconds), plus the fraction of queries whose adaptation rules
+   * were reused from the previous query and the fraction of rule feature
+   * differences the pruned rule retrieval actually computed, plus the
+   * mean bytes allocated per prediction (if measured) and the bytes held
+   * by the case base, the training window, the prediction cache and the
+   * scratch arenas, and the largest rule storage of an arena.
    * 
    * @param additionalMeasureName the name of the measure to query for its value
    * @return the value of the named measure
@@ -1056,11 +3003,106 @@ public class EAR4
   public double getMeasure(String additionalMeasureName) {
     if (additionalMeasureName.equals("measureKNN"))
       return m_kNN;
+    else if (additionalMeasureName.equals("measureCacheHitRate")) {
+      PredictionCache cache = m_Cache;
+      return (cache == null) ? 0 : cache.hitRate();
+    }
+    else if (additionalMeasureName.equals("measureCacheLookupTime")) {
+      PredictionCache cache = m_Cache;
+      return (cache == null) ? 0 : cache.averageLookupTime();
+    }
+    else if (additionalMeasureName.equals("measureEffectiveWindow")) {
+      return (m_CaseBase == null) ? 0 : m_CaseBase.numCases();
+    }
+    else if (additionalMeasureName.equals("measureDrifts")) {
+      WindowMaintenance maintenance = m_Maintenance;
+      return (maintenance == null) ? 0 : maintenance.drifts();
+    }
+    else if (additionalMeasureName.equals("measureSkippedInstances")) {
+      WindowMaintenance maintenance = m_Maintenance;
+      return (maintenance == null) ? 0 : maintenance.skipped();
+    }
+    else if (additionalMeasureName.equals("measureNeighbourhoodReuseRate")) {
+      long[] counts = arenas().statistics();
+      return (counts[0] == 0) ? 0 : (double) counts[1] / counts[0];
+    }
+    else if (additionalMeasureName.equals("measureRuleCoordinateFraction")) {
+      long[] counts = arenas().statistics();
+      return (counts[3] == 0) ? 0 : (double) counts[2] / counts[3];
+    }
+    else if (additionalMeasureName.equals("measureAllocatedBytesPerPrediction")) {
+      long[] counts = arenas().statistics();
+      return (counts[5] == 0) ? 0 : (double) counts[4] / counts[5];
+    }
+    else if (additionalMeasureName.equals("measureMeasuredPredictions")) {
+      return arenas().statistics()[5];
+    }
+    else if (additionalMeasureName.equals("measureCaseBaseBytes")) {
+      CaseBase cases = m_CaseBase;
+      return (cases == null) ? 0 : cases.storageBytes();
+    }
+    else if (additionalMeasureName.equals("measureTrainingWindowBytes")) {
+      return instancesBytes(m_Train) + instancesBytes(m_RawTrain);
+    }
+    else if (additionalMeasureName.equals("measureCacheBytes")) {
+      PredictionCache cache = m_Cache;
+      return (cache == null) ? 0 : cache.footprintBytes();
+    }
+    else if (additionalMeasureName.equals("measureArenaBytes")) {
+      return arenas().statistics()[7];
+    }
+    else if (additionalMeasureName.equals("measurePeakRuleBytes")) {
+      return arenas().statistics()[6];
+    }
     else
       return m_NNSearch.getMeasure(additionalMeasureName);
   }
   
   
+  /**
+   * Estimates the bytes held by a set of instances: their values plus
+   * INSTANCE_BYTES per instance.
+   *
+   * @param data the instances, may be null
+   * @return the bytes
+   */
+  protected static long instancesBytes(Instances data) {
+
+    if (data == null) {
+      return 0;
+    }
+    return (long) data.numInstances() * (INSTANCE_BYTES + 8L * data.numAttributes());
+  }
+
+  /**
+   * Registers the memory telemetry of this model (see Telemetry) with the
+   * platform MBean server, replacing an earlier registration of this
+   * model.
+   *
+   * @param name the object name, e.g. "weka:type=EAR4,name=model1"
+   * @throws Exception if the name is invalid or already taken
+   */
+  public synchronized void registerTelemetry(String name) throws Exception {
+
+    unregisterTelemetry();
+    ObjectName objectName = new ObjectName(name);
+    ManagementFactory.getPlatformMBeanServer().registerMBean(new Telemetry(this), objectName);
+    m_TelemetryName = objectName;
+  }
+
+  /**
+   * Unregisters the memory telemetry of this model, if it is registered.
+   *
+   * @throws Exception if the MBean cannot be unregistered
+   */
+  public synchronized void unregisterTelemetry() throws Exception {
+
+    if (m_TelemetryName != null) {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_TelemetryName);
+      m_TelemetryName = null;
+    }
+  }
+
   /**
    * Returns a description of this classifier.
    *
@@ -1072,7 +3114,7 @@ public class EAR4
       return "IBk: No model built yet.";
     }
     
-    if (m_Train.numInstances() == 0) {
+    if (m_CaseBase.numCases() == 0) {
       return "Warning: no training instances - ZeroR model used.";
     }    
 
@@ -1100,6 +3142,55 @@ public class EAR4
     if (m_WindowSize != 0) {
       result += "using a maximum of " 
 	+ m_WindowSize + " (windowed) training instances\n";
+      if (m_RangeTolerance > 0) {
+        result += "re-normalising when the ranges drift by more than "
+          + m_RangeTolerance + "\n";
+      }
+    }
+    if (m_DriftThreshold > 0) {
+      result += "shrinking the window on drift of the prequential error "
+        + "(Page-Hinkley threshold " + m_DriftThreshold + ")\n";
+    }
+    if (m_RedundancyThreshold > 0) {
+      result += "not storing instances predicted with less than " + m_RedundancyThreshold
+        + " times the mean prequential error\n";
+    }
+    if (m_Maintenance != null) {
+      result += m_Maintenance.drifts() + " drift(s) detected, "
+        + m_Maintenance.skipped() + " redundant instance(s) not stored\n";
+    }
+    if (m_Condensation != null) {
+      result += m_Condensation + "\n";
+    }
+    if (m_CacheSize != 0) {
+      result += "caching up to " + m_CacheSize + " predictions";
+      if (m_CacheGrid > 0) {
+        result += " on a grid of step " + m_CacheGrid;
+      }
+      result += "\n";
+    }
+    if (m_TieHandling == TIES_CANONICAL) {
+      result += "selecting base cases among ties in attribute value order\n";
+    } else if (m_TieHandling == TIES_SPLIT) {
+      result += "keeping all base cases tied with the k-th, splitting its weight\n";
+    }
+    if (m_StoragePrecision != PRECISION_DOUBLE) {
+      result += "storing cases and rules in "
+        + ((m_StoragePrecision == PRECISION_FLOAT) ? "float32" : "int8")
+        + ", re-ranked in double\n";
+    }
+    if (m_Projection != null) {
+      result += "projecting " + (m_RawHeader.numAttributes() - 1) + " features onto "
+        + m_Projection.numComponents()
+        + ((m_ProjectionMethod == PROJECTION_PCA) ? " principal components" : " random directions");
+      if (!Double.isNaN(m_Projection.covered())) {
+        result += " (" + Utils.doubleToString(100 * m_Projection.covered(), 1)
+          + "% of the variance)";
+      }
+      if (m_ProjectionRefit > 0) {
+        result += ", refitted every " + m_ProjectionRefit + " updates";
+      }
+      result += "\n";
     }
     return result;
   }
@@ -1111,20 +3202,36 @@ public class EAR4
 
     setKNN(1);
     m_WindowSize = 0;
+    m_RangeTolerance = 0;
+    m_DriftThreshold = 0;
+    m_RedundancyThreshold = 0;
+    m_CacheSize = 0;
+    m_CacheGrid = 0;
+    m_Engine = ENGINE_PRIMITIVE;
+    m_TieHandling = TIES_SEARCH_ORDER;
+    m_StoragePrecision = PRECISION_DOUBLE;
+    m_ProjectionMethod = PROJECTION_NONE;
+    m_ProjectionDimensions = 0;
+    m_ProjectionRefit = 0;
+    m_AllocationTelemetry = false;
+    checkPrimitiveSearches();
     m_DistanceWeighting = WEIGHT_NONE;
     m_CrossValidate = false;
     m_MeanSquared = false;
   }
   
   /**
-   * Turn the list of nearest neighbors into a probability distribution.
+   * Turn the base cases selected among the nearest neighbors (see
+   * selectBaseCases()) into a probability distribution.
    *
    * @param neighbours the list of nearest neighboring instances
-   * @param distances the distances of the neighbors
+   * @param numBaseCases the number of base cases
+   * @param arena the arena holding the selection
    * @return the probability distribution
    * @throws Exception if computation goes wrong or has no class attribute
    */
-  protected double [] makeDistribution(Instances neighbours, double[] distances)
+  protected double [] makeDistribution(Instances neighbours, int numBaseCases,
+                                       ScratchArena arena)
     throws Exception {
 
     double total = 0, weight;
@@ -1138,23 +3245,23 @@ public class EAR4
       total = (double)m_NumClasses / Math.max(1,m_Train.numInstances());
     }
 
-    for(int i=0; i < neighbours.numInstances(); i++) {
+    for(int i=0; i < numBaseCases; i++) {
       // Collect class counts
-      Instance current = neighbours.instance(i);
-      distances[i] = distances[i]*distances[i];
-      distances[i] = Math.sqrt(distances[i]/m_NumAttributesUsed);
+      Instance current = neighbours.instance(arena.neighbourIndex(i));
+      double distance = arena.neighbourDistance(i);
+      distance = Math.sqrt(distance * distance / m_NumAttributesUsed);
       switch (m_DistanceWeighting) {
         case WEIGHT_INVERSE:
-          weight = 1.0 / (distances[i] + 0.001); // to avoid div by zero
+          weight = 1.0 / (distance + 0.001); // to avoid div by zero
           break;
         case WEIGHT_SIMILARITY:
-          weight = 1.0 - distances[i];
+          weight = 1.0 - distance;
           break;
         default:                                 // WEIGHT_NONE:
           weight = 1.0;
           break;
       }
-      weight *= current.weight();
+      weight *= current.weight() * arena.weight(i);
       try {
         switch (m_ClassType) {
           case Attribute.NOMINAL:
@@ -1186,6 +3293,7 @@ public class EAR4
   protected void crossValidate() {
 
     try {
+      materialiseTrain();
       if (m_NNSearch instanceof weka.core.neighboursearch.CoverTree)
 	throw new Exception("CoverTree doesn't support hold-one-out "+
 			    "cross-validation. Use some other NN " +
@@ -1203,7 +3311,8 @@ public class EAR4
       m_kNN = m_kNNUpper;
       Instance instance;
       Instances neighbours;
-      double[] origDistances, convertedDistances;
+      double[] origDistances;
+      ScratchArena arena = scratchArena();
       for(int i = 0; i < m_Train.numInstances(); i++) {
 	if (m_Debug && (i % 50 == 0)) {
 	  System.err.print("Cross validating "
@@ -1214,12 +3323,10 @@ public class EAR4
         origDistances = m_NNSearch.getDistances();
         
 	for(int j = m_kNNUpper - 1; j >= 0; j--) {
-	  // Update the performance stats
-          convertedDistances = new double[origDistances.length];
-          System.arraycopy(origDistances, 0, 
-                           convertedDistances, 0, origDistances.length);
-	  double [] distribution = makeDistribution(neighbours, 
-                                                    convertedDistances);
+	  // Update the performance stats, selecting the j + 1 nearest as
+	  // predictions do
+	  int numBaseCases = selectBaseCases(neighbours, origDistances, j + 1, arena);
+	  double [] distribution = makeDistribution(neighbours, numBaseCases, arena);
           double thisPrediction = Utils.maxIndex(distribution);
 	  if (m_Train.classAttribute().isNumeric()) {
 	    thisPrediction = distribution[0];
@@ -1231,9 +3338,6 @@ public class EAR4
 	      performanceStats[j] ++;             // Classification error
 	    }
 	  }
-	  if (j >= 1) {
-	    neighbours = pruneToK(neighbours, convertedDistances, j);
-	  }
 	}
       }
 
@@ -1294,7 +3398,10 @@ public class EAR4
   
   /**
    * Prunes the list to contain the k nearest neighbors. If there are
-   * multiple neighbors at the k'th distance, all will be kept.
+   * multiple neighbors at the k'th distance, all will be kept. Predictions
+   * and hold-one-out cross-validation select their base cases with
+   * NeighbourSelector instead (see selectBaseCases()), which copies no
+   * Instances.
    *
    * @param neighbours the neighbour instances.
    * @param distances the distances of the neighbours from target instance.
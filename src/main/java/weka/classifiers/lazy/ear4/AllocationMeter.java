@@ -0,0 +1,145 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    AllocationMeter.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Reads the number of bytes the current thread has allocated, from the
+ * ThreadMXBean of the JVM. getThreadAllocatedBytes() is an extension of
+ * HotSpot-based JVMs (com.sun.management.ThreadMXBean); it is looked up by
+ * reflection, so that EAR4 still runs where it is missing, and then
+ * reports -1. The reflective call allocates a few bytes itself; overhead()
+ * tells how many, so that they can be subtracted from a measurement.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class AllocationMeter
+  implements RevisionHandler {
+
+  /** The thread bean of the JVM. */
+  protected static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+  /** getThreadAllocatedBytes(long), null if the JVM has none. */
+  protected static final Method ALLOCATED = allocatedMethod();
+
+  /** The bytes one measurement allocates. */
+  protected static final long OVERHEAD = calibrate();
+
+  /**
+   * Looks up getThreadAllocatedBytes(long) and enables the measurement.
+   *
+   * @return the method, null if it is not supported
+   */
+  protected static Method allocatedMethod() {
+
+    try {
+      Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+      if (!type.isInstance(THREADS)) {
+        return null;
+      }
+      Method supported = type.getMethod("isThreadAllocatedMemorySupported");
+      if (!((Boolean) supported.invoke(THREADS)).booleanValue()) {
+        return null;
+      }
+      type.getMethod("setThreadAllocatedMemoryEnabled", Boolean.TYPE)
+        .invoke(THREADS, Boolean.TRUE);
+      return type.getMethod("getThreadAllocatedBytes", Long.TYPE);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Measures the bytes allocated between two consecutive measurements.
+   *
+   * @return the smallest difference of a few tries, 0 if not supported
+   */
+  protected static long calibrate() {
+
+    if (ALLOCATED == null) {
+      return 0;
+    }
+    long result = Long.MAX_VALUE;
+    for (int i = 0; i < 10; i++) {
+      long before = threadAllocatedBytes();
+      long after = threadAllocatedBytes();
+      result = Math.min(result, after - before);
+    }
+    return Math.max(0, result);
+  }
+
+  /**
+   * Returns the bytes one measurement allocates itself.
+   *
+   * @return the bytes
+   */
+  public static long overhead() {
+
+    return OVERHEAD;
+  }
+
+  /**
+   * Whether the JVM reports allocated bytes per thread.
+   *
+   * @return true if threadAllocatedBytes() works
+   */
+  public static boolean isSupported() {
+
+    return ALLOCATED != null;
+  }
+
+  /**
+   * Returns the number of bytes the current thread has allocated since it
+   * started.
+   *
+   * @return the bytes, -1 if the JVM does not report them
+   */
+  public static long threadAllocatedBytes() {
+
+    if (ALLOCATED == null) {
+      return -1;
+    }
+    try {
+      return ((Long) ALLOCATED.invoke(THREADS, Long.valueOf(Thread.currentThread().getId())))
+        .longValue();
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
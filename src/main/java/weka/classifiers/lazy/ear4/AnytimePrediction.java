@@ -0,0 +1,162 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    AnytimePrediction.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+import java.io.Serializable;
+
+/**
+ * The result of a deadline-bounded EAR4 prediction and how far it got.
+ * Without rules the prediction is the mean target of the base cases; once
+ * base cases have been adapted it is the mean of their adapted estimates,
+ * nearest base case first, and with all of them adapted it is the full
+ * EAR4 prediction.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class AnytimePrediction
+  implements Serializable, RevisionHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = 4471905630188524921L;
+
+  /** The prediction. */
+  protected double m_Prediction;
+
+  /** Whether the rules of the neighbourhood were generated (or reused). */
+  protected boolean m_RulesReady;
+
+  /** The number of base cases adapted. */
+  protected int m_Adapted;
+
+  /** The number of base cases. */
+  protected int m_NumBaseCases;
+
+  /** The time the prediction took. */
+  protected long m_ElapsedNanos;
+
+  /**
+   * Creates a result.
+   *
+   * @param prediction the prediction
+   * @param rulesReady whether the rules were generated
+   * @param adapted the number of base cases adapted
+   * @param numBaseCases the number of base cases
+   * @param elapsedNanos the time the prediction took
+   */
+  public AnytimePrediction(double prediction, boolean rulesReady, int adapted,
+                           int numBaseCases, long elapsedNanos) {
+
+    m_Prediction = prediction;
+    m_RulesReady = rulesReady;
+    m_Adapted = adapted;
+    m_NumBaseCases = numBaseCases;
+    m_ElapsedNanos = elapsedNanos;
+  }
+
+  /**
+   * Returns the prediction.
+   *
+   * @return the best prediction reached within the deadline
+   */
+  public double prediction() {
+
+    return m_Prediction;
+  }
+
+  /**
+   * Returns whether the prediction is the full EAR4 prediction.
+   *
+   * @return true if every base case was adapted
+   */
+  public boolean complete() {
+
+    return m_Adapted == m_NumBaseCases;
+  }
+
+  /**
+   * Returns whether the rules of the neighbourhood were generated.
+   *
+   * @return true if the rules were generated or reused
+   */
+  public boolean rulesReady() {
+
+    return m_RulesReady;
+  }
+
+  /**
+   * Returns the number of base cases adapted.
+   *
+   * @return the count, 0 if the prediction is the mean target
+   */
+  public int adapted() {
+
+    return m_Adapted;
+  }
+
+  /**
+   * Returns the number of base cases.
+   *
+   * @return the count
+   */
+  public int numBaseCases() {
+
+    return m_NumBaseCases;
+  }
+
+  /**
+   * Returns the time the prediction took.
+   *
+   * @return the nanoseconds
+   */
+  public long elapsedNanos() {
+
+    return m_ElapsedNanos;
+  }
+
+  /**
+   * Describes the result.
+   *
+   * @return the description
+   */
+  public String toString() {
+
+    return "Prediction " + Utils.doubleToString(m_Prediction, 6) + " ("
+      + (complete() ? "complete" : m_Adapted + " of " + m_NumBaseCases
+         + " base cases adapted" + (m_RulesReady ? "" : ", no rules"))
+      + ", " + Utils.doubleToString(m_ElapsedNanos / 1000.0, 1) + " us)";
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
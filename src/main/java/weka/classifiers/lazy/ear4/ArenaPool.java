@@ -0,0 +1,106 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ArenaPool.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The scratch arenas of one EAR4 model, one per predicting thread. Every
+ * arena counts its own statistics, so that concurrent predictions never
+ * write to shared memory; statistics() adds up the counts of the arenas of
+ * all threads that are still alive.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class ArenaPool
+  extends ThreadLocal<ScratchArena>
+  implements RevisionHandler {
+
+  /** The arenas handed out so far. */
+  protected List<WeakReference<ScratchArena>> m_Arenas =
+    new ArrayList<WeakReference<ScratchArena>>();
+
+  /**
+   * Creates the arena of a thread that has none yet.
+   *
+   * @return the new arena
+   */
+  protected ScratchArena initialValue() {
+
+    ScratchArena arena = new ScratchArena();
+    synchronized (m_Arenas) {
+      Iterator<WeakReference<ScratchArena>> iter = m_Arenas.iterator();
+      while (iter.hasNext()) {
+        if (iter.next().get() == null) {
+          iter.remove();
+        }
+      }
+      m_Arenas.add(new WeakReference<ScratchArena>(arena));
+    }
+    return arena;
+  }
+
+  /**
+   * Adds up the statistics of all live arenas. Counts of predictions that
+   * are running meanwhile may or may not be included.
+   *
+   * @return the number of neighbourhoods, of reused neighbourhoods, of rule
+   * features compared, of rule features an exhaustive search compares, of
+   * bytes allocated by measured predictions, of measured predictions, the
+   * largest rule bytes of an arena and the bytes held by all arenas
+   */
+  public long[] statistics() {
+
+    long[] result = new long[8];
+    synchronized (m_Arenas) {
+      for (int i = 0; i < m_Arenas.size(); i++) {
+        ScratchArena arena = m_Arenas.get(i).get();
+        if (arena != null) {
+          long[] statistics = arena.statistics();
+          for (int s = 0; s < 6; s++) {
+            result[s] += statistics[s];
+          }
+          result[6] = Math.max(result[6], statistics[6]);
+          result[7] += arena.footprintBytes();
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,442 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    BaselineReference.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.classifiers.rules.ZeroR;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+import weka.core.neighboursearch.LinearNNSearch;
+import weka.core.neighboursearch.NearestNeighbourSearch;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Frozen copy of the original, Instances-based EAR4 prediction path
+ * (buildClassifier(), updateClassifier(), distributionForInstance(),
+ * predictValue() and generateRules() as first released), kept as the
+ * reference of the DifferentialHarness. It is deliberately not shared with
+ * EAR4, so that rewrites of EAR4 - including its -P 1 engine - are checked
+ * against the original behaviour rather than against themselves.<p/>
+ *
+ * The places where EAR4 deliberately deviates from the original can be
+ * switched on one by one as allowances (see ALLOWANCES), so that the
+ * harness can name every deviation and report its effect instead of
+ * hiding it in the reference. Without allowances, the reference predicts
+ * exactly like the original code.<p/>
+ *
+ * Only the options of the original are understood: -K, -L, -O, -W, -A and
+ * -B.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class BaselineReference
+  implements RevisionHandler {
+
+  /**
+   * Allowance: the query is no longer added to the attribute ranges of the
+   * base case search before the search (the original called
+   * addInstanceInfo() for every query, so a query outside the training
+   * ranges changed the normalisation of all later queries).
+   */
+  public static final int ALLOW_FIXED_RANGES = 1;
+
+  /**
+   * Allowance: the rules are generated from the rule generation
+   * neighbourhood in canonical order (lexicographic on the attribute
+   * values) instead of search order, so that they depend only on the set
+   * of neighbours and can be reused; rules at the same distance from a
+   * query are therefore retrieved in a different order.
+   */
+  public static final int ALLOW_CANONICAL_RULE_ORDER = 2;
+
+  /**
+   * Allowance: o is capped to the number of rules the training data allows
+   * for every query, instead of being lowered once and for all by the
+   * first query that exceeds it.
+   */
+  public static final int ALLOW_QUERY_CAPPED_O = 4;
+
+  /**
+   * Allowance: the adapted base cases are averaged over the number of base
+   * cases found instead of over k, so that a training set with fewer than
+   * k cases no longer scales the prediction down (the original divided by
+   * k whatever the number of base cases).
+   */
+  public static final int ALLOW_FOUND_BASE_CASES = 8;
+
+  /** The allowances, in the order they are applied. */
+  public static final int[] ALLOWANCES = {
+    ALLOW_FIXED_RANGES,
+    ALLOW_CANONICAL_RULE_ORDER,
+    ALLOW_QUERY_CAPPED_O,
+    ALLOW_FOUND_BASE_CASES
+  };
+
+  /** The options of the original EAR4, all of which take a value. */
+  protected static final String[] BASELINE_OPTIONS = {"K", "L", "O", "W", "A", "B"};
+
+  /** The training instances. */
+  protected Instances m_Train;
+
+  /** The number of base cases. */
+  protected int m_kNN = 1;
+
+  /** The number of rules applied per base case. */
+  protected int m_l = 1;
+
+  /** The rule generation neighbourhood, as a multiple of kNN. */
+  protected double m_o = 1;
+
+  /** The maximum number of training instances kept, 0 for no limit. */
+  protected int m_WindowSize;
+
+  /** The search for the base cases. */
+  protected NearestNeighbourSearch m_NNSearch = new LinearNNSearch();
+
+  /** The search for the rules. */
+  protected NearestNeighbourSearch l_NNSearch = new LinearNNSearch();
+
+  /** The model predicting without training instances. */
+  protected ZeroR m_defaultModel;
+
+  /** The allowances in effect. */
+  protected int m_Allowances;
+
+  /**
+   * Creates the reference with the given allowances.
+   *
+   * @param allowances the ALLOW_* constants in effect, or-ed
+   */
+  public BaselineReference(int allowances) {
+
+    m_Allowances = allowances;
+  }
+
+  /**
+   * Returns the name of an allowance, for reports.
+   *
+   * @param allowance one of the ALLOW_* constants
+   * @return the name
+   */
+  public static String allowanceName(int allowance) {
+
+    switch (allowance) {
+      case ALLOW_FIXED_RANGES:
+        return "fixed-ranges (queries no longer widen the attribute ranges)";
+      case ALLOW_CANONICAL_RULE_ORDER:
+        return "canonical-rule-order (rules generated in canonical neighbour order)";
+      case ALLOW_QUERY_CAPPED_O:
+        return "query-capped-o (o capped per query, not lowered permanently)";
+      case ALLOW_FOUND_BASE_CASES:
+        return "found-base-cases (averaged over the base cases found, not over k)";
+      default:
+        return "unknown allowance " + allowance;
+    }
+  }
+
+  /**
+   * Returns whether the original EAR4 understood every given option.
+   *
+   * @param options the options
+   * @return true if the reference can be configured with them
+   * @throws Exception if the options cannot be parsed
+   */
+  public static boolean supports(String[] options) throws Exception {
+
+    options = options.clone();
+    for (int i = 0; i < BASELINE_OPTIONS.length; i++) {
+      Utils.getOption(BASELINE_OPTIONS[i], options);
+    }
+    for (int i = 0; i < options.length; i++) {
+      if (options[i].length() > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses the options of the original EAR4.
+   *
+   * @param options the options
+   * @throws Exception if an option is not supported
+   */
+  public void setOptions(String[] options) throws Exception {
+
+    String knnString = Utils.getOption('K', options);
+    m_kNN = (knnString.length() != 0) ? Integer.parseInt(knnString) : 1;
+    String lString = Utils.getOption('L', options);
+    m_l = (lString.length() != 0) ? Integer.parseInt(lString) : 1;
+    String oString = Utils.getOption('O', options);
+    m_o = (oString.length() != 0) ? Double.parseDouble(oString) : 1;
+    String windowString = Utils.getOption('W', options);
+    m_WindowSize = (windowString.length() != 0) ? Integer.parseInt(windowString) : 0;
+    m_NNSearch = searchOption('A', options);
+    l_NNSearch = searchOption('B', options);
+    Utils.checkForRemainingOptions(options);
+  }
+
+  /**
+   * Parses a search option.
+   *
+   * @param flag the option
+   * @param options the options
+   * @return the search, a LinearNNSearch if the option is not given
+   * @throws Exception if the search cannot be created
+   */
+  protected static NearestNeighbourSearch searchOption(char flag, String[] options)
+    throws Exception {
+
+    String spec = Utils.getOption(flag, options);
+    if (spec.length() == 0) {
+      return new LinearNNSearch();
+    }
+    String[] classSpec = Utils.splitOptions(spec);
+    if (classSpec.length == 0) {
+      throw new Exception("Invalid NearestNeighbourSearch algorithm "
+                          + "specification string.");
+    }
+    String className = classSpec[0];
+    classSpec[0] = "";
+    return (NearestNeighbourSearch) Utils.forName(NearestNeighbourSearch.class,
+                                                  className, classSpec);
+  }
+
+  /**
+   * Generates the classifier, as the original did.
+   *
+   * @param instances set of instances serving as training data
+   * @throws Exception if the classifier has not been generated successfully
+   */
+  public void buildClassifier(Instances instances) throws Exception {
+
+    instances = new Instances(instances);
+    instances.deleteWithMissingClass();
+    m_Train = new Instances(instances, 0, instances.numInstances());
+    if ((m_WindowSize > 0) && (instances.numInstances() > m_WindowSize)) {
+      m_Train = new Instances(m_Train,
+			      m_Train.numInstances()-m_WindowSize,
+			      m_WindowSize);
+    }
+    m_NNSearch.setInstances(m_Train);
+    m_defaultModel = new ZeroR();
+    m_defaultModel.buildClassifier(instances);
+  }
+
+  /**
+   * Adds the supplied instance to the training set, as the original did.
+   *
+   * @param instance the instance to add
+   * @throws Exception if instance could not be incorporated
+   */
+  public void updateClassifier(Instance instance) throws Exception {
+
+    if (m_Train.equalHeaders(instance.dataset()) == false) {
+      throw new Exception("Incompatible instance types");
+    }
+    if (instance.classIsMissing()) {
+      return;
+    }
+
+    m_Train.add(instance);
+    m_NNSearch.update(instance);
+    if ((m_WindowSize > 0) && (m_Train.numInstances() > m_WindowSize)) {
+      boolean deletedInstance=false;
+      while (m_Train.numInstances() > m_WindowSize) {
+	m_Train.delete(0);
+        deletedInstance=true;
+      }
+      if(deletedInstance==true)
+        m_NNSearch.setInstances(m_Train);
+    }
+  }
+
+  /**
+   * Predicts the target value of an instance, as the original did apart
+   * from the allowances in effect.
+   *
+   * @param instance the instance to be classified
+   * @return the prediction
+   * @throws Exception if an error occurred during the prediction
+   */
+  public double classifyInstance(Instance instance) throws Exception {
+
+    double o = m_o;
+	if (m_kNN * m_o > m_Train.numInstances() * (m_Train.numInstances() - 1))
+	{
+		o = java.lang.Math.round(m_Train.numInstances() * (m_Train.numInstances() - 1)/m_kNN);
+		if ((m_Allowances & ALLOW_QUERY_CAPPED_O) == 0)
+			m_o = o;
+	}
+    if (m_Train.numInstances() == 0) {
+      return m_defaultModel.classifyInstance(instance);
+    }
+    if ((m_WindowSize > 0) && (m_Train.numInstances() > m_WindowSize)) {
+      while (m_Train.numInstances() > m_WindowSize) {
+	m_Train.delete(0);
+      }
+    }
+
+    if ((m_Allowances & ALLOW_FIXED_RANGES) == 0)
+      m_NNSearch.addInstanceInfo(instance);
+
+    Instances neighbours = m_NNSearch.kNearestNeighbours(instance, (int) java.lang.Math.round(m_kNN * o));
+	Instances rules = generateRules(((m_Allowances & ALLOW_CANONICAL_RULE_ORDER) == 0)
+	                               ? neighbours : canonical(neighbours));
+	rules.setClassIndex(rules.numAttributes() -1);
+	while(neighbours.numInstances() > m_kNN)
+		neighbours.delete(neighbours.numInstances() - 1);
+	return predictValue(instance, neighbours, rules);
+  }
+
+	/**
+	 * Averages the base case targets, each adjusted by its l nearest
+	 * rules, as the original did.
+	 *
+	 * @param target the query
+	 * @param neighbors the base cases
+	 * @param rules the adaptation rules
+	 * @return the prediction
+	 * @throws Exception if the rules cannot be searched
+	 */
+	protected double predictValue(Instance target, Instances neighbors, Instances rules) throws Exception
+	{
+		l_NNSearch.setInstances(rules);
+
+		double prediction = 0;
+		for(int i =0; i < neighbors.numInstances(); i++)
+		{
+			double adjustment = 0;
+			if (m_l > 0)
+			{
+				Instance diffToAddress = generateRule(target, neighbors.instance(i));
+				Instances rulesToApply = l_NNSearch.kNearestNeighbours(diffToAddress, m_l);
+				for (int j = 0; j < rulesToApply.numInstances(); j++)
+				{
+					adjustment += rulesToApply.instance(j).value(rulesToApply.instance(j).classAttribute());
+				}
+
+				adjustment = adjustment / m_l;
+			}
+			prediction += neighbors.instance(i).value(neighbors.instance(i).classAttribute()) + adjustment;
+		}
+		if ((m_Allowances & ALLOW_FOUND_BASE_CASES) == 0)
+			prediction = prediction / m_kNN;
+		else
+			prediction = prediction / neighbors.numInstances();
+		return prediction;
+	}
+
+	/**
+	 * Generates a rule from every ordered pair of distinct base cases, in
+	 * the order of the base cases, as the original did.
+	 *
+	 * @param baseCases the rule generation neighbourhood
+	 * @return the rules
+	 */
+	protected Instances generateRules(Instances baseCases)
+	{
+		FastVector newAttributes = new FastVector();
+    	for (int i = 0; i < baseCases.firstInstance().numAttributes(); i++) {
+			newAttributes.addElement(baseCases.firstInstance().attribute(i));
+		}
+		Instances rules = new Instances("rules", newAttributes, baseCases.numInstances() * baseCases.numInstances() );
+		for (int i = 0; i < baseCases.numInstances(); i++)
+		{
+			for (int j = 0; j < baseCases.numInstances(); j++)
+			{
+				if (i != j)
+					rules.add(generateRule(baseCases.instance(i), baseCases.instance(j)));
+			}
+		}
+		return rules;
+	}
+
+	/**
+	 * Generates the rule leading from one case to another, as the original
+	 * did.
+	 *
+	 * @param case1 the first case
+	 * @param case2 the second case
+	 * @return the differences of all values
+	 */
+	protected Instance generateRule(Instance case1, Instance case2)
+	{
+		Instance tempInst = (Instance)case1.copy();
+		for (int i = 0; i < tempInst.numAttributes(); i++)
+		{
+			tempInst.setValue(i, tempInst.value(i) - case2.value(i));
+		}
+		return tempInst;
+	}
+
+  /**
+   * Sorts a neighbourhood lexicographically on the attribute values, the
+   * order EAR4 generates its rules in (see ALLOW_CANONICAL_RULE_ORDER).
+   *
+   * @param neighbours the neighbourhood
+   * @return the neighbours in canonical order
+   */
+  protected static Instances canonical(Instances neighbours) {
+
+    final double[][] rows = new double[neighbours.numInstances()][];
+    Integer[] order = new Integer[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = neighbours.instance(i).toDoubleArray();
+      order[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        double[] r1 = rows[o1.intValue()];
+        double[] r2 = rows[o2.intValue()];
+        for (int j = 0; j < r1.length; j++) {
+          int c = Double.compare(r1[j], r2[j]);
+          if (c != 0) {
+            return c;
+          }
+        }
+        return 0;
+      }
+    });
+    Instances result = new Instances(neighbours, order.length);
+    for (int i = 0; i < order.length; i++) {
+      result.add(neighbours.instance(order[i].intValue()));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,625 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    Benchmark.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.lazy.EAR4;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line micro-benchmarks for EAR4. The data set is split randomly
+ * into a training part (two thirds) and a test part, EAR4 is built on the
+ * training part and the test part is scored repeatedly.<p/>
+ *
+ * Usage:
+ * <pre>
+ * java weka.classifiers.lazy.ear4.Benchmark -t &lt;file&gt; [-M &lt;mode&gt;]
+ *   [-R &lt;repeats&gt;] [-S &lt;seed&gt;] [-T &lt;threads&gt;] [-D &lt;duration&gt;]
+ *   [-N &lt;shards&gt;] [-X] [-- &lt;EAR4 options&gt;]
+ * </pre>
+ *
+ * Modes:
+ * <ul>
+ *   <li>order: scores the test queries in file order and in space-filling
+ *   curve order and compares the throughput of both (default)</li>
+ *   <li>allocation: measures the bytes allocated per prediction by each
+ *   prediction engine, after a warm-up pass</li>
+ *   <li>ingest: measures the prediction throughput of concurrent readers
+ *   (-T threads, -D milliseconds per phase) without and with a writer that
+ *   keeps updating the model, once with readers scoring model snapshots
+ *   and once with readers and writer sharing a lock</li>
+ *   <li>shards: compares the prediction latency and memory of a single
+ *   model with a ShardedEAR4 over -N shards, held in this JVM or, with -X,
+ *   in one ShardServer process per shard</li>
+ *   <li>precision: scores the test part with EAR4 storing cases and rules
+ *   in double, float32 and int8, and reports for each the latency, the
+ *   largest and the mean difference from the double predictions, the RMSE
+ *   and the bytes held for cases and rules</li>
+ * </ul>
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class Benchmark
+  implements RevisionHandler {
+
+  /** The training part of the data. */
+  protected Instances m_Train;
+
+  /** The test part of the data. */
+  protected Instances m_Test;
+
+  /** The EAR4 options to benchmark. */
+  protected String[] m_Options;
+
+  /** The number of times the test part is scored. */
+  protected int m_Repeats;
+
+  /**
+   * Sets up a benchmark.
+   *
+   * @param data the data set, with the class attribute set
+   * @param options the EAR4 options
+   * @param repeats the number of times the test part is scored
+   * @param seed the seed for splitting the data
+   */
+  public Benchmark(Instances data, String[] options, int repeats, int seed) {
+
+    Instances shuffled = new Instances(data);
+    shuffled.randomize(new Random(seed));
+    int trainSize = shuffled.numInstances() * 2 / 3;
+    m_Train = new Instances(shuffled, 0, trainSize);
+    m_Test = new Instances(shuffled, trainSize, shuffled.numInstances() - trainSize);
+    m_Options = options;
+    m_Repeats = repeats;
+  }
+
+  /**
+   * Builds a fresh EAR4 learner on the training part.
+   *
+   * @return the learner
+   * @throws Exception if the learner cannot be built
+   */
+  protected EAR4 buildLearner() throws Exception {
+
+    EAR4 learner = new EAR4();
+    learner.setOptions(m_Options.clone());
+    learner.buildClassifier(m_Train);
+    return learner;
+  }
+
+  /**
+   * Scores the test queries in file order and in Morton order and reports
+   * the throughput of both, the rule reuse rate and whether both orders
+   * give the same predictions.
+   *
+   * @return the report
+   * @throws Exception if scoring fails
+   */
+  public String orderBenchmark() throws Exception {
+
+    EAR4 fileOrder = buildLearner();
+    EAR4 curveOrder = buildLearner();
+    double[][] expected = null;
+    double[][] actual = null;
+
+    // warm up
+    buildLearner().distributionsForInstances(m_Test);
+
+    long start = System.nanoTime();
+    for (int r = 0; r < m_Repeats; r++) {
+      expected = new double[m_Test.numInstances()][];
+      for (int i = 0; i < m_Test.numInstances(); i++) {
+        expected[i] = fileOrder.distributionForInstance(m_Test.instance(i));
+      }
+    }
+    long fileTime = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int r = 0; r < m_Repeats; r++) {
+      actual = curveOrder.distributionsForInstances(m_Test);
+    }
+    long curveTime = System.nanoTime() - start;
+
+    double maxDiff = 0;
+    for (int i = 0; i < expected.length; i++) {
+      maxDiff = Math.max(maxDiff, Math.abs(expected[i][0] - actual[i][0]));
+    }
+
+    double queries = (double) m_Repeats * m_Test.numInstances();
+    StringBuffer result = new StringBuffer();
+    result.append("Queries scored per order: " + (long) queries + "\n");
+    result.append("File order:  " + Utils.doubleToString(queries / (fileTime / 1e9), 2)
+                  + " queries/s, rule reuse rate "
+                  + Utils.doubleToString(fileOrder.getMeasure("measureNeighbourhoodReuseRate"), 4) + "\n");
+    result.append("Curve order: " + Utils.doubleToString(queries / (curveTime / 1e9), 2)
+                  + " queries/s, rule reuse rate "
+                  + Utils.doubleToString(curveOrder.getMeasure("measureNeighbourhoodReuseRate"), 4) + "\n");
+    result.append("Speed-up: " + Utils.doubleToString((double) fileTime / curveTime, 3) + "\n");
+    result.append("Max. prediction difference: " + maxDiff + "\n");
+    return result.toString();
+  }
+
+  /**
+   * Measures the bytes allocated per prediction by each prediction engine.
+   * Every engine scores the test part once to warm up (growing its scratch
+   * buffers) before the allocations of the following passes are counted.
+   *
+   * @return the report
+   * @throws Exception if scoring fails or the JVM cannot count allocations
+   */
+  public String allocationBenchmark() throws Exception {
+
+    StringBuffer result = new StringBuffer();
+    for (int e = 0; e < EAR4.TAGS_ENGINE.length; e++) {
+      EAR4 learner = buildLearner();
+      learner.setPredictionEngine(new SelectedTag(EAR4.TAGS_ENGINE[e].getID(),
+                                                  EAR4.TAGS_ENGINE));
+      for (int i = 0; i < m_Test.numInstances(); i++) {
+        learner.distributionForInstance(m_Test.instance(i));
+      }
+
+      long before = allocatedBytes();
+      for (int r = 0; r < m_Repeats; r++) {
+        for (int i = 0; i < m_Test.numInstances(); i++) {
+          learner.distributionForInstance(m_Test.instance(i));
+        }
+      }
+      long allocated = allocatedBytes() - before;
+      double queries = (double) m_Repeats * m_Test.numInstances();
+      result.append(EAR4.TAGS_ENGINE[e].getReadable() + ": "
+                    + Utils.doubleToString(allocated / queries, 1)
+                    + " bytes/prediction\n");
+    }
+    return result.toString();
+  }
+
+  /**
+   * Measures the throughput of concurrent readers while a writer keeps
+   * adding the second half of the training part (cyclically) to a model
+   * built on the first half. The model keeps a window of the size of the
+   * first half, so its size stays constant. Readers either score the
+   * latest snapshot of the model, or call distributionForInstance() under
+   * a lock they share with the writer.
+   *
+   * @param numReaders the number of reader threads
+   * @param duration the duration of each phase, in milliseconds
+   * @return the report
+   * @throws Exception if building or scoring fails
+   */
+  public String ingestBenchmark(int numReaders, long duration) throws Exception {
+
+    int initial = m_Train.numInstances() / 2;
+    Instances stream = new Instances(m_Train, initial, m_Train.numInstances() - initial);
+    StringBuffer result = new StringBuffer();
+    for (int locked = 0; locked < 2; locked++) {
+      for (int ingest = 0; ingest < 2; ingest++) {
+        EAR4 learner = new EAR4();
+        learner.setOptions(m_Options.clone());
+        learner.setWindowSize(initial);
+        learner.buildClassifier(new Instances(m_Train, 0, initial));
+        long[] counts = runReadersAndWriter(learner, stream, numReaders, duration,
+                                            locked == 1, ingest == 1);
+        result.append(((locked == 1) ? "Locked model" : "Snapshots")
+                      + ((ingest == 1) ? ", during ingest: " : ", idle: ")
+                      + Utils.doubleToString(counts[0] / (duration / 1e3), 2) + " queries/s");
+        if (ingest == 1) {
+          result.append(", " + Utils.doubleToString(counts[1] / (duration / 1e3), 2)
+                        + " updates/s");
+        }
+        result.append("\n");
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Runs reader threads (and optionally a writer thread) for the given
+   * time.
+   *
+   * @param learner the model
+   * @param stream the instances the writer adds, cyclically
+   * @param numReaders the number of reader threads
+   * @param duration the time to run, in milliseconds
+   * @param locked whether readers and writer share a lock instead of the
+   * readers scoring snapshots
+   * @param ingest whether to run the writer
+   * @return the number of predictions and the number of updates
+   * @throws Exception if a reader or the writer fails
+   */
+  protected long[] runReadersAndWriter(final EAR4 learner, final Instances stream,
+                                       int numReaders, long duration,
+                                       final boolean locked, boolean ingest)
+    throws Exception {
+
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final AtomicLong predictions = new AtomicLong();
+    final AtomicLong updates = new AtomicLong();
+    final Exception[] error = new Exception[1];
+    Thread[] threads = new Thread[numReaders + (ingest ? 1 : 0)];
+    for (int t = 0; t < numReaders; t++) {
+      final int offset = t;
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (int i = offset; running.get(); i++) {
+              Instance query = m_Test.instance(i % m_Test.numInstances());
+              if (locked) {
+                synchronized (learner) {
+                  learner.distributionForInstance(query);
+                }
+              } else {
+                learner.snapshot().distributionForInstance(query);
+              }
+              predictions.incrementAndGet();
+            }
+          } catch (Exception e) {
+            synchronized (error) {
+              error[0] = e;
+            }
+          }
+        }
+      });
+    }
+    if (ingest) {
+      threads[numReaders] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (int i = 0; running.get(); i++) {
+              Instance instance = stream.instance(i % stream.numInstances());
+              if (locked) {
+                synchronized (learner) {
+                  learner.updateClassifier(instance);
+                }
+              } else {
+                learner.updateClassifier(instance);
+              }
+              updates.incrementAndGet();
+            }
+          } catch (Exception e) {
+            synchronized (error) {
+              error[0] = e;
+            }
+          }
+        }
+      });
+    }
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].start();
+    }
+    Thread.sleep(duration);
+    running.set(false);
+    for (int t = 0; t < threads.length; t++) {
+      threads[t].join();
+    }
+    if (error[0] != null) {
+      throw error[0];
+    }
+    return new long[] {predictions.get(), updates.get()};
+  }
+
+  /**
+   * Compares a single EAR4 with a ShardedEAR4 over the same training part:
+   * latency per prediction (average, median and 99th percentile), the
+   * largest difference between their predictions and the memory each
+   * needs.
+   *
+   * @param numShards the number of shards
+   * @param remote whether to run every shard in its own JVM
+   * @return the report
+   * @throws Exception if building, scoring or starting a shard fails
+   */
+  public String shardBenchmark(int numShards, boolean remote) throws Exception {
+
+    StringBuffer result = new StringBuffer();
+    long baseMemory = usedMemory();
+    EAR4 single = buildLearner();
+    long singleMemory = usedMemory() - baseMemory;
+    double[][] expected = new double[m_Test.numInstances()][];
+    long[] singleLatencies = latencies(single, expected);
+    result.append("Single model:  " + latencyReport(singleLatencies)
+                  + ", heap " + singleMemory / 1024 + " KB\n");
+    single = null;
+
+    Process[] processes = new Process[numShards];
+    Shard[] shards = new Shard[numShards];
+    baseMemory = usedMemory();
+    for (int s = 0; s < numShards; s++) {
+      if (remote) {
+        processes[s] = startShardServer();
+        shards[s] = new RemoteShard("127.0.0.1", shardPort(processes[s]));
+      } else {
+        shards[s] = new LocalShard();
+      }
+    }
+    EAR4 template = new EAR4();
+    template.setOptions(m_Options.clone());
+    ShardedEAR4 sharded = new ShardedEAR4(template, shards);
+    try {
+      sharded.buildClassifier(m_Train);
+      long shardedMemory = usedMemory() - baseMemory;
+      double[][] actual = new double[m_Test.numInstances()][];
+      long[] shardedLatencies = latencies(sharded, actual);
+      double maxDiff = 0;
+      for (int i = 0; i < expected.length; i++) {
+        maxDiff = Math.max(maxDiff, Math.abs(expected[i][0] - actual[i][0]));
+      }
+      result.append(numShards + (remote ? " remote" : " local") + " shards: "
+                    + latencyReport(shardedLatencies) + ", heap "
+                    + shardedMemory / 1024 + " KB\n");
+      for (int s = 0; s < numShards; s++) {
+        result.append("  shard " + s + ": " + shards[s].numCases() + " cases, "
+                      + (remote ? "shard JVM heap " : "case storage ")
+                      + shards[s].memoryUsed() / 1024 + " KB\n");
+      }
+      result.append("Max. prediction difference: " + maxDiff + "\n");
+    } finally {
+      sharded.close();
+      for (int s = 0; s < numShards; s++) {
+        if (processes[s] != null) {
+          processes[s].waitFor();
+        }
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Scores the test part with every storage precision of EAR4 and reports
+   * the latency, the accuracy against the double predictions and against
+   * the actual targets, the fraction of rule features scanned and the
+   * bytes held for the cases and the rules.
+   *
+   * @return the report
+   * @throws Exception if building or scoring fails
+   */
+  public String precisionBenchmark() throws Exception {
+
+    StringBuffer result = new StringBuffer();
+    double[][] expected = null;
+    for (int p = 0; p < EAR4.TAGS_PRECISION.length; p++) {
+      EAR4 learner = new EAR4();
+      learner.setOptions(m_Options.clone());
+      learner.setStoragePrecision(new SelectedTag(EAR4.TAGS_PRECISION[p].getID(),
+                                                  EAR4.TAGS_PRECISION));
+      learner.buildClassifier(m_Train);
+      double[][] predictions = new double[m_Test.numInstances()][];
+      long[] latencies = latencies(learner, predictions);
+      if (expected == null) {
+        expected = predictions;
+      }
+
+      double maxDiff = 0;
+      double sumDiff = 0;
+      double squaredError = 0;
+      for (int i = 0; i < predictions.length; i++) {
+        double diff = Math.abs(expected[i][0] - predictions[i][0]);
+        maxDiff = Math.max(maxDiff, diff);
+        sumDiff += diff;
+        double error = m_Test.instance(i).classValue() - predictions[i][0];
+        squaredError += error * error;
+      }
+      result.append(EAR4.TAGS_PRECISION[p].getReadable() + ":\n");
+      result.append("  " + latencyReport(latencies) + "\n");
+      result.append("  difference from double: max " + Utils.doubleToString(maxDiff, 6)
+                    + ", mean " + Utils.doubleToString(sumDiff / predictions.length, 6)
+                    + "; RMSE " + Utils.doubleToString(
+                      Math.sqrt(squaredError / predictions.length), 6) + "\n");
+      result.append("  case base "
+                    + (long) learner.getMeasure("measureCaseBaseBytes") + " bytes, peak rules "
+                    + (long) learner.getMeasure("measurePeakRuleBytes") + " bytes, rule features scanned "
+                    + Utils.doubleToString(learner.getMeasure("measureRuleCoordinateFraction"), 4)
+                    + "\n");
+    }
+    return result.toString();
+  }
+
+  /**
+   * Scores the test part once to warm up, then m_Repeats times while
+   * timing every prediction.
+   *
+   * @param model the model
+   * @param predictions receives the predictions of the last pass
+   * @return the latency of every timed prediction, in nanoseconds, sorted
+   * @throws Exception if scoring fails
+   */
+  protected long[] latencies(Classifier model, double[][] predictions) throws Exception {
+
+    for (int i = 0; i < m_Test.numInstances(); i++) {
+      model.distributionForInstance(m_Test.instance(i));
+    }
+    long[] latencies = new long[m_Repeats * m_Test.numInstances()];
+    int n = 0;
+    for (int r = 0; r < m_Repeats; r++) {
+      for (int i = 0; i < m_Test.numInstances(); i++) {
+        long start = System.nanoTime();
+        predictions[i] = model.distributionForInstance(m_Test.instance(i));
+        latencies[n++] = System.nanoTime() - start;
+      }
+    }
+    Arrays.sort(latencies);
+    return latencies;
+  }
+
+  /**
+   * Describes sorted latencies.
+   *
+   * @param latencies the latencies in nanoseconds, sorted
+   * @return average, median and 99th percentile in microseconds
+   */
+  protected static String latencyReport(long[] latencies) {
+
+    if (latencies.length == 0) {
+      return "no predictions";
+    }
+    double sum = 0;
+    for (int i = 0; i < latencies.length; i++) {
+      sum += latencies[i];
+    }
+    return "avg " + Utils.doubleToString(sum / latencies.length / 1e3, 1)
+      + " us, p50 " + Utils.doubleToString(latencies[latencies.length / 2] / 1e3, 1)
+      + " us, p99 " + Utils.doubleToString(latencies[(int) (latencies.length * 0.99)] / 1e3, 1)
+      + " us";
+  }
+
+  /**
+   * Starts a ShardServer in a new JVM with the class path of this one.
+   *
+   * @return the process
+   * @throws Exception if the process cannot be started
+   */
+  protected static Process startShardServer() throws Exception {
+
+    String java = System.getProperty("java.home") + File.separator + "bin"
+      + File.separator + "java";
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+      System.getProperty("java.class.path"), ShardServer.class.getName(), "-p", "0");
+    builder.redirectErrorStream(true);
+    return builder.start();
+  }
+
+  /**
+   * Reads the port a freshly started ShardServer listens on.
+   *
+   * @param process the server process
+   * @return the port
+   * @throws Exception if the server does not report a port
+   */
+  protected static int shardPort(Process process) throws Exception {
+
+    BufferedReader reader = new BufferedReader(
+      new InputStreamReader(process.getInputStream()));
+    String line = reader.readLine();
+    String prefix = "Shard listening on port ";
+    if ((line == null) || !line.startsWith(prefix)) {
+      process.destroy();
+      throw new Exception("Shard server did not start: " + line);
+    }
+    return Integer.parseInt(line.substring(prefix.length()).trim());
+  }
+
+  /**
+   * Returns the used heap after a garbage collection.
+   *
+   * @return the used heap in bytes
+   */
+  protected static long usedMemory() {
+
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Returns the number of bytes allocated by the current thread so far.
+   *
+   * @return the allocated bytes
+   * @throws Exception if the JVM does not support allocation counting
+   */
+  protected static long allocatedBytes() throws Exception {
+
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      throw new Exception("Allocation counting is not supported by this JVM!");
+    }
+    return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+      Thread.currentThread().getId());
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+
+  /**
+   * Runs a benchmark from the command line.
+   *
+   * @param args the command line options, see the class description
+   */
+  public static void main(String[] args) {
+
+    try {
+      String file = Utils.getOption('t', args);
+      if (file.length() == 0) {
+        throw new Exception("No data file given (-t)!");
+      }
+      String mode = Utils.getOption('M', args);
+      if (mode.length() == 0) {
+        mode = "order";
+      }
+      String repeats = Utils.getOption('R', args);
+      String seed = Utils.getOption('S', args);
+      String threads = Utils.getOption('T', args);
+      String duration = Utils.getOption('D', args);
+      String shards = Utils.getOption('N', args);
+      boolean remote = Utils.getFlag('X', args);
+      String[] learnerOptions = Utils.partitionOptions(args);
+
+      Instances data = DataSource.read(file);
+      data.setClassIndex(data.numAttributes() - 1);
+      Benchmark benchmark = new Benchmark(data, learnerOptions,
+        (repeats.length() == 0) ? 10 : Integer.parseInt(repeats),
+        (seed.length() == 0) ? 1 : Integer.parseInt(seed));
+
+      if (mode.equals("order")) {
+        System.out.println(benchmark.orderBenchmark());
+      } else if (mode.equals("allocation")) {
+        System.out.println(benchmark.allocationBenchmark());
+      } else if (mode.equals("ingest")) {
+        System.out.println(benchmark.ingestBenchmark(
+          (threads.length() == 0) ? 4 : Integer.parseInt(threads),
+          (duration.length() == 0) ? 2000 : Long.parseLong(duration)));
+      } else if (mode.equals("shards")) {
+        System.out.println(benchmark.shardBenchmark(
+          (shards.length() == 0) ? 4 : Integer.parseInt(shards), remote));
+      } else if (mode.equals("precision")) {
+        System.out.println(benchmark.precisionBenchmark());
+      } else {
+        throw new Exception("Unknown benchmark mode: " + mode);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
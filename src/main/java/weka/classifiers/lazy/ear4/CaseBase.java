@@ -0,0 +1,949 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    CaseBase.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.io.Serializable;
+
+/**
+ * Primitive copy of the EAR4 training cases, so that the cases can be
+ * scanned without going through Instance objects. Cases are appended at
+ * the end and dropped from the front, as the training window requires.<p/>
+ *
+ * The attribute values are kept row-major in fixed-size chunks. A stored
+ * value is never overwritten: appending fills the free rows of the last
+ * chunk and dropping cases only advances the start offset (and releases
+ * chunks that have been passed completely). Hence snapshot() can return a
+ * frozen view that shares all chunks with the case base it was taken from,
+ * and that stays valid - and safe to read from other threads once it has
+ * been published - while a single writer keeps adding and dropping cases.<p/>
+ *
+ * The attribute ranges used for normalisation are widened as cases are
+ * appended. The exact ranges over the current cases are tracked
+ * incrementally (see WindowRanges); when cases are dropped, the ranges
+ * used for normalisation are replaced by the exact ones only if they have
+ * drifted apart by more than a given tolerance.<p/>
+ *
+ * With a compact storage precision (see setPrecision()), a chunk is
+ * sealed into float32 or int8 values once it is full (setPrecision()
+ * seals the partly filled last chunk as well; it is unsealed again when
+ * the next case is appended to it). Every sealed chunk keeps an offset
+ * and a scale per attribute, taken from the minimum and the range of the
+ * attribute in the chunk: float32 values hold (value - offset) / scale,
+ * int8 values the nearest of 256 steps of the range. The stored values of
+ * the cases are then the decoded ones, offset + scale * code; sealing
+ * replaces the double chunk (snapshots taken before keep it). nearest()
+ * scans a sealed chunk with the code widened to double, which gives the
+ * distance of every case up to rounding; only the cases whose distance
+ * can still reach the current k-th nearest one are re-ranked with the
+ * double arithmetic of the double chunks, so the heap is offered exactly
+ * what a LinearNNSearch over the decoded cases would keep. The
+ * normalisation ranges are those of the values as appended.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class CaseBase
+  implements Serializable, RevisionHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = 2741286405516003794L;
+
+  /** The number of cases per chunk. */
+  public static final int CHUNK_SIZE = 1024;
+
+  /** The number of attributes per case (including the class). */
+  protected int m_NumAttributes;
+
+  /** The index of the class attribute. */
+  protected int m_ClassIndex;
+
+  /** The largest int8 code of a sealed value. */
+  public static final int BYTE_STEPS = 255;
+
+  /** Bound of the relative rounding error of the scan of a sealed chunk. */
+  protected static final double SCAN_ERROR = 1e-12;
+
+  /** The attribute values, CHUNK_SIZE cases per chunk, one row per case
+   * (null for sealed chunks). */
+  protected double[][] m_Chunks;
+
+  /** The bytes per value of sealed chunks (4 or 1; 8 = no sealing). */
+  protected int m_Precision = 8;
+
+  /** The chunks sealed in float32 (null without float32 sealing). */
+  protected float[][] m_FloatChunks;
+
+  /** The chunks sealed in int8, unsigned (null without int8 sealing). */
+  protected byte[][] m_ByteChunks;
+
+  /** The offset of every attribute in every sealed chunk. */
+  protected double[][] m_Offsets;
+
+  /** The scale of every attribute in every sealed chunk. */
+  protected double[][] m_Scales;
+
+  /** The position of the first case in the first chunk. */
+  protected int m_Start;
+
+  /** The number of cases. */
+  protected int m_NumCases;
+
+  /** Whether any case has a missing attribute value. */
+  protected boolean m_HasMissing;
+
+  /** The range (min, max, width) of each attribute used for normalisation. */
+  protected double[][] m_Ranges;
+
+  /** The exact ranges over the current cases (null in snapshots). */
+  protected WindowRanges m_Window;
+
+  /** Whether this is a snapshot (which cannot be modified). */
+  protected boolean m_Frozen;
+
+  /**
+   * Creates a case base holding the given instances.
+   *
+   * @param data the instances
+   */
+  public CaseBase(Instances data) {
+
+    this(data, data.numInstances());
+    for (int i = 0; i < data.numInstances(); i++) {
+      add(data.instance(i));
+    }
+  }
+
+  /**
+   * Creates an empty case base for instances of the given format, with room
+   * for the given number of cases.
+   *
+   * @param header the format of the cases
+   * @param capacity the number of cases to allocate storage for
+   */
+  public CaseBase(Instances header, int capacity) {
+
+    m_NumAttributes = header.numAttributes();
+    m_ClassIndex = header.classIndex();
+    m_Chunks = new double[Math.max(1, (capacity + CHUNK_SIZE - 1) / CHUNK_SIZE)][];
+    m_Ranges = new double[m_NumAttributes][3];
+    for (int a = 0; a < m_NumAttributes; a++) {
+      m_Ranges[a][0] = Double.POSITIVE_INFINITY;
+      m_Ranges[a][1] = Double.NEGATIVE_INFINITY;
+      m_Ranges[a][2] = Double.POSITIVE_INFINITY;
+    }
+    m_Window = new WindowRanges(m_NumAttributes);
+  }
+
+  /**
+   * Creates a frozen view of another case base.
+   *
+   * @param source the case base to take the snapshot of
+   */
+  protected CaseBase(CaseBase source) {
+
+    double[][] ranges = source.ranges();
+    m_NumAttributes = source.m_NumAttributes;
+    m_ClassIndex = source.m_ClassIndex;
+    m_Chunks = source.m_Chunks;
+    m_Start = source.m_Start;
+    m_NumCases = source.m_NumCases;
+    m_HasMissing = source.m_HasMissing;
+    m_Precision = source.m_Precision;
+    m_FloatChunks = source.m_FloatChunks;
+    m_ByteChunks = source.m_ByteChunks;
+    m_Offsets = source.m_Offsets;
+    m_Scales = source.m_Scales;
+    m_Ranges = new double[m_NumAttributes][];
+    for (int a = 0; a < m_NumAttributes; a++) {
+      m_Ranges[a] = ranges[a].clone();
+    }
+    m_Frozen = true;
+  }
+
+  /**
+   * Returns a frozen view of the current cases that shares their storage.
+   * Later changes of this case base do not affect the snapshot.
+   *
+   * @return the snapshot
+   */
+  public CaseBase snapshot() {
+
+    return new CaseBase(this);
+  }
+
+  /**
+   * Sets the precision the chunks are sealed in, and seals (or, for 8
+   * bytes, unseals) all current chunks. Sealing is lossy: the cases take
+   * the decoded values, and unsealing does not bring back the original
+   * ones. Chunks holding missing values are never sealed.
+   *
+   * @param bytesPerValue 8 for double, 4 for float32 or 1 for int8
+   */
+  public void setPrecision(int bytesPerValue) {
+
+    checkNotFrozen();
+    if ((bytesPerValue != 8) && (bytesPerValue != 4) && (bytesPerValue != 1)) {
+      throw new IllegalArgumentException("Unknown storage precision: "
+                                         + bytesPerValue + " bytes per value!");
+    }
+    if (m_Precision != 8) {
+      for (int c = 0; c < m_Chunks.length; c++) {
+        if (isSealed(c)) {
+          unseal(c);
+        }
+      }
+    }
+    m_Precision = bytesPerValue;
+    if (m_Precision == 8) {
+      m_FloatChunks = null;
+      m_ByteChunks = null;
+      m_Offsets = null;
+      m_Scales = null;
+      return;
+    }
+    m_FloatChunks = (m_Precision == 4) ? new float[m_Chunks.length][] : null;
+    m_ByteChunks = (m_Precision == 1) ? new byte[m_Chunks.length][] : null;
+    m_Offsets = new double[m_Chunks.length][];
+    m_Scales = new double[m_Chunks.length][];
+    for (int c = 0; c < m_Chunks.length; c++) {
+      if (m_Chunks[c] != null) {
+        seal(c);
+      }
+    }
+  }
+
+  /**
+   * Returns the precision the chunks are sealed in.
+   *
+   * @return the bytes per value (8, 4 or 1)
+   */
+  public int getPrecision() {
+
+    return m_Precision;
+  }
+
+  /**
+   * Whether a chunk is sealed.
+   *
+   * @param chunk the chunk
+   * @return true if its values are held in float32 or int8
+   */
+  protected boolean isSealed(int chunk) {
+
+    return (m_Chunks[chunk] == null) && (m_Offsets != null) && (m_Offsets[chunk] != null);
+  }
+
+  /**
+   * Returns the rows of a chunk that hold current cases.
+   *
+   * @param chunk the chunk
+   * @return the first row and the row after the last one
+   */
+  protected int[] liveRows(int chunk) {
+
+    int first = Math.max(0, m_Start - chunk * CHUNK_SIZE);
+    int end = Math.min(CHUNK_SIZE, m_Start + m_NumCases - chunk * CHUNK_SIZE);
+    return new int[] {Math.min(first, CHUNK_SIZE), Math.max(0, end)};
+  }
+
+  /**
+   * Replaces a double chunk by a float32 or int8 one, with an offset and
+   * a scale per attribute from the minimum and the range of the attribute
+   * over the current cases of the chunk. Keeps the double chunk if it
+   * holds a missing value or a range too wide to be scaled. The arrays of
+   * chunks are replaced, as snapshots may share them.
+   *
+   * @param chunk the chunk
+   */
+  protected void seal(int chunk) {
+
+    double[] values = m_Chunks[chunk];
+    int[] rows = liveRows(chunk);
+    if (rows[0] >= rows[1]) {
+      return;
+    }
+    double[] offsets = new double[m_NumAttributes];
+    double[] scales = new double[m_NumAttributes];
+    for (int a = 0; a < m_NumAttributes; a++) {
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int r = rows[0]; r < rows[1]; r++) {
+        double value = values[r * m_NumAttributes + a];
+        if (Double.isNaN(value)) {
+          return;
+        }
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      offsets[a] = min;
+      scales[a] = (m_Precision == 1) ? (max - min) / BYTE_STEPS : max - min;
+      if (Double.isInfinite(scales[a])) {
+        return;
+      }
+    }
+
+    m_Chunks = m_Chunks.clone();
+    m_Offsets = m_Offsets.clone();
+    m_Scales = m_Scales.clone();
+    if (m_Precision == 4) {
+      float[] sealed = new float[CHUNK_SIZE * m_NumAttributes];
+      for (int r = rows[0]; r < rows[1]; r++) {
+        for (int a = 0; a < m_NumAttributes; a++) {
+          int i = r * m_NumAttributes + a;
+          sealed[i] = (scales[a] > 0) ? (float) ((values[i] - offsets[a]) / scales[a]) : 0;
+        }
+      }
+      m_FloatChunks = m_FloatChunks.clone();
+      m_FloatChunks[chunk] = sealed;
+    } else {
+      byte[] sealed = new byte[CHUNK_SIZE * m_NumAttributes];
+      for (int r = rows[0]; r < rows[1]; r++) {
+        for (int a = 0; a < m_NumAttributes; a++) {
+          int i = r * m_NumAttributes + a;
+          long code = (scales[a] > 0) ? Math.round((values[i] - offsets[a]) / scales[a]) : 0;
+          sealed[i] = (byte) Math.max(0, Math.min(BYTE_STEPS, code));
+        }
+      }
+      m_ByteChunks = m_ByteChunks.clone();
+      m_ByteChunks[chunk] = sealed;
+    }
+    m_Offsets[chunk] = offsets;
+    m_Scales[chunk] = scales;
+    m_Chunks[chunk] = null;
+  }
+
+  /**
+   * Replaces a sealed chunk by a double chunk holding the decoded values,
+   * so that cases can be appended to it. The arrays of chunks are
+   * replaced, as snapshots may share them.
+   *
+   * @param chunk the chunk
+   */
+  protected void unseal(int chunk) {
+
+    double[] values = new double[CHUNK_SIZE * m_NumAttributes];
+    int[] rows = liveRows(chunk);
+    int position = chunk * CHUNK_SIZE;
+    for (int r = rows[0]; r < rows[1]; r++) {
+      for (int a = 0; a < m_NumAttributes; a++) {
+        values[r * m_NumAttributes + a] = decode(position + r, a);
+      }
+    }
+    m_Chunks = m_Chunks.clone();
+    m_Offsets = m_Offsets.clone();
+    m_Scales = m_Scales.clone();
+    if (m_FloatChunks != null) {
+      m_FloatChunks = m_FloatChunks.clone();
+      m_FloatChunks[chunk] = null;
+    }
+    if (m_ByteChunks != null) {
+      m_ByteChunks = m_ByteChunks.clone();
+      m_ByteChunks[chunk] = null;
+    }
+    m_Offsets[chunk] = null;
+    m_Scales[chunk] = null;
+    m_Chunks[chunk] = values;
+  }
+
+  /**
+   * Decodes a value of a sealed chunk.
+   *
+   * @param position the position of the case
+   * @param a the attribute
+   * @return the value, offset + scale * code
+   */
+  protected double decode(int position, int a) {
+
+    int chunk = position / CHUNK_SIZE;
+    int i = (position % CHUNK_SIZE) * m_NumAttributes + a;
+    double code = (m_FloatChunks != null) ? m_FloatChunks[chunk][i]
+      : (m_ByteChunks[chunk][i] & 0xFF);
+    return m_Offsets[chunk][a] + m_Scales[chunk][a] * code;
+  }
+
+  /**
+   * Throws an exception if this case base is a snapshot.
+   */
+  protected void checkNotFrozen() {
+
+    if (m_Frozen) {
+      throw new IllegalStateException("Case base snapshots cannot be modified!");
+    }
+  }
+
+  /**
+   * Appends a case.
+   *
+   * @param instance the case to add
+   */
+  public void add(Instance instance) {
+
+    int position = reserve();
+    int chunk = position / CHUNK_SIZE;
+    int offset = (position % CHUNK_SIZE) * m_NumAttributes;
+    for (int a = 0; a < m_NumAttributes; a++) {
+      store(chunk, offset, a, instance.value(a));
+    }
+    appended(position);
+  }
+
+  /**
+   * Appends a case given as a row of attribute values, in the format
+   * Instance.toDoubleArray() returns (missing values as NaN). Lets a case
+   * base be filled from primitive storage without Instance objects.
+   *
+   * @param row the array holding the values
+   * @param start the position of the first value of the case in the array
+   */
+  public void add(double[] row, int start) {
+
+    int position = reserve();
+    int chunk = position / CHUNK_SIZE;
+    int offset = (position % CHUNK_SIZE) * m_NumAttributes;
+    for (int a = 0; a < m_NumAttributes; a++) {
+      store(chunk, offset, a, row[start + a]);
+    }
+    appended(position);
+  }
+
+  /**
+   * Counts a case whose values have been stored, and seals its chunk if
+   * the case has filled it.
+   *
+   * @param position the position of the case
+   */
+  protected void appended(int position) {
+
+    int chunk = position / CHUNK_SIZE;
+    m_Window.add(m_Chunks[chunk], (position % CHUNK_SIZE) * m_NumAttributes);
+    m_NumCases++;
+    if ((m_Precision != 8) && (position % CHUNK_SIZE == CHUNK_SIZE - 1)) {
+      seal(chunk);
+    }
+  }
+
+  /**
+   * Makes sure the chunk of the next case exists.
+   *
+   * @return the position of the next case
+   */
+  protected int reserve() {
+
+    checkNotFrozen();
+    int position = m_Start + m_NumCases;
+    int chunk = position / CHUNK_SIZE;
+    if (chunk >= m_Chunks.length) {
+      // new arrays, as snapshots may share the current ones
+      int length = 2 * m_Chunks.length;
+      double[][] chunks = new double[length][];
+      System.arraycopy(m_Chunks, 0, chunks, 0, m_Chunks.length);
+      m_Chunks = chunks;
+      if (m_Precision != 8) {
+        m_Offsets = grow(m_Offsets, length);
+        m_Scales = grow(m_Scales, length);
+        if (m_FloatChunks != null) {
+          float[][] floatChunks = new float[length][];
+          System.arraycopy(m_FloatChunks, 0, floatChunks, 0, m_FloatChunks.length);
+          m_FloatChunks = floatChunks;
+        }
+        if (m_ByteChunks != null) {
+          byte[][] byteChunks = new byte[length][];
+          System.arraycopy(m_ByteChunks, 0, byteChunks, 0, m_ByteChunks.length);
+          m_ByteChunks = byteChunks;
+        }
+      }
+    }
+    if (isSealed(chunk)) {
+      unseal(chunk);
+    }
+    if (m_Chunks[chunk] == null) {
+      m_Chunks[chunk] = new double[CHUNK_SIZE * m_NumAttributes];
+    }
+    return position;
+  }
+
+  /**
+   * Copies an array of per-chunk arrays into a longer one.
+   *
+   * @param arrays the arrays
+   * @param length the new length
+   * @return the new array
+   */
+  protected static double[][] grow(double[][] arrays, int length) {
+
+    double[][] result = new double[length][];
+    System.arraycopy(arrays, 0, result, 0, Math.min(length, arrays.length));
+    return result;
+  }
+
+  /**
+   * Stores a value of a new case and widens the range of its attribute.
+   *
+   * @param chunk the chunk of the case
+   * @param offset the position of the case in the chunk
+   * @param a the attribute
+   * @param value the value
+   */
+  protected void store(int chunk, int offset, int a, double value) {
+
+    if (Instance.isMissingValue(value)) {
+      m_HasMissing = true;
+    } else {
+      updateRange(m_Ranges[a], value);
+    }
+    m_Chunks[chunk][offset + a] = value;
+  }
+
+  /**
+   * Widens an attribute range to include a value, with the same arithmetic
+   * as NormalizableDistance.updateRanges().
+   *
+   * @param range the range (min, max, width)
+   * @param value the value
+   */
+  protected static void updateRange(double[] range, double value) {
+
+    if (value < range[0]) {
+      range[0] = value;
+      range[2] = range[1] - range[0];
+    }
+    if (value > range[1]) {
+      range[1] = value;
+      range[2] = range[1] - range[0];
+    }
+  }
+
+  /**
+   * Drops the oldest cases and replaces the normalisation ranges by the
+   * exact ranges over the remaining cases.
+   *
+   * @param count the number of cases to drop
+   */
+  public void removeFirst(int count) {
+
+    removeFirst(count, 0);
+  }
+
+  /**
+   * Drops the oldest cases. The normalisation ranges are replaced by the
+   * exact ranges over the remaining cases if, for some attribute, they have
+   * become wider than those by more than the given fraction of the exact
+   * width; otherwise they are kept as they are.
+   *
+   * @param count the number of cases to drop
+   * @param tolerance the relative drift of the ranges tolerated
+   * @return true if the normalisation ranges have been replaced
+   */
+  public boolean removeFirst(int count, double tolerance) {
+
+    checkNotFrozen();
+    count = Math.min(count, m_NumCases);
+    if (count == 0) {
+      return false;
+    }
+    for (int i = 0; i < count; i++) {
+      m_Window.removeFirst();
+    }
+    m_Start += count;
+    m_NumCases -= count;
+    int passed = m_Start / CHUNK_SIZE;
+    if (passed > 0) {
+      // new arrays, as snapshots may share the current ones
+      int length = m_Chunks.length;
+      double[][] chunks = new double[length][];
+      System.arraycopy(m_Chunks, passed, chunks, 0, length - passed);
+      m_Chunks = chunks;
+      if (m_Precision != 8) {
+        m_Offsets = shift(m_Offsets, passed);
+        m_Scales = shift(m_Scales, passed);
+        if (m_FloatChunks != null) {
+          float[][] floatChunks = new float[length][];
+          System.arraycopy(m_FloatChunks, passed, floatChunks, 0, length - passed);
+          m_FloatChunks = floatChunks;
+        }
+        if (m_ByteChunks != null) {
+          byte[][] byteChunks = new byte[length][];
+          System.arraycopy(m_ByteChunks, passed, byteChunks, 0, length - passed);
+          m_ByteChunks = byteChunks;
+        }
+      }
+      m_Start -= passed * CHUNK_SIZE;
+    }
+
+    boolean drifted = false;
+    for (int a = 0; (a < m_NumAttributes) && !drifted; a++) {
+      double min = m_Window.min(a);
+      double max = m_Window.max(a);
+      if ((min == m_Ranges[a][0]) && (max == m_Ranges[a][1])) {
+        continue;
+      }
+      double drift = (min - m_Ranges[a][0]) + (m_Ranges[a][1] - max);
+      drifted = !(drift <= tolerance * (max - min));
+    }
+    if (!drifted) {
+      return false;
+    }
+    // the ranges a NormalizableDistance computes on the remaining cases
+    for (int a = 0; a < m_NumAttributes; a++) {
+      m_Ranges[a][0] = m_Window.min(a);
+      m_Ranges[a][1] = m_Window.max(a);
+      if (m_Ranges[a][0] == Double.POSITIVE_INFINITY) {
+        m_Ranges[a][2] = Double.POSITIVE_INFINITY;
+      } else {
+        m_Ranges[a][2] = m_Ranges[a][1] - m_Ranges[a][0];
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Drops the first per-chunk arrays of an array, keeping its length.
+   *
+   * @param arrays the arrays
+   * @param passed the number of arrays to drop
+   * @return the new array
+   */
+  protected static double[][] shift(double[][] arrays, int passed) {
+
+    double[][] result = new double[arrays.length][];
+    System.arraycopy(arrays, passed, result, 0, arrays.length - passed);
+    return result;
+  }
+
+  /**
+   * Returns the number of cases.
+   *
+   * @return the number of cases
+   */
+  public int numCases() {
+
+    return m_NumCases;
+  }
+
+  /**
+   * Returns the number of attributes per case.
+   *
+   * @return the number of attributes
+   */
+  public int numAttributes() {
+
+    return m_NumAttributes;
+  }
+
+  /**
+   * Returns the index of the class attribute.
+   *
+   * @return the class index
+   */
+  public int classIndex() {
+
+    return m_ClassIndex;
+  }
+
+  /**
+   * Returns the number of bytes allocated for attribute values.
+   *
+   * @return the size of the allocated chunks (double or sealed, with their
+   * offsets and scales), in bytes
+   */
+  public long storageBytes() {
+
+    long bytes = 0;
+    for (int c = 0; c < m_Chunks.length; c++) {
+      if (m_Chunks[c] != null) {
+        bytes += CHUNK_SIZE * m_NumAttributes * 8L;
+      } else if (isSealed(c)) {
+        bytes += CHUNK_SIZE * m_NumAttributes * (long) m_Precision + 16L * m_NumAttributes;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns whether any case has a missing attribute value.
+   *
+   * @return true if some value is missing
+   */
+  public boolean hasMissingValues() {
+
+    return m_HasMissing;
+  }
+
+  /**
+   * Returns the normalisation range of every attribute, in the format of
+   * NormalizableDistance.getRanges() (min, max and width per attribute).
+   * Unless cases have been dropped with a tolerance, these are the ranges
+   * a NormalizableDistance computes on the same instances.
+   *
+   * @return the attribute ranges; not to be modified
+   */
+  public double[][] ranges() {
+
+    return m_Ranges;
+  }
+
+  /**
+   * Returns an attribute value of a case.
+   *
+   * @param i the index of the case
+   * @param a the index of the attribute
+   * @return the value
+   */
+  public double value(int i, int a) {
+
+    int position = m_Start + i;
+    double[] values = m_Chunks[position / CHUNK_SIZE];
+    if (values == null) {
+      return decode(position, a);
+    }
+    return values[(position % CHUNK_SIZE) * m_NumAttributes + a];
+  }
+
+  /**
+   * Copies the attribute values of a case into a buffer.
+   *
+   * @param i the index of the case
+   * @param dest the buffer
+   * @param offset the position of the first value in the buffer
+   */
+  public void copyCase(int i, double[] dest, int offset) {
+
+    int position = m_Start + i;
+    double[] values = m_Chunks[position / CHUNK_SIZE];
+    if (values == null) {
+      for (int a = 0; a < m_NumAttributes; a++) {
+        dest[offset + a] = decode(position, a);
+      }
+      return;
+    }
+    System.arraycopy(values, (position % CHUNK_SIZE) * m_NumAttributes, dest, offset,
+                     m_NumAttributes);
+  }
+
+  /**
+   * Finds the k cases nearest to a query under the normalised Euclidean
+   * distance of a NormalizableDistance with the given ranges, keeping the
+   * cases tied with the k-th nearest. The distances offered to the heap are
+   * squared, and are accumulated in attribute order with the same
+   * arithmetic as EuclideanDistance, so the result is the one a
+   * LinearNNSearch over the same (for sealed chunks: decoded) cases
+   * returns.
+   *
+   * @param query the attribute values of the query (the class is ignored)
+   * @param normalised buffer for the normalised query and the coefficients
+   * of the scan of sealed chunks, of at least 3 * numAttributes() elements
+   * @param ranges the attribute ranges (min, max, width per attribute)
+   * @param k the number of cases to find
+   * @param heap the heap receiving the cases
+   */
+  public void nearest(double[] query, double[] normalised, double[][] ranges,
+                      int k, NeighbourHeap heap) {
+
+    for (int a = 0; a < m_NumAttributes; a++) {
+      normalised[a] = norm(query[a], ranges[a]);
+    }
+
+    heap.reset(k);
+    int position = m_Start;
+    int i = 0;
+    while (i < m_NumCases) {
+      int chunk = position / CHUNK_SIZE;
+      int end = Math.min(m_NumCases, i + CHUNK_SIZE - position % CHUNK_SIZE);
+      if (m_Chunks[chunk] != null) {
+        nearestInChunk(position, i, end, normalised, ranges, heap);
+      } else {
+        nearestInSealedChunk(position, i, end, normalised, ranges, heap);
+      }
+      position += end - i;
+      i = end;
+    }
+  }
+
+  /**
+   * Offers the cases of a double chunk to the heap.
+   *
+   * @param position the position of the first case to offer
+   * @param from the index of the first case to offer
+   * @param to the index after the last case to offer, in the same chunk
+   * @param normalised the normalised query
+   * @param ranges the attribute ranges
+   * @param heap the heap
+   */
+  protected void nearestInChunk(int position, int from, int to, double[] normalised,
+                                double[][] ranges, NeighbourHeap heap) {
+
+    double[] values = m_Chunks[position / CHUNK_SIZE];
+    int offset = (position % CHUNK_SIZE) * m_NumAttributes;
+    for (int i = from; i < to; i++, offset += m_NumAttributes) {
+      double bound = heap.bound();
+      double distance = 0;
+      for (int a = 0; a < m_NumAttributes; a++) {
+        if (a == m_ClassIndex) {
+          continue;
+        }
+        double diff = normalised[a] - norm(values[offset + a], ranges[a]);
+        distance += diff * diff;
+        if (distance > bound) {
+          break;
+        }
+      }
+      if (!(distance > bound)) {
+        heap.offer(i, distance);
+      }
+    }
+  }
+
+  /**
+   * Offers the cases of a sealed chunk to the heap. The normalised
+   * difference of a value from the query is computed as base - step * code,
+   * with the code widened to double and accumulated in double; it differs
+   * from the one of the decoded value by rounding only. A case whose
+   * scanned distance exceeds the k-th nearest distance by more than that
+   * rounding error is rejected, the others are re-ranked: their distance is
+   * computed again from the decoded values, with the arithmetic of a
+   * double chunk, and offered to the heap.
+   *
+   * @param position the position of the first case to offer
+   * @param from the index of the first case to offer
+   * @param to the index after the last case to offer, in the same chunk
+   * @param normalised the normalised query, followed by room for the steps
+   * and the bases of the attributes
+   * @param ranges the attribute ranges
+   * @param heap the heap
+   */
+  protected void nearestInSealedChunk(int position, int from, int to, double[] normalised,
+                                      double[][] ranges, NeighbourHeap heap) {
+
+    int chunk = position / CHUNK_SIZE;
+    int numAttributes = m_NumAttributes;
+    double[] offsets = m_Offsets[chunk];
+    double[] scales = m_Scales[chunk];
+    float[] floats = (m_FloatChunks != null) ? m_FloatChunks[chunk] : null;
+    byte[] bytes = (m_ByteChunks != null) ? m_ByteChunks[chunk] : null;
+    double largestCode = (floats != null) ? 1 : BYTE_STEPS;
+
+    // norm(offset + scale * code) = (offset - min) / width + scale / width * code
+    // (with the magnitudes of all intermediate results for the rounding)
+    double magnitude = 0;
+    for (int a = 0; a < numAttributes; a++) {
+      double[] range = ranges[a];
+      double step = 0;
+      double base = 0;
+      double term = 0;
+      if (a != m_ClassIndex) {
+        base = normalised[a];
+        if (!(Double.isNaN(range[0]) || (range[1] == range[0]))) {
+          step = scales[a] / range[2];
+          base -= (offsets[a] - range[0]) / range[2];
+          term = (Math.abs(offsets[a]) + Math.abs(scales[a]) * largestCode
+                  + Math.abs(range[0])) / range[2];
+        }
+        term += Math.abs(base) + Math.abs(step) * largestCode + Math.abs(normalised[a]) + 1;
+      }
+      normalised[numAttributes + a] = step;
+      normalised[2 * numAttributes + a] = base;
+      magnitude += term * term;
+    }
+    double slack = SCAN_ERROR * Math.sqrt(magnitude);
+
+    int offset = (position % CHUNK_SIZE) * numAttributes;
+    double bound = Double.NaN;
+    double threshold = Double.POSITIVE_INFINITY;
+    for (int i = from; i < to; i++, offset += numAttributes) {
+      if (heap.bound() != bound) {
+        bound = heap.bound();
+        double root = Math.sqrt(bound) + slack;
+        threshold = root * root * (1 + SCAN_ERROR);
+      }
+      double scanned = 0;
+      if (floats != null) {
+        for (int a = 0; a < numAttributes; a++) {
+          double diff = normalised[2 * numAttributes + a]
+            - normalised[numAttributes + a] * floats[offset + a];
+          scanned += diff * diff;
+          if (scanned > threshold) {
+            break;
+          }
+        }
+      } else {
+        for (int a = 0; a < numAttributes; a++) {
+          double diff = normalised[2 * numAttributes + a]
+            - normalised[numAttributes + a] * (bytes[offset + a] & 0xFF);
+          scanned += diff * diff;
+          if (scanned > threshold) {
+            break;
+          }
+        }
+      }
+      if (scanned > threshold) {
+        continue;
+      }
+
+      // re-rank in the arithmetic of the double chunks
+      double distance = 0;
+      for (int a = 0; a < numAttributes; a++) {
+        if (a == m_ClassIndex) {
+          continue;
+        }
+        double code = (floats != null) ? floats[offset + a] : (bytes[offset + a] & 0xFF);
+        double diff = normalised[a] - norm(offsets[a] + scales[a] * code, ranges[a]);
+        distance += diff * diff;
+        if (distance > bound) {
+          break;
+        }
+      }
+      if (!(distance > bound)) {
+        heap.offer(i, distance);
+      }
+    }
+  }
+
+  /**
+   * Normalises a value like NormalizableDistance.norm().
+   *
+   * @param value the value
+   * @param range the range of the attribute (min, max, width)
+   * @return the normalised value
+   */
+  protected static double norm(double value, double[] range) {
+
+    if (Double.isNaN(range[0]) || (range[1] == range[0])) {
+      return 0;
+    }
+    return (value - range[0]) / range[2];
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    CaseFile.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compact binary format for EAR4 training data, so that large training
+ * sets are loaded without parsing text and without building an Instance
+ * per case. The cases are stored as rows of doubles, exactly as
+ * Instance.toDoubleArray() returns them (nominal values as indices,
+ * missing values as NaN); the loader maps the file and copies the rows in
+ * bulk into a CaseBase. Cases with a missing class are left out, as EAR4
+ * skips them anyway, and instance weights are not stored.<p/>
+ *
+ * The layout (big-endian) is:
+ * <pre>
+ * int      magic number (0x45415234, "EAR4")
+ * int      version (1)
+ * int      class index
+ * long     number of cases
+ * double   sum of the class values
+ * long     offset of the rows
+ * int      length of the header
+ * byte[]   header: the ARFF header of the data, UTF-8
+ * byte[]   padding to a multiple of 8 bytes
+ * double[] rows: the values of one case after the other
+ * </pre>
+ *
+ * Converting an ARFF or CSV file (streamed if the loader is incremental):
+ * <pre>
+ * java weka.classifiers.lazy.ear4.CaseFile -i data.arff -o data.ear4 [-c last]
+ * </pre>
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class CaseFile
+  implements RevisionHandler {
+
+  /** The magic number starting every case file. */
+  public static final int MAGIC = 0x45415234;
+
+  /** The version of the format. */
+  public static final int VERSION = 1;
+
+  /** The length of the fixed fields before the header. */
+  protected static final int PREAMBLE = 40;
+
+  /** The position of the number of cases. */
+  protected static final int NUM_CASES_POSITION = 12;
+
+  /** The number of rows copied from the mapped file at once. */
+  protected static final int ROWS_PER_COPY = CaseBase.CHUNK_SIZE;
+
+  /** The largest region of the file mapped at once. */
+  protected static final long MAP_SIZE = 1L << 30;
+
+  /** The file. */
+  protected File m_File;
+
+  /** The format of the cases, with the class set. */
+  protected Instances m_Header;
+
+  /** The number of cases. */
+  protected long m_NumCases;
+
+  /** The sum of the class values. */
+  protected double m_ClassSum;
+
+  /** The offset of the rows. */
+  protected long m_DataOffset;
+
+  /**
+   * Opens a case file and reads its header.
+   *
+   * @param file the file
+   * @throws Exception if the file is not a case file
+   */
+  public CaseFile(File file) throws Exception {
+
+    m_File = file;
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      if ((in.length() < PREAMBLE) || (in.readInt() != MAGIC)) {
+        throw new Exception(file + " is not an EAR4 case file!");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new Exception("Unsupported case file version " + version + "!");
+      }
+      int classIndex = in.readInt();
+      m_NumCases = in.readLong();
+      m_ClassSum = in.readDouble();
+      m_DataOffset = in.readLong();
+      byte[] header = new byte[in.readInt()];
+      in.readFully(header);
+      m_Header = new Instances(new StringReader(new String(header, "UTF-8")));
+      m_Header.setClassIndex(classIndex);
+      if (in.length() < m_DataOffset + 8L * m_NumCases * m_Header.numAttributes()) {
+        throw new Exception(file + " is truncated!");
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the format of the cases.
+   *
+   * @return an empty set of instances, with the class set
+   */
+  public Instances header() {
+
+    return new Instances(m_Header, 0);
+  }
+
+  /**
+   * Returns the number of cases.
+   *
+   * @return the number of cases
+   */
+  public long numCases() {
+
+    return m_NumCases;
+  }
+
+  /**
+   * Returns the mean class value of all cases.
+   *
+   * @return the mean, 0 without cases
+   */
+  public double classMean() {
+
+    return (m_NumCases == 0) ? 0 : m_ClassSum / m_NumCases;
+  }
+
+  /**
+   * Loads the last cases into a case base, copying the rows from the
+   * mapped file without creating Instance objects.
+   *
+   * @param window the number of cases to load, the last ones (0 = all)
+   * @return the case base
+   * @throws Exception if the cases do not fit into a case base or cannot
+   * be read
+   */
+  public CaseBase caseBase(int window) throws Exception {
+
+    long first = firstCase(window);
+    CaseBase cases = new CaseBase(m_Header, (int) (m_NumCases - first));
+    read(first, cases, null);
+    return cases;
+  }
+
+  /**
+   * Loads the last cases as instances, for the paths that need Instance
+   * objects.
+   *
+   * @param window the number of cases to load, the last ones (0 = all)
+   * @return the instances
+   * @throws Exception if the cases do not fit into a set of instances or
+   * cannot be read
+   */
+  public Instances instances(int window) throws Exception {
+
+    long first = firstCase(window);
+    Instances instances = new Instances(m_Header, (int) (m_NumCases - first));
+    read(first, null, instances);
+    return instances;
+  }
+
+  /**
+   * Returns the first case of a window.
+   *
+   * @param window the number of cases to load, the last ones (0 = all)
+   * @return the index of the first case to load
+   * @throws Exception if the window holds more cases than an array can
+   */
+  protected long firstCase(int window) throws Exception {
+
+    long first = ((window > 0) && (window < m_NumCases)) ? m_NumCases - window : 0;
+    if (m_NumCases - first > Integer.MAX_VALUE) {
+      throw new Exception("Too many cases to load at once; use a window!");
+    }
+    return first;
+  }
+
+  /**
+   * Copies the cases from the given one on out of the mapped file, either
+   * into a case base or into a set of instances.
+   *
+   * @param first the index of the first case
+   * @param cases the case base to fill, or null
+   * @param instances the instances to fill, or null
+   * @throws IOException if the file cannot be read
+   */
+  protected void read(long first, CaseBase cases, Instances instances) throws IOException {
+
+    int numAttributes = m_Header.numAttributes();
+    long rowBytes = 8L * numAttributes;
+    long rowsPerMap = Math.max(1, MAP_SIZE / rowBytes);
+    double[] rows = new double[ROWS_PER_COPY * numAttributes];
+    FileInputStream in = new FileInputStream(m_File);
+    try {
+      FileChannel channel = in.getChannel();
+      long done = first;
+      while (done < m_NumCases) {
+        long mapped = Math.min(rowsPerMap, m_NumCases - done);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                                              m_DataOffset + done * rowBytes,
+                                              mapped * rowBytes);
+        DoubleBuffer values = buffer.asDoubleBuffer();
+        for (long left = mapped; left > 0; ) {
+          int count = (int) Math.min(ROWS_PER_COPY, left);
+          values.get(rows, 0, count * numAttributes);
+          for (int r = 0; r < count; r++) {
+            if (cases != null) {
+              cases.add(rows, r * numAttributes);
+            } else {
+              double[] row = new double[numAttributes];
+              System.arraycopy(rows, r * numAttributes, row, 0, numAttributes);
+              instances.add(new Instance(1, row));
+            }
+          }
+          left -= count;
+        }
+        done += mapped;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Converts data to a case file, one instance at a time if the source
+   * is incremental. Only numeric and nominal attributes can be stored.
+   *
+   * @param source the data
+   * @param classIndex the index of the class attribute (-1 = the last)
+   * @param file the case file to write
+   * @return the number of cases written
+   * @throws Exception if the data cannot be read or stored
+   */
+  public static long convert(DataSource source, int classIndex, File file) throws Exception {
+
+    Instances structure = source.getStructure();
+    structure.setClassIndex((classIndex < 0) ? structure.numAttributes() - 1 : classIndex);
+    for (int a = 0; a < structure.numAttributes(); a++) {
+      Attribute attribute = structure.attribute(a);
+      if (!attribute.isNumeric() && !attribute.isNominal()) {
+        throw new Exception("Only numeric and nominal attributes can be stored: "
+                            + attribute.name() + "!");
+      }
+    }
+    byte[] header = new Instances(structure, 0).toString().getBytes("UTF-8");
+    long offset = PREAMBLE + header.length;
+    int padding = (int) ((8 - offset % 8) % 8);
+
+    long numCases = 0;
+    double classSum = 0;
+    int numAttributes = structure.numAttributes();
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(structure.classIndex());
+      out.writeLong(0);
+      out.writeDouble(0);
+      out.writeLong(offset + padding);
+      out.writeInt(header.length);
+      out.write(header);
+      out.write(new byte[padding]);
+      while (source.hasMoreElements(structure)) {
+        Instance current = source.nextElement(structure);
+        if (current.classIsMissing()) {
+          continue;
+        }
+        for (int a = 0; a < numAttributes; a++) {
+          out.writeDouble(current.value(a));
+        }
+        classSum += current.classValue();
+        numCases++;
+      }
+    } finally {
+      out.close();
+    }
+
+    RandomAccessFile patch = new RandomAccessFile(file, "rw");
+    try {
+      patch.seek(NUM_CASES_POSITION);
+      patch.writeLong(numCases);
+      patch.writeDouble(classSum);
+    } finally {
+      patch.close();
+    }
+    return numCases;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+
+  /**
+   * Converts an ARFF or CSV file into a case file. Options:
+   * <pre>
+   * -i file  the data to convert
+   * -o file  the case file to write
+   * -c index the class attribute, 1-based, or first or last (default last)
+   * </pre>
+   *
+   * @param args the options
+   */
+  public static void main(String[] args) {
+
+    try {
+      String input = Utils.getOption('i', args);
+      String output = Utils.getOption('o', args);
+      if ((input.length() == 0) || (output.length() == 0)) {
+        throw new Exception("Usage: CaseFile -i <data file> -o <case file> [-c <class index>]");
+      }
+      String index = Utils.getOption('c', args);
+      int classIndex = -1;
+      if (index.equals("first")) {
+        classIndex = 0;
+      } else if ((index.length() != 0) && !index.equals("last")) {
+        classIndex = Integer.parseInt(index) - 1;
+      }
+      long start = System.nanoTime();
+      long numCases = convert(new DataSource(input), classIndex, new File(output));
+      System.out.println("Wrote " + numCases + " cases to " + output + " in "
+                         + Utils.doubleToString((System.nanoTime() - start) / 1e9, 2) + " s");
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+}
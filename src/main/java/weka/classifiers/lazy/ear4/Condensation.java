@@ -0,0 +1,538 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    Condensation.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Condenses an EAR4 case base: drops the cases whose removal changes no
+ * hold-one-out prediction by more than a tolerance. The hold-one-out
+ * prediction of a case is the EAR4 prediction from its rule generation
+ * neighbourhood without the case itself, computed on the primitive
+ * buffers of a ScratchArena.<p/>
+ *
+ * Removing a case only changes the predictions of the cases whose
+ * neighbourhood contains it (its reverse neighbours). Hence the neighbour
+ * list of every case is retrieved once, with some slack for removals, and
+ * kept together with its prediction and the list of its reverse
+ * neighbours; a candidate removal only predicts its reverse neighbours
+ * again, and the candidate itself from what remains. Candidates are tried
+ * in the order of their hold-one-out error, best predicted first, and all
+ * predictions are compared with those of the full case base, so the
+ * changes do not accumulate. Cases holding the minimum or maximum of an
+ * attribute are kept, so the normalisation ranges, and hence the
+ * predictions computed here, stay those of the condensed model.<p/>
+ *
+ * The result reports the size reduction and the hold-one-out error of
+ * all original cases before and after.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class Condensation
+  implements Serializable, RevisionHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = 5120937448317254604L;
+
+  /** Which of the original cases are kept. */
+  protected boolean[] m_Kept;
+
+  /** The number of cases kept. */
+  protected int m_NumKept;
+
+  /** The hold-one-out mean absolute error on the full case base. */
+  protected double m_ErrorBefore;
+
+  /** The hold-one-out mean absolute error on the condensed case base. */
+  protected double m_ErrorAfter;
+
+  /** The number of hold-one-out predictions made. */
+  protected long m_Predictions;
+
+  /** The time taken, in nanoseconds. */
+  protected long m_ElapsedNanos;
+
+  /** The cases being condensed (not serialized with the result). */
+  protected transient CaseBase m_Cases;
+
+  /** The working memory of the hold-one-out predictions. */
+  protected transient ScratchArena m_Arena;
+
+  /** The number of base cases. */
+  protected transient int m_KNN;
+
+  /** The number of rules applied per base case. */
+  protected transient int m_L;
+
+  /** The size of the rule generation neighbourhood. */
+  protected transient int m_RuleNeighbourhood;
+
+  /** The neighbour list of every case, nearest first, without the case itself. */
+  protected transient int[][] m_Lists;
+
+  /** The squared distances of the neighbour lists. */
+  protected transient double[][] m_ListDistances;
+
+  /** Whether a neighbour list holds all other cases. */
+  protected transient boolean[] m_Complete;
+
+  /** The reverse neighbours of every case (may hold stale entries). */
+  protected transient int[][] m_Reverse;
+
+  /** The number of reverse neighbours of every case. */
+  protected transient int[] m_ReverseSize;
+
+  /** The number of cases removed. */
+  protected transient int m_Removed;
+
+  /** Buffer for the neighbourhood of a prediction. */
+  protected transient int[] m_Members;
+
+  /**
+   * Condenses a case base. The case base is not modified; kept() tells
+   * which cases to keep.
+   *
+   * @param cases the cases, with the class last and no missing values
+   * @param kNN the number of base cases
+   * @param l the number of rules applied per base case
+   * @param ruleNeighbourhood the size of the rule generation neighbourhood
+   * @param tieHandling the tie handling policy of NeighbourSelector
+   * @param tolerance the largest change of a hold-one-out prediction
+   * allowed, as a fraction of the class range
+   * @return the condensation
+   */
+  public static Condensation condense(CaseBase cases, int kNN, int l,
+                                      int ruleNeighbourhood, int tieHandling,
+                                      double tolerance) {
+
+    long start = System.nanoTime();
+    Condensation result = new Condensation();
+    result.m_Cases = cases;
+    result.m_KNN = kNN;
+    result.m_L = l;
+    result.m_RuleNeighbourhood = Math.max(1, ruleNeighbourhood);
+    result.m_Arena = new ScratchArena();
+    result.m_Arena.setTieHandling(tieHandling);
+    result.m_Arena.setRulePrecision(cases.getPrecision());
+    result.run(tolerance);
+    result.m_ElapsedNanos = System.nanoTime() - start;
+    result.m_Cases = null;
+    result.m_Arena = null;
+    result.m_Lists = null;
+    result.m_ListDistances = null;
+    result.m_Reverse = null;
+    result.m_Members = null;
+    return result;
+  }
+
+  /**
+   * Runs the condensation.
+   *
+   * @param tolerance the largest change of a hold-one-out prediction
+   * allowed, as a fraction of the class range
+   */
+  protected void run(double tolerance) {
+
+    int n = m_Cases.numCases();
+    int numAttributes = m_Cases.numAttributes();
+    int classIndex = m_Cases.classIndex();
+    m_Kept = new boolean[n];
+    Arrays.fill(m_Kept, true);
+    m_NumKept = n;
+    if (n < 2) {
+      return;
+    }
+    double width = m_Cases.ranges()[classIndex][2];
+    double allowed = ((width > 0) && !Double.isInfinite(width)) ? tolerance * width : tolerance;
+
+    // neighbour lists, predictions of the full case base, reverse neighbours
+    m_Lists = new int[n][];
+    m_ListDistances = new double[n][];
+    m_Complete = new boolean[n];
+    m_Reverse = new int[n][];
+    m_ReverseSize = new int[n];
+    m_Members = new int[n];
+    final double[] original = new double[n];
+    double[] current = new double[n];
+    final double[] errors = new double[n];
+    int[] members = new int[n];
+    for (int i = 0; i < n; i++) {
+      retrieve(i, 2 * m_RuleNeighbourhood);
+      original[i] = predict(i);
+      current[i] = original[i];
+      errors[i] = Math.abs(original[i] - m_Cases.value(i, classIndex));
+      int count = neighbourhood(i, members);
+      for (int j = 0; j < count; j++) {
+        addReverse(members[j], i);
+      }
+    }
+
+    // the cases holding an attribute extreme are kept
+    boolean[] extreme = new boolean[n];
+    double[][] ranges = m_Cases.ranges();
+    for (int i = 0; i < n; i++) {
+      for (int a = 0; a < numAttributes; a++) {
+        double value = m_Cases.value(i, a);
+        if ((a != classIndex) && ((value == ranges[a][0]) || (value == ranges[a][1]))) {
+          extreme[i] = true;
+        }
+      }
+    }
+
+    // try the best predicted cases first
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        return Double.compare(errors[o1.intValue()], errors[o2.intValue()]);
+      }
+    });
+
+    int[] affected = new int[n];
+    double[] predictions = new double[n];
+    int[] before = new int[n];
+    int[] after = new int[n];
+    for (int o = 0; o < n; o++) {
+      int c = order[o].intValue();
+      if (extreme[c] || (m_NumKept <= m_RuleNeighbourhood + 1)) {
+        continue;
+      }
+      // the candidate itself, predicted from the other remaining cases
+      if (!(Math.abs(current[c] - original[c]) <= allowed)) {
+        continue;
+      }
+      // its reverse neighbours, predicted without it
+      m_Kept[c] = false;
+      m_Removed++;
+      int numAffected = 0;
+      boolean accept = true;
+      for (int r = 0; (r < m_ReverseSize[c]) && accept; r++) {
+        int i = m_Reverse[c][r];
+        if (!m_Kept[i] || contains(affected, numAffected, i)) {
+          continue;
+        }
+        m_Kept[c] = true;
+        int count = neighbourhood(i, members);
+        m_Kept[c] = false;
+        if (!contains(members, count, c)) {
+          continue;
+        }
+        predictions[numAffected] = predict(i);
+        affected[numAffected++] = i;
+        accept = Math.abs(predictions[numAffected - 1] - original[i]) <= allowed;
+      }
+      if (!accept) {
+        m_Kept[c] = true;
+        m_Removed--;
+        continue;
+      }
+
+      // commit: update the predictions and the reverse neighbours
+      m_NumKept--;
+      for (int a = 0; a < numAffected; a++) {
+        int i = affected[a];
+        current[i] = predictions[a];
+        m_Kept[c] = true;
+        int numBefore = neighbourhood(i, before);
+        m_Kept[c] = false;
+        int numAfter = neighbourhood(i, after);
+        for (int j = 0; j < numAfter; j++) {
+          if (!contains(before, numBefore, after[j])) {
+            addReverse(after[j], i);
+          }
+        }
+      }
+    }
+
+    // the hold-one-out error of all original cases on the condensed cases
+    double sumBefore = 0;
+    double sumAfter = 0;
+    for (int i = 0; i < n; i++) {
+      double target = m_Cases.value(i, classIndex);
+      sumBefore += errors[i];
+      sumAfter += Math.abs((m_Kept[i] ? current[i] : predict(i)) - target);
+    }
+    m_ErrorBefore = sumBefore / n;
+    m_ErrorAfter = sumAfter / n;
+  }
+
+  /**
+   * Retrieves the neighbour list of a case, holding at least the given
+   * number of remaining cases other than the case itself (or all of them).
+   *
+   * @param i the case
+   * @param want the number of remaining neighbours wanted
+   */
+  protected void retrieve(int i, int want) {
+
+    int n = m_Cases.numCases();
+    m_Arena.setQuery(m_Cases, i);
+    int k = Math.min(want + 1 + m_Removed, n);
+    int[] indices;
+    double[] distances;
+    int alive;
+    while (true) {
+      indices = new int[m_Arena.searchNearest(m_Cases, m_Cases.ranges(), k)];
+      distances = new double[indices.length];
+      m_Arena.extractNearest(indices, distances);
+      alive = 0;
+      for (int j = 0; j < indices.length; j++) {
+        if ((indices[j] != i) && m_Kept[indices[j]]) {
+          indices[alive] = indices[j];
+          distances[alive] = distances[j];
+          alive++;
+        }
+      }
+      if ((alive >= want) || (k >= n)) {
+        break;
+      }
+      k = Math.min(2 * k, n);
+    }
+    m_Lists[i] = Arrays.copyOf(indices, alive);
+    m_ListDistances[i] = Arrays.copyOf(distances, alive);
+    m_Complete[i] = (k >= n);
+  }
+
+  /**
+   * Collects the rule generation neighbourhood of a case among the
+   * remaining cases: the nearest m_RuleNeighbourhood of its neighbour list
+   * plus the ones tied with the last, retrieving the list again if too
+   * many of its cases have been removed.
+   *
+   * @param i the case
+   * @param members receives the neighbours, nearest first
+   * @return the number of neighbours
+   */
+  protected int neighbourhood(int i, int[] members) {
+
+    while (true) {
+      int[] list = m_Lists[i];
+      double[] distances = m_ListDistances[i];
+      int count = 0;
+      double last = Double.NaN;
+      for (int j = 0; j < list.length; j++) {
+        if (!m_Kept[list[j]]) {
+          continue;
+        }
+        if ((count >= m_RuleNeighbourhood) && (distances[j] != last)) {
+          return count;
+        }
+        members[count++] = list[j];
+        last = distances[j];
+      }
+      if (m_Complete[i] || (count >= m_RuleNeighbourhood)) {
+        // complete, or the list ends within the ties of the last neighbour
+        return count;
+      }
+      retrieve(i, 2 * m_RuleNeighbourhood);
+    }
+  }
+
+  /**
+   * Predicts a case from its neighbourhood among the remaining cases.
+   *
+   * @param i the case
+   * @return the prediction
+   */
+  protected double predict(int i) {
+
+    int numAttributes = m_Cases.numAttributes();
+    int count = neighbourhood(i, m_Members);
+    ScratchArena arena = m_Arena;
+    arena.ensureCapacity(count, numAttributes);
+    arena.setQuery(m_Cases, i);
+    int[] list = m_Lists[i];
+    double[] distances = m_ListDistances[i];
+    int filled = 0;
+    for (int j = 0; (j < list.length) && (filled < count); j++) {
+      if (m_Kept[list[j]]) {
+        arena.loadNeighbour(filled, m_Cases, list[j], distances[j]);
+        filled++;
+      }
+    }
+    m_Predictions++;
+    return arena.adapt(count, numAttributes, m_KNN, m_L);
+  }
+
+  /**
+   * Adds a reverse neighbour.
+   *
+   * @param j the neighbour
+   * @param i the case having j in its neighbourhood
+   */
+  protected void addReverse(int j, int i) {
+
+    if (m_Reverse[j] == null) {
+      m_Reverse[j] = new int[2 * m_RuleNeighbourhood];
+    } else if (m_ReverseSize[j] == m_Reverse[j].length) {
+      m_Reverse[j] = Arrays.copyOf(m_Reverse[j], 2 * m_ReverseSize[j]);
+    }
+    m_Reverse[j][m_ReverseSize[j]++] = i;
+  }
+
+  /**
+   * Whether the first elements of an array hold a value.
+   *
+   * @param values the array
+   * @param count the number of elements to look at
+   * @param value the value
+   * @return true if the value is found
+   */
+  protected static boolean contains(int[] values, int count, int value) {
+
+    for (int i = 0; i < count; i++) {
+      if (values[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether an original case is kept.
+   *
+   * @param i the index of the case in the original case base
+   * @return true if the case is kept
+   */
+  public boolean kept(int i) {
+
+    return m_Kept[i];
+  }
+
+  /**
+   * Returns the number of original cases.
+   *
+   * @return the number of cases
+   */
+  public int casesBefore() {
+
+    return m_Kept.length;
+  }
+
+  /**
+   * Returns the number of cases kept.
+   *
+   * @return the number of cases
+   */
+  public int casesAfter() {
+
+    return m_NumKept;
+  }
+
+  /**
+   * Returns the fraction of the cases removed.
+   *
+   * @return the size reduction, between 0 and 1
+   */
+  public double reduction() {
+
+    return (m_Kept.length == 0) ? 0 : 1 - (double) m_NumKept / m_Kept.length;
+  }
+
+  /**
+   * Returns the hold-one-out mean absolute error of the original cases on
+   * the full case base.
+   *
+   * @return the error before condensation
+   */
+  public double errorBefore() {
+
+    return m_ErrorBefore;
+  }
+
+  /**
+   * Returns the hold-one-out mean absolute error of the original cases on
+   * the condensed case base (a removed case is predicted from the cases
+   * kept).
+   *
+   * @return the error after condensation
+   */
+  public double errorAfter() {
+
+    return m_ErrorAfter;
+  }
+
+  /**
+   * Returns the change of the hold-one-out error.
+   *
+   * @return the error after minus the error before
+   */
+  public double accuracyDelta() {
+
+    return m_ErrorAfter - m_ErrorBefore;
+  }
+
+  /**
+   * Returns the number of hold-one-out predictions made.
+   *
+   * @return the number of predictions
+   */
+  public long predictions() {
+
+    return m_Predictions;
+  }
+
+  /**
+   * Returns the time the condensation took.
+   *
+   * @return the time, in nanoseconds
+   */
+  public long elapsedNanos() {
+
+    return m_ElapsedNanos;
+  }
+
+  /**
+   * Describes the condensation.
+   *
+   * @return the description
+   */
+  public String toString() {
+
+    return "Condensed " + casesBefore() + " to " + casesAfter() + " cases ("
+      + Utils.doubleToString(100 * reduction(), 1) + "% fewer); hold-one-out MAE "
+      + Utils.doubleToString(m_ErrorBefore, 6) + " -> "
+      + Utils.doubleToString(m_ErrorAfter, 6) + " ("
+      + ((accuracyDelta() >= 0) ? "+" : "") + Utils.doubleToString(accuracyDelta(), 6)
+      + "); " + m_Predictions + " predictions in "
+      + Utils.doubleToString(m_ElapsedNanos / 1e6, 1) + " ms";
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,463 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    DifferentialHarness.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.classifiers.lazy.EAR4;
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.SelectedTag;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Differential test of the EAR4 prediction engines against a frozen copy
+ * of the original implementation (see BaselineReference). Every data set
+ * is split into a training part (two thirds) and a test part; for every
+ * setting of the EAR4 options, the reference and every variant (every
+ * engine, including -P 1) are built on the
+ * first half of the training part, updated with the second half and score
+ * the test part. A variant fails if one of its predictions differs from
+ * the reference by more than the tolerance (relative to the magnitude of
+ * the prediction, at least 1). The report lists, per data set, setting and
+ * variant, the largest difference, the number of mismatches and the time
+ * of the variant relative to the reference.<p/>
+ *
+ * The deliberate deviations of EAR4 from the original are applied to the
+ * reference as named allowances (BaselineReference.ALLOWANCES), one after
+ * the other; the report lists how many predictions each of them changes,
+ * so that no deviation goes unnoticed. Settings with options the original
+ * did not have cannot be run by the frozen reference; they are compared
+ * against -P 1 of the current EAR4 instead, which the report says.<p/>
+ *
+ * Besides the data files given with -t, four random data sets are used:
+ * uniform features in 3 and in 8 dimensions, features on a coarse grid,
+ * which gives many tied distances, and a small set whose training part
+ * holds fewer cases than most settings have base cases (k) or rule
+ * generation neighbours (k*o). The process exits with status 1 if a
+ * variant fails, so that the harness can gate changes.<p/>
+ *
+ * Usage:
+ * <pre>
+ * java weka.classifiers.lazy.ear4.DifferentialHarness [-t &lt;file&gt;]...
+ *   [-S &lt;seed&gt;] [-E &lt;tolerance&gt;] [-R &lt;repeats&gt;]
+ *   [-- &lt;EAR4 options&gt;]
+ * </pre>
+ * With EAR4 options after --, only that setting is tested; otherwise the
+ * settings of DEFAULT_SETTINGS.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class DifferentialHarness
+  implements RevisionHandler {
+
+  /** The EAR4 settings tested by default. */
+  public static final String[] DEFAULT_SETTINGS = {
+    "-K 1 -L 1",
+    "-K 3 -L 2 -O 2",
+    "-K 5 -L 3 -O 1.5",
+    "-K 2 -L 4 -O 3 -W 150",
+    "-K 10 -L 5 -O 3",
+    "-K 7 -L 20 -O 4",
+    "-K 3 -L 2 -O 2 -N 2",
+    "-K 4 -L 3 -O 2 -N 3"
+  };
+
+  /** The default tolerance. */
+  public static final double DEFAULT_TOLERANCE = 1e-9;
+
+  /** The data sets, with their class attribute set. */
+  protected Vector<Instances> m_Data = new Vector<Instances>();
+
+  /** The EAR4 settings, one option string each. */
+  protected String[] m_Settings = DEFAULT_SETTINGS;
+
+  /** The largest accepted difference, relative to the prediction. */
+  protected double m_Tolerance = DEFAULT_TOLERANCE;
+
+  /** The number of times the test part is scored for timing. */
+  protected int m_Repeats = 1;
+
+  /** The seed of the random data sets and of the splits. */
+  protected int m_Seed = 1;
+
+  /** The number of variants that failed in the last run. */
+  protected int m_Failures;
+
+  /**
+   * Adds a data set.
+   *
+   * @param data the data set, with the class attribute set
+   */
+  public void addData(Instances data) {
+
+    m_Data.add(data);
+  }
+
+  /**
+   * Adds the random data sets.
+   */
+  public void addRandomData() {
+
+    addData(randomData("uniform-3d", 300, 3, 0, m_Seed));
+    addData(randomData("uniform-8d", 300, 8, 0, m_Seed + 1));
+    addData(randomData("grid-4d", 300, 4, 0.25, m_Seed + 2));
+    addData(randomData("small-3d", 12, 3, 0, m_Seed + 3));
+  }
+
+  /**
+   * Creates a random regression data set: uniform features in [0, 1), a
+   * smooth target with noise.
+   *
+   * @param name the relation name
+   * @param numInstances the number of instances
+   * @param numFeatures the number of features
+   * @param grid the grid step the features are rounded to, 0 for none
+   * @param seed the seed
+   * @return the data set, class last
+   */
+  public static Instances randomData(String name, int numInstances, int numFeatures,
+                                     double grid, long seed) {
+
+    FastVector attributes = new FastVector(numFeatures + 1);
+    for (int a = 0; a < numFeatures; a++) {
+      attributes.addElement(new Attribute("x" + (a + 1)));
+    }
+    attributes.addElement(new Attribute("y"));
+    Instances data = new Instances(name, attributes, numInstances);
+    data.setClassIndex(numFeatures);
+
+    Random random = new Random(seed);
+    double[] weights = new double[numFeatures];
+    for (int a = 0; a < numFeatures; a++) {
+      weights[a] = random.nextGaussian();
+    }
+    for (int i = 0; i < numInstances; i++) {
+      double[] values = new double[numFeatures + 1];
+      double target = 0;
+      for (int a = 0; a < numFeatures; a++) {
+        values[a] = random.nextDouble();
+        if (grid > 0) {
+          values[a] = Math.floor(values[a] / grid) * grid;
+        }
+        target += weights[a] * Math.sin(3 * values[a]);
+      }
+      values[numFeatures] = target + 0.1 * random.nextGaussian();
+      data.add(new Instance(1, values));
+    }
+    return data;
+  }
+
+  /**
+   * Sets the EAR4 settings to test.
+   *
+   * @param settings the settings, one option string each
+   */
+  public void setSettings(String[] settings) {
+
+    m_Settings = settings;
+  }
+
+  /**
+   * Sets the largest accepted difference.
+   *
+   * @param tolerance the tolerance, relative to the prediction (at least 1)
+   */
+  public void setTolerance(double tolerance) {
+
+    m_Tolerance = tolerance;
+  }
+
+  /**
+   * Sets the number of times the test part is scored for timing.
+   *
+   * @param repeats the repeats
+   */
+  public void setRepeats(int repeats) {
+
+    m_Repeats = Math.max(1, repeats);
+  }
+
+  /**
+   * Sets the seed of the random data sets and of the splits.
+   *
+   * @param seed the seed
+   */
+  public void setSeed(int seed) {
+
+    m_Seed = seed;
+  }
+
+  /**
+   * Returns the number of variants that failed in the last run.
+   *
+   * @return the failures
+   */
+  public int failures() {
+
+    return m_Failures;
+  }
+
+  /**
+   * Runs every setting on every data set and reports the differences and
+   * timing ratios.
+   *
+   * @return the report
+   * @throws Exception if a learner cannot be built or fails to predict
+   */
+  public String run() throws Exception {
+
+    m_Failures = 0;
+    int checks = 0;
+    StringBuffer result = new StringBuffer();
+    result.append("Tolerance " + m_Tolerance + ", time ratio = variant / reference\n");
+    for (int d = 0; d < m_Data.size(); d++) {
+      Instances shuffled = new Instances(m_Data.get(d));
+      shuffled.randomize(new Random(m_Seed));
+      int trainSize = shuffled.numInstances() * 2 / 3;
+      Instances train = new Instances(shuffled, 0, trainSize);
+      Instances test = new Instances(shuffled, trainSize, shuffled.numInstances() - trainSize);
+
+      for (int s = 0; s < m_Settings.length; s++) {
+        result.append("\n" + shuffled.relationName() + " [" + m_Settings[s] + "]\n");
+        long[] referenceTime = new long[1];
+        double[] expected;
+        boolean frozen = BaselineReference.supports(Utils.splitOptions(m_Settings[s]));
+        if (frozen) {
+          int allowances = 0;
+          expected = scoreBaseline(train, test, m_Settings[s], allowances, referenceTime);
+          result.append(pad("baseline", 34) + Utils.doubleToString(referenceTime[0] / 1e6, 10, 1)
+                        + " ms\n");
+          for (int a = 0; a < BaselineReference.ALLOWANCES.length; a++) {
+            allowances |= BaselineReference.ALLOWANCES[a];
+            double[] allowed = scoreBaseline(train, test, m_Settings[s], allowances,
+                                             referenceTime);
+            int changed = 0;
+            double maxChange = 0;
+            for (int i = 0; i < expected.length; i++) {
+              double diff = Math.abs(expected[i] - allowed[i]);
+              if (!(diff <= m_Tolerance * Math.max(1, Math.abs(expected[i])))) {
+                changed++;
+              }
+              maxChange = Math.max(maxChange, diff);
+            }
+            result.append("  allowance " + BaselineReference.allowanceName(BaselineReference.ALLOWANCES[a])
+                          + ": " + changed + " predictions changed, max. change " + maxChange + "\n");
+            expected = allowed;
+          }
+          result.append(pad("baseline with allowances (reference)", 34)
+                        + Utils.doubleToString(referenceTime[0] / 1e6, 10, 1) + " ms\n");
+        } else {
+          expected = score(train, test, m_Settings[s], EAR4.ENGINE_INSTANCES,
+                           referenceTime);
+          result.append(pad("-P " + EAR4.ENGINE_INSTANCES + " (reference)", 34)
+                        + Utils.doubleToString(referenceTime[0] / 1e6, 10, 1) + " ms"
+                        + "  (options not in the baseline)\n");
+        }
+
+        for (int e = 0; e < EAR4.TAGS_ENGINE.length; e++) {
+          int engine = EAR4.TAGS_ENGINE[e].getID();
+          if (!frozen && (engine == EAR4.ENGINE_INSTANCES)) {
+            continue;
+          }
+          long[] time = new long[1];
+          double[] actual = score(train, test, m_Settings[s], engine, time);
+          double maxDiff = 0;
+          int mismatches = 0;
+          for (int i = 0; i < expected.length; i++) {
+            double diff = Math.abs(expected[i] - actual[i]);
+            if (!(diff <= m_Tolerance * Math.max(1, Math.abs(expected[i])))) {
+              mismatches++;
+            }
+            maxDiff = Math.max(maxDiff, diff);
+          }
+          checks++;
+          if (mismatches > 0) {
+            m_Failures++;
+          }
+          result.append(pad("-P " + engine, 34)
+                        + Utils.doubleToString(time[0] / 1e6, 10, 1) + " ms"
+                        + "  ratio " + Utils.doubleToString((double) time[0] / referenceTime[0], 6, 3)
+                        + "  max. diff " + maxDiff
+                        + ((mismatches > 0) ? "  FAILED (" + mismatches + " mismatches)" : "  ok")
+                        + "\n");
+        }
+      }
+    }
+    result.append("\n" + (checks - m_Failures) + " of " + checks + " variants within tolerance\n");
+    return result.toString();
+  }
+
+  /**
+   * Builds EAR4 on the first half of the training part, updates it with
+   * the second half and scores the test part.
+   *
+   * @param train the training part
+   * @param test the test part
+   * @param setting the EAR4 options
+   * @param engine the prediction engine
+   * @param time receives the nanoseconds of the timed scoring passes
+   * @return the predictions of the last pass
+   * @throws Exception if the learner cannot be built or fails to predict
+   */
+  protected double[] score(Instances train, Instances test, String setting,
+                           int engine, long[] time) throws Exception {
+
+    EAR4 learner = new EAR4();
+    learner.setOptions(Utils.splitOptions(setting));
+    learner.setPredictionEngine(new SelectedTag(engine, EAR4.TAGS_ENGINE));
+    int half = train.numInstances() / 2;
+    learner.buildClassifier(new Instances(train, 0, half));
+    for (int i = half; i < train.numInstances(); i++) {
+      learner.updateClassifier(train.instance(i));
+    }
+
+    // warm up
+    double[] result = new double[test.numInstances()];
+    for (int i = 0; i < test.numInstances(); i++) {
+      result[i] = learner.classifyInstance(test.instance(i));
+    }
+    long start = System.nanoTime();
+    for (int r = 0; r < m_Repeats; r++) {
+      for (int i = 0; i < test.numInstances(); i++) {
+        result[i] = learner.classifyInstance(test.instance(i));
+      }
+    }
+    time[0] = System.nanoTime() - start;
+    return result;
+  }
+
+  /**
+   * Builds the frozen reference on the first half of the training part,
+   * updates it with the second half and scores the test part.
+   *
+   * @param train the training part
+   * @param test the test part
+   * @param setting the EAR4 options, all known to the original
+   * @param allowances the deviations of EAR4 to allow (see
+   * BaselineReference.ALLOWANCES)
+   * @param time receives the nanoseconds of the timed scoring passes
+   * @return the predictions of the last pass
+   * @throws Exception if the reference cannot be built or fails to predict
+   */
+  protected double[] scoreBaseline(Instances train, Instances test, String setting,
+                                   int allowances, long[] time) throws Exception {
+
+    BaselineReference reference = new BaselineReference(allowances);
+    reference.setOptions(Utils.splitOptions(setting));
+    int half = train.numInstances() / 2;
+    reference.buildClassifier(new Instances(train, 0, half));
+    for (int i = half; i < train.numInstances(); i++) {
+      reference.updateClassifier(train.instance(i));
+    }
+
+    // the predictions of the first pass are kept: without the fixed-ranges
+    // allowance, every query changes the ranges of the later ones
+    double[] result = new double[test.numInstances()];
+    for (int i = 0; i < test.numInstances(); i++) {
+      result[i] = reference.classifyInstance(test.instance(i));
+    }
+    long start = System.nanoTime();
+    for (int r = 0; r < m_Repeats; r++) {
+      for (int i = 0; i < test.numInstances(); i++) {
+        reference.classifyInstance(test.instance(i));
+      }
+    }
+    time[0] = System.nanoTime() - start;
+    return result;
+  }
+
+  /**
+   * Pads a string with blanks.
+   *
+   * @param s the string
+   * @param width the width
+   * @return the padded string
+   */
+  protected static String pad(String s, int width) {
+
+    StringBuffer result = new StringBuffer(s);
+    while (result.length() < width) {
+      result.append(' ');
+    }
+    return result.toString();
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+
+  /**
+   * Runs the harness from the command line.
+   *
+   * @param args the command line options, see the class description
+   */
+  public static void main(String[] args) {
+
+    try {
+      DifferentialHarness harness = new DifferentialHarness();
+      String seed = Utils.getOption('S', args);
+      if (seed.length() != 0) {
+        harness.setSeed(Integer.parseInt(seed));
+      }
+      String tolerance = Utils.getOption('E', args);
+      if (tolerance.length() != 0) {
+        harness.setTolerance(Double.parseDouble(tolerance));
+      }
+      String repeats = Utils.getOption('R', args);
+      if (repeats.length() != 0) {
+        harness.setRepeats(Integer.parseInt(repeats));
+      }
+      String file = Utils.getOption('t', args);
+      while (file.length() != 0) {
+        Instances data = DataSource.read(file);
+        data.setClassIndex(data.numAttributes() - 1);
+        harness.addData(data);
+        file = Utils.getOption('t', args);
+      }
+      harness.addRandomData();
+      String[] learnerOptions = Utils.partitionOptions(args);
+      if (learnerOptions.length > 0) {
+        harness.setSettings(new String[] {Utils.joinOptions(learnerOptions)});
+      }
+
+      System.out.println(harness.run());
+      System.exit((harness.failures() > 0) ? 1 : 0);
+    } catch (Exception e) {
+      e.printStackTrace();
+      System.exit(2);
+    }
+  }
+}
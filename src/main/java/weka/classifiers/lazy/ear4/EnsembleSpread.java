@@ -0,0 +1,208 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    EnsembleSpread.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The spread of the candidate predictions behind an EAR4 prediction. Every
+ * rule applied to a base case gives a candidate, the target of the base
+ * case plus the adjustment of the rule (a base case without rules gives
+ * its target); the prediction averages them per base case. The mean and
+ * variance of the candidates are accumulated with Welford's method while
+ * the rules are summed (see ScratchArena.adapt()), and the candidates are
+ * kept sorted for quantiles and intervals.<p/>
+ *
+ * The spread describes how much the adaptation ensemble disagrees; it is
+ * not a calibrated prediction interval.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class EnsembleSpread
+  implements Serializable, RevisionHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = -6120945830266541779L;
+
+  /** The prediction. */
+  protected double m_Prediction;
+
+  /** The mean of the candidates. */
+  protected double m_Mean;
+
+  /** The sample variance of the candidates. */
+  protected double m_Variance;
+
+  /** The candidates, ascending. */
+  protected double[] m_Candidates;
+
+  /**
+   * Copies the spread of the last prediction of an arena, made with rule
+   * capture on (see RuleSearch.setCapture()).
+   *
+   * @param arena the arena
+   * @param numAttributes the number of attributes per neighbour (class last)
+   * @param kNN the number of base cases
+   * @param l the number of rules applied per base case
+   * @param prediction the prediction
+   * @return the spread
+   */
+  public static EnsembleSpread fromArena(ScratchArena arena, int numAttributes,
+                                         int kNN, int l, double prediction) {
+
+    EnsembleSpread result = new EnsembleSpread();
+    result.m_Prediction = prediction;
+    result.m_Mean = arena.lastCandidateMean();
+    result.m_Variance = (arena.lastCandidates() > 1)
+      ? arena.lastCandidateM2() / (arena.lastCandidates() - 1) : 0;
+
+    RuleSearch rules = arena.rules();
+    int numBaseCases = arena.lastBaseCases();
+    result.m_Candidates = new double[(int) arena.lastCandidates()];
+    int n = 0;
+    for (int b = 0; b < numBaseCases; b++) {
+      double target = arena.neighbourTarget(b, numAttributes);
+      int start = (l > 0) ? rules.capturedStart(b) : 0;
+      int end = (l > 0) ? rules.capturedStart(b + 1) : 0;
+      if (start == end) {
+        result.m_Candidates[n++] = target;
+      }
+      for (int r = start; r < end; r++) {
+        result.m_Candidates[n++] = target + rules.adjustment(rules.capturedRule(r));
+      }
+    }
+    Arrays.sort(result.m_Candidates);
+    return result;
+  }
+
+  /**
+   * Returns the prediction.
+   *
+   * @return the prediction
+   */
+  public double prediction() {
+
+    return m_Prediction;
+  }
+
+  /**
+   * Returns the number of candidates.
+   *
+   * @return the number of candidates, at least the number of base cases
+   */
+  public int numCandidates() {
+
+    return m_Candidates.length;
+  }
+
+  /**
+   * Returns the mean of the candidates. It equals the prediction when every
+   * base case got exactly l rules and has full weight.
+   *
+   * @return the mean
+   */
+  public double mean() {
+
+    return m_Mean;
+  }
+
+  /**
+   * Returns the sample variance of the candidates.
+   *
+   * @return the variance, 0 for a single candidate
+   */
+  public double variance() {
+
+    return m_Variance;
+  }
+
+  /**
+   * Returns the sample standard deviation of the candidates.
+   *
+   * @return the standard deviation
+   */
+  public double standardDeviation() {
+
+    return Math.sqrt(m_Variance);
+  }
+
+  /**
+   * Returns a quantile of the candidates, interpolating linearly between
+   * the two nearest.
+   *
+   * @param p the probability, between 0 and 1
+   * @return the quantile
+   */
+  public double quantile(double p) {
+
+    if ((p < 0) || (p > 1)) {
+      throw new IllegalArgumentException("Quantile probability must be between 0 and 1!");
+    }
+    double pos = p * (m_Candidates.length - 1);
+    int lower = (int) Math.floor(pos);
+    int upper = Math.min(lower + 1, m_Candidates.length - 1);
+    return m_Candidates[lower] + (pos - lower) * (m_Candidates[upper] - m_Candidates[lower]);
+  }
+
+  /**
+   * Returns the central interval of the candidates with the given coverage.
+   *
+   * @param coverage the fraction of the candidates to cover, e.g. 0.9
+   * @return the lower and upper bound
+   */
+  public double[] interval(double coverage) {
+
+    return new double[] {quantile((1 - coverage) / 2), quantile((1 + coverage) / 2)};
+  }
+
+  /**
+   * Describes the spread.
+   *
+   * @return the description
+   */
+  public String toString() {
+
+    double[] interval = interval(0.9);
+    return "Prediction " + Utils.doubleToString(m_Prediction, 6)
+      + " from " + m_Candidates.length + " candidates: mean "
+      + Utils.doubleToString(m_Mean, 6) + ", standard deviation "
+      + Utils.doubleToString(standardDeviation(), 6) + ", 90% of candidates in ["
+      + Utils.doubleToString(interval[0], 6) + ", "
+      + Utils.doubleToString(interval[1], 6) + "]";
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    Explanation.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+import java.io.Serializable;
+
+/**
+ * How an EAR4 prediction came about: the base cases, and for each of them
+ * the adaptation rules applied, with their adjustments and distances. A
+ * rule is the difference between two cases (i, j) of the rule generation
+ * neighbourhood; its adjustment is the target of i minus the target of j.
+ * The prediction is the mean over the base cases of their target plus the
+ * sum of the adjustments of their rules divided by l (rules tied with the
+ * l-th nearest are included).<p/>
+ *
+ * Cases are identified by their index in the training window at the time
+ * of the prediction, and by their rank in the neighbourhood (0 is the
+ * nearest neighbour of the query). Distances are squared normalised
+ * Euclidean distances, as the searches compare them.<p/>
+ *
+ * An explanation is copied from the buffers of the prediction it
+ * describes (see fromArena()), so it costs no second prediction.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class Explanation
+  implements Serializable, RevisionHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = 8213470264175036412L;
+
+  /** The prediction. */
+  protected double m_Prediction;
+
+  /** The number of rules to apply per base case. */
+  protected int m_L;
+
+  /** The training window index of every neighbour, nearest first (-1 if unknown). */
+  protected int[] m_Neighbours;
+
+  /** The distance of every neighbour to the query (NaN if unknown). */
+  protected double[] m_NeighbourDistances;
+
+  /** The target value of every neighbour. */
+  protected double[] m_Targets;
+
+  /** The number of base cases (the nearest neighbours). */
+  protected int m_NumBaseCases;
+
+  /** The weight of every base case, 1 unless it shares the k-th slot. */
+  protected double[] m_BaseCaseWeights;
+
+  /** The neighbour rank of the first case of every rule, per base case. */
+  protected int[][] m_RuleFirst;
+
+  /** The neighbour rank of the second case of every rule, per base case. */
+  protected int[][] m_RuleSecond;
+
+  /** The adjustment of every rule, per base case. */
+  protected double[][] m_RuleAdjustments;
+
+  /** The distance of every rule, per base case. */
+  protected double[][] m_RuleDistances;
+
+  /**
+   * Copies the explanation of the last prediction of an arena, made with
+   * rule capture on (see RuleSearch.setCapture()).
+   *
+   * @param arena the arena
+   * @param numAttributes the number of attributes per neighbour (class last)
+   * @param kNN the number of base cases
+   * @param l the number of rules applied per base case
+   * @param prediction the prediction
+   * @param indicesKnown whether the neighbour indices and distances of the
+   * arena are the window indices and distances of the neighbours
+   * @return the explanation
+   */
+  public static Explanation fromArena(ScratchArena arena, int numAttributes, int kNN,
+                                      int l, double prediction, boolean indicesKnown) {
+
+    Explanation result = new Explanation();
+    int numNeighbours = arena.lastNeighbours();
+    result.m_Prediction = prediction;
+    result.m_L = l;
+    result.m_Neighbours = new int[numNeighbours];
+    result.m_NeighbourDistances = new double[numNeighbours];
+    result.m_Targets = new double[numNeighbours];
+    for (int i = 0; i < numNeighbours; i++) {
+      result.m_Neighbours[i] = indicesKnown ? arena.neighbourIndex(i) : -1;
+      result.m_NeighbourDistances[i] = indicesKnown ? arena.neighbourDistance(i) : Double.NaN;
+      result.m_Targets[i] = arena.neighbourTarget(i, numAttributes);
+    }
+
+    // the rules were built on the canonical order of the neighbours
+    RuleSearch rules = arena.rules();
+    result.m_NumBaseCases = arena.lastBaseCases();
+    result.m_BaseCaseWeights = new double[result.m_NumBaseCases];
+    result.m_RuleFirst = new int[result.m_NumBaseCases][];
+    result.m_RuleSecond = new int[result.m_NumBaseCases][];
+    result.m_RuleAdjustments = new double[result.m_NumBaseCases][];
+    result.m_RuleDistances = new double[result.m_NumBaseCases][];
+    for (int b = 0; b < result.m_NumBaseCases; b++) {
+      result.m_BaseCaseWeights[b] = arena.weight(b);
+      int start = (l > 0) ? rules.capturedStart(b) : 0;
+      int count = (l > 0) ? rules.capturedStart(b + 1) - start : 0;
+      result.m_RuleFirst[b] = new int[count];
+      result.m_RuleSecond[b] = new int[count];
+      result.m_RuleAdjustments[b] = new double[count];
+      result.m_RuleDistances[b] = new double[count];
+      for (int r = 0; r < count; r++) {
+        int rule = rules.capturedRule(start + r);
+        result.m_RuleFirst[b][r] = arena.canonicalNeighbour(RuleSearch.first(rule, numNeighbours));
+        result.m_RuleSecond[b][r] = arena.canonicalNeighbour(RuleSearch.second(rule, numNeighbours));
+        result.m_RuleAdjustments[b][r] = rules.adjustment(rule);
+        result.m_RuleDistances[b][r] = rules.capturedDistance(start + r);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the prediction explained.
+   *
+   * @return the prediction
+   */
+  public double prediction() {
+
+    return m_Prediction;
+  }
+
+  /**
+   * Returns the size of the rule generation neighbourhood.
+   *
+   * @return the number of neighbours
+   */
+  public int numNeighbours() {
+
+    return m_Neighbours.length;
+  }
+
+  /**
+   * Returns the training window index of a neighbour.
+   *
+   * @param rank the rank of the neighbour (0 is the nearest)
+   * @return the index, -1 if the neighbour search does not report it
+   */
+  public int neighbour(int rank) {
+
+    return m_Neighbours[rank];
+  }
+
+  /**
+   * Returns the distance of a neighbour to the query.
+   *
+   * @param rank the rank of the neighbour
+   * @return the squared distance, NaN if the neighbour search does not
+   * report it
+   */
+  public double neighbourDistance(int rank) {
+
+    return m_NeighbourDistances[rank];
+  }
+
+  /**
+   * Returns the target value of a neighbour.
+   *
+   * @param rank the rank of the neighbour
+   * @return the target value
+   */
+  public double target(int rank) {
+
+    return m_Targets[rank];
+  }
+
+  /**
+   * Returns the number of base cases; base case b is the neighbour of
+   * rank b.
+   *
+   * @return the number of base cases
+   */
+  public int numBaseCases() {
+
+    return m_NumBaseCases;
+  }
+
+  /**
+   * Returns the weight of a base case in the prediction. Base cases tied
+   * with the k-th nearest share the remaining slots when ties are split
+   * (see NeighbourSelector).
+   *
+   * @param b the base case
+   * @return the weight
+   */
+  public double baseCaseWeight(int b) {
+
+    return m_BaseCaseWeights[b];
+  }
+
+  /**
+   * Returns the number of rules applied to a base case.
+   *
+   * @param b the base case
+   * @return the number of rules, including ties with the l-th nearest
+   */
+  public int numRules(int b) {
+
+    return m_RuleFirst[b].length;
+  }
+
+  /**
+   * Returns the neighbour rank of the first case (i) of a rule.
+   *
+   * @param b the base case
+   * @param r the rule, 0 is the nearest
+   * @return the rank
+   */
+  public int ruleFirst(int b, int r) {
+
+    return m_RuleFirst[b][r];
+  }
+
+  /**
+   * Returns the neighbour rank of the second case (j) of a rule.
+   *
+   * @param b the base case
+   * @param r the rule, 0 is the nearest
+   * @return the rank
+   */
+  public int ruleSecond(int b, int r) {
+
+    return m_RuleSecond[b][r];
+  }
+
+  /**
+   * Returns the adjustment of a rule (target of i minus target of j).
+   *
+   * @param b the base case
+   * @param r the rule
+   * @return the adjustment
+   */
+  public double ruleAdjustment(int b, int r) {
+
+    return m_RuleAdjustments[b][r];
+  }
+
+  /**
+   * Returns the distance between a rule and the difference of the query
+   * and the base case.
+   *
+   * @param b the base case
+   * @param r the rule
+   * @return the squared distance
+   */
+  public double ruleDistance(int b, int r) {
+
+    return m_RuleDistances[b][r];
+  }
+
+  /**
+   * Returns the estimate of a base case: its target plus the sum of the
+   * adjustments of its rules divided by l.
+   *
+   * @param b the base case
+   * @return the estimate
+   */
+  public double estimate(int b) {
+
+    double sum = 0;
+    for (int r = 0; r < numRules(b); r++) {
+      sum += m_RuleAdjustments[b][r];
+    }
+    return m_Targets[b] + ((m_L > 0) ? sum / m_L : 0);
+  }
+
+  /**
+   * Names a neighbour by its window index, or by its rank if the index is
+   * unknown.
+   *
+   * @param rank the rank of the neighbour
+   * @return the name
+   */
+  protected String label(int rank) {
+
+    return (m_Neighbours[rank] >= 0) ? "" + m_Neighbours[rank] : "#" + rank;
+  }
+
+  /**
+   * Describes the explanation, one base case and its rules per block.
+   *
+   * @return the description
+   */
+  public String toString() {
+
+    StringBuffer result = new StringBuffer();
+    result.append("Prediction " + Utils.doubleToString(m_Prediction, 6)
+                  + " from " + m_NumBaseCases + " base cases\n");
+    for (int b = 0; b < m_NumBaseCases; b++) {
+      result.append("Base case " + label(b) + ": target "
+                    + Utils.doubleToString(m_Targets[b], 6) + ", distance "
+                    + Utils.doubleToString(m_NeighbourDistances[b], 6) + ", estimate "
+                    + Utils.doubleToString(estimate(b), 6)
+                    + ((m_BaseCaseWeights[b] != 1)
+                       ? ", weight " + Utils.doubleToString(m_BaseCaseWeights[b], 6) : "")
+                    + "\n");
+      for (int r = 0; r < numRules(b); r++) {
+        result.append("  rule (" + label(m_RuleFirst[b][r]) + ", "
+                      + label(m_RuleSecond[b][r]) + "): adjustment "
+                      + Utils.doubleToString(m_RuleAdjustments[b][r], 6) + ", distance "
+                      + Utils.doubleToString(m_RuleDistances[b][r], 6) + "\n");
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
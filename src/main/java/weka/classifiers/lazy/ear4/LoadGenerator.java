@@ -0,0 +1,292 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    LoadGenerator.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.classifiers.lazy.EAR4;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for the PredictionServer. EAR4 is built on a data set
+ * and served on localhost; a number of client threads then send the rows
+ * of the data set (without their class values) as single-query requests,
+ * as fast as the server answers them. The same load is sent twice: to
+ * the server batching the queries and to the server with batching
+ * switched off, where every request thread scores its own query. Reports
+ * the throughput and the p50 and p99 request latencies of both, the
+ * average batch size and the throughput gain of batching.<p/>
+ *
+ * Usage:
+ * <pre>
+ * java weka.classifiers.lazy.ear4.LoadGenerator -t &lt;file&gt;
+ *   [-n &lt;requests&gt;] [-c &lt;clients&gt;]
+ *   [-B &lt;latency budget (microseconds)&gt;] [-b &lt;max. batch size&gt;]
+ *   [-T &lt;scoring threads&gt;] [-- &lt;EAR4 options&gt;]
+ * </pre>
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class LoadGenerator
+  implements RevisionHandler {
+
+  /** The queries, one request body each. */
+  protected String[] m_Queries;
+
+  /** The URL of the prediction endpoint. */
+  protected URL m_Url;
+
+  /**
+   * Sets up a load generator.
+   *
+   * @param data the queries (their class values are not sent)
+   * @param url the URL of the prediction endpoint
+   */
+  public LoadGenerator(Instances data, URL url) {
+
+    m_Url = url;
+    m_Queries = new String[data.numInstances()];
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance instance = data.instance(i);
+      StringBuffer query = new StringBuffer();
+      for (int a = 0; a < data.numAttributes(); a++) {
+        if (a == data.classIndex()) {
+          continue;
+        }
+        if (query.length() > 0) {
+          query.append(',');
+        }
+        if (instance.isMissing(a)) {
+          query.append('?');
+        } else if (data.attribute(a).isNominal()) {
+          query.append(instance.stringValue(a));
+        } else {
+          query.append(instance.value(a));
+        }
+      }
+      m_Queries[i] = query.toString();
+    }
+  }
+
+  /**
+   * Sends one request and returns its reply.
+   *
+   * @param query the request body
+   * @return the reply
+   * @throws Exception if the request fails
+   */
+  protected String send(String query) throws Exception {
+
+    HttpURLConnection connection = (HttpURLConnection) m_Url.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    OutputStream out = connection.getOutputStream();
+    out.write(query.getBytes("UTF-8"));
+    out.close();
+    if (connection.getResponseCode() != 200) {
+      throw new Exception("Request failed with status "
+                          + connection.getResponseCode() + "!");
+    }
+    BufferedReader reader = new BufferedReader(
+      new InputStreamReader(connection.getInputStream(), "UTF-8"));
+    StringBuffer reply = new StringBuffer();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      reply.append(line);
+    }
+    reader.close();
+    return reply.toString();
+  }
+
+  /**
+   * Sends the given number of requests from the given number of client
+   * threads and returns the latency of each request.
+   *
+   * @param numRequests the number of requests
+   * @param numClients the number of client threads
+   * @return the latency of every request, in nanoseconds
+   * @throws Exception if a request fails
+   */
+  public long[] run(final int numRequests, int numClients) throws Exception {
+
+    final long[] latencies = new long[numRequests];
+    final AtomicInteger next = new AtomicInteger();
+    final Exception[] error = new Exception[1];
+    Thread[] clients = new Thread[numClients];
+    for (int c = 0; c < numClients; c++) {
+      clients[c] = new Thread(new Runnable() {
+        public void run() {
+          int i;
+          while ((i = next.getAndIncrement()) < numRequests) {
+            try {
+              long start = System.nanoTime();
+              send(m_Queries[i % m_Queries.length]);
+              latencies[i] = System.nanoTime() - start;
+            } catch (Exception e) {
+              synchronized (error) {
+                error[0] = e;
+              }
+              return;
+            }
+          }
+        }
+      });
+      clients[c].start();
+    }
+    for (int c = 0; c < numClients; c++) {
+      clients[c].join();
+    }
+    if (error[0] != null) {
+      throw error[0];
+    }
+    return latencies;
+  }
+
+  /**
+   * Returns a percentile of sorted latencies.
+   *
+   * @param sorted the latencies, in ascending order
+   * @param percentile the percentile (0-100)
+   * @return the latency in milliseconds
+   */
+  protected static double percentile(long[] sorted, double percentile) {
+
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+    index = Math.max(0, Math.min(sorted.length - 1, index));
+    return sorted[index] / 1e6;
+  }
+
+  /**
+   * Warms a running server up, sends the load and reports the throughput
+   * and the latencies.
+   *
+   * @param server the server, started
+   * @param data the queries
+   * @param numRequests the number of requests
+   * @param numClients the number of client threads
+   * @param label the name of the configuration in the report
+   * @return the throughput, in queries per second
+   * @throws Exception if a request fails
+   */
+  protected static double measure(PredictionServer server, Instances data,
+                                  int numRequests, int numClients, String label)
+    throws Exception {
+
+    LoadGenerator generator = new LoadGenerator(data,
+      new URL("http://localhost:" + server.getPort() + "/predict"));
+
+    // warm up
+    generator.run(Math.min(numRequests, 1000), numClients);
+
+    long start = System.nanoTime();
+    long[] latencies = generator.run(numRequests, numClients);
+    double throughput = numRequests / ((System.nanoTime() - start) / 1e9);
+    Arrays.sort(latencies);
+
+    System.out.println(label + " throughput: " + Utils.doubleToString(throughput, 2)
+                       + " queries/s, latency p50: "
+                       + Utils.doubleToString(percentile(latencies, 50), 3)
+                       + " ms, p99: " + Utils.doubleToString(percentile(latencies, 99), 3)
+                       + " ms");
+    return throughput;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+
+  /**
+   * Runs the load generator from the command line.
+   *
+   * @param args the command line options, see the class description
+   */
+  public static void main(String[] args) {
+
+    PredictionServer server = null;
+    try {
+      String file = Utils.getOption('t', args);
+      if (file.length() == 0) {
+        throw new Exception("No data file given (-t)!");
+      }
+      String requests = Utils.getOption('n', args);
+      String clients = Utils.getOption('c', args);
+      String budget = Utils.getOption('B', args);
+      String batchSize = Utils.getOption('b', args);
+      String threads = Utils.getOption('T', args);
+      String[] learnerOptions = Utils.partitionOptions(args);
+      int numRequests = (requests.length() == 0) ? 10000 : Integer.parseInt(requests);
+      int numClients = (clients.length() == 0) ? 16 : Integer.parseInt(clients);
+
+      Instances data = DataSource.read(file);
+      data.setClassIndex(data.numAttributes() - 1);
+      EAR4 model = new EAR4();
+      model.setOptions(learnerOptions);
+      model.buildClassifier(data);
+
+      server = new PredictionServer(model, data, 0,
+        (budget.length() == 0) ? 1000 : Long.parseLong(budget),
+        (batchSize.length() == 0) ? 64 : Integer.parseInt(batchSize));
+      if (threads.length() > 0) {
+        server.setNumScoringThreads(Integer.parseInt(threads));
+      }
+
+      System.out.println("Requests: " + numRequests + ", clients: " + numClients
+                         + ", scoring threads: " + server.getNumScoringThreads());
+      server.start();
+      double batched = measure(server, data, numRequests, numClients, "Batched");
+      System.out.println("Average batch size: "
+                         + Utils.doubleToString(server.averageBatchSize(), 2));
+      server.stop();
+
+      server.setBatching(false);
+      server.start();
+      double unbatched = measure(server, data, numRequests, numClients, "Unbatched");
+      System.out.println("Gain of batching: "
+                         + Utils.doubleToString(batched / unbatched, 2)
+                         + "x the unbatched throughput");
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      if (server != null) {
+        server.stop();
+      }
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    LocalShard.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * A shard held in the current process: a case base scanned linearly.
+ * Queries are answered one at a time.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class LocalShard
+  implements Shard, RevisionHandler {
+
+  /** The cases, created with the first add(). */
+  protected CaseBase m_Cases;
+
+  /** The buffer for the normalised query (see CaseBase.nearest()). */
+  protected double[] m_Normalised;
+
+  /** The heap used for retrieval. */
+  protected NeighbourHeap m_Heap = new NeighbourHeap();
+
+  /**
+   * Appends cases to the shard.
+   *
+   * @param data the cases (numeric, class last, no missing values)
+   */
+  public synchronized void add(Instances data) {
+
+    if (m_Cases == null) {
+      m_Cases = new CaseBase(data, data.numInstances());
+      m_Normalised = new double[3 * data.numAttributes()];
+    }
+    for (int i = 0; i < data.numInstances(); i++) {
+      m_Cases.add(data.instance(i));
+    }
+  }
+
+  /**
+   * Returns the number of cases in the shard.
+   *
+   * @return the number of cases
+   */
+  public synchronized int numCases() {
+
+    return (m_Cases == null) ? 0 : m_Cases.numCases();
+  }
+
+  /**
+   * Returns the attribute ranges over the cases of the shard.
+   *
+   * @return the ranges (min, max and width per attribute), null if the
+   * shard has never received cases
+   */
+  public synchronized double[][] ranges() {
+
+    return (m_Cases == null) ? null : m_Cases.ranges();
+  }
+
+  /**
+   * Finds the k cases of the shard nearest to a query, keeping the cases
+   * tied with the k-th nearest.
+   *
+   * @param query the attribute values of the query (the class is ignored)
+   * @param ranges the ranges to normalise with
+   * @param k the number of cases to find
+   * @return the neighbours, nearest first
+   */
+  public synchronized ShardNeighbours nearest(double[] query, double[][] ranges, int k) {
+
+    if ((m_Cases == null) || (m_Cases.numCases() == 0)) {
+      return new ShardNeighbours(0, query.length);
+    }
+    m_Cases.nearest(query, m_Normalised, ranges, k, m_Heap);
+    int numAttributes = m_Cases.numAttributes();
+    ShardNeighbours result = new ShardNeighbours(m_Heap.totalSize(), numAttributes);
+    m_Heap.extract(result.m_Indices, result.m_Distances);
+    for (int i = 0; i < result.m_Count; i++) {
+      m_Cases.copyCase(result.m_Indices[i], result.m_Rows, i * numAttributes);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the bytes of case storage of the shard.
+   *
+   * @return the memory in bytes
+   */
+  public synchronized long memoryUsed() {
+
+    return (m_Cases == null) ? 0 : m_Cases.storageBytes();
+  }
+
+  /**
+   * Releases the cases.
+   */
+  public synchronized void close() {
+
+    m_Cases = null;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
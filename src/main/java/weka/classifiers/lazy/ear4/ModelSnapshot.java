@@ -0,0 +1,177 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ModelSnapshot.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Instance;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * Immutable version of an EAR4 model: a frozen case base (sharing its
+ * storage with the case base of the model), the attribute ranges of that
+ * case base and the prediction parameters. Any number of threads can score
+ * queries against a snapshot concurrently - each uses its own scratch
+ * arena, kept across snapshots - while the model keeps being updated and
+ * publishes new snapshots.
+ * <p/>
+ *
+ * Snapshots predict with the primitive engine, exactly like EAR4 does.
+ * They need numeric cases without missing values and the class as the
+ * last attribute. If the model projects its cases, the snapshot keeps the
+ * (immutable) projection and applies it to every query.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class ModelSnapshot
+  implements RevisionHandler {
+
+  /** The cases. */
+  protected CaseBase m_Cases;
+
+  /** The number of base cases. */
+  protected int m_KNN;
+
+  /** The number of rules applied per base case. */
+  protected int m_L;
+
+  /** The size of the rule generation neighbourhood. */
+  protected int m_RuleNeighbourhood;
+
+  /** The prediction if there are no cases. */
+  protected double m_DefaultPrediction;
+
+  /** The projection applied to the queries, null if there is none. */
+  protected Projection m_Projection;
+
+  /** Whether rules are searched in pair space, without a rule matrix. */
+  protected boolean m_LazyRules;
+
+  /** How base cases tied with the k-th nearest are selected (see NeighbourSelector). */
+  protected int m_TieHandling;
+
+  /** The scratch arena of each reading thread, shared by all snapshots of a model. */
+  protected ArenaPool m_Arenas;
+
+  /**
+   * Creates a snapshot.
+   *
+   * @param cases the case base, in the projected space if there is a
+   * projection; a snapshot is taken of it
+   * @param kNN the number of base cases
+   * @param l the number of rules applied per base case
+   * @param o the rule generation neighbourhood, as a multiple of kNN
+   * (already capped to the number of rules, see EAR4.effectiveO())
+   * @param defaultPrediction the prediction if there are no cases
+   * @param arenas the per-thread scratch arenas to predict with
+   * @param projection the projection of the queries, null for none
+   * @param lazyRules whether rules are searched in pair space (see
+   * RuleSearch.setLazy())
+   * @param tieHandling the tie handling policy of NeighbourSelector
+   */
+  public ModelSnapshot(CaseBase cases, int kNN, int l, double o,
+                       double defaultPrediction, ArenaPool arenas,
+                       Projection projection, boolean lazyRules, int tieHandling) {
+
+    m_Cases = cases.snapshot();
+    m_LazyRules = lazyRules;
+    m_TieHandling = tieHandling;
+    m_Projection = projection;
+    m_Arenas = arenas;
+    m_KNN = kNN;
+    m_L = l;
+    m_DefaultPrediction = defaultPrediction;
+    m_RuleNeighbourhood = Math.max(1, (int) Math.round(kNN * o));
+  }
+
+  /**
+   * Returns the number of cases.
+   *
+   * @return the number of cases
+   */
+  public int numCases() {
+
+    return m_Cases.numCases();
+  }
+
+  /**
+   * Returns the attribute ranges the snapshot normalises with.
+   *
+   * @return the ranges (min, max and width per attribute); not to be
+   * modified
+   */
+  public double[][] ranges() {
+
+    return m_Cases.ranges();
+  }
+
+  /**
+   * Predicts the target value of a query. Safe to call from any number of
+   * threads.
+   *
+   * @param instance the query
+   * @return the prediction
+   * @throws Exception if the snapshot cannot score the query
+   */
+  public double[] distributionForInstance(Instance instance) throws Exception {
+
+    if (m_Cases.numCases() == 0) {
+      return new double[] {m_DefaultPrediction};
+    }
+    if (m_Projection != null) {
+      instance = m_Projection.project(instance);
+    }
+    int numAttributes = m_Cases.numAttributes();
+    if (m_Cases.classIndex() != numAttributes - 1) {
+      throw new Exception("Snapshots need the class as the last attribute!");
+    }
+    if (m_Cases.hasMissingValues()) {
+      throw new Exception("Snapshots cannot handle cases with missing values!");
+    }
+
+    for (int a = 0; a < numAttributes; a++) {
+      if ((a != m_Cases.classIndex()) && instance.isMissing(a)) {
+        throw new Exception("Snapshots cannot handle queries with missing values!");
+      }
+    }
+    ScratchArena arena = m_Arenas.get();
+    arena.ensureCapacity(m_RuleNeighbourhood, numAttributes);
+    arena.setQuery(instance);
+
+    int numNeighbours = arena.retrieve(m_Cases, m_Cases.ranges(),
+                                       m_RuleNeighbourhood);
+    arena.setLazyRules(m_LazyRules);
+    arena.setRulePrecision(m_Cases.getPrecision());
+    arena.setTieHandling(m_TieHandling);
+    return new double[] {arena.adapt(numNeighbours, numAttributes, m_KNN, m_L)};
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
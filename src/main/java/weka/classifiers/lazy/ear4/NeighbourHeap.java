@@ -0,0 +1,267 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NeighbourHeap.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * Bounded max-heap of (index, distance) pairs on primitive arrays, used to
+ * keep the k nearest candidates of a linear scan. It follows the heap of
+ * weka.core.neighboursearch.NearestNeighbourSearch: candidates tied with
+ * the k-th nearest distance are kept in a separate list, and the contents
+ * are extracted in the same order LinearNNSearch returns them. The heap
+ * can be reset and reused without allocating.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class NeighbourHeap
+  implements RevisionHandler {
+
+  /** The candidate indices of the heap (1-based). */
+  protected int[] m_Index = new int[2];
+
+  /** The candidate distances of the heap (1-based). */
+  protected double[] m_Distance = new double[2];
+
+  /** The number of candidates in the heap. */
+  protected int m_Size;
+
+  /** The number of candidates to keep. */
+  protected int m_K;
+
+  /** The number of candidates offered since the last reset. */
+  protected int m_Offered;
+
+  /** The indices of the candidates tied with the k-th nearest one. */
+  protected int[] m_KthIndex = new int[10];
+
+  /** The distances of the candidates tied with the k-th nearest one. */
+  protected double[] m_KthDistance = new double[10];
+
+  /** The number of candidates tied with the k-th nearest one. */
+  protected int m_KthSize;
+
+  /**
+   * Empties the heap and prepares it for keeping k candidates.
+   *
+   * @param k the number of candidates to keep
+   */
+  public void reset(int k) {
+
+    if (m_Index.length < k + 1) {
+      m_Index = new int[k + 1];
+      m_Distance = new double[k + 1];
+    }
+    m_K = k;
+    m_Size = 0;
+    m_Offered = 0;
+    m_KthSize = 0;
+  }
+
+  /**
+   * Returns the distance a candidate has to beat or tie to be kept.
+   *
+   * @return the k-th nearest distance, or infinity while fewer than k
+   * candidates have been offered
+   */
+  public double bound() {
+
+    if (m_Offered < m_K) {
+      return Double.POSITIVE_INFINITY;
+    }
+    return m_Distance[1];
+  }
+
+  /**
+   * Offers a candidate to the heap.
+   *
+   * @param index the index of the candidate
+   * @param distance the distance of the candidate
+   */
+  public void offer(int index, double distance) {
+
+    if (m_Offered < m_K) {
+      put(index, distance);
+      m_Offered++;
+    } else if (distance < m_Distance[1]) {
+      putBySubstitute(index, distance);
+    } else if (distance == m_Distance[1]) {
+      putKthNearest(index, distance);
+    }
+  }
+
+  /**
+   * Returns the number of candidates kept, including ties.
+   *
+   * @return the number of candidates
+   */
+  public int totalSize() {
+
+    return m_Size + m_KthSize;
+  }
+
+  /**
+   * Empties the heap into the given arrays, nearest candidate first. The
+   * arrays must hold at least totalSize() elements.
+   *
+   * @param indices receives the candidate indices
+   * @param distances receives the candidate distances
+   * @return the number of candidates extracted
+   */
+  public int extract(int[] indices, double[] distances) {
+
+    int total = totalSize();
+    int i = 1;
+    while (m_KthSize > 0) {
+      m_KthSize--;
+      indices[total - i] = m_KthIndex[m_KthSize];
+      distances[total - i] = m_KthDistance[m_KthSize];
+      i++;
+    }
+    while (m_Size > 0) {
+      indices[total - i] = m_Index[1];
+      distances[total - i] = m_Distance[1];
+      removeHead();
+      i++;
+    }
+    return total;
+  }
+
+  /**
+   * Adds a candidate to the heap.
+   *
+   * @param index the index of the candidate
+   * @param distance the distance of the candidate
+   */
+  protected void put(int index, double distance) {
+
+    if (m_Size + 1 >= m_Index.length) {
+      int[] newIndex = new int[2 * m_Index.length];
+      double[] newDistance = new double[2 * m_Index.length];
+      System.arraycopy(m_Index, 0, newIndex, 0, m_Index.length);
+      System.arraycopy(m_Distance, 0, newDistance, 0, m_Distance.length);
+      m_Index = newIndex;
+      m_Distance = newDistance;
+    }
+    m_Size++;
+    m_Index[m_Size] = index;
+    m_Distance[m_Size] = distance;
+
+    int i = m_Size;
+    while ((i > 1) && (m_Distance[i] > m_Distance[i / 2])) {
+      swap(i, i / 2);
+      i /= 2;
+    }
+  }
+
+  /**
+   * Replaces the farthest candidate by a nearer one, keeping the replaced
+   * candidate as a tie if it is as far as the new k-th nearest one.
+   *
+   * @param index the index of the candidate
+   * @param distance the distance of the candidate
+   */
+  protected void putBySubstitute(int index, double distance) {
+
+    int headIndex = m_Index[1];
+    double headDistance = m_Distance[1];
+    removeHead();
+    put(index, distance);
+    if (headDistance == m_Distance[1]) {
+      putKthNearest(headIndex, headDistance);
+    } else if (headDistance > m_Distance[1]) {
+      m_KthSize = 0;
+    }
+  }
+
+  /**
+   * Keeps a candidate tied with the k-th nearest one.
+   *
+   * @param index the index of the candidate
+   * @param distance the distance of the candidate
+   */
+  protected void putKthNearest(int index, double distance) {
+
+    if (m_KthSize >= m_KthIndex.length) {
+      int[] newIndex = new int[2 * m_KthIndex.length];
+      double[] newDistance = new double[2 * m_KthIndex.length];
+      System.arraycopy(m_KthIndex, 0, newIndex, 0, m_KthSize);
+      System.arraycopy(m_KthDistance, 0, newDistance, 0, m_KthSize);
+      m_KthIndex = newIndex;
+      m_KthDistance = newDistance;
+    }
+    m_KthIndex[m_KthSize] = index;
+    m_KthDistance[m_KthSize] = distance;
+    m_KthSize++;
+  }
+
+  /**
+   * Removes the farthest candidate from the heap.
+   */
+  protected void removeHead() {
+
+    m_Index[1] = m_Index[m_Size];
+    m_Distance[1] = m_Distance[m_Size];
+    m_Size--;
+
+    int i = 1;
+    while (((2 * i <= m_Size) && (m_Distance[i] < m_Distance[2 * i]))
+           || ((2 * i + 1 <= m_Size) && (m_Distance[i] < m_Distance[2 * i + 1]))) {
+      int child;
+      if ((2 * i + 1 <= m_Size) && !(m_Distance[2 * i] > m_Distance[2 * i + 1])) {
+        child = 2 * i + 1;
+      } else {
+        child = 2 * i;
+      }
+      swap(i, child);
+      i = child;
+    }
+  }
+
+  /**
+   * Swaps two heap positions.
+   *
+   * @param i the first position
+   * @param j the second position
+   */
+  protected void swap(int i, int j) {
+
+    int index = m_Index[i];
+    double distance = m_Distance[i];
+    m_Index[i] = m_Index[j];
+    m_Distance[i] = m_Distance[j];
+    m_Index[j] = index;
+    m_Distance[j] = distance;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NeighbourSelector.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * Selects the k base cases among retrieved neighbours, on primitive
+ * arrays. A search returns the cases tied with its k-th nearest as well,
+ * and the order among tied cases depends on the search (LinearNNSearch,
+ * KDTree, the primitive scan, the merge of shards). The selector either
+ * takes the first k in the order returned (the behaviour of EAR4 so far),
+ * orders neighbours at the same distance on their attribute values and
+ * takes the first k (which gives the same base cases, summed in the same
+ * order, whatever returned them), or keeps every neighbour tied with the
+ * k-th nearest and splits the weight of the remaining slots evenly among
+ * them. The arrays are reordered in place and the selector reuses its own
+ * buffers, so selecting allocates nothing once they have grown.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class NeighbourSelector
+  implements RevisionHandler {
+
+  /** take the first k neighbours in the order the search returned them. */
+  public static final int TIES_SEARCH_ORDER = 1;
+  /** order neighbours at the same distance on their attribute values. */
+  public static final int TIES_CANONICAL = 2;
+  /** keep all neighbours tied with the k-th, splitting its weight. */
+  public static final int TIES_SPLIT = 3;
+
+  /** The tie handling policy. */
+  protected int m_Policy = TIES_SEARCH_ORDER;
+
+  /** The weights of the neighbours selected last. */
+  protected double[] m_Weights = new double[0];
+
+  /** Buffer for swapping two rows. */
+  protected double[] m_Swap = new double[0];
+
+  /**
+   * Sets the tie handling policy.
+   *
+   * @param policy one of TIES_SEARCH_ORDER, TIES_CANONICAL or TIES_SPLIT
+   */
+  public void setPolicy(int policy) {
+
+    m_Policy = policy;
+  }
+
+  /**
+   * Returns the tie handling policy.
+   *
+   * @return the policy
+   */
+  public int getPolicy() {
+
+    return m_Policy;
+  }
+
+  /**
+   * Selects the base cases among neighbours sorted by distance, nearest
+   * first. The selected neighbours are moved to the front of the arrays;
+   * their weights are available from weight() and add up to the number
+   * of slots filled, min(k, count).
+   *
+   * @param rows the attribute values of the neighbours, numAttributes per
+   * neighbour; reordered in place
+   * @param distances the distances of the neighbours; reordered in place
+   * @param indices the indices of the neighbours; reordered in place
+   * @param count the number of neighbours
+   * @param numAttributes the number of attributes per neighbour
+   * @param k the number of base cases
+   * @param squared whether the distances are squared; they are compared by
+   * their square roots, as the searches of Weka report them, so that every
+   * source of neighbours sees the same ties
+   * @return the number of neighbours selected
+   */
+  public int select(double[] rows, double[] distances, int[] indices, int count,
+                    int numAttributes, int k, boolean squared) {
+
+    int selected = Math.min(count, k);
+    if (m_Weights.length < count) {
+      m_Weights = new double[count];
+    }
+    if ((m_Policy == TIES_SEARCH_ORDER) || (selected == 0)) {
+      for (int i = 0; i < selected; i++) {
+        m_Weights[i] = 1;
+      }
+      return selected;
+    }
+
+    // the group of neighbours tied with the k-th nearest
+    double kth = key(distances[selected - 1], squared);
+    int end = selected;
+    while ((end < count) && (key(distances[end], squared) == kth)) {
+      end++;
+    }
+    sort(rows, distances, indices, end, numAttributes, squared);
+
+    if (m_Policy == TIES_SPLIT) {
+      int first = selected - 1;
+      while ((first > 0) && (key(distances[first - 1], squared) == kth)) {
+        first--;
+      }
+      for (int i = 0; i < first; i++) {
+        m_Weights[i] = 1;
+      }
+      double share = (double) (selected - first) / (end - first);
+      for (int i = first; i < end; i++) {
+        m_Weights[i] = share;
+      }
+      return end;
+    }
+    for (int i = 0; i < selected; i++) {
+      m_Weights[i] = 1;
+    }
+    return selected;
+  }
+
+  /**
+   * Returns the weight of a neighbour selected last.
+   *
+   * @param i the position of the neighbour
+   * @return the weight, 1 unless the neighbour shares the k-th slot
+   */
+  public double weight(int i) {
+
+    return m_Weights[i];
+  }
+
+  /**
+   * Returns the value distances are compared by.
+   *
+   * @param distance the distance
+   * @param squared whether the distance is squared
+   * @return the distance as Weka's searches report it
+   */
+  protected static double key(double distance, boolean squared) {
+
+    return squared ? Math.sqrt(distance) : distance;
+  }
+
+  /**
+   * Sorts the first neighbours on their distance and then on their
+   * attribute values. The neighbours are sorted on distance already, so
+   * insertion sort only moves neighbours within groups of ties.
+   *
+   * @param rows the attribute values of the neighbours
+   * @param distances the distances of the neighbours
+   * @param indices the indices of the neighbours
+   * @param count the number of neighbours to sort
+   * @param numAttributes the number of attributes per neighbour
+   * @param squared whether the distances are squared
+   */
+  protected void sort(double[] rows, double[] distances, int[] indices, int count,
+                      int numAttributes, boolean squared) {
+
+    if (m_Swap.length < numAttributes) {
+      m_Swap = new double[numAttributes];
+    }
+    for (int i = 1; i < count; i++) {
+      for (int j = i; (j > 0) && (compare(rows, distances, j, j - 1, numAttributes, squared) < 0); j--) {
+        swap(rows, distances, indices, j, j - 1, numAttributes);
+      }
+    }
+  }
+
+  /**
+   * Compares two neighbours on their distance and then on their attribute
+   * values.
+   *
+   * @param rows the attribute values of the neighbours
+   * @param distances the distances of the neighbours
+   * @param i the first neighbour
+   * @param j the second neighbour
+   * @param numAttributes the number of attributes per neighbour
+   * @param squared whether the distances are squared
+   * @return negative, zero or positive as neighbour i sorts before, with or
+   * after neighbour j
+   */
+  protected static int compare(double[] rows, double[] distances, int i, int j,
+                               int numAttributes, boolean squared) {
+
+    int c = Double.compare(key(distances[i], squared), key(distances[j], squared));
+    if (c != 0) {
+      return c;
+    }
+    int first = i * numAttributes;
+    int second = j * numAttributes;
+    for (int a = 0; a < numAttributes; a++) {
+      c = Double.compare(rows[first + a], rows[second + a]);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Swaps two neighbours.
+   *
+   * @param rows the attribute values of the neighbours
+   * @param distances the distances of the neighbours
+   * @param indices the indices of the neighbours
+   * @param i the first neighbour
+   * @param j the second neighbour
+   * @param numAttributes the number of attributes per neighbour
+   */
+  protected void swap(double[] rows, double[] distances, int[] indices, int i, int j,
+                      int numAttributes) {
+
+    System.arraycopy(rows, i * numAttributes, m_Swap, 0, numAttributes);
+    System.arraycopy(rows, j * numAttributes, rows, i * numAttributes, numAttributes);
+    System.arraycopy(m_Swap, 0, rows, j * numAttributes, numAttributes);
+    double distance = distances[i];
+    distances[i] = distances[j];
+    distances[j] = distance;
+    int index = indices[i];
+    indices[i] = indices[j];
+    indices[j] = index;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
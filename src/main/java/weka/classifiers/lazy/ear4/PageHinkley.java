@@ -0,0 +1,164 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PageHinkley.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.io.Serializable;
+
+/**
+ * Page-Hinkley test for an increase of the mean of a stream, such as the
+ * prequential error of a model. The statistic is the cumulative deviation
+ * of the observations from their running mean, less a tolerated magnitude
+ * delta per observation; a change is signalled when it rises more than a
+ * threshold lambda above its minimum. The observation at which the minimum
+ * was reached estimates where the change began.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class PageHinkley
+  implements Serializable, RevisionHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = 3508741729916452870L;
+
+  /** The number of observations before a change can be signalled. */
+  public static final int MIN_OBSERVATIONS = 30;
+
+  /** The magnitude of changes tolerated per observation. */
+  protected double m_Delta;
+
+  /** The threshold of the statistic. */
+  protected double m_Lambda;
+
+  /** The number of observations since the last reset. */
+  protected long m_Count;
+
+  /** The mean of the observations since the last reset. */
+  protected double m_Mean;
+
+  /** The cumulative deviation from the mean. */
+  protected double m_Sum;
+
+  /** The minimum of the cumulative deviation. */
+  protected double m_Minimum;
+
+  /** The number of observations when the minimum was reached. */
+  protected long m_MinimumAt;
+
+  /**
+   * Creates a test.
+   *
+   * @param delta the magnitude of changes tolerated per observation
+   * @param lambda the threshold of the statistic
+   */
+  public PageHinkley(double delta, double lambda) {
+
+    m_Delta = delta;
+    m_Lambda = lambda;
+    reset();
+  }
+
+  /**
+   * Forgets all observations.
+   */
+  public void reset() {
+
+    m_Count = 0;
+    m_Mean = 0;
+    m_Sum = 0;
+    m_Minimum = 0;
+    m_MinimumAt = 0;
+  }
+
+  /**
+   * Adds an observation.
+   *
+   * @param x the observation
+   * @return true if the mean has increased by more than the test tolerates
+   */
+  public boolean add(double x) {
+
+    m_Count++;
+    m_Mean += (x - m_Mean) / m_Count;
+    m_Sum += x - m_Mean - m_Delta;
+    if (m_Sum < m_Minimum) {
+      m_Minimum = m_Sum;
+      m_MinimumAt = m_Count;
+    }
+    return (m_Count >= MIN_OBSERVATIONS) && (m_Sum - m_Minimum > m_Lambda);
+  }
+
+  /**
+   * Returns the number of observations since the last reset.
+   *
+   * @return the number of observations
+   */
+  public long count() {
+
+    return m_Count;
+  }
+
+  /**
+   * Returns the mean of the observations since the last reset.
+   *
+   * @return the mean, 0 without observations
+   */
+  public double mean() {
+
+    return m_Mean;
+  }
+
+  /**
+   * Returns the statistic, the rise of the cumulative deviation above its
+   * minimum.
+   *
+   * @return the statistic
+   */
+  public double statistic() {
+
+    return m_Sum - m_Minimum;
+  }
+
+  /**
+   * Returns the number of observations made since the minimum of the
+   * cumulative deviation, an estimate of how long ago a change began.
+   *
+   * @return the number of observations
+   */
+  public long sinceMinimum() {
+
+    return m_Count - m_MinimumAt;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
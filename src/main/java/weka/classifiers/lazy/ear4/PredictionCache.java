@@ -0,0 +1,287 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PredictionCache.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Instance;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of EAR4 predictions keyed on the attribute values of the
+ * query. Keys are either the exact feature vector or the feature vector
+ * snapped to a regular grid, so that near-identical queries share an entry.
+ * Entries are evicted in least-recently-used order once the cache is full.
+ * The cache has to be cleared whenever the case base or a parameter of the
+ * model changes. Every clear starts a new generation; a prediction is only
+ * stored if no clear happened since the generation it was computed in, so
+ * a prediction computed before a concurrent update and stored after the
+ * clear is dropped.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class PredictionCache
+  implements Serializable, RevisionHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = 4512081863377640126L;
+
+  /** The estimated bytes of map entry, key and array headers per entry. */
+  public static final int ENTRY_BYTES = 96;
+
+  /** The maximum number of cached predictions. */
+  protected int m_MaxSize;
+
+  /** The quantisation step applied to the keys (0 = exact keys). */
+  protected double m_Grid;
+
+  /** The cached predictions, in access order. */
+  protected LinkedHashMap<CacheKey, double[]> m_Entries;
+
+  /** The generation of the entries, advanced by every clear. */
+  protected long m_Generation;
+
+  /** The number of lookups performed. */
+  protected long m_Lookups;
+
+  /** The number of lookups that found a cached prediction. */
+  protected long m_Hits;
+
+  /** The total time spent in lookups, in nanoseconds. */
+  protected long m_LookupTime;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param maxSize the maximum number of predictions to keep
+   * @param grid the quantisation step for the keys, 0 for exact keys
+   */
+  public PredictionCache(int maxSize, double grid) {
+
+    m_MaxSize = maxSize;
+    m_Grid = grid;
+    m_Entries = new LinkedHashMap<CacheKey, double[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = -2297734215012297416L;
+
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, double[]> eldest) {
+        return size() > m_MaxSize;
+      }
+    };
+  }
+
+  /**
+   * Looks up the prediction cached for the given query.
+   *
+   * @param instance the query
+   * @return a copy of the cached prediction, or null if there is none
+   */
+  public synchronized double[] get(Instance instance) {
+
+    long start = System.nanoTime();
+    double[] result = m_Entries.get(key(instance));
+    m_LookupTime += System.nanoTime() - start;
+    m_Lookups++;
+    if (result == null) {
+      return null;
+    }
+    m_Hits++;
+    return result.clone();
+  }
+
+  /**
+   * Returns the current generation, to be read before the model is used
+   * to compute a prediction that is to be stored.
+   *
+   * @return the generation
+   */
+  public synchronized long generation() {
+
+    return m_Generation;
+  }
+
+  /**
+   * Stores the prediction made for the given query, unless the cache has
+   * been cleared since the given generation.
+   *
+   * @param instance the query
+   * @param prediction the prediction made for it
+   * @param generation the generation read before the prediction was
+   * computed (see generation())
+   */
+  public synchronized void put(Instance instance, double[] prediction, long generation) {
+
+    if (generation == m_Generation) {
+      m_Entries.put(key(instance), prediction.clone());
+    }
+  }
+
+  /**
+   * Drops all cached predictions and starts a new generation. The lookup
+   * statistics are kept.
+   */
+  public synchronized void clear() {
+
+    m_Entries.clear();
+    m_Generation++;
+  }
+
+  /**
+   * Estimates the bytes held by the cached predictions: their keys and
+   * values plus ENTRY_BYTES of map and object overhead per entry.
+   *
+   * @return the bytes
+   */
+  public synchronized long footprintBytes() {
+
+    long result = 0;
+    for (Map.Entry<CacheKey, double[]> entry : m_Entries.entrySet()) {
+      result += ENTRY_BYTES + 8L * (entry.getKey().m_Values.length + entry.getValue().length);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of cached predictions.
+   *
+   * @return the number of entries
+   */
+  public synchronized int size() {
+
+    return m_Entries.size();
+  }
+
+  /**
+   * Returns the fraction of lookups that were answered from the cache.
+   *
+   * @return the hit rate, 0 if there were no lookups
+   */
+  public synchronized double hitRate() {
+
+    if (m_Lookups == 0) {
+      return 0;
+    }
+    return (double) m_Hits / m_Lookups;
+  }
+
+  /**
+   * Returns the average time spent in a lookup.
+   *
+   * @return the average lookup time in nanoseconds, 0 if there were no lookups
+   */
+  public synchronized double averageLookupTime() {
+
+    if (m_Lookups == 0) {
+      return 0;
+    }
+    return (double) m_LookupTime / m_Lookups;
+  }
+
+  /**
+   * Builds the key for a query from all its non-class attribute values.
+   *
+   * @param instance the query
+   * @return the key
+   */
+  protected CacheKey key(Instance instance) {
+
+    int classIndex = instance.classIndex();
+    double[] values = new double[classIndex < 0
+                                 ? instance.numAttributes()
+                                 : instance.numAttributes() - 1];
+    int current = 0;
+    for (int i = 0; i < instance.numAttributes(); i++) {
+      if (i == classIndex) {
+        continue;
+      }
+      double value = instance.value(i);
+      if ((m_Grid > 0) && !Instance.isMissingValue(value)) {
+        value = Math.floor(value / m_Grid);
+      }
+      values[current++] = value;
+    }
+    return new CacheKey(values);
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+
+  /**
+   * Key of a cache entry: the (possibly quantised) feature vector.
+   */
+  protected static class CacheKey
+    implements Serializable {
+
+    /** for serialization. */
+    private static final long serialVersionUID = -6148207368398211307L;
+
+    /** The feature values. */
+    protected double[] m_Values;
+
+    /** The cached hash code of the values. */
+    protected int m_Hash;
+
+    /**
+     * Creates a key for the given feature values.
+     *
+     * @param values the feature values
+     */
+    public CacheKey(double[] values) {
+      m_Values = values;
+      m_Hash = Arrays.hashCode(values);
+    }
+
+    /**
+     * Returns the hash code of the feature values.
+     *
+     * @return the hash code
+     */
+    public int hashCode() {
+      return m_Hash;
+    }
+
+    /**
+     * Checks whether the given object is a key with the same values.
+     *
+     * @param obj the object to compare with
+     * @return true if the feature values are the same
+     */
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey other = (CacheKey) obj;
+      return (m_Hash == other.m_Hash) && Arrays.equals(m_Values, other.m_Values);
+    }
+  }
+}
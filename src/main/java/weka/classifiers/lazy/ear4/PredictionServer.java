@@ -0,0 +1,834 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PredictionServer.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.classifiers.lazy.EAR4;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils.DataSource;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Embeddable scoring server for EAR4, built on the JDK HttpServer.
+ * Concurrent prediction requests are queued and coalesced by a single
+ * batcher thread into micro-batches: a batch is closed when it holds the
+ * maximum number of queries or when the latency budget has passed since
+ * its first query arrived. Each batch is put in Morton order and split
+ * into contiguous runs, which a pool of scoring threads (the batcher
+ * being one of them) scores in parallel against the latest snapshot of
+ * the current model (see EAR4.snapshot()); neighbouring queries stay on
+ * the same thread and so share its scratch arena. Queries the snapshot
+ * cannot score exactly are scored by the model itself. A query that
+ * fails only fails its own request.<p/>
+ *
+ * With batching switched off (setBatching(false)), every request thread
+ * scores its own queries as they arrive, which is the baseline the
+ * LoadGenerator compares the batches with.<p/>
+ *
+ * The model is held in an atomic reference, so it can be swapped at any
+ * time without pausing the request threads; the next batch is scored by
+ * the new model. updateModel() adds training instances to the served model
+ * in place: every update publishes a new copy-on-write snapshot, so the
+ * batcher keeps scoring while the model grows. A model handed to the
+ * server must not be modified otherwise.<p/>
+ *
+ * Protocol: POST /predict with one query per line, each a comma-separated
+ * list of attribute values in the order of the training header (the class
+ * value may be omitted, '?' denotes a missing value). The response holds
+ * one prediction per line.<p/>
+ *
+ * Usage:
+ * <pre>
+ * java weka.classifiers.lazy.ear4.PredictionServer -t &lt;training file&gt;
+ *   [-p &lt;port&gt;] [-B &lt;latency budget (microseconds)&gt;]
+ *   [-b &lt;max. batch size&gt;] [-T &lt;scoring threads&gt;] [-U]
+ *   [-- &lt;EAR4 options&gt;]
+ * </pre>
+ *
+ * The replies are small, so without TCP_NODELAY each of them may wait for
+ * the delayed acknowledgement of the client. The JDK HttpServer only sets
+ * it if the system property sun.net.httpserver.nodelay is true when the
+ * server class is loaded; main() sets it, applications embedding the
+ * server should pass -Dsun.net.httpserver.nodelay=true to the JVM.<p/>
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class PredictionServer
+  implements RevisionHandler {
+
+  /**
+   * A query waiting in the batch queue.
+   */
+  protected static class PendingPrediction {
+
+    /** The query. */
+    protected Instance m_Instance;
+
+    /** The prediction, once scored. */
+    protected double[] m_Result;
+
+    /** The error that occurred while scoring, if any. */
+    protected Exception m_Error;
+
+    /** Released when the query has been scored. */
+    protected CountDownLatch m_Done = new CountDownLatch(1);
+
+    /**
+     * Creates a pending prediction.
+     *
+     * @param instance the query
+     */
+    protected PendingPrediction(Instance instance) {
+      m_Instance = instance;
+    }
+
+    /**
+     * Waits for the query to be scored.
+     *
+     * @return the prediction
+     * @throws Exception if scoring failed or the wait was interrupted
+     */
+    protected double[] await() throws Exception {
+
+      m_Done.await();
+      if (m_Error != null) {
+        throw m_Error;
+      }
+      return m_Result;
+    }
+  }
+
+  /** The model currently served. */
+  protected AtomicReference<EAR4> m_Model = new AtomicReference<EAR4>();
+
+  /** The format of the queries. */
+  protected Instances m_Header;
+
+  /** The port to listen on (0 = any free port). */
+  protected int m_Port;
+
+  /** The time a batch waits for more queries, in microseconds. */
+  protected long m_LatencyBudget;
+
+  /** The maximum number of queries per batch. */
+  protected int m_MaxBatchSize;
+
+  /** The smallest run of a batch handed to a scoring thread. */
+  public static final int MIN_RUN_SIZE = 8;
+
+  /** The number of threads scoring a batch, the batcher included. */
+  protected int m_NumScoringThreads = Runtime.getRuntime().availableProcessors();
+
+  /** Whether queries are batched, or scored by their request threads. */
+  protected boolean m_Batching = true;
+
+  /** The queries waiting to be batched. */
+  protected LinkedBlockingQueue<PendingPrediction> m_Queue =
+    new LinkedBlockingQueue<PendingPrediction>();
+
+  /** The HTTP server, while running. */
+  protected HttpServer m_Server;
+
+  /** The threads handling the HTTP requests, while running. */
+  protected ExecutorService m_Executor;
+
+  /** The batcher thread, while running. */
+  protected Thread m_Batcher;
+
+  /** The scoring threads besides the batcher, while running (null if
+   * the batcher scores alone). */
+  protected ExecutorService m_Scorers;
+
+  /** Whether the server is running. */
+  protected volatile boolean m_Running;
+
+  /** The number of batches scored. */
+  protected AtomicLong m_NumBatches = new AtomicLong();
+
+  /** The number of queries scored. */
+  protected AtomicLong m_NumQueries = new AtomicLong();
+
+  /**
+   * Creates a server for the given model.
+   *
+   * @param model the model to serve, already built
+   * @param header the format of the queries (the training header)
+   * @param port the port to listen on, 0 for any free port
+   * @param latencyBudget the time a batch waits for more queries, in
+   * microseconds
+   * @param maxBatchSize the maximum number of queries per batch
+   * @throws Exception if the settings are invalid
+   */
+  public PredictionServer(EAR4 model, Instances header, int port,
+                          long latencyBudget, int maxBatchSize) throws Exception {
+
+    if (header.classIndex() < 0) {
+      throw new Exception("Query header has no class attribute!");
+    }
+    if (latencyBudget < 0) {
+      throw new Exception("Latency budget must not be negative!");
+    }
+    if (maxBatchSize < 1) {
+      throw new Exception("Batch size must be at least 1!");
+    }
+    m_Model.set(model);
+    m_Header = new Instances(header, 0);
+    m_Port = port;
+    m_LatencyBudget = latencyBudget;
+    m_MaxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Sets the number of threads scoring a batch, the batcher included.
+   * Takes effect when the server is (re)started.
+   *
+   * @param numThreads the number of threads, at least 1
+   */
+  public void setNumScoringThreads(int numThreads) {
+
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("Number of scoring threads must be at least 1!");
+    }
+    m_NumScoringThreads = numThreads;
+  }
+
+  /**
+   * Returns the number of threads scoring a batch, the batcher included.
+   *
+   * @return the number of threads
+   */
+  public int getNumScoringThreads() {
+
+    return m_NumScoringThreads;
+  }
+
+  /**
+   * Sets whether queries are batched. Without batching every request
+   * thread scores its own queries as they arrive. Can only be changed
+   * while the server is stopped.
+   *
+   * @param batching true to batch the queries
+   */
+  public synchronized void setBatching(boolean batching) {
+
+    if (m_Running) {
+      throw new IllegalStateException("Stop the server before switching batching!");
+    }
+    m_Batching = batching;
+  }
+
+  /**
+   * Returns whether queries are batched.
+   *
+   * @return true if the queries are batched
+   */
+  public boolean getBatching() {
+
+    return m_Batching;
+  }
+
+  /**
+   * Starts listening and batching. See the class description for
+   * enabling TCP_NODELAY.
+   *
+   * @throws IOException if the server cannot be bound
+   */
+  public synchronized void start() throws IOException {
+
+    if (m_Running) {
+      return;
+    }
+    m_Server = HttpServer.create(new InetSocketAddress(m_Port), 0);
+    m_Server.createContext("/predict", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        handlePredict(exchange);
+      }
+    });
+    // request threads only parse, wait for their batch and reply, so a
+    // cached pool gives every concurrent request its own (reused) thread
+    m_Executor = Executors.newCachedThreadPool();
+    m_Server.setExecutor(m_Executor);
+    m_Running = true;
+    if (m_Batching) {
+      if (m_NumScoringThreads > 1) {
+        final AtomicInteger count = new AtomicInteger();
+        m_Scorers = Executors.newFixedThreadPool(m_NumScoringThreads - 1,
+          new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable,
+                "EAR4 batch scorer " + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      }
+      m_Batcher = new Thread(new Runnable() {
+        public void run() {
+          batchLoop();
+        }
+      }, "EAR4 prediction batcher");
+      m_Batcher.setDaemon(true);
+      m_Batcher.start();
+    }
+    m_Server.start();
+  }
+
+  /**
+   * Stops the server. Queries that have not been scored yet fail.
+   */
+  public synchronized void stop() {
+
+    if (!m_Running) {
+      return;
+    }
+    m_Running = false;
+    m_Server.stop(0);
+    if (m_Batcher != null) {
+      m_Batcher.interrupt();
+      try {
+        m_Batcher.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      m_Batcher = null;
+    }
+    if (m_Scorers != null) {
+      m_Scorers.shutdown();
+      m_Scorers = null;
+    }
+    m_Executor.shutdown();
+    PendingPrediction pending;
+    while ((pending = m_Queue.poll()) != null) {
+      pending.m_Error = new Exception("Prediction server stopped!");
+      pending.m_Done.countDown();
+    }
+  }
+
+  /**
+   * Returns the port the server listens on.
+   *
+   * @return the port, or -1 if the server is not running
+   */
+  public synchronized int getPort() {
+
+    if (!m_Running) {
+      return -1;
+    }
+    return m_Server.getAddress().getPort();
+  }
+
+  /**
+   * Returns the model currently served.
+   *
+   * @return the model
+   */
+  public EAR4 getModel() {
+
+    return m_Model.get();
+  }
+
+  /**
+   * Replaces the model served. Batches already being scored finish with
+   * the old model, the following ones use the new model.
+   *
+   * @param model the new model, already built; must only be modified
+   * through updateModel() afterwards
+   * @return the model served before
+   */
+  public EAR4 swapModel(EAR4 model) {
+
+    return m_Model.getAndSet(model);
+  }
+
+  /**
+   * Adds training instances to the served model. The model publishes a new
+   * snapshot after every instance, sharing the storage of the cases, so
+   * batches keep being scored meanwhile; only the queries that have to be
+   * scored by the model itself wait for the update.
+   *
+   * @param instances the instances to add
+   * @throws Exception if the model cannot be updated
+   */
+  public synchronized void updateModel(Instances instances) throws Exception {
+
+    EAR4 model = m_Model.get();
+    synchronized (model) {
+      for (int i = 0; i < instances.numInstances(); i++) {
+        model.updateClassifier(instances.instance(i));
+      }
+    }
+  }
+
+  /**
+   * Scores a query through the batch queue (or directly, without
+   * batching). Blocks until the batch holding the query has been scored.
+   *
+   * @param instance the query, in the format of the header
+   * @return the prediction
+   * @throws Exception if the server is not running or scoring failed
+   */
+  public double[] predict(Instance instance) throws Exception {
+
+    if (!m_Running) {
+      throw new Exception("Prediction server is not running!");
+    }
+    if (!m_Batching) {
+      EAR4 model = m_Model.get();
+      return score(model, snapshot(model), instance);
+    }
+    PendingPrediction pending = new PendingPrediction(instance);
+    enqueue(pending);
+    return pending.await();
+  }
+
+  /**
+   * Queues a query for batching.
+   *
+   * @param pending the query
+   * @throws Exception if the server has been stopped meanwhile
+   */
+  protected void enqueue(PendingPrediction pending) throws Exception {
+
+    m_Queue.put(pending);
+    // stop() may have drained the queue before the query arrived
+    if (!m_Running && m_Queue.remove(pending)) {
+      throw new Exception("Prediction server stopped!");
+    }
+  }
+
+  /**
+   * Returns the average number of queries per batch so far.
+   *
+   * @return the average batch size
+   */
+  public double averageBatchSize() {
+
+    long batches = m_NumBatches.get();
+    if (batches == 0) {
+      return 0;
+    }
+    return (double) m_NumQueries.get() / batches;
+  }
+
+  /**
+   * Collects queries into batches and scores them, until the server is
+   * stopped.
+   */
+  protected void batchLoop() {
+
+    List<PendingPrediction> batch = new ArrayList<PendingPrediction>();
+    while (m_Running) {
+      try {
+        PendingPrediction first = m_Queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + m_LatencyBudget * 1000;
+        while (batch.size() < m_MaxBatchSize) {
+          long wait = deadline - System.nanoTime();
+          PendingPrediction next = (wait > 0)
+            ? m_Queue.poll(wait, TimeUnit.NANOSECONDS)
+            : m_Queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        // stop() interrupts the batcher; score what has been collected
+      }
+      if (batch.size() > 0) {
+        scoreBatch(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Returns the snapshot batches are scored against.
+   *
+   * @param model the model
+   * @return the latest snapshot of the model, null if it does not predict
+   * exactly like the model or the model is not built
+   */
+  protected ModelSnapshot snapshot(EAR4 model) {
+
+    if (model.snapshotsPredictExactly()) {
+      try {
+        return model.snapshot();
+      } catch (Exception e) {
+        // not built; the model reports the error for every query
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Scores a batch of queries against the current model and releases
+   * their request threads. The batch is put in Morton order and split
+   * into one contiguous run per scoring thread (of at least MIN_RUN_SIZE
+   * queries); the batcher scores the first run itself. A query that
+   * cannot be scored gets its own error, the other queries of the batch
+   * are still scored.
+   *
+   * @param batch the queries
+   */
+  protected void scoreBatch(List<PendingPrediction> batch) {
+
+    final EAR4 model = m_Model.get();
+    final Instances data = new Instances(m_Header, batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      data.add(batch.get(i).m_Instance);
+    }
+    final ModelSnapshot snapshot = snapshot(model);
+    final int[] order = SpaceFillingCurve.mortonOrder(data);
+    m_NumBatches.incrementAndGet();
+    m_NumQueries.addAndGet(batch.size());
+
+    int numRuns = 1;
+    if (m_Scorers != null) {
+      numRuns = Math.min(m_NumScoringThreads,
+                         (order.length + MIN_RUN_SIZE - 1) / MIN_RUN_SIZE);
+    }
+    final List<PendingPrediction> queries = batch;
+    List<Future<?>> runs = new ArrayList<Future<?>>(numRuns);
+    for (int r = 1; r < numRuns; r++) {
+      final int from = (int) ((long) order.length * r / numRuns);
+      final int to = (int) ((long) order.length * (r + 1) / numRuns);
+      runs.add(m_Scorers.submit(new Runnable() {
+        public void run() {
+          scoreRun(model, snapshot, queries, data, order, from, to);
+        }
+      }));
+    }
+    scoreRun(model, snapshot, batch, data, order, 0, order.length / numRuns);
+
+    // the batch is finished before the next one is collected
+    boolean interrupted = false;
+    for (int r = 0; r < runs.size(); r++) {
+      while (true) {
+        try {
+          runs.get(r).get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    // a run that died of an error leaves its queries without an answer
+    for (int i = 0; i < batch.size(); i++) {
+      PendingPrediction pending = batch.get(i);
+      if (pending.m_Done.getCount() > 0) {
+        pending.m_Error = new Exception("Query could not be scored!");
+        pending.m_Done.countDown();
+      }
+    }
+  }
+
+  /**
+   * Scores a run of a batch and releases the request thread of every
+   * query as soon as it is scored.
+   *
+   * @param model the model
+   * @param snapshot the snapshot of the model, null if it does not
+   * predict exactly like the model
+   * @param batch the queries
+   * @param data the queries as instances, in the order of the batch
+   * @param order the Morton order of the queries
+   * @param from the first position in the order to score
+   * @param to the position after the last one to score
+   */
+  protected void scoreRun(EAR4 model, ModelSnapshot snapshot,
+                          List<PendingPrediction> batch, Instances data,
+                          int[] order, int from, int to) {
+
+    for (int i = from; i < to; i++) {
+      PendingPrediction pending = batch.get(order[i]);
+      try {
+        pending.m_Result = score(model, snapshot, data.instance(order[i]));
+      } catch (Exception e) {
+        pending.m_Error = e;
+      }
+      pending.m_Done.countDown();
+    }
+  }
+
+  /**
+   * Scores a single query, with the snapshot if it can score the query
+   * exactly and otherwise with the model, locked against updates.
+   *
+   * @param model the model
+   * @param snapshot the snapshot of the model, null if it does not
+   * predict exactly like the model
+   * @param instance the query
+   * @return the prediction
+   * @throws Exception if the query cannot be scored
+   */
+  protected double[] score(EAR4 model, ModelSnapshot snapshot, Instance instance)
+    throws Exception {
+
+    if (snapshot != null) {
+      boolean missing = false;
+      for (int a = 0; a < instance.numAttributes(); a++) {
+        if ((a != instance.classIndex()) && instance.isMissing(a)) {
+          missing = true;
+          break;
+        }
+      }
+      if (!missing) {
+        return snapshot.distributionForInstance(instance);
+      }
+    }
+    synchronized (model) {
+      return model.distributionForInstance(instance);
+    }
+  }
+
+  /**
+   * Handles a POST /predict request: every line of the body is queued as a
+   * query, and the predictions are returned one per line.
+   *
+   * @param exchange the HTTP exchange
+   * @throws IOException if the reply cannot be sent
+   */
+  protected void handlePredict(HttpExchange exchange) throws IOException {
+
+    if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+      sendReply(exchange, 405, "Only POST is supported!\n");
+      return;
+    }
+
+    List<PendingPrediction> pending = new ArrayList<PendingPrediction>();
+    try {
+      BufferedReader reader = new BufferedReader(
+        new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().length() > 0) {
+          pending.add(new PendingPrediction(parseInstance(line)));
+        }
+      }
+    } catch (Exception e) {
+      sendReply(exchange, 400, e.getMessage() + "\n");
+      return;
+    }
+    if (!m_Running) {
+      sendReply(exchange, 503, "Prediction server is not running!\n");
+      return;
+    }
+
+    StringBuffer reply = new StringBuffer();
+    try {
+      if (m_Batching) {
+        for (int i = 0; i < pending.size(); i++) {
+          enqueue(pending.get(i));
+        }
+        for (int i = 0; i < pending.size(); i++) {
+          reply.append(formatPrediction(pending.get(i).await())).append('\n');
+        }
+      } else {
+        EAR4 model = m_Model.get();
+        ModelSnapshot snapshot = snapshot(model);
+        for (int i = 0; i < pending.size(); i++) {
+          reply.append(formatPrediction(
+            score(model, snapshot, pending.get(i).m_Instance))).append('\n');
+        }
+      }
+    } catch (Exception e) {
+      sendReply(exchange, 500, e.getMessage() + "\n");
+      return;
+    }
+    sendReply(exchange, 200, reply.toString());
+  }
+
+  /**
+   * Sends a plain text reply.
+   *
+   * @param exchange the HTTP exchange
+   * @param status the HTTP status code
+   * @param text the body of the reply
+   * @throws IOException if the reply cannot be sent
+   */
+  protected void sendReply(HttpExchange exchange, int status, String text)
+    throws IOException {
+
+    byte[] body = text.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  /**
+   * Parses a query: comma-separated attribute values in header order, with
+   * the class value optional.
+   *
+   * @param line the query
+   * @return the instance, with the header as its dataset
+   * @throws Exception if the query does not match the header
+   */
+  public Instance parseInstance(String line) throws Exception {
+
+    String[] tokens = line.split(",");
+    int numAttributes = m_Header.numAttributes();
+    boolean hasClass = (tokens.length == numAttributes);
+    if (!hasClass && (tokens.length != numAttributes - 1)) {
+      throw new Exception("Expected " + (numAttributes - 1) + " or "
+                          + numAttributes + " values, got " + tokens.length + "!");
+    }
+    double[] values = new double[numAttributes];
+    int token = 0;
+    for (int a = 0; a < numAttributes; a++) {
+      if (!hasClass && (a == m_Header.classIndex())) {
+        values[a] = Instance.missingValue();
+        continue;
+      }
+      String value = tokens[token++].trim();
+      Attribute attribute = m_Header.attribute(a);
+      if (value.equals("?")) {
+        values[a] = Instance.missingValue();
+      } else if (attribute.isNumeric()) {
+        values[a] = Double.parseDouble(value);
+      } else if (attribute.isNominal()) {
+        values[a] = attribute.indexOfValue(value);
+        if (values[a] < 0) {
+          throw new Exception("Unknown value '" + value + "' for attribute "
+                              + attribute.name() + "!");
+        }
+      } else {
+        throw new Exception("Attribute " + attribute.name()
+                            + " is neither numeric nor nominal!");
+      }
+    }
+    Instance instance = new Instance(1.0, values);
+    instance.setDataset(m_Header);
+    return instance;
+  }
+
+  /**
+   * Formats a prediction for the reply.
+   *
+   * @param distribution the prediction
+   * @return the prediction as text
+   */
+  protected String formatPrediction(double[] distribution) {
+
+    StringBuffer result = new StringBuffer();
+    for (int i = 0; i < distribution.length; i++) {
+      if (i > 0) {
+        result.append(',');
+      }
+      result.append(distribution[i]);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+
+  /**
+   * Builds EAR4 on a training file and serves it until the process is
+   * killed.
+   *
+   * @param args the command line options, see the class description
+   */
+  public static void main(String[] args) {
+
+    try {
+      // before the JDK HttpServer is loaded, see the class description
+      if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+      }
+      String file = Utils.getOption('t', args);
+      if (file.length() == 0) {
+        throw new Exception("No training file given (-t)!");
+      }
+      String port = Utils.getOption('p', args);
+      String budget = Utils.getOption('B', args);
+      String batchSize = Utils.getOption('b', args);
+      String threads = Utils.getOption('T', args);
+      boolean unbatched = Utils.getFlag('U', args);
+      String[] learnerOptions = Utils.partitionOptions(args);
+
+      Instances data = DataSource.read(file);
+      data.setClassIndex(data.numAttributes() - 1);
+      EAR4 model = new EAR4();
+      model.setOptions(learnerOptions);
+      model.buildClassifier(data);
+
+      PredictionServer server = new PredictionServer(model, data,
+        (port.length() == 0) ? 8080 : Integer.parseInt(port),
+        (budget.length() == 0) ? 1000 : Long.parseLong(budget),
+        (batchSize.length() == 0) ? 64 : Integer.parseInt(batchSize));
+      if (threads.length() > 0) {
+        server.setNumScoringThreads(Integer.parseInt(threads));
+      }
+      server.setBatching(!unbatched);
+      server.start();
+      System.out.println("Serving EAR4 on port " + server.getPort()
+                         + " (POST /predict)");
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,303 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    Projection.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.matrix.EigenvalueDecomposition;
+import weka.core.matrix.Matrix;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * A linear map of the features of EAR4 cases into fewer dimensions. The
+ * features are standardised (mean 0, standard deviation 1) and multiplied
+ * by a projection matrix, either the leading principal components of
+ * their correlation matrix or a Gaussian random matrix; the class is
+ * copied and becomes the last attribute of the projected cases. Missing
+ * feature values are replaced by the mean.<p/>
+ *
+ * A projection is immutable, so model snapshots can share it; refitting
+ * creates a new one from the current RunningMoments of the features.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class Projection
+  implements Serializable, RevisionHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = -3719962250157381470L;
+
+  /** The format of the projected cases. */
+  protected Instances m_Header;
+
+  /** The indices of the features in the original cases. */
+  protected int[] m_Features;
+
+  /** The index of the class in the original cases. */
+  protected int m_ClassIndex;
+
+  /** The mean of every feature. */
+  protected double[] m_Mean;
+
+  /** The reciprocal standard deviation of every feature (1 if constant). */
+  protected double[] m_Scale;
+
+  /** The projection matrix, one row per component. */
+  protected double[][] m_Matrix;
+
+  /** The fraction of the variance the components cover (NaN if unknown). */
+  protected double m_Covered;
+
+  /**
+   * Creates a projection.
+   *
+   * @param header the format of the original cases
+   * @param moments the moments of the features
+   * @param matrix the projection matrix, one row per component
+   * @param covered the fraction of the variance covered, NaN if unknown
+   * @param prefix the prefix of the names of the projected attributes
+   */
+  protected Projection(Instances header, RunningMoments moments,
+                       double[][] matrix, double covered, String prefix) {
+
+    m_Features = features(header);
+    m_ClassIndex = header.classIndex();
+    m_Mean = new double[m_Features.length];
+    m_Scale = new double[m_Features.length];
+    for (int f = 0; f < m_Features.length; f++) {
+      m_Mean[f] = moments.mean(f);
+      double deviation = Math.sqrt(moments.variance(f));
+      m_Scale[f] = (deviation > 0) ? 1 / deviation : 1;
+    }
+    m_Matrix = matrix;
+    m_Covered = covered;
+
+    FastVector attributes = new FastVector(matrix.length + 1);
+    for (int c = 0; c < matrix.length; c++) {
+      attributes.addElement(new Attribute(prefix + (c + 1)));
+    }
+    attributes.addElement((Attribute) header.classAttribute().copy());
+    m_Header = new Instances(header.relationName() + "-" + prefix, attributes, 0);
+    m_Header.setClassIndex(matrix.length);
+  }
+
+  /**
+   * Projects onto the leading principal components of the correlation
+   * matrix of the features.
+   *
+   * @param header the format of the original cases
+   * @param moments the moments of the features
+   * @param components the number of components, 0 to keep the fewest
+   * components that cover the given fraction of the variance
+   * @param covered the fraction of the variance to cover if components is 0
+   * @return the projection
+   */
+  public static Projection pca(Instances header, RunningMoments moments,
+                               int components, double covered) {
+
+    int d = moments.dimensions();
+    double[][] correlation = new double[d][d];
+    for (int i = 0; i < d; i++) {
+      for (int j = 0; j < d; j++) {
+        double scale = Math.sqrt(moments.variance(i) * moments.variance(j));
+        correlation[i][j] = (scale > 0) ? moments.covariance(i, j) / scale : 0;
+      }
+    }
+    EigenvalueDecomposition eigen = new Matrix(correlation).eig();
+    double[] values = eigen.getRealEigenvalues();
+    double[][] vectors = eigen.getV().getArray();
+
+    // eigenvalues come in ascending order
+    double total = 0;
+    for (int i = 0; i < d; i++) {
+      total += Math.max(0, values[i]);
+    }
+    int k = Math.min(d, components);
+    if (k <= 0) {
+      double sum = 0;
+      k = 0;
+      while ((k < d) && ((k == 0) || (sum < covered * total))) {
+        sum += Math.max(0, values[d - 1 - k]);
+        k++;
+      }
+    }
+    double[][] matrix = new double[k][d];
+    double sum = 0;
+    for (int c = 0; c < k; c++) {
+      for (int i = 0; i < d; i++) {
+        matrix[c][i] = vectors[i][d - 1 - c];
+      }
+      sum += Math.max(0, values[d - 1 - c]);
+    }
+    return new Projection(header, moments, matrix,
+                          (total > 0) ? sum / total : Double.NaN, "pc");
+  }
+
+  /**
+   * Projects with a Gaussian random matrix, scaled by 1/sqrt(components)
+   * so that distances are preserved in expectation.
+   *
+   * @param header the format of the original cases
+   * @param moments the moments of the features
+   * @param components the number of components
+   * @param seed the seed of the random matrix
+   * @return the projection
+   */
+  public static Projection random(Instances header, RunningMoments moments,
+                                  int components, long seed) {
+
+    int d = moments.dimensions();
+    int k = Math.max(1, components);
+    Random random = new Random(seed);
+    double[][] matrix = new double[k][d];
+    for (int c = 0; c < k; c++) {
+      for (int i = 0; i < d; i++) {
+        matrix[c][i] = random.nextGaussian() / Math.sqrt(k);
+      }
+    }
+    return new Projection(header, moments, matrix, Double.NaN, "rp");
+  }
+
+  /**
+   * Returns the indices of the features (all attributes but the class).
+   *
+   * @param header the format of the cases
+   * @return the feature indices
+   */
+  public static int[] features(Instances header) {
+
+    int[] features = new int[header.numAttributes() - 1];
+    int f = 0;
+    for (int a = 0; a < header.numAttributes(); a++) {
+      if (a != header.classIndex()) {
+        features[f++] = a;
+      }
+    }
+    return features;
+  }
+
+  /**
+   * Copies the feature values of a case (missing values are NaN).
+   *
+   * @param instance the case
+   * @param features the feature indices
+   * @param values receives the feature values
+   */
+  public static void featureValues(Instance instance, int[] features, double[] values) {
+
+    for (int f = 0; f < features.length; f++) {
+      values[f] = instance.value(features[f]);
+    }
+  }
+
+  /**
+   * Projects a case.
+   *
+   * @param instance the case, in the original format
+   * @return the projected case, in the format of header()
+   */
+  public Instance project(Instance instance) {
+
+    double[] standardised = new double[m_Features.length];
+    for (int f = 0; f < m_Features.length; f++) {
+      double value = instance.value(m_Features[f]);
+      standardised[f] = Instance.isMissingValue(value)
+        ? 0 : (value - m_Mean[f]) * m_Scale[f];
+    }
+    double[] values = new double[m_Matrix.length + 1];
+    for (int c = 0; c < m_Matrix.length; c++) {
+      double[] row = m_Matrix[c];
+      double sum = 0;
+      for (int f = 0; f < row.length; f++) {
+        sum += row[f] * standardised[f];
+      }
+      values[c] = sum;
+    }
+    values[m_Matrix.length] = instance.value(m_ClassIndex);
+    Instance result = new Instance(instance.weight(), values);
+    result.setDataset(m_Header);
+    return result;
+  }
+
+  /**
+   * Projects a set of cases.
+   *
+   * @param data the cases, in the original format
+   * @return the projected cases, in the format of header()
+   */
+  public Instances project(Instances data) {
+
+    Instances result = new Instances(m_Header, data.numInstances());
+    for (int i = 0; i < data.numInstances(); i++) {
+      result.add(project(data.instance(i)));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the format of the projected cases (the class is last).
+   *
+   * @return the header, without instances
+   */
+  public Instances header() {
+
+    return m_Header;
+  }
+
+  /**
+   * Returns the number of components.
+   *
+   * @return the number of projected features
+   */
+  public int numComponents() {
+
+    return m_Matrix.length;
+  }
+
+  /**
+   * Returns the fraction of the variance of the standardised features the
+   * components cover.
+   *
+   * @return the fraction, NaN for random projections
+   */
+  public double covered() {
+
+    return m_Covered;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
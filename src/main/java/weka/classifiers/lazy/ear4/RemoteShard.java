@@ -0,0 +1,190 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    RemoteShard.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Client side of a shard running in a ShardServer, possibly in another
+ * JVM. Requests are sent over one socket connection, one at a time.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class RemoteShard
+  implements Shard, RevisionHandler {
+
+  /** The connection to the server. */
+  protected Socket m_Socket;
+
+  /** The request stream. */
+  protected DataOutputStream m_Out;
+
+  /** The answer stream. */
+  protected DataInputStream m_In;
+
+  /**
+   * Connects to a shard server.
+   *
+   * @param host the host of the server
+   * @param port the port of the server
+   * @throws IOException if the server cannot be reached
+   */
+  public RemoteShard(String host, int port) throws IOException {
+
+    m_Socket = new Socket(host, port);
+    m_Socket.setTcpNoDelay(true);
+    m_Out = new DataOutputStream(new BufferedOutputStream(m_Socket.getOutputStream()));
+    m_In = new DataInputStream(new BufferedInputStream(m_Socket.getInputStream()));
+  }
+
+  /**
+   * Appends cases to the shard.
+   *
+   * @param data the cases (numeric, class last, no missing values)
+   * @throws IOException if the server cannot be reached
+   */
+  public synchronized void add(Instances data) throws IOException {
+
+    m_Out.writeByte(ShardServer.ADD);
+    m_Out.writeInt(data.numInstances());
+    m_Out.writeInt(data.numAttributes());
+    m_Out.writeInt(data.classIndex());
+    for (int i = 0; i < data.numInstances(); i++) {
+      Instance instance = data.instance(i);
+      for (int a = 0; a < data.numAttributes(); a++) {
+        m_Out.writeDouble(instance.value(a));
+      }
+    }
+    m_Out.flush();
+    m_In.readInt();
+  }
+
+  /**
+   * Returns the number of cases in the shard.
+   *
+   * @return the number of cases
+   * @throws IOException if the server cannot be reached
+   */
+  public synchronized int numCases() throws IOException {
+
+    m_Out.writeByte(ShardServer.NUM_CASES);
+    m_Out.flush();
+    return m_In.readInt();
+  }
+
+  /**
+   * Returns the attribute ranges over the cases of the shard.
+   *
+   * @return the ranges (min, max and width per attribute), null if the
+   * shard has never received cases
+   * @throws IOException if the server cannot be reached
+   */
+  public synchronized double[][] ranges() throws IOException {
+
+    m_Out.writeByte(ShardServer.RANGES);
+    m_Out.flush();
+    return ShardServer.readRanges(m_In);
+  }
+
+  /**
+   * Finds the k cases of the shard nearest to a query, keeping the cases
+   * tied with the k-th nearest.
+   *
+   * @param query the attribute values of the query (the class is ignored)
+   * @param ranges the ranges to normalise with
+   * @param k the number of cases to find
+   * @return the neighbours, nearest first
+   * @throws IOException if the server cannot be reached
+   */
+  public synchronized ShardNeighbours nearest(double[] query, double[][] ranges, int k)
+    throws IOException {
+
+    m_Out.writeByte(ShardServer.NEAREST);
+    m_Out.writeInt(k);
+    m_Out.writeInt(query.length);
+    for (int a = 0; a < query.length; a++) {
+      m_Out.writeDouble(query[a]);
+    }
+    ShardServer.writeRanges(m_Out, ranges);
+    m_Out.flush();
+
+    ShardNeighbours result = new ShardNeighbours(m_In.readInt(), query.length);
+    for (int i = 0; i < result.m_Count; i++) {
+      result.m_Indices[i] = m_In.readInt();
+      result.m_Distances[i] = m_In.readDouble();
+      for (int a = 0; a < query.length; a++) {
+        result.m_Rows[i * query.length + a] = m_In.readDouble();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the heap memory used by the server's JVM after a garbage
+   * collection.
+   *
+   * @return the memory in bytes
+   * @throws IOException if the server cannot be reached
+   */
+  public synchronized long memoryUsed() throws IOException {
+
+    m_Out.writeByte(ShardServer.MEMORY);
+    m_Out.flush();
+    return m_In.readLong();
+  }
+
+  /**
+   * Stops the server and closes the connection.
+   *
+   * @throws IOException if the connection cannot be closed
+   */
+  public synchronized void close() throws IOException {
+
+    try {
+      m_Out.writeByte(ShardServer.CLOSE);
+      m_Out.flush();
+    } finally {
+      m_Socket.close();
+    }
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,1139 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    RuleSearch.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * Adaptation rules of one rule generation neighbourhood, stored as a
+ * primitive matrix, together with a top-l retrieval routine. A rule is the
+ * difference between two neighbours; its last attribute is the class
+ * adjustment, the others are its features.<p/>
+ *
+ * The features are normalised exactly like the EuclideanDistance of a
+ * LinearNNSearch set up on the rules (min/max ranges over all rules), so
+ * retrieval returns the same rules, including the ones tied with the l-th
+ * nearest. Features are stored in decreasing order of variance and the
+ * distance accumulation of a rule is abandoned as soon as it exceeds the
+ * current l-th nearest distance, so most rules are rejected after a few
+ * features.<p/>
+ *
+ * adjustmentSums() retrieves the rules for several difference vectors (the
+ * base cases of one query) in a single pass over the rule matrix: the
+ * rules are visited in tiles small enough to stay in cache, and each tile
+ * is scanned for every vector, with one top-l heap per vector.<p/>
+ *
+ * In lazy mode (see setLazy()) the rule matrix is never built: the
+ * neighbours are kept in a kd-tree (the pair index), and every search
+ * looks for the pairs (i, j) whose difference is nearest to the query
+ * directly in pair space: for each first case i, the nodes of the tree
+ * are visited nearest first and skipped when the ranges of their features
+ * prove that no pair with i can beat the current l-th nearest distance.
+ * The rule values and distances are computed exactly as for the matrix,
+ * so the same rules are retrieved, but building costs O(n d log n)
+ * instead of O(n^2 d), and a search visits the pairs near the query
+ * rather than all n (n - 1) rules. The sums of the adjustments of tied
+ * rules may be added up in a different order than with the matrix, and
+ * then differ in the last bits.<p/>
+ *
+ * With a compact precision (see setPrecision()), the rule matrix holds
+ * the normalised features in float32 or in int8 (256 steps of the [0, 1]
+ * range of a feature, i.e. its minimum and width over all rules as offset
+ * and scale) instead of double, and the class adjustments are not stored
+ * but taken from the neighbours, which are kept. The scan widens every
+ * value to double; as the error of a stored feature is bounded, so is the
+ * error of the scanned distance, and a rule whose scanned distance exceeds
+ * the l-th nearest distance by more than that is rejected. The remaining
+ * rules are re-ranked: their distance is computed in double from the
+ * neighbours, as the double matrix holds it, and offered to the heap.
+ * The heaps see the same offers as with the double matrix, so the same
+ * rules are retrieved.<p/>
+ *
+ * The buffers only grow, so a RuleSearch rebuilt for every query does not
+ * allocate once it has seen the largest neighbourhood.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class RuleSearch
+  implements RevisionHandler {
+
+  /** The number of rules. */
+  protected int m_NumRules;
+
+  /** The number of features per rule. */
+  protected int m_NumFeatures;
+
+  /** The attribute index of each feature, in decreasing order of variance. */
+  protected int[] m_Features = new int[0];
+
+  /** The minimum of each feature over all rules. */
+  protected double[] m_Min = new double[0];
+
+  /** The width of the range of each feature over all rules. */
+  protected double[] m_Width = new double[0];
+
+  /** Whether a feature is constant over all rules (and hence ignored). */
+  protected boolean[] m_Constant = new boolean[0];
+
+  /** The minimum of each attribute over all rules, in attribute order. */
+  protected double[] m_AttributeMin = new double[0];
+
+  /** The range width of each attribute over all rules, in attribute order. */
+  protected double[] m_AttributeWidth = new double[0];
+
+  /** The variance of each attribute over all rules relative to its range. */
+  protected double[] m_AttributeVariance = new double[0];
+
+  /** The normalised rule features, one row per rule. */
+  protected double[] m_Rules = new double[0];
+
+  /** The class adjustment of each rule. */
+  protected double[] m_Adjustments = new double[0];
+
+  /** The bytes per value of the rule matrix (8, 4 or 1). */
+  protected int m_Precision = 8;
+
+  /** The normalised rule features in float32, one row per rule. */
+  protected float[] m_FloatRules = new float[0];
+
+  /** The normalised rule features in int8 steps (unsigned), one row per rule. */
+  protected byte[] m_ByteRules = new byte[0];
+
+  /** The largest int8 step of a normalised feature. */
+  public static final int BYTE_STEPS = 255;
+
+  /** Bound of the rounding error of a scanned difference, besides the
+   * error of the stored feature. */
+  protected static final double SCAN_ERROR = 1e-12;
+
+  /** The normalised query features. */
+  protected double[] m_Query = new double[0];
+
+  /** The number of bytes of rule features per tile of adjustmentSums(). */
+  public static final int TILE_BYTES = 64 * 1024;
+
+  /** Whether rules are searched in pair space instead of a rule matrix. */
+  protected boolean m_Lazy;
+
+  /** The neighbours of lazy mode or of a compact matrix, one row of
+   * m_Stride values each. */
+  protected double[] m_Rows = new double[0];
+
+  /** The number of neighbours of lazy mode. */
+  protected int m_NumRows;
+
+  /** The number of attributes per neighbour (class last). */
+  protected int m_Stride;
+
+  /** The number of neighbours per leaf of the pair index. */
+  public static final int LEAF_SIZE = 8;
+
+  /** The neighbours of lazy mode, in the order of the pair index. */
+  protected int[] m_TreeOrder = new int[0];
+
+  /** The first position in m_TreeOrder of every node of the pair index. */
+  protected int[] m_NodeStart = new int[0];
+
+  /** The position after the last one of every node. */
+  protected int[] m_NodeEnd = new int[0];
+
+  /** The left child of every node, -1 for leaves. */
+  protected int[] m_NodeLeft = new int[0];
+
+  /** The right child of every node, -1 for leaves. */
+  protected int[] m_NodeRight = new int[0];
+
+  /** The minimum of every feature over every node, one row per node. */
+  protected double[] m_NodeMin = new double[0];
+
+  /** The maximum of every feature over every node, one row per node. */
+  protected double[] m_NodeMax = new double[0];
+
+  /** The number of nodes of the pair index. */
+  protected int m_NumNodes;
+
+  /** The heap used for retrieval. */
+  protected NeighbourHeap m_Heap = new NeighbourHeap();
+
+  /** The number of rules retrieved per vector by adjustmentSums(). */
+  protected int[] m_SpreadCount = new int[0];
+
+  /** The mean adjustment of the rules retrieved per vector. */
+  protected double[] m_SpreadMean = new double[0];
+
+  /** The sum of squared deviations from that mean, per vector. */
+  protected double[] m_SpreadM2 = new double[0];
+
+  /** Whether adjustmentSums() keeps the rules it retrieves. */
+  protected boolean m_Capture;
+
+  /** The rules kept by the last adjustmentSums(), vector after vector. */
+  protected int[] m_CapturedRules = new int[0];
+
+  /** The (squared) distances of the kept rules. */
+  protected double[] m_CapturedDistances = new double[0];
+
+  /** The position of the first kept rule of every vector, plus the end. */
+  protected int[] m_CapturedStart = new int[1];
+
+  /** The heaps used by adjustmentSums(), one per difference vector. */
+  protected NeighbourHeap[] m_Heaps = new NeighbourHeap[0];
+
+  /** The normalised difference vectors of adjustmentSums(), one row each. */
+  protected double[] m_Queries = new double[0];
+
+  /** The indices of the retrieved rules. */
+  protected int[] m_Retrieved = new int[0];
+
+  /** The distances of the retrieved rules. */
+  protected double[] m_RetrievedDistances = new double[0];
+
+  /** The number of feature differences computed by the last search. */
+  protected long m_LastCoordinates;
+
+  /**
+   * Creates an empty rule search; call build() before searching.
+   */
+  public RuleSearch() {
+  }
+
+  /**
+   * Creates the rules of a neighbourhood.
+   *
+   * @param rows the attribute values of the neighbours, one row each
+   * @param numRows the number of neighbours
+   * @param numAttributes the number of attributes (class last)
+   */
+  public RuleSearch(double[] rows, int numRows, int numAttributes) {
+
+    build(rows, numRows, numAttributes);
+  }
+
+  /**
+   * Generates the rules of a neighbourhood: the difference of every ordered
+   * pair of distinct neighbours, in the order EAR4.generateRules uses.
+   * Replaces the previous rules.
+   *
+   * @param rows the attribute values of the neighbours, one row each
+   * @param numRows the number of neighbours
+   * @param numAttributes the number of attributes (class last)
+   */
+  public void build(double[] rows, int numRows, int numAttributes) {
+
+    int classIndex = numAttributes - 1;
+    m_NumFeatures = numAttributes - 1;
+    m_NumRules = numRows * (numRows - 1);
+    m_NumRows = numRows;
+    m_Stride = numAttributes;
+    if (m_Features.length < m_NumFeatures) {
+      m_Features = new int[m_NumFeatures];
+      m_Min = new double[m_NumFeatures];
+      m_Width = new double[m_NumFeatures];
+      m_Constant = new boolean[m_NumFeatures];
+      m_AttributeMin = new double[m_NumFeatures];
+      m_AttributeWidth = new double[m_NumFeatures];
+      m_AttributeVariance = new double[m_NumFeatures];
+      m_Query = new double[m_NumFeatures];
+    }
+
+    // ranges over all pairwise differences follow from the neighbour ranges
+    double[] variance = m_AttributeVariance;
+    double[] min = m_AttributeMin;
+    double[] width = m_AttributeWidth;
+    for (int a = 0; a < m_NumFeatures; a++) {
+      double low = Double.POSITIVE_INFINITY;
+      double high = Double.NEGATIVE_INFINITY;
+      double sum = 0;
+      double sumSq = 0;
+      for (int i = 0; i < numRows; i++) {
+        double value = rows[i * numAttributes + a];
+        low = Math.min(low, value);
+        high = Math.max(high, value);
+        sum += value;
+        sumSq += value * value;
+      }
+      min[a] = low - high;
+      width[a] = (high - low) - min[a];
+      variance[a] = 0;
+      if (width[a] > 0) {
+        double mean = sum / numRows;
+        variance[a] = (sumSq / numRows - mean * mean) / (width[a] * width[a]);
+      }
+    }
+
+    // order the features by decreasing variance
+    for (int a = 0; a < m_NumFeatures; a++) {
+      int pos = a;
+      while ((pos > 0) && (variance[m_Features[pos - 1]] < variance[a])) {
+        m_Features[pos] = m_Features[pos - 1];
+        pos--;
+      }
+      m_Features[pos] = a;
+    }
+    for (int f = 0; f < m_NumFeatures; f++) {
+      int a = m_Features[f];
+      m_Min[f] = min[a];
+      m_Width[f] = width[a];
+      m_Constant[f] = (m_NumRules == 0) || !(width[a] > 0);
+    }
+    if (m_Lazy) {
+      buildPairIndex(rows);
+      return;
+    }
+    if (m_Precision != 8) {
+      buildCompactMatrix(rows);
+      return;
+    }
+
+    if (m_Adjustments.length < m_NumRules) {
+      m_Adjustments = new double[m_NumRules];
+      m_Rules = new double[m_NumRules * m_NumFeatures];
+    } else if (m_Rules.length < m_NumRules * m_NumFeatures) {
+      m_Rules = new double[m_NumRules * m_NumFeatures];
+    }
+    int rule = 0;
+    for (int i = 0; i < numRows; i++) {
+      for (int j = 0; j < numRows; j++) {
+        if (i == j) {
+          continue;
+        }
+        int first = i * numAttributes;
+        int second = j * numAttributes;
+        int offset = rule * m_NumFeatures;
+        for (int f = 0; f < m_NumFeatures; f++) {
+          int a = m_Features[f];
+          m_Rules[offset + f] = normalise(rows[first + a] - rows[second + a], f);
+        }
+        m_Adjustments[rule] = rows[first + classIndex] - rows[second + classIndex];
+        rule++;
+      }
+    }
+  }
+
+  /**
+   * Keeps the neighbours and fills the float32 or int8 rule matrix, in the
+   * order of the double matrix.
+   *
+   * @param rows the attribute values of the neighbours, one row each
+   */
+  protected void buildCompactMatrix(double[] rows) {
+
+    int length = m_NumRows * m_Stride;
+    if (m_Rows.length < length) {
+      m_Rows = new double[length];
+    }
+    System.arraycopy(rows, 0, m_Rows, 0, length);
+    int size = m_NumRules * m_NumFeatures;
+    if ((m_Precision == 4) && (m_FloatRules.length < size)) {
+      m_FloatRules = new float[size];
+    } else if ((m_Precision == 1) && (m_ByteRules.length < size)) {
+      m_ByteRules = new byte[size];
+    }
+    int offset = 0;
+    for (int i = 0; i < m_NumRows; i++) {
+      for (int j = 0; j < m_NumRows; j++) {
+        if (i == j) {
+          continue;
+        }
+        int first = i * m_Stride;
+        int second = j * m_Stride;
+        for (int f = 0; f < m_NumFeatures; f++, offset++) {
+          int a = m_Features[f];
+          double value = normalise(rows[first + a] - rows[second + a], f);
+          if (m_Precision == 4) {
+            m_FloatRules[offset] = (float) value;
+          } else {
+            long step = Math.round(value * BYTE_STEPS);
+            m_ByteRules[offset] = (byte) Math.max(0, Math.min(BYTE_STEPS, step));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Keeps the neighbours for lazy mode and indexes them in a kd-tree over
+   * their features (the pair index): every node splits its neighbours at
+   * the median of its widest feature, down to LEAF_SIZE neighbours, and
+   * keeps the range of every feature.
+   *
+   * @param rows the attribute values of the neighbours, one row each
+   */
+  protected void buildPairIndex(double[] rows) {
+
+    int length = m_NumRows * m_Stride;
+    if (m_Rows.length < length) {
+      m_Rows = new double[length];
+    }
+    System.arraycopy(rows, 0, m_Rows, 0, length);
+    if (m_TreeOrder.length < m_NumRows) {
+      // a binary tree has fewer than twice as many nodes as leaves
+      m_TreeOrder = new int[m_NumRows];
+      m_NodeStart = new int[2 * m_NumRows];
+      m_NodeEnd = new int[2 * m_NumRows];
+      m_NodeLeft = new int[2 * m_NumRows];
+      m_NodeRight = new int[2 * m_NumRows];
+    }
+    if (m_NodeMin.length < m_NodeStart.length * m_NumFeatures) {
+      m_NodeMin = new double[m_NodeStart.length * m_NumFeatures];
+      m_NodeMax = new double[m_NodeStart.length * m_NumFeatures];
+    }
+    for (int i = 0; i < m_NumRows; i++) {
+      m_TreeOrder[i] = i;
+    }
+    m_NumNodes = 0;
+    if (m_NumRows > 0) {
+      buildNode(0, m_NumRows);
+    }
+  }
+
+  /**
+   * Creates a node of the pair index and, unless it is a leaf, its
+   * children.
+   *
+   * @param start the first position in m_TreeOrder
+   * @param end the position after the last one
+   * @return the node
+   */
+  protected int buildNode(int start, int end) {
+
+    int node = m_NumNodes++;
+    m_NodeStart[node] = start;
+    m_NodeEnd[node] = end;
+    m_NodeLeft[node] = -1;
+    m_NodeRight[node] = -1;
+    int widest = -1;
+    double widestWidth = 0;
+    for (int f = 0; f < m_NumFeatures; f++) {
+      int a = m_Features[f];
+      double low = Double.POSITIVE_INFINITY;
+      double high = Double.NEGATIVE_INFINITY;
+      for (int p = start; p < end; p++) {
+        double value = m_Rows[m_TreeOrder[p] * m_Stride + a];
+        low = Math.min(low, value);
+        high = Math.max(high, value);
+      }
+      m_NodeMin[node * m_NumFeatures + f] = low;
+      m_NodeMax[node * m_NumFeatures + f] = high;
+      if (!m_Constant[f] && (high - low > widestWidth)) {
+        widest = f;
+        widestWidth = high - low;
+      }
+    }
+    if ((end - start <= LEAF_SIZE) || (widest < 0)) {
+      return node;
+    }
+
+    int middle = (start + end) >>> 1;
+    select(start, end, middle, m_Features[widest]);
+    m_NodeLeft[node] = buildNode(start, middle);
+    m_NodeRight[node] = buildNode(middle, end);
+    return node;
+  }
+
+  /**
+   * Reorders m_TreeOrder[start, end) so that position k holds the
+   * neighbour of rank k on an attribute, with no larger value before it
+   * and no smaller one after it (quickselect).
+   *
+   * @param start the first position
+   * @param end the position after the last one
+   * @param k the position to fill
+   * @param a the attribute
+   */
+  protected void select(int start, int end, int k, int a) {
+
+    int low = start;
+    int high = end - 1;
+    while (low < high) {
+      double pivot = m_Rows[m_TreeOrder[(low + high) >>> 1] * m_Stride + a];
+      int i = low;
+      int j = high;
+      while (i <= j) {
+        while (m_Rows[m_TreeOrder[i] * m_Stride + a] < pivot) {
+          i++;
+        }
+        while (m_Rows[m_TreeOrder[j] * m_Stride + a] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int swap = m_TreeOrder[i];
+          m_TreeOrder[i] = m_TreeOrder[j];
+          m_TreeOrder[j] = swap;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        high = j;
+      } else if (k >= i) {
+        low = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Sets whether rules are searched in pair space, without a rule matrix.
+   * Takes effect with the next build().
+   *
+   * @param lazy true for lazy mode
+   */
+  public void setLazy(boolean lazy) {
+
+    m_Lazy = lazy;
+  }
+
+  /**
+   * Returns whether rules are searched in pair space.
+   *
+   * @return true in lazy mode
+   */
+  public boolean getLazy() {
+
+    return m_Lazy;
+  }
+
+  /**
+   * Sets the precision of the rule matrix. Takes effect with the next
+   * build(); ignored in lazy mode, which keeps no matrix.
+   *
+   * @param bytesPerValue 8 for double, 4 for float32 or 1 for int8
+   */
+  public void setPrecision(int bytesPerValue) {
+
+    if ((bytesPerValue != 8) && (bytesPerValue != 4) && (bytesPerValue != 1)) {
+      throw new IllegalArgumentException("Unknown rule precision: "
+                                         + bytesPerValue + " bytes per value!");
+    }
+    m_Precision = bytesPerValue;
+  }
+
+  /**
+   * Returns the precision of the rule matrix.
+   *
+   * @return the bytes per value (8, 4 or 1)
+   */
+  public int getPrecision() {
+
+    return m_Precision;
+  }
+
+  /**
+   * Offers the rules in [start, end) to a heap, in rule order, abandoning
+   * a rule once its distance exceeds the bound of the heap.
+   *
+   * @param queries the normalised query features
+   * @param query the position of the query in queries
+   * @param start the first rule
+   * @param end the rule after the last one
+   * @param heap the heap
+   * @return the number of feature differences computed
+   */
+  protected long offerRules(double[] queries, int query, int start, int end,
+                            NeighbourHeap heap) {
+
+    if (m_Precision != 8) {
+      return offerCompactRules(queries, query, start, end, heap);
+    }
+    long coordinates = 0;
+    for (int r = start; r < end; r++) {
+      double bound = heap.bound();
+      int offset = r * m_NumFeatures;
+      double distance = 0;
+      int f = 0;
+      while (f < m_NumFeatures) {
+        double diff = queries[query + f] - m_Rules[offset + f];
+        distance += diff * diff;
+        f++;
+        if (distance > bound) {
+          break;
+        }
+      }
+      coordinates += f;
+      if (!(distance > bound)) {
+        heap.offer(r, distance);
+      }
+    }
+    return coordinates;
+  }
+
+  /**
+   * Offers the rules in [start, end) of a float32 or int8 matrix to a
+   * heap, in rule order. The distance of a rule is scanned with the stored
+   * features widened to double; every stored feature is within half an
+   * int8 step (or the float32 rounding) of the double one, so the scanned
+   * distance is within that error times the square root of the number of
+   * features (in Euclidean terms) of the double distance. A rule whose
+   * scanned distance exceeds the bound of the heap by more is rejected,
+   * the others are offered with their distance computed from the
+   * neighbours, as offerPair() does.
+   *
+   * @param queries the normalised query features
+   * @param query the position of the query in queries
+   * @param start the first rule
+   * @param end the rule after the last one
+   * @param heap the heap
+   * @return the number of feature differences computed, scanned and re-ranked
+   */
+  protected long offerCompactRules(double[] queries, int query, int start, int end,
+                                   NeighbourHeap heap) {
+
+    boolean floats = (m_Precision == 4);
+    double error = (floats ? Math.pow(2, -23) : 0.5 / BYTE_STEPS) + SCAN_ERROR;
+    double slack = error * Math.sqrt(m_NumFeatures);
+    double stepSize = 1.0 / BYTE_STEPS;
+    long coordinates = 0;
+    double bound = Double.NaN;
+    double threshold = Double.POSITIVE_INFINITY;
+    for (int r = start; r < end; r++) {
+      if (heap.bound() != bound) {
+        bound = heap.bound();
+        double root = Math.sqrt(bound) + slack;
+        threshold = root * root * (1 + SCAN_ERROR);
+      }
+      int offset = r * m_NumFeatures;
+      double scanned = 0;
+      int f = 0;
+      if (floats) {
+        while (f < m_NumFeatures) {
+          double diff = queries[query + f] - m_FloatRules[offset + f];
+          scanned += diff * diff;
+          f++;
+          if (scanned > threshold) {
+            break;
+          }
+        }
+      } else {
+        while (f < m_NumFeatures) {
+          double diff = queries[query + f] - (m_ByteRules[offset + f] & 0xFF) * stepSize;
+          scanned += diff * diff;
+          f++;
+          if (scanned > threshold) {
+            break;
+          }
+        }
+      }
+      coordinates += f;
+      if (!(scanned > threshold)) {
+        int i = first(r, m_NumRows);
+        coordinates += offerPair(queries, query, i, second(r, m_NumRows), heap);
+      }
+    }
+    return coordinates;
+  }
+
+  /**
+   * Offers the rules nearest to a query to a heap without a rule matrix
+   * (lazy mode). For every first case i, the pair index is searched for
+   * the second cases j whose rule (i, j) is nearest to the query, nearer
+   * child first. The range of a node's features bounds the rule values of
+   * its pairs with i (normalise() is monotone), which gives a lower bound
+   * of their distance in the same order of features and rounding; a node
+   * whose bound exceeds the bound of the heap holds no rule the matrix
+   * scan would keep.
+   *
+   * @param queries the normalised query features
+   * @param query the position of the query in queries
+   * @param heap the heap
+   * @return the number of feature differences computed
+   */
+  protected long offerPairs(double[] queries, int query, NeighbourHeap heap) {
+
+    if (m_NumFeatures == 0) {
+      for (int r = 0; r < m_NumRules; r++) {
+        heap.offer(r, 0);
+      }
+      return 0;
+    }
+    long coordinates = 0;
+    for (int i = 0; i < m_NumRows; i++) {
+      coordinates += offerNode(queries, query, i, 0, heap);
+    }
+    return coordinates;
+  }
+
+  /**
+   * Offers the rules (i, j) of the second cases j of a node of the pair
+   * index, visiting the child with the smaller lower bound first.
+   *
+   * @param queries the normalised query features
+   * @param query the position of the query in queries
+   * @param i the first case
+   * @param node the node
+   * @param heap the heap
+   * @return the number of feature differences computed
+   */
+  protected long offerNode(double[] queries, int query, int i, int node, NeighbourHeap heap) {
+
+    if (m_NodeLeft[node] < 0) {
+      long coordinates = 0;
+      for (int p = m_NodeStart[node]; p < m_NodeEnd[node]; p++) {
+        int j = m_TreeOrder[p];
+        if (j != i) {
+          coordinates += offerPair(queries, query, i, j, heap);
+        }
+      }
+      return coordinates;
+    }
+    int left = m_NodeLeft[node];
+    int right = m_NodeRight[node];
+    double leftBound = lowerBound(queries, query, i, left, heap.bound());
+    double rightBound = lowerBound(queries, query, i, right, heap.bound());
+    if (rightBound < leftBound) {
+      int swap = left;
+      left = right;
+      right = swap;
+      double swapBound = leftBound;
+      leftBound = rightBound;
+      rightBound = swapBound;
+    }
+    long coordinates = m_NumFeatures * 2;
+    if (!(leftBound > heap.bound())) {
+      coordinates += offerNode(queries, query, i, left, heap);
+    }
+    if (!(rightBound > heap.bound())) {
+      coordinates += offerNode(queries, query, i, right, heap);
+    }
+    return coordinates;
+  }
+
+  /**
+   * Returns a lower bound of the distance between the query and the rules
+   * (i, j) of the second cases j of a node, abandoning the accumulation
+   * once it exceeds a bound.
+   *
+   * @param queries the normalised query features
+   * @param query the position of the query in queries
+   * @param i the first case
+   * @param node the node
+   * @param bound the bound
+   * @return the lower bound (or a partial one that exceeds bound)
+   */
+  protected double lowerBound(double[] queries, int query, int i, int node, double bound) {
+
+    int first = i * m_Stride;
+    int offset = node * m_NumFeatures;
+    double lower = 0;
+    for (int f = 0; f < m_NumFeatures; f++) {
+      double anchor = m_Rows[first + m_Features[f]];
+      // the rule value falls as the second case rises
+      double low = normalise(anchor - m_NodeMax[offset + f], f);
+      double high = normalise(anchor - m_NodeMin[offset + f], f);
+      double q = queries[query + f];
+      double gap = (q < low) ? low - q : ((q > high) ? q - high : 0);
+      lower += gap * gap;
+      if (lower > bound) {
+        break;
+      }
+    }
+    return lower;
+  }
+
+  /**
+   * Offers the rule of a pair of neighbours to a heap, computing its
+   * distance as offerRules() does on the double matrix.
+   *
+   * @param queries the normalised query features
+   * @param query the position of the query in queries
+   * @param i the first case of the rule
+   * @param j the second case of the rule
+   * @param heap the heap
+   * @return the number of feature differences computed
+   */
+  protected int offerPair(double[] queries, int query, int i, int j, NeighbourHeap heap) {
+
+    double bound = heap.bound();
+    int first = i * m_Stride;
+    int second = j * m_Stride;
+    double distance = 0;
+    int f = 0;
+    while (f < m_NumFeatures) {
+      int a = m_Features[f];
+      double diff = queries[query + f] - normalise(m_Rows[first + a] - m_Rows[second + a], f);
+      distance += diff * diff;
+      f++;
+      if (distance > bound) {
+        break;
+      }
+    }
+    if (!(distance > bound)) {
+      heap.offer(i * (m_NumRows - 1) + ((j < i) ? j : j - 1), distance);
+    }
+    return f;
+  }
+
+
+  /**
+   * Normalises a feature value like NormalizableDistance.norm().
+   *
+   * @param value the value
+   * @param f the feature position
+   * @return the normalised value
+   */
+  protected double normalise(double value, int f) {
+
+    if (m_Constant[f]) {
+      return 0;
+    }
+    return (value - m_Min[f]) / m_Width[f];
+  }
+
+  /**
+   * Returns the number of rules.
+   *
+   * @return the number of rules
+   */
+  public int numRules() {
+
+    return m_NumRules;
+  }
+
+  /**
+   * Retrieves the l rules nearest to the given difference vector (plus the
+   * rules tied with the l-th nearest) and returns the sum of their class
+   * adjustments, added up nearest rule first.
+   *
+   * @param difference the difference between query and base case, indexed
+   * by attribute (the class value is ignored)
+   * @param l the number of rules to retrieve
+   * @return the sum of the adjustments of the retrieved rules
+   */
+  public double adjustmentSum(double[] difference, int l) {
+
+    for (int f = 0; f < m_NumFeatures; f++) {
+      m_Query[f] = normalise(difference[m_Features[f]], f);
+    }
+
+    m_Heap.reset(l);
+    if (m_Lazy) {
+      m_LastCoordinates = offerPairs(m_Query, 0, m_Heap);
+    } else {
+      m_LastCoordinates = offerRules(m_Query, 0, 0, m_NumRules, m_Heap);
+    }
+
+    int total = m_Heap.totalSize();
+    if (m_Retrieved.length < total) {
+      m_Retrieved = new int[Math.max(total, 2 * m_Retrieved.length)];
+      m_RetrievedDistances = new double[m_Retrieved.length];
+    }
+    m_Heap.extract(m_Retrieved, m_RetrievedDistances);
+    double sum = 0;
+    for (int i = 0; i < total; i++) {
+      sum += adjustment(m_Retrieved[i]);
+    }
+    return sum;
+  }
+
+  /**
+   * Retrieves the rules for several difference vectors at once; gives the
+   * same sums as calling adjustmentSum() for each vector, but passes over
+   * the rule matrix only once. The rules are scanned in tiles of
+   * TILE_BYTES of features; every tile is scanned for all vectors while it
+   * is in cache, each vector offering the rules to its own heap in rule
+   * order, as adjustmentSum() does.
+   *
+   * @param differences the difference vectors, one row of numAttributes
+   * values each, indexed by attribute (the class value is ignored)
+   * @param numVectors the number of difference vectors
+   * @param numAttributes the number of attributes per row
+   * @param l the number of rules to retrieve per vector
+   * @param sums receives the sum of the adjustments of the rules retrieved
+   * for each vector
+   */
+  public void adjustmentSums(double[] differences, int numVectors, int numAttributes,
+                             int l, double[] sums) {
+
+    if (m_Heaps.length < numVectors) {
+      NeighbourHeap[] heaps = new NeighbourHeap[numVectors];
+      System.arraycopy(m_Heaps, 0, heaps, 0, m_Heaps.length);
+      for (int q = m_Heaps.length; q < numVectors; q++) {
+        heaps[q] = new NeighbourHeap();
+      }
+      m_Heaps = heaps;
+    }
+    if (m_Queries.length < numVectors * m_NumFeatures) {
+      m_Queries = new double[numVectors * m_NumFeatures];
+    }
+    for (int q = 0; q < numVectors; q++) {
+      for (int f = 0; f < m_NumFeatures; f++) {
+        m_Queries[q * m_NumFeatures + f] =
+          normalise(differences[q * numAttributes + m_Features[f]], f);
+      }
+      m_Heaps[q].reset(l);
+    }
+
+    int tile = Math.max(1, TILE_BYTES / (m_Precision * Math.max(1, m_NumFeatures)));
+    long coordinates = 0;
+    if (m_Lazy) {
+      for (int q = 0; q < numVectors; q++) {
+        coordinates += offerPairs(m_Queries, q * m_NumFeatures, m_Heaps[q]);
+      }
+    } else {
+      for (int start = 0; start < m_NumRules; start += tile) {
+        int end = Math.min(m_NumRules, start + tile);
+        for (int q = 0; q < numVectors; q++) {
+          coordinates += offerRules(m_Queries, q * m_NumFeatures, start, end, m_Heaps[q]);
+        }
+      }
+    }
+    m_LastCoordinates = coordinates;
+
+    if (m_Capture && (m_CapturedStart.length < numVectors + 1)) {
+      m_CapturedStart = new int[numVectors + 1];
+    }
+    if (m_SpreadCount.length < numVectors) {
+      m_SpreadCount = new int[numVectors];
+      m_SpreadMean = new double[numVectors];
+      m_SpreadM2 = new double[numVectors];
+    }
+    for (int q = 0; q < numVectors; q++) {
+      NeighbourHeap heap = m_Heaps[q];
+      int total = heap.totalSize();
+      if (m_Retrieved.length < total) {
+        m_Retrieved = new int[Math.max(total, 2 * m_Retrieved.length)];
+        m_RetrievedDistances = new double[m_Retrieved.length];
+      }
+      heap.extract(m_Retrieved, m_RetrievedDistances);
+      // the sum, and Welford's running mean and squared deviations
+      double sum = 0;
+      double mean = 0;
+      double m2 = 0;
+      for (int i = 0; i < total; i++) {
+        double adjustment = adjustment(m_Retrieved[i]);
+        sum += adjustment;
+        double delta = adjustment - mean;
+        mean += delta / (i + 1);
+        m2 += delta * (adjustment - mean);
+      }
+      sums[q] = sum;
+      m_SpreadCount[q] = total;
+      m_SpreadMean[q] = mean;
+      m_SpreadM2[q] = m2;
+      if (m_Capture) {
+        capture(q, total);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of rules the last adjustmentSums() retrieved for a
+   * vector.
+   *
+   * @param q the vector
+   * @return the number of rules, including ties with the l-th nearest
+   */
+  public int spreadCount(int q) {
+
+    return m_SpreadCount[q];
+  }
+
+  /**
+   * Returns the mean adjustment of the rules the last adjustmentSums()
+   * retrieved for a vector.
+   *
+   * @param q the vector
+   * @return the mean, 0 if no rule was retrieved
+   */
+  public double spreadMean(int q) {
+
+    return m_SpreadMean[q];
+  }
+
+  /**
+   * Returns the sum of squared deviations from the mean of the adjustments
+   * of the rules the last adjustmentSums() retrieved for a vector.
+   *
+   * @param q the vector
+   * @return the sum of squared deviations
+   */
+  public double spreadM2(int q) {
+
+    return m_SpreadM2[q];
+  }
+
+  /**
+   * Appends the rules just extracted for a vector to the kept rules.
+   *
+   * @param q the vector
+   * @param total the number of rules extracted
+   */
+  protected void capture(int q, int total) {
+
+    int start = (q == 0) ? 0 : m_CapturedStart[q];
+    if (m_CapturedRules.length < start + total) {
+      int[] rules = new int[Math.max(start + total, 2 * m_CapturedRules.length)];
+      double[] distances = new double[rules.length];
+      System.arraycopy(m_CapturedRules, 0, rules, 0, start);
+      System.arraycopy(m_CapturedDistances, 0, distances, 0, start);
+      m_CapturedRules = rules;
+      m_CapturedDistances = distances;
+    }
+    System.arraycopy(m_Retrieved, 0, m_CapturedRules, start, total);
+    System.arraycopy(m_RetrievedDistances, 0, m_CapturedDistances, start, total);
+    m_CapturedStart[q] = start;
+    m_CapturedStart[q + 1] = start + total;
+  }
+
+  /**
+   * Sets whether adjustmentSums() keeps the rules it retrieves for every
+   * vector (see capturedStart()). Keeping them costs one copy of the
+   * retrieved indices and distances.
+   *
+   * @param capture true to keep the retrieved rules
+   */
+  public void setCapture(boolean capture) {
+
+    m_Capture = capture;
+  }
+
+  /**
+   * Returns the position of the first rule kept for a vector by the last
+   * adjustmentSums() with capture on; the rules of vector q are at
+   * positions capturedStart(q) to capturedStart(q + 1) - 1, nearest first.
+   *
+   * @param q the vector, or the number of vectors for the end
+   * @return the position
+   */
+  public int capturedStart(int q) {
+
+    return m_CapturedStart[q];
+  }
+
+  /**
+   * Returns a kept rule.
+   *
+   * @param position the position of the rule (see capturedStart())
+   * @return the index of the rule
+   */
+  public int capturedRule(int position) {
+
+    return m_CapturedRules[position];
+  }
+
+  /**
+   * Returns the (squared, normalised) distance of a kept rule.
+   *
+   * @param position the position of the rule (see capturedStart())
+   * @return the distance
+   */
+  public double capturedDistance(int position) {
+
+    return m_CapturedDistances[position];
+  }
+
+  /**
+   * Returns the class adjustment of a rule.
+   *
+   * @param rule the index of the rule
+   * @return the adjustment
+   */
+  public double adjustment(int rule) {
+
+    if (m_Lazy || (m_Precision != 8)) {
+      int classIndex = m_Stride - 1;
+      return m_Rows[first(rule, m_NumRows) * m_Stride + classIndex]
+        - m_Rows[second(rule, m_NumRows) * m_Stride + classIndex];
+    }
+    return m_Adjustments[rule];
+  }
+
+  /**
+   * Returns the neighbour a rule starts from: rule r of n neighbours is
+   * the difference between neighbour first(r) and neighbour second(r), in
+   * the order of the rows the rules were built from.
+   *
+   * @param rule the index of the rule
+   * @param numRows the number of rows the rules were built from
+   * @return the row of the first neighbour
+   */
+  public static int first(int rule, int numRows) {
+
+    return rule / (numRows - 1);
+  }
+
+  /**
+   * Returns the neighbour a rule is subtracted from (see first()).
+   *
+   * @param rule the index of the rule
+   * @param numRows the number of rows the rules were built from
+   * @return the row of the second neighbour
+   */
+  public static int second(int rule, int numRows) {
+
+    int first = rule / (numRows - 1);
+    int second = rule % (numRows - 1);
+    return (second < first) ? second : second + 1;
+  }
+
+  /**
+   * Returns the number of feature differences the last search (or
+   * multi-vector search) computed. An exhaustive search computes numRules()
+   * times the number of features per vector.
+   *
+   * @return the number of feature differences
+   */
+  public long lastCoordinateCount() {
+
+    return m_LastCoordinates;
+  }
+
+  /**
+   * Returns the bytes held for the rules: the rule matrix and the
+   * adjustments (or the kept neighbours of a compact matrix), or in lazy
+   * mode the kept neighbours and the pair index. Buffers keep the size of
+   * the largest neighbourhood seen.
+   *
+   * @return the bytes
+   */
+  public long ruleBytes() {
+
+    return 8L * (m_Rules.length + m_Adjustments.length + m_Rows.length
+                 + m_NodeMin.length + m_NodeMax.length)
+      + 4L * (m_FloatRules.length + m_TreeOrder.length + m_NodeStart.length
+              + m_NodeEnd.length + m_NodeLeft.length + m_NodeRight.length)
+      + m_ByteRules.length;
+  }
+
+  /**
+   * Returns the number of features per rule.
+   *
+   * @return the number of features
+   */
+  public int numFeatures() {
+
+    return m_NumFeatures;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    RunningMoments.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.io.Serializable;
+
+/**
+ * Mean and covariance of a stream of vectors, updated one vector at a time
+ * with Welford's method: the mean and the matrix of co-moments (sums of
+ * products of deviations from the mean) are corrected for every vector,
+ * which is numerically stable and needs no second pass over the data.
+ * Adding a vector costs O(d^2).
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class RunningMoments
+  implements Serializable, RevisionHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = 5038816524277469211L;
+
+  /** The number of dimensions. */
+  protected int m_Dimensions;
+
+  /** The number of vectors added. */
+  protected long m_Count;
+
+  /** The mean of every dimension. */
+  protected double[] m_Mean;
+
+  /** The co-moments, upper triangle (row i holds columns i..d-1). */
+  protected double[][] m_CoMoments;
+
+  /** Buffer for the deviations of the vector being added. */
+  protected double[] m_Delta;
+
+  /**
+   * Creates the moments of an empty stream.
+   *
+   * @param dimensions the number of dimensions
+   */
+  public RunningMoments(int dimensions) {
+
+    m_Dimensions = dimensions;
+    m_Mean = new double[dimensions];
+    m_CoMoments = new double[dimensions][];
+    for (int i = 0; i < dimensions; i++) {
+      m_CoMoments[i] = new double[dimensions - i];
+    }
+    m_Delta = new double[dimensions];
+  }
+
+  /**
+   * Adds a vector.
+   *
+   * @param values the vector
+   */
+  public void add(double[] values) {
+
+    m_Count++;
+    for (int i = 0; i < m_Dimensions; i++) {
+      m_Delta[i] = values[i] - m_Mean[i];
+      m_Mean[i] += m_Delta[i] / m_Count;
+    }
+    for (int i = 0; i < m_Dimensions; i++) {
+      // (x_i - old mean_i) * (x_j - new mean_j)
+      double[] row = m_CoMoments[i];
+      for (int j = i; j < m_Dimensions; j++) {
+        row[j - i] += m_Delta[i] * (values[j] - m_Mean[j]);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of vectors added.
+   *
+   * @return the count
+   */
+  public long count() {
+
+    return m_Count;
+  }
+
+  /**
+   * Returns the number of dimensions.
+   *
+   * @return the dimensions
+   */
+  public int dimensions() {
+
+    return m_Dimensions;
+  }
+
+  /**
+   * Returns the mean of a dimension.
+   *
+   * @param i the dimension
+   * @return the mean, 0 if no vector has been added
+   */
+  public double mean(int i) {
+
+    return m_Mean[i];
+  }
+
+  /**
+   * Returns the sample covariance of two dimensions.
+   *
+   * @param i the first dimension
+   * @param j the second dimension
+   * @return the covariance, 0 if fewer than two vectors have been added
+   */
+  public double covariance(int i, int j) {
+
+    if (m_Count < 2) {
+      return 0;
+    }
+    if (i > j) {
+      int swap = i;
+      i = j;
+      j = swap;
+    }
+    return m_CoMoments[i][j - i] / (m_Count - 1);
+  }
+
+  /**
+   * Returns the sample variance of a dimension.
+   *
+   * @param i the dimension
+   * @return the variance, 0 if fewer than two vectors have been added
+   */
+  public double variance(int i) {
+
+    return covariance(i, i);
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,948 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ScratchArena.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread working memory of the EAR4 prediction path: neighbour indices
+ * and distances, neighbour rows, the rule matrix and the top-l heaps. The
+ * buffers grow to the largest neighbourhood seen and are then reused, so a
+ * prediction in steady state does not allocate. An arena must only be used
+ * by one thread at a time; its buffers are only changed through its
+ * methods, which load the query and the neighbours, select the base cases
+ * and adapt them.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class ScratchArena
+  implements RevisionHandler {
+
+  /** The attribute values of the query. */
+  protected double[] m_Query = new double[0];
+
+  /** The normalised attribute values of the query, then room for the
+   * coefficients of the scan of sealed chunks (see CaseBase.nearest()). */
+  protected double[] m_Normalised = new double[0];
+
+  /** The differences between the query and the base cases, one row each. */
+  protected double[] m_Difference = new double[0];
+
+  /** The sum of the adjustments of the rules retrieved per base case. */
+  protected double[] m_Adjustments = new double[0];
+
+  /** The case base indices of the retrieved neighbours, nearest first. */
+  protected int[] m_Indices = new int[0];
+
+  /** The (squared) distances of the retrieved neighbours. */
+  protected double[] m_Distances = new double[0];
+
+  /** The attribute values of the retrieved neighbours, nearest first. */
+  protected double[] m_Rows = new double[0];
+
+  /** The neighbour order sorted lexicographically on the attribute values. */
+  protected int[] m_Order = new int[0];
+
+  /** The attribute values of the neighbours, in canonical order. */
+  protected double[] m_Canonical = new double[0];
+
+  /** The canonical neighbourhood the current rules were generated from. */
+  protected double[] m_RulesNeighbourhood = new double[0];
+
+  /** The number of values in m_RulesNeighbourhood, -1 if there are no rules. */
+  protected int m_RulesLength = -1;
+
+  /** The heap used for base case retrieval. */
+  protected NeighbourHeap m_Heap = new NeighbourHeap();
+
+  /** The rules of the current neighbourhood and their retrieval heap. */
+  protected RuleSearch m_Rules = new RuleSearch();
+
+  /** Selects the base cases among the neighbours in m_Rows. */
+  protected NeighbourSelector m_Selector = new NeighbourSelector();
+
+  /** Whether m_Distances holds squared distances (as retrieve() leaves them). */
+  protected boolean m_SquaredDistances;
+
+  /** The size of the neighbourhood of the last prediction. */
+  protected int m_LastNeighbours;
+
+  /** The number of base cases of the last prediction (more than k when ties share a slot). */
+  protected int m_LastBaseCases;
+
+  /** The number of candidate predictions (base case plus one rule) of the last prediction. */
+  protected long m_LastCandidates;
+
+  /** The mean of the candidate predictions of the last prediction. */
+  protected double m_LastCandidateMean;
+
+  /** The sum of squared deviations from that mean. */
+  protected double m_LastCandidateM2;
+
+  /** Whether the last prediction reused the rules of the one before. */
+  protected boolean m_LastReused;
+
+  /** The rule features compared by the last prediction. */
+  protected long m_LastCoordinates;
+
+  /** The rule features an exhaustive rule search would have compared. */
+  protected long m_LastCoordinateTotal;
+
+  /** The cost estimates of the prediction stages on this arena's thread. */
+  protected StageTimes m_Times = new StageTimes();
+
+  /** The largest number of bytes the rules of this arena have held. */
+  protected long m_PeakRuleBytes;
+
+  /** The bytes allocated by the predictions measured on this arena's thread. */
+  protected long m_AllocatedBytes;
+
+  /** The number of predictions measured on this arena's thread. */
+  protected long m_MeasuredPredictions;
+
+  /** The number of neighbourhoods adapted from with this arena. */
+  protected long m_NeighbourhoodCount;
+
+  /** The number of those neighbourhoods whose rules were reused. */
+  protected long m_ReuseCount;
+
+  /** The number of rule features compared with this arena. */
+  protected long m_CoordinateCount;
+
+  /** The number of rule features exhaustive rule searches would have compared. */
+  protected long m_CoordinateTotal;
+
+  /**
+   * Makes sure the buffers can hold the given neighbourhood.
+   *
+   * @param numNeighbours the number of neighbours
+   * @param numAttributes the number of attributes per neighbour
+   */
+  public void ensureCapacity(int numNeighbours, int numAttributes) {
+
+    if (m_Query.length < numAttributes) {
+      m_Query = new double[numAttributes];
+      m_Normalised = new double[3 * numAttributes];
+    }
+    if (m_Indices.length < numNeighbours) {
+      m_Indices = new int[numNeighbours];
+      m_Distances = new double[numNeighbours];
+      m_Order = new int[numNeighbours];
+      m_Adjustments = new double[numNeighbours];
+    }
+    int size = numNeighbours * numAttributes;
+    if (m_Rows.length < size) {
+      m_Rows = new double[size];
+      m_Canonical = new double[size];
+      m_Difference = new double[size];
+      double[] previous = m_RulesNeighbourhood;
+      m_RulesNeighbourhood = new double[size];
+      if (m_RulesLength > 0) {
+        System.arraycopy(previous, 0, m_RulesNeighbourhood, 0, m_RulesLength);
+      }
+    }
+  }
+
+  /**
+   * Retrieves the k cases nearest to m_Query (plus the ones tied with the
+   * k-th nearest) from a case base into m_Rows, nearest first, with their
+   * indices and squared distances in m_Indices and m_Distances.
+   *
+   * @param cases the case base
+   * @param ranges the attribute ranges to normalise with
+   * @param k the number of cases to retrieve
+   * @return the number of cases retrieved
+   */
+  public int retrieve(CaseBase cases, double[][] ranges, int k) {
+
+    int numAttributes = cases.numAttributes();
+    cases.nearest(m_Query, m_Normalised, ranges, k, m_Heap);
+    int numNeighbours = m_Heap.totalSize();
+    ensureCapacity(numNeighbours, numAttributes);
+    m_Heap.extract(m_Indices, m_Distances);
+    m_SquaredDistances = true;
+    for (int i = 0; i < numNeighbours; i++) {
+      cases.copyCase(m_Indices[i], m_Rows, i * numAttributes);
+    }
+    return numNeighbours;
+  }
+
+  /**
+   * Sets the query to the values of an instance.
+   *
+   * @param instance the query, with as many attributes as the cases
+   */
+  public void setQuery(Instance instance) {
+
+    int numAttributes = instance.numAttributes();
+    ensureCapacity(0, numAttributes);
+    for (int a = 0; a < numAttributes; a++) {
+      m_Query[a] = instance.value(a);
+    }
+  }
+
+  /**
+   * Sets the query to the given values.
+   *
+   * @param values the values of the query
+   * @param numAttributes the number of attributes
+   */
+  public void setQuery(double[] values, int numAttributes) {
+
+    ensureCapacity(0, numAttributes);
+    System.arraycopy(values, 0, m_Query, 0, numAttributes);
+  }
+
+  /**
+   * Sets the query to a case of a case base.
+   *
+   * @param cases the case base
+   * @param index the index of the case
+   */
+  public void setQuery(CaseBase cases, int index) {
+
+    ensureCapacity(0, cases.numAttributes());
+    cases.copyCase(index, m_Query, 0);
+  }
+
+  /**
+   * Sets how the base cases tied with the k-th nearest are selected.
+   *
+   * @param policy the tie handling policy of NeighbourSelector
+   */
+  public void setTieHandling(int policy) {
+
+    m_Selector.setPolicy(policy);
+  }
+
+  /**
+   * Searches the k cases nearest to the query (plus the ones tied with the
+   * k-th nearest) without loading them as neighbours; the candidates are
+   * then taken with extractNearest().
+   *
+   * @param cases the case base
+   * @param ranges the attribute ranges to normalise with
+   * @param k the number of cases to search
+   * @return the number of cases found
+   */
+  public int searchNearest(CaseBase cases, double[][] ranges, int k) {
+
+    ensureCapacity(0, cases.numAttributes());
+    cases.nearest(m_Query, m_Normalised, ranges, k, m_Heap);
+    return m_Heap.totalSize();
+  }
+
+  /**
+   * Takes the cases found by searchNearest(), nearest first.
+   *
+   * @param indices receives the case base indices
+   * @param distances receives the squared distances
+   */
+  public void extractNearest(int[] indices, double[] distances) {
+
+    m_Heap.extract(indices, distances);
+  }
+
+  /**
+   * Loads the neighbours a Weka search returned, nearest first.
+   *
+   * @param neighbours the neighbours
+   * @param distances their (not squared) distances
+   * @param indexed whether to record each neighbour's position within
+   * neighbours as its index (otherwise -1)
+   * @return the number of neighbours
+   */
+  public int loadNeighbours(Instances neighbours, double[] distances, boolean indexed) {
+
+    int numNeighbours = neighbours.numInstances();
+    int numAttributes = neighbours.numAttributes();
+    ensureCapacity(numNeighbours, numAttributes);
+    for (int i = 0; i < numNeighbours; i++) {
+      Instance neighbour = neighbours.instance(i);
+      for (int a = 0; a < numAttributes; a++) {
+        m_Rows[i * numAttributes + a] = neighbour.value(a);
+      }
+      m_Distances[i] = distances[i];
+      m_Indices[i] = indexed ? i : -1;
+    }
+    m_SquaredDistances = false;
+    return numNeighbours;
+  }
+
+  /**
+   * Loads a case of a case base as the neighbour at the given position.
+   * The capacity must have been ensured for the neighbourhood.
+   *
+   * @param position the position among the neighbours, nearest first
+   * @param cases the case base
+   * @param index the index of the case
+   * @param distance the squared distance of the case
+   */
+  public void loadNeighbour(int position, CaseBase cases, int index, double distance) {
+
+    m_Indices[position] = index;
+    m_Distances[position] = distance;
+    cases.copyCase(index, m_Rows, position * cases.numAttributes());
+    m_SquaredDistances = true;
+  }
+
+  /**
+   * Merges the neighbour lists of the shards of a case base into its k
+   * nearest cases (plus the ones tied with the k-th nearest), which become
+   * the neighbours, nearest first. Ties are resolved in global case order,
+   * as a scan of the whole case base does.
+   *
+   * @param lists the neighbour list of every shard
+   * @param offsets the global index of the first case of every shard
+   * @param k the number of neighbours
+   * @param numAttributes the number of attributes per neighbour
+   * @return the number of neighbours
+   */
+  public int merge(ShardNeighbours[] lists, int[] offsets, int k, int numAttributes) {
+
+    int total = 0;
+    for (int s = 0; s < lists.length; s++) {
+      total += lists[s].m_Count;
+    }
+    // candidates in global case order: global index in the high bits,
+    // shard and position in the low bits
+    long[] order = new long[total];
+    int[] shardOf = new int[total];
+    int[] positionOf = new int[total];
+    double[] distances = new double[total];
+    int c = 0;
+    for (int s = 0; s < lists.length; s++) {
+      for (int i = 0; i < lists[s].m_Count; i++) {
+        shardOf[c] = s;
+        positionOf[c] = i;
+        distances[c] = lists[s].m_Distances[i];
+        order[c] = ((long) (offsets[s] + lists[s].m_Indices[i]) << 32) | c;
+        c++;
+      }
+    }
+    Arrays.sort(order);
+
+    m_Heap.reset(k);
+    for (int i = 0; i < total; i++) {
+      int candidate = (int) (order[i] & 0xffffffffL);
+      if (!(distances[candidate] > m_Heap.bound())) {
+        m_Heap.offer(candidate, distances[candidate]);
+      }
+    }
+    int numNeighbours = m_Heap.totalSize();
+    ensureCapacity(numNeighbours, numAttributes);
+    m_Heap.extract(m_Indices, m_Distances);
+    m_SquaredDistances = true;
+    for (int i = 0; i < numNeighbours; i++) {
+      int candidate = m_Indices[i];
+      System.arraycopy(lists[shardOf[candidate]].m_Rows,
+                       positionOf[candidate] * numAttributes,
+                       m_Rows, i * numAttributes, numAttributes);
+    }
+    return numNeighbours;
+  }
+
+  /**
+   * Selects the base cases among the neighbours (see NeighbourSelector),
+   * moving them to the front.
+   *
+   * @param numNeighbours the number of neighbours
+   * @param numAttributes the number of attributes per neighbour
+   * @param k the number of base cases
+   * @return the number of base cases selected
+   */
+  public int select(int numNeighbours, int numAttributes, int k) {
+
+    return m_Selector.select(m_Rows, m_Distances, m_Indices, numNeighbours,
+                             numAttributes, k, m_SquaredDistances);
+  }
+
+  /**
+   * Returns the index of a neighbour: its case base index, its position in
+   * the neighbours loaded from a search, or -1 if unknown.
+   *
+   * @param i the position of the neighbour, nearest first
+   * @return the index
+   */
+  public int neighbourIndex(int i) {
+
+    return m_Indices[i];
+  }
+
+  /**
+   * Returns the distance of a neighbour, squared if it came from a case
+   * base scan (see hasSquaredDistances()).
+   *
+   * @param i the position of the neighbour, nearest first
+   * @return the distance
+   */
+  public double neighbourDistance(int i) {
+
+    return m_Distances[i];
+  }
+
+  /**
+   * Returns whether the neighbour distances are squared.
+   *
+   * @return true if squared
+   */
+  public boolean hasSquaredDistances() {
+
+    return m_SquaredDistances;
+  }
+
+  /**
+   * Returns the target value of a neighbour.
+   *
+   * @param i the position of the neighbour, nearest first
+   * @param numAttributes the number of attributes per neighbour (class last)
+   * @return the target value
+   */
+  public double neighbourTarget(int i, int numAttributes) {
+
+    return m_Rows[i * numAttributes + numAttributes - 1];
+  }
+
+  /**
+   * Returns the neighbour at a position of the canonical order the rules
+   * were generated in.
+   *
+   * @param position the position in canonical order
+   * @return the position of the neighbour, nearest first
+   */
+  public int canonicalNeighbour(int position) {
+
+    return m_Order[position];
+  }
+
+  /**
+   * Returns the weight of a selected base case.
+   *
+   * @param i the position of the base case
+   * @return the weight, 1 unless the base case shares the k-th slot
+   */
+  public double weight(int i) {
+
+    return m_Selector.weight(i);
+  }
+
+  /**
+   * Returns the rules of the current neighbourhood.
+   *
+   * @return the rules
+   */
+  public RuleSearch rules() {
+
+    return m_Rules;
+  }
+
+  /**
+   * Records the duration of a prediction stage run on this arena's thread.
+   *
+   * @param stage the stage (see StageTimes)
+   * @param nanos the duration
+   * @param size the size of the work done
+   */
+  public void recordStage(int stage, long nanos, long size) {
+
+    m_Times.record(stage, nanos, size);
+  }
+
+  /**
+   * Returns the size of the neighbourhood of the last prediction.
+   *
+   * @return the number of neighbours
+   */
+  public int lastNeighbours() {
+
+    return m_LastNeighbours;
+  }
+
+  /**
+   * Returns the number of base cases of the last prediction.
+   *
+   * @return the number of base cases, more than k when ties share a slot
+   */
+  public int lastBaseCases() {
+
+    return m_LastBaseCases;
+  }
+
+  /**
+   * Returns the number of candidate predictions of the last prediction.
+   *
+   * @return the number of candidates
+   */
+  public long lastCandidates() {
+
+    return m_LastCandidates;
+  }
+
+  /**
+   * Returns the mean of the candidate predictions of the last prediction.
+   *
+   * @return the mean
+   */
+  public double lastCandidateMean() {
+
+    return m_LastCandidateMean;
+  }
+
+  /**
+   * Returns the sum of squared deviations of the candidate predictions of
+   * the last prediction from their mean.
+   *
+   * @return the sum of squared deviations
+   */
+  public double lastCandidateM2() {
+
+    return m_LastCandidateM2;
+  }
+
+  /**
+   * Returns whether the last prediction reused the rules of the one before.
+   *
+   * @return true if reused
+   */
+  public boolean lastReused() {
+
+    return m_LastReused;
+  }
+
+  /**
+   * Returns the rule features compared by the last prediction.
+   *
+   * @return the number of rule features
+   */
+  public long lastCoordinates() {
+
+    return m_LastCoordinates;
+  }
+
+  /**
+   * Returns the rule features an exhaustive rule search would have
+   * compared for the last prediction.
+   *
+   * @return the number of rule features
+   */
+  public long lastCoordinateTotal() {
+
+    return m_LastCoordinateTotal;
+  }
+
+  /**
+   * Returns the statistics accumulated by this arena.
+   *
+   * @return the number of neighbourhoods, of reused neighbourhoods, of rule
+   * features compared, of rule features an exhaustive search compares, of
+   * bytes allocated by measured predictions, of measured predictions and
+   * the largest rule bytes
+   */
+  public long[] statistics() {
+
+    return new long[] {m_NeighbourhoodCount, m_ReuseCount, m_CoordinateCount,
+                       m_CoordinateTotal, m_AllocatedBytes, m_MeasuredPredictions,
+                       m_PeakRuleBytes};
+  }
+
+  /**
+   * Predicts the target value of m_Query from the neighbourhood in m_Rows:
+   * selects the kNN base cases with m_Selector, generates (or reuses) the
+   * rules of the neighbourhood and adds the adjustment of the l nearest
+   * rules to each base case. The estimates are averaged over the base
+   * cases actually found, fewer than kNN if the neighbourhood is smaller.
+   * The statistics of the prediction are left in m_LastReused,
+   * m_LastCoordinates and m_LastCoordinateTotal, and added to the counts
+   * of the arena.
+   *
+   * @param numNeighbours the number of neighbours in m_Rows
+   * @param numAttributes the number of attributes per neighbour (class last)
+   * @param kNN the number of base cases
+   * @param l the number of rules applied per base case
+   * @return the predicted target value
+   */
+  public double adapt(int numNeighbours, int numAttributes, int kNN, int l) {
+
+    int classIndex = numAttributes - 1;
+    int numBaseCases = select(numNeighbours, numAttributes, kNN);
+    canonicalise(numNeighbours, numAttributes);
+    m_LastReused = prepareRules(numNeighbours, numAttributes);
+    m_LastNeighbours = numNeighbours;
+    m_LastBaseCases = numBaseCases;
+    m_LastCoordinates = 0;
+    m_LastCoordinateTotal = 0;
+
+    if (l > 0) {
+      // the rules for all base cases in one pass over the rule matrix
+      for (int i = 0; i < numBaseCases * numAttributes; i++) {
+        m_Difference[i] = m_Query[i % numAttributes] - m_Rows[i];
+      }
+      m_Rules.adjustmentSums(m_Difference, numBaseCases, numAttributes, l, m_Adjustments);
+      m_LastCoordinates = m_Rules.lastCoordinateCount();
+      m_LastCoordinateTotal = (long) numBaseCases * m_Rules.numRules() * m_Rules.numFeatures();
+    }
+    double prediction = 0;
+    m_LastCandidates = 0;
+    m_LastCandidateMean = 0;
+    m_LastCandidateM2 = 0;
+    for (int i = 0; i < numBaseCases; i++) {
+      double adjustment = 0;
+      if (l > 0) {
+        adjustment = m_Adjustments[i] / l;
+      }
+      double target = m_Rows[i * numAttributes + classIndex];
+      prediction += m_Selector.weight(i) * (target + adjustment);
+
+      // merge the spread of the candidates of this base case (its target
+      // plus each rule's adjustment, or the target alone without rules)
+      long count = 1;
+      double mean = target;
+      double m2 = 0;
+      if ((l > 0) && (m_Rules.spreadCount(i) > 0)) {
+        count = m_Rules.spreadCount(i);
+        mean = target + m_Rules.spreadMean(i);
+        m2 = m_Rules.spreadM2(i);
+      }
+      long merged = m_LastCandidates + count;
+      double delta = mean - m_LastCandidateMean;
+      m_LastCandidateMean += delta * count / merged;
+      m_LastCandidateM2 += m2 + delta * delta * m_LastCandidates * count / merged;
+      m_LastCandidates = merged;
+    }
+    countNeighbourhood(m_LastReused);
+    m_CoordinateCount += m_LastCoordinates;
+    m_CoordinateTotal += m_LastCoordinateTotal;
+    return prediction / Math.min(kNN, numBaseCases);
+  }
+
+  /**
+   * Predicts the target value of m_Query from the neighbourhood in m_Rows
+   * like adapt(), but stops refining when the next stage is not expected
+   * to finish before the deadline. The mean target of the base cases is
+   * the first estimate; the rules are generated only if m_Times expects
+   * them to fit, and then the base cases are adapted one at a time,
+   * nearest first, while the next one is expected to fit. The stages run
+   * are timed into m_Times. A partial prediction averages the base cases
+   * adapted so far by their weights. With every base case adapted the
+   * prediction equals that of adapt().
+   *
+   * @param numNeighbours the number of neighbours in m_Rows
+   * @param numAttributes the number of attributes per neighbour (class last)
+   * @param kNN the number of base cases
+   * @param l the number of rules applied per base case
+   * @param start the System.nanoTime() at which the prediction started
+   * @param deadline the System.nanoTime() by which to answer
+   * @return the prediction and how far it got
+   */
+  public AnytimePrediction adaptWithin(int numNeighbours, int numAttributes, int kNN,
+                                       int l, long start, long deadline) {
+
+    int classIndex = numAttributes - 1;
+    int numBaseCases = select(numNeighbours, numAttributes, kNN);
+    double targets = 0;
+    double weights = 0;
+    for (int i = 0; i < numBaseCases; i++) {
+      targets += m_Selector.weight(i) * m_Rows[i * numAttributes + classIndex];
+      weights += m_Selector.weight(i);
+    }
+    m_LastNeighbours = numNeighbours;
+    m_LastBaseCases = numBaseCases;
+    m_LastReused = false;
+    m_LastCoordinates = 0;
+    m_LastCoordinateTotal = 0;
+    if (l <= 0) {
+      // nothing to refine: the mean target is the prediction
+      return new AnytimePrediction(targets / Math.min(kNN, numBaseCases), true,
+                                   numBaseCases, numBaseCases,
+                                   System.nanoTime() - start);
+    }
+
+    // the rules, if they are reusable or expected to be generated in time
+    long now = System.nanoTime();
+    canonicalise(numNeighbours, numAttributes);
+    int length = numNeighbours * numAttributes;
+    long numRules = (long) numNeighbours * (numNeighbours - 1);
+    if (sameNeighbourhood(length)) {
+      m_LastReused = true;
+    } else if (now + m_Times.estimate(StageTimes.RULES, numRules) <= deadline) {
+      buildRules(numNeighbours, numAttributes);
+      long built = System.nanoTime();
+      m_Times.record(StageTimes.RULES, built - now, numRules);
+      now = built;
+    } else {
+      m_Times.skipped(StageTimes.RULES);
+      return new AnytimePrediction(targets / weights, false, 0, numBaseCases,
+                                   now - start);
+    }
+    countNeighbourhood(m_LastReused);
+
+    // the base cases, nearest first, while the next one fits
+    double prediction = 0;
+    double adaptedWeights = 0;
+    int adapted = 0;
+    while ((adapted < numBaseCases)
+           && (now + m_Times.estimate(StageTimes.ADAPTATION, m_Rules.numRules()) <= deadline)) {
+      int row = adapted * numAttributes;
+      for (int a = 0; a < numAttributes; a++) {
+        m_Difference[a] = m_Query[a] - m_Rows[row + a];
+      }
+      double adjustment = m_Rules.adjustmentSum(m_Difference, l) / l;
+      prediction += m_Selector.weight(adapted) * (m_Rows[row + classIndex] + adjustment);
+      adaptedWeights += m_Selector.weight(adapted);
+      m_LastCoordinates += m_Rules.lastCoordinateCount();
+      adapted++;
+      long done = System.nanoTime();
+      m_Times.record(StageTimes.ADAPTATION, done - now, m_Rules.numRules());
+      now = done;
+    }
+    if (adapted < numBaseCases) {
+      m_Times.skipped(StageTimes.ADAPTATION);
+    }
+    m_LastCoordinateTotal = (long) adapted * m_Rules.numRules() * m_Rules.numFeatures();
+    m_CoordinateCount += m_LastCoordinates;
+    m_CoordinateTotal += m_LastCoordinateTotal;
+    if (adapted == 0) {
+      prediction = targets / weights;
+    } else if (adapted < numBaseCases) {
+      prediction /= adaptedWeights;
+    } else {
+      prediction /= Math.min(kNN, numBaseCases);
+    }
+    return new AnytimePrediction(prediction, true, adapted, numBaseCases, now - start);
+  }
+
+  /**
+   * Counts a rule generation neighbourhood.
+   *
+   * @param reused whether the rules of the neighbourhood were reused
+   */
+  public void countNeighbourhood(boolean reused) {
+
+    m_NeighbourhoodCount++;
+    if (reused) {
+      m_ReuseCount++;
+    }
+  }
+
+  /**
+   * Sorts the first numNeighbours rows of m_Rows lexicographically into
+   * m_Canonical (m_Order receives the permutation).
+   *
+   * @param numNeighbours the number of neighbours
+   * @param numAttributes the number of attributes per neighbour
+   */
+  public void canonicalise(int numNeighbours, int numAttributes) {
+
+    for (int i = 0; i < numNeighbours; i++) {
+      m_Order[i] = i;
+    }
+    // heap sort, so that no temporary storage is needed
+    for (int i = numNeighbours / 2 - 1; i >= 0; i--) {
+      siftDown(i, numNeighbours, numAttributes);
+    }
+    for (int end = numNeighbours - 1; end > 0; end--) {
+      int tmp = m_Order[0];
+      m_Order[0] = m_Order[end];
+      m_Order[end] = tmp;
+      siftDown(0, end, numAttributes);
+    }
+    for (int i = 0; i < numNeighbours; i++) {
+      System.arraycopy(m_Rows, m_Order[i] * numAttributes, m_Canonical,
+                       i * numAttributes, numAttributes);
+    }
+  }
+
+  /**
+   * Restores the max-heap property of m_Order below the given position.
+   *
+   * @param pos the position
+   * @param size the size of the heap
+   * @param numAttributes the number of attributes per neighbour
+   */
+  protected void siftDown(int pos, int size, int numAttributes) {
+
+    while (2 * pos + 1 < size) {
+      int child = 2 * pos + 1;
+      if ((child + 1 < size)
+          && (compareRows(m_Order[child + 1], m_Order[child], numAttributes) > 0)) {
+        child++;
+      }
+      if (compareRows(m_Order[child], m_Order[pos], numAttributes) <= 0) {
+        return;
+      }
+      int tmp = m_Order[pos];
+      m_Order[pos] = m_Order[child];
+      m_Order[child] = tmp;
+      pos = child;
+    }
+  }
+
+  /**
+   * Compares two rows of m_Rows lexicographically.
+   *
+   * @param i the first row
+   * @param j the second row
+   * @param numAttributes the number of attributes per row
+   * @return negative, zero or positive as row i sorts before, with or after
+   * row j
+   */
+  protected int compareRows(int i, int j, int numAttributes) {
+
+    int first = i * numAttributes;
+    int second = j * numAttributes;
+    for (int a = 0; a < numAttributes; a++) {
+      int c = Double.compare(m_Rows[first + a], m_Rows[second + a]);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Makes m_Rules hold the rules of the canonical neighbourhood, rebuilding
+   * them only if the neighbourhood differs from the one they were built for.
+   * Only an exactly equal neighbourhood is reused: a neighbourhood that
+   * overlaps the previous one is generated again in full, so reuse pays
+   * off mainly for queries scored in Morton order whose neighbourhoods
+   * coincide (a few percent of the queries on typical data).
+   *
+   * @param numNeighbours the number of neighbours
+   * @param numAttributes the number of attributes per neighbour
+   * @return true if the existing rules were reused
+   */
+  public boolean prepareRules(int numNeighbours, int numAttributes) {
+
+    if (sameNeighbourhood(numNeighbours * numAttributes)) {
+      return true;
+    }
+    buildRules(numNeighbours, numAttributes);
+    return false;
+  }
+
+  /**
+   * Sets whether m_Rules searches in pair space (see RuleSearch.setLazy()).
+   * Switching discards the current rules, which were built for the other
+   * mode.
+   *
+   * @param lazy true for lazy rule search
+   */
+  public void setLazyRules(boolean lazy) {
+
+    if (m_Rules.getLazy() != lazy) {
+      m_Rules.setLazy(lazy);
+      m_RulesLength = -1;
+    }
+  }
+
+  /**
+   * Sets the precision of the rule matrix of m_Rules (see
+   * RuleSearch.setPrecision()). Changing it discards the current rules.
+   *
+   * @param bytesPerValue 8 for double, 4 for float32 or 1 for int8
+   */
+  public void setRulePrecision(int bytesPerValue) {
+
+    if (m_Rules.getPrecision() != bytesPerValue) {
+      m_Rules.setPrecision(bytesPerValue);
+      m_RulesLength = -1;
+    }
+  }
+
+  /**
+   * Whether the canonical neighbourhood is the one the current rules were
+   * generated from.
+   *
+   * @param length the number of values in the canonical neighbourhood
+   * @return true if the rules can be reused
+   */
+  protected boolean sameNeighbourhood(int length) {
+
+    if (length != m_RulesLength) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (Double.doubleToLongBits(m_Canonical[i])
+          != Double.doubleToLongBits(m_RulesNeighbourhood[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Generates the rules of the canonical neighbourhood into m_Rules.
+   *
+   * @param numNeighbours the number of neighbours
+   * @param numAttributes the number of attributes per neighbour
+   */
+  protected void buildRules(int numNeighbours, int numAttributes) {
+
+    int length = numNeighbours * numAttributes;
+    m_Rules.build(m_Canonical, numNeighbours, numAttributes);
+    System.arraycopy(m_Canonical, 0, m_RulesNeighbourhood, 0, length);
+    m_RulesLength = length;
+    m_PeakRuleBytes = Math.max(m_PeakRuleBytes, m_Rules.ruleBytes());
+  }
+
+  /**
+   * Counts the bytes allocated by a prediction.
+   *
+   * @param bytes the bytes
+   */
+  public void countAllocation(long bytes) {
+
+    m_AllocatedBytes += Math.max(0, bytes);
+    m_MeasuredPredictions++;
+  }
+
+  /**
+   * Returns the bytes held by the buffers of this arena, including the
+   * rules.
+   *
+   * @return the bytes
+   */
+  public long footprintBytes() {
+
+    return 8L * (m_Query.length + m_Normalised.length + m_Difference.length
+                 + m_Adjustments.length + m_Distances.length + m_Rows.length
+                 + m_Canonical.length + m_RulesNeighbourhood.length)
+      + 4L * (m_Indices.length + m_Order.length)
+      + m_Rules.ruleBytes();
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
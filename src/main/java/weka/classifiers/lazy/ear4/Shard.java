@@ -0,0 +1,90 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    Shard.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Instances;
+
+/**
+ * A partition of a sharded EAR4 case base. A shard stores its cases and
+ * answers nearest neighbour queries over them; the coordinator (see
+ * ShardedEAR4) supplies the normalisation ranges, so that all shards
+ * measure distances on the same scale.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public interface Shard {
+
+  /**
+   * Appends cases to the shard.
+   *
+   * @param data the cases (numeric, class last, no missing values)
+   * @throws Exception if the cases cannot be stored
+   */
+  void add(Instances data) throws Exception;
+
+  /**
+   * Returns the number of cases in the shard.
+   *
+   * @return the number of cases
+   * @throws Exception if the shard cannot be reached
+   */
+  int numCases() throws Exception;
+
+  /**
+   * Returns the attribute ranges over the cases of the shard.
+   *
+   * @return the ranges (min, max and width per attribute)
+   * @throws Exception if the shard cannot be reached
+   */
+  double[][] ranges() throws Exception;
+
+  /**
+   * Finds the k cases of the shard nearest to a query, keeping the cases
+   * tied with the k-th nearest.
+   *
+   * @param query the attribute values of the query (the class is ignored)
+   * @param ranges the ranges to normalise with
+   * @param k the number of cases to find
+   * @return the neighbours, nearest first
+   * @throws Exception if the shard cannot be reached
+   */
+  ShardNeighbours nearest(double[] query, double[][] ranges, int k) throws Exception;
+
+  /**
+   * Returns the heap memory used by the shard's process after a garbage
+   * collection, or the bytes of case storage for a shard running in the
+   * coordinator's process.
+   *
+   * @return the memory in bytes
+   * @throws Exception if the shard cannot be reached
+   */
+  long memoryUsed() throws Exception;
+
+  /**
+   * Releases the shard.
+   *
+   * @throws Exception if the shard cannot be closed cleanly
+   */
+  void close() throws Exception;
+}
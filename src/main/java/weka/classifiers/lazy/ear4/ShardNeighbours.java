@@ -0,0 +1,72 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ShardNeighbours.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * The neighbours a shard returns for a query: their indices within the
+ * shard, their (squared, normalised) distances and their attribute values.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class ShardNeighbours
+  implements RevisionHandler {
+
+  /** The number of neighbours. */
+  public int m_Count;
+
+  /** The index of each neighbour within its shard. */
+  public int[] m_Indices;
+
+  /** The distance of each neighbour. */
+  public double[] m_Distances;
+
+  /** The attribute values of the neighbours, one row each. */
+  public double[] m_Rows;
+
+  /**
+   * Creates an empty neighbour list.
+   *
+   * @param count the number of neighbours
+   * @param numAttributes the number of attributes per neighbour
+   */
+  public ShardNeighbours(int count, int numAttributes) {
+
+    m_Count = count;
+    m_Indices = new int[count];
+    m_Distances = new double[count];
+    m_Rows = new double[count * numAttributes];
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ShardServer.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Serves a LocalShard over a socket, so that the shards of a ShardedEAR4
+ * can live in separate JVMs (see RemoteShard for the client side). The
+ * server listens on the loopback interface and handles one connection at
+ * a time; a connection is a sequence of requests, each a command byte
+ * followed by its arguments, answered in order:
+ * <ul>
+ *   <li>ADD: number of cases, number of attributes, class index, then the
+ *   values of every case; answers the number of cases in the shard</li>
+ *   <li>NUM_CASES: answers the number of cases</li>
+ *   <li>RANGES: answers the number of attributes, then min, max and width
+ *   of every attribute (0 attributes if the shard is empty)</li>
+ *   <li>NEAREST: k, number of attributes, the query values and the ranges;
+ *   answers the number of neighbours, then index, distance and values of
+ *   every neighbour</li>
+ *   <li>MEMORY: answers the used heap after a garbage collection</li>
+ *   <li>CLOSE: ends the connection and stops the server</li>
+ * </ul>
+ * All numbers are written with DataOutputStream.<p/>
+ *
+ * Usage:
+ * <pre>
+ * java weka.classifiers.lazy.ear4.ShardServer [-p &lt;port&gt;]
+ * </pre>
+ * The server prints the port it listens on to standard output.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class ShardServer
+  implements RevisionHandler {
+
+  /** Command: append cases. */
+  public static final byte ADD = 1;
+
+  /** Command: return the number of cases. */
+  public static final byte NUM_CASES = 2;
+
+  /** Command: return the attribute ranges. */
+  public static final byte RANGES = 3;
+
+  /** Command: find nearest neighbours. */
+  public static final byte NEAREST = 4;
+
+  /** Command: return the used heap. */
+  public static final byte MEMORY = 5;
+
+  /** Command: close the connection and stop the server. */
+  public static final byte CLOSE = 6;
+
+  /** The shard served. */
+  protected LocalShard m_Shard = new LocalShard();
+
+  /** The format of the cases, created with the first ADD. */
+  protected Instances m_Header;
+
+  /** The socket listened on. */
+  protected ServerSocket m_Socket;
+
+  /**
+   * Creates a server listening on the given port of the loopback
+   * interface.
+   *
+   * @param port the port, 0 for any free port
+   * @throws IOException if the port cannot be bound
+   */
+  public ShardServer(int port) throws IOException {
+
+    m_Socket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+  }
+
+  /**
+   * Returns the port the server listens on.
+   *
+   * @return the port
+   */
+  public int getPort() {
+
+    return m_Socket.getLocalPort();
+  }
+
+  /**
+   * Serves connections until a CLOSE command arrives.
+   *
+   * @throws IOException if the server socket fails
+   */
+  public void serve() throws IOException {
+
+    boolean running = true;
+    while (running) {
+      Socket connection = m_Socket.accept();
+      connection.setTcpNoDelay(true);
+      try {
+        running = handle(connection);
+      } catch (EOFException e) {
+        // the client went away; wait for the next one
+      } finally {
+        connection.close();
+      }
+    }
+    m_Socket.close();
+  }
+
+  /**
+   * Answers the requests of a connection.
+   *
+   * @param connection the connection
+   * @return false if the server is to stop
+   * @throws IOException if the connection fails
+   */
+  protected boolean handle(Socket connection) throws IOException {
+
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(connection.getInputStream()));
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(connection.getOutputStream()));
+    while (true) {
+      byte command = in.readByte();
+      switch (command) {
+        case ADD:
+          out.writeInt(add(in));
+          break;
+        case NUM_CASES:
+          out.writeInt(m_Shard.numCases());
+          break;
+        case RANGES:
+          writeRanges(out, m_Shard.ranges());
+          break;
+        case NEAREST:
+          nearest(in, out);
+          break;
+        case MEMORY:
+          System.gc();
+          Runtime runtime = Runtime.getRuntime();
+          out.writeLong(runtime.totalMemory() - runtime.freeMemory());
+          break;
+        case CLOSE:
+          return false;
+        default:
+          throw new IOException("Unknown shard command: " + command);
+      }
+      out.flush();
+    }
+  }
+
+  /**
+   * Reads cases and appends them to the shard.
+   *
+   * @param in the request
+   * @return the number of cases in the shard
+   * @throws IOException if the request cannot be read
+   */
+  protected int add(DataInputStream in) throws IOException {
+
+    int numCases = in.readInt();
+    int numAttributes = in.readInt();
+    int classIndex = in.readInt();
+    if (m_Header == null) {
+      FastVector attributes = new FastVector(numAttributes);
+      for (int a = 0; a < numAttributes; a++) {
+        attributes.addElement(new Attribute("a" + a));
+      }
+      m_Header = new Instances("shard", attributes, 0);
+      m_Header.setClassIndex(classIndex);
+    }
+    Instances data = new Instances(m_Header, numCases);
+    for (int i = 0; i < numCases; i++) {
+      double[] values = new double[numAttributes];
+      for (int a = 0; a < numAttributes; a++) {
+        values[a] = in.readDouble();
+      }
+      data.add(new Instance(1.0, values));
+    }
+    m_Shard.add(data);
+    return m_Shard.numCases();
+  }
+
+  /**
+   * Answers a NEAREST request.
+   *
+   * @param in the request
+   * @param out the answer
+   * @throws IOException if the connection fails
+   */
+  protected void nearest(DataInputStream in, DataOutputStream out) throws IOException {
+
+    int k = in.readInt();
+    int numAttributes = in.readInt();
+    double[] query = new double[numAttributes];
+    for (int a = 0; a < numAttributes; a++) {
+      query[a] = in.readDouble();
+    }
+    double[][] ranges = readRanges(in);
+    ShardNeighbours neighbours = m_Shard.nearest(query, ranges, k);
+    out.writeInt(neighbours.m_Count);
+    for (int i = 0; i < neighbours.m_Count; i++) {
+      out.writeInt(neighbours.m_Indices[i]);
+      out.writeDouble(neighbours.m_Distances[i]);
+      for (int a = 0; a < numAttributes; a++) {
+        out.writeDouble(neighbours.m_Rows[i * numAttributes + a]);
+      }
+    }
+  }
+
+  /**
+   * Writes attribute ranges.
+   *
+   * @param out the stream
+   * @param ranges the ranges, null for none
+   * @throws IOException if the stream fails
+   */
+  public static void writeRanges(DataOutputStream out, double[][] ranges) throws IOException {
+
+    int numAttributes = (ranges == null) ? 0 : ranges.length;
+    out.writeInt(numAttributes);
+    for (int a = 0; a < numAttributes; a++) {
+      for (int j = 0; j < 3; j++) {
+        out.writeDouble(ranges[a][j]);
+      }
+    }
+  }
+
+  /**
+   * Reads attribute ranges.
+   *
+   * @param in the stream
+   * @return the ranges, null if there are none
+   * @throws IOException if the stream fails
+   */
+  public static double[][] readRanges(DataInputStream in) throws IOException {
+
+    int numAttributes = in.readInt();
+    if (numAttributes == 0) {
+      return null;
+    }
+    double[][] ranges = new double[numAttributes][3];
+    for (int a = 0; a < numAttributes; a++) {
+      for (int j = 0; j < 3; j++) {
+        ranges[a][j] = in.readDouble();
+      }
+    }
+    return ranges;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+
+  /**
+   * Runs a shard server from the command line.
+   *
+   * @param args the command line options, see the class description
+   */
+  public static void main(String[] args) {
+
+    try {
+      String port = Utils.getOption('p', args);
+      ShardServer server = new ShardServer(
+        (port.length() == 0) ? 0 : Integer.parseInt(port));
+      System.out.println("Shard listening on port " + server.getPort());
+      System.out.flush();
+      server.serve();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
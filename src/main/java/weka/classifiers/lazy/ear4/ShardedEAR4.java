@@ -0,0 +1,322 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ShardedEAR4.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.classifiers.Classifier;
+import weka.classifiers.lazy.EAR4;
+import weka.core.Capabilities;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * EAR4 over a case base split into shards. The training data is divided
+ * into contiguous partitions, one per shard; shards can live in this JVM
+ * (LocalShard) or in other processes (RemoteShard). The coordinator keeps
+ * only the global attribute ranges. For a query, every shard returns its
+ * k*o nearest cases under the global ranges, the coordinator merges the
+ * lists into the global k*o nearest (offering the candidates to the
+ * retrieval heap in global case order, like a scan over the whole case
+ * base) and generates and applies the rules itself.<p/>
+ *
+ * The merged neighbourhood is the one a single EAR4 over all cases
+ * retrieves; only the order of neighbours at exactly the same distance may
+ * differ, which can change the choice of base cases among such ties unless
+ * the template breaks ties canonically or splits them (see
+ * EAR4.setTieHandling()).
+ * Sharded models are not incremental and cannot be serialized.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class ShardedEAR4
+  extends Classifier {
+
+  /** for serialization. */
+  private static final long serialVersionUID = -2470143592261532843L;
+
+  /** The shards, empty until the model is built. */
+  protected Shard[] m_Shards;
+
+  /** The global index of the first case of every shard. */
+  protected int[] m_Offsets;
+
+  /** The total number of cases. */
+  protected int m_NumCases;
+
+  /** The number of attributes per case. */
+  protected int m_NumAttributes;
+
+  /** The attribute ranges over all shards. */
+  protected double[][] m_Ranges;
+
+  /** The number of base cases. */
+  protected int m_KNN;
+
+  /** The number of rules applied per base case. */
+  protected int m_L;
+
+  /** The rule generation neighbourhood coefficient. */
+  protected double m_O;
+
+  /** The prediction if there are no cases. */
+  protected double m_DefaultPrediction;
+
+  /** How base cases tied with the k-th nearest are selected (see NeighbourSelector). */
+  protected int m_TieHandling;
+
+  /** The threads querying the shards in parallel. */
+  protected transient ExecutorService m_Executor;
+
+  /** The per-thread working memory of the coordinator. */
+  protected transient ArenaPool m_Arenas;
+
+  /**
+   * Creates a sharded model.
+   *
+   * @param template the EAR4 whose k, l, o and tie handling to use
+   * @param shards the shards, all empty
+   */
+  public ShardedEAR4(EAR4 template, Shard[] shards) {
+
+    m_KNN = template.getKNN();
+    m_L = template.getl();
+    m_O = template.geto();
+    m_TieHandling = template.getTieHandling().getSelectedTag().getID();
+    m_Shards = shards;
+  }
+
+  /**
+   * Returns the capabilities of EAR4's primitive engine.
+   *
+   * @return the capabilities
+   */
+  public Capabilities getCapabilities() {
+
+    return new EAR4().getCapabilities();
+  }
+
+  /**
+   * Distributes the training data over the shards and computes the global
+   * ranges.
+   *
+   * @param data the training data, with the class as the last attribute
+   * @throws Exception if the data cannot be handled or a shard fails
+   */
+  public void buildClassifier(Instances data) throws Exception {
+
+    getCapabilities().testWithFail(data);
+    if (data.classIndex() != data.numAttributes() - 1) {
+      throw new Exception("Sharded EAR4 needs the class as the last attribute!");
+    }
+    for (int s = 0; s < m_Shards.length; s++) {
+      if (m_Shards[s].numCases() > 0) {
+        throw new Exception("Shards must be empty before building!");
+      }
+    }
+
+    m_NumAttributes = data.numAttributes();
+    m_NumCases = data.numInstances();
+    m_Offsets = new int[m_Shards.length];
+    for (int s = 0; s < m_Shards.length; s++) {
+      int first = (int) ((long) s * m_NumCases / m_Shards.length);
+      int last = (int) ((long) (s + 1) * m_NumCases / m_Shards.length);
+      m_Offsets[s] = first;
+      m_Shards[s].add(new Instances(data, first, last - first));
+    }
+
+    double sumOfWeights = 0;
+    double classSum = 0;
+    for (int i = 0; i < data.numInstances(); i++) {
+      classSum += data.instance(i).weight() * data.instance(i).classValue();
+      sumOfWeights += data.instance(i).weight();
+    }
+    m_DefaultPrediction = Utils.gr(sumOfWeights, 0) ? classSum / sumOfWeights : 0;
+
+    m_Ranges = new double[m_NumAttributes][3];
+    for (int a = 0; a < m_NumAttributes; a++) {
+      m_Ranges[a][0] = Double.POSITIVE_INFINITY;
+      m_Ranges[a][1] = Double.NEGATIVE_INFINITY;
+    }
+    for (int s = 0; s < m_Shards.length; s++) {
+      double[][] ranges = m_Shards[s].ranges();
+      if ((ranges == null) || (m_Shards[s].numCases() == 0)) {
+        continue;
+      }
+      for (int a = 0; a < m_NumAttributes; a++) {
+        m_Ranges[a][0] = Math.min(m_Ranges[a][0], ranges[a][0]);
+        m_Ranges[a][1] = Math.max(m_Ranges[a][1], ranges[a][1]);
+      }
+    }
+    for (int a = 0; a < m_NumAttributes; a++) {
+      m_Ranges[a][2] = m_Ranges[a][1] - m_Ranges[a][0];
+    }
+  }
+
+  /**
+   * Returns the rule generation neighbourhood coefficient in effect (see
+   * EAR4.effectiveO()).
+   *
+   * @return the effective o
+   */
+  protected double effectiveO() {
+
+    long numRules = (long) m_NumCases * (m_NumCases - 1);
+    if (m_KNN * m_O > numRules) {
+      return Math.round(numRules / m_KNN);
+    }
+    return m_O;
+  }
+
+  /**
+   * Predicts the target value of a query.
+   *
+   * @param instance the query, without missing feature values
+   * @return the prediction
+   * @throws Exception if a shard fails
+   */
+  public double[] distributionForInstance(Instance instance) throws Exception {
+
+    if (m_NumCases == 0) {
+      return new double[] {m_DefaultPrediction};
+    }
+    final int k = Math.max(1, (int) Math.round(m_KNN * effectiveO()));
+    final double[] query = new double[m_NumAttributes];
+    for (int a = 0; a < m_NumAttributes; a++) {
+      if ((a != m_NumAttributes - 1) && instance.isMissing(a)) {
+        throw new Exception("Sharded EAR4 cannot handle missing values!");
+      }
+      query[a] = instance.value(a);
+    }
+
+    // fan out: shard 0 is queried by the calling thread
+    ShardNeighbours[] lists = new ShardNeighbours[m_Shards.length];
+    Future<?>[] pending = new Future<?>[m_Shards.length];
+    ExecutorService executor = executor();
+    for (int s = 1; s < m_Shards.length; s++) {
+      final Shard shard = m_Shards[s];
+      pending[s] = executor.submit(new Callable<ShardNeighbours>() {
+        public ShardNeighbours call() throws Exception {
+          return shard.nearest(query, m_Ranges, k);
+        }
+      });
+    }
+    lists[0] = m_Shards[0].nearest(query, m_Ranges, k);
+    for (int s = 1; s < m_Shards.length; s++) {
+      lists[s] = (ShardNeighbours) pending[s].get();
+    }
+
+    ScratchArena arena = arenas().get();
+    int numNeighbours = arena.merge(lists, m_Offsets, k, m_NumAttributes);
+    arena.setQuery(query, m_NumAttributes);
+    arena.setTieHandling(m_TieHandling);
+    return new double[] {arena.adapt(numNeighbours, m_NumAttributes, m_KNN, m_L)};
+  }
+
+  /**
+   * Returns the thread pool querying the shards, creating it if necessary.
+   *
+   * @return the thread pool
+   */
+  protected synchronized ExecutorService executor() {
+
+    if (m_Executor == null) {
+      m_Executor = Executors.newFixedThreadPool(Math.max(1, m_Shards.length - 1),
+        new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "EAR4 shard query");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    }
+    return m_Executor;
+  }
+
+  /**
+   * Returns the per-thread working memory, creating it if necessary.
+   *
+   * @return the arenas
+   */
+  protected synchronized ArenaPool arenas() {
+
+    if (m_Arenas == null) {
+      m_Arenas = new ArenaPool();
+    }
+    return m_Arenas;
+  }
+
+  /**
+   * Returns the shards.
+   *
+   * @return the shards
+   */
+  public Shard[] getShards() {
+
+    return m_Shards;
+  }
+
+  /**
+   * Stops the query threads and closes all shards.
+   *
+   * @throws Exception if a shard cannot be closed
+   */
+  public synchronized void close() throws Exception {
+
+    if (m_Executor != null) {
+      m_Executor.shutdown();
+      m_Executor = null;
+    }
+    for (int s = 0; s < m_Shards.length; s++) {
+      m_Shards[s].close();
+    }
+  }
+
+  /**
+   * Returns a description of the model.
+   *
+   * @return a description
+   */
+  public String toString() {
+
+    return "Sharded EAR4 over " + m_Shards.length + " shards and " + m_NumCases
+      + " cases, using " + m_KNN + " base cases, " + m_L + " adaptations per "
+      + "base case and o = " + m_O;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    SpaceFillingCurve.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Orders instances along a Morton (Z-order) curve over their normalised
+ * non-class attributes, so that instances close in attribute space end up
+ * close in the ordering. Scoring queries in this order makes consecutive
+ * queries more likely to have the same rule generation neighbourhood, whose
+ * rules are then reused; only an exactly equal neighbourhood is reused,
+ * overlapping ones are generated again (see ScratchArena.prepareRules()).
+ * <p/>
+ *
+ * The code of an instance is a long of at most MAX_KEY_BITS bits. With
+ * more than MAX_KEY_BITS attributes, the curve runs over the MAX_KEY_BITS
+ * attributes with the largest normalised variance only, one bit each.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class SpaceFillingCurve
+  implements RevisionHandler {
+
+  /** The maximum number of bits used per attribute. */
+  public static final int MAX_BITS = 16;
+
+  /** The number of bits of a code (a non-negative long). */
+  public static final int MAX_KEY_BITS = 63;
+
+  /**
+   * Returns the indices of the given instances sorted by their Morton code.
+   * Attributes are normalised to [0,1] using their range over the given
+   * instances; missing values are mapped to 0. At most MAX_KEY_BITS
+   * attributes enter the code (see curveAttributes()).
+   *
+   * @param instances the instances to order
+   * @return the instance indices in curve order
+   */
+  public static int[] mortonOrder(Instances instances) {
+
+    int n = instances.numInstances();
+    int classIndex = instances.classIndex();
+    int numAttributes = instances.numAttributes();
+
+    double[] min = new double[numAttributes];
+    double[] max = new double[numAttributes];
+    double[] sum = new double[numAttributes];
+    double[] sumSquared = new double[numAttributes];
+    int[] count = new int[numAttributes];
+    Arrays.fill(min, Double.POSITIVE_INFINITY);
+    Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    for (int i = 0; i < n; i++) {
+      Instance inst = instances.instance(i);
+      for (int a = 0; a < numAttributes; a++) {
+        double value = inst.value(a);
+        if (Instance.isMissingValue(value)) {
+          continue;
+        }
+        if (value < min[a]) {
+          min[a] = value;
+        }
+        if (value > max[a]) {
+          max[a] = value;
+        }
+        sum[a] += value;
+        sumSquared[a] += value * value;
+        count[a]++;
+      }
+    }
+
+    int[] curve = curveAttributes(min, max, sum, sumSquared, count, classIndex);
+    int bits = (curve.length == 0) ? 1 : Math.max(1, Math.min(MAX_BITS, MAX_KEY_BITS / curve.length));
+    long cells = (1L << bits) - 1;
+    final long[] codes = new long[n];
+    long[] cell = new long[curve.length];
+    for (int i = 0; i < n; i++) {
+      Instance inst = instances.instance(i);
+      for (int c = 0; c < curve.length; c++) {
+        int a = curve[c];
+        double value = inst.value(a);
+        if (Instance.isMissingValue(value) || !(max[a] > min[a])) {
+          cell[c] = 0;
+        } else {
+          cell[c] = Math.round((value - min[a]) / (max[a] - min[a]) * cells);
+        }
+      }
+      codes[i] = interleave(cell, bits);
+    }
+
+    Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = Integer.valueOf(i);
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer o1, Integer o2) {
+        long c1 = codes[o1.intValue()];
+        long c2 = codes[o2.intValue()];
+        return (c1 < c2) ? -1 : ((c1 == c2) ? 0 : 1);
+      }
+    });
+
+    int[] result = new int[n];
+    for (int i = 0; i < n; i++) {
+      result[i] = order[i].intValue();
+    }
+    return result;
+  }
+
+  /**
+   * Selects the attributes the curve runs over: all non-class attributes,
+   * or, if there are more than MAX_KEY_BITS of them, the MAX_KEY_BITS with
+   * the largest variance relative to their squared range (ties broken by
+   * index), so that the code never needs more bits than a long has.
+   *
+   * @param min the smallest value of each attribute
+   * @param max the largest value of each attribute
+   * @param sum the sum of the values of each attribute
+   * @param sumSquared the sum of the squared values of each attribute
+   * @param count the number of values of each attribute that are not missing
+   * @param classIndex the index of the class attribute (left out)
+   * @return the indices of the selected attributes, ascending
+   */
+  protected static int[] curveAttributes(double[] min, double[] max, double[] sum,
+                                         double[] sumSquared, int[] count,
+                                         int classIndex) {
+
+    int numAttributes = min.length;
+    final double[] spread = new double[numAttributes];
+    Integer[] candidates = new Integer[(classIndex < 0) ? numAttributes : numAttributes - 1];
+    int n = 0;
+    for (int a = 0; a < numAttributes; a++) {
+      if (a == classIndex) {
+        continue;
+      }
+      candidates[n++] = Integer.valueOf(a);
+      if ((count[a] > 0) && (max[a] > min[a])) {
+        double mean = sum[a] / count[a];
+        double range = max[a] - min[a];
+        spread[a] = Math.max(0, sumSquared[a] / count[a] - mean * mean) / (range * range);
+      }
+    }
+    if (candidates.length > MAX_KEY_BITS) {
+      Arrays.sort(candidates, new Comparator<Integer>() {
+        public int compare(Integer o1, Integer o2) {
+          int c = Double.compare(spread[o2.intValue()], spread[o1.intValue()]);
+          return (c != 0) ? c : o1.compareTo(o2);
+        }
+      });
+    }
+    int[] result = new int[Math.min(candidates.length, MAX_KEY_BITS)];
+    for (int c = 0; c < result.length; c++) {
+      result[c] = candidates[c].intValue();
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  /**
+   * Interleaves the bits of the cell coordinates, most significant bit
+   * first. The coordinates times the bits must not exceed MAX_KEY_BITS.
+   *
+   * @param cell the cell coordinate of each attribute on the curve
+   * @param bits the number of bits per coordinate
+   * @return the Morton code
+   */
+  protected static long interleave(long[] cell, int bits) {
+
+    long code = 0;
+    for (int b = bits - 1; b >= 0; b--) {
+      for (int a = 0; a < cell.length; a++) {
+        code = (code << 1) | ((cell[a] >>> b) & 1L);
+      }
+    }
+    return code;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
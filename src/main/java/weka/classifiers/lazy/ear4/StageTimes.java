@@ -0,0 +1,127 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    StageTimes.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * Running estimates of the cost of the stages of an EAR4 prediction:
+ * retrieving the neighbourhood, generating its rules (per rule) and
+ * adapting one base case (per rule compared). Every measurement updates
+ * an exponentially weighted mean, so the estimates follow changes of the
+ * data and of the machine; skipping a stage lowers its estimate, so that
+ * it is measured again. Deadline-bounded predictions use them to
+ * decide whether the next stage still fits in the remaining budget. An
+ * estimate is 0 until its stage has been measured once.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class StageTimes
+  implements RevisionHandler {
+
+  /** The weight of a new measurement. */
+  public static final double WEIGHT = 0.2;
+
+  /** The fraction by which skipping a stage lowers its estimate. */
+  public static final double DECAY = 0.05;
+
+  /** The stage of retrieving the neighbourhood. */
+  public static final int RETRIEVAL = 0;
+
+  /** The stage of generating the rules, per rule. */
+  public static final int RULES = 1;
+
+  /** The stage of adapting a base case, per rule compared. */
+  public static final int ADAPTATION = 2;
+
+  /** The estimated nanoseconds per unit of every stage. */
+  protected double[] m_Estimates = new double[3];
+
+  /** The number of measurements of every stage. */
+  protected long[] m_Counts = new long[3];
+
+  /**
+   * Records a measurement of a stage.
+   *
+   * @param stage the stage (RETRIEVAL, RULES or ADAPTATION)
+   * @param nanos the time the stage took
+   * @param units the units of work done (e.g. rules), at least 1
+   */
+  public void record(int stage, long nanos, long units) {
+
+    double perUnit = (double) nanos / Math.max(1, units);
+    if (m_Counts[stage] == 0) {
+      m_Estimates[stage] = perUnit;
+    } else {
+      m_Estimates[stage] += WEIGHT * (perUnit - m_Estimates[stage]);
+    }
+    m_Counts[stage]++;
+  }
+
+  /**
+   * Notes that a stage was skipped because its estimate did not fit. The
+   * estimate is lowered by DECAY, so that a stage whose estimate is stale
+   * (e.g. measured before the code was compiled) is tried again and
+   * measured after some skips.
+   *
+   * @param stage the stage
+   */
+  public void skipped(int stage) {
+
+    m_Estimates[stage] *= 1 - DECAY;
+  }
+
+  /**
+   * Estimates the time of a stage.
+   *
+   * @param stage the stage
+   * @param units the units of work to do
+   * @return the estimated nanoseconds, 0 if the stage was never measured
+   */
+  public long estimate(int stage, long units) {
+
+    return (long) (m_Estimates[stage] * units);
+  }
+
+  /**
+   * Returns the number of measurements of a stage.
+   *
+   * @param stage the stage
+   * @return the count
+   */
+  public long count(int stage) {
+
+    return m_Counts[stage];
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    Telemetry.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.classifiers.lazy.EAR4;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+/**
+ * Exposes the memory measures of an EAR4 model as a standard MBean (see
+ * EAR4.registerTelemetry()). Every attribute reads the corresponding
+ * additional measure of the model when it is queried.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class Telemetry
+  implements TelemetryMBean, RevisionHandler {
+
+  /** The model. */
+  protected EAR4 m_Model;
+
+  /**
+   * Creates the MBean of a model.
+   *
+   * @param model the model
+   */
+  public Telemetry(EAR4 model) {
+
+    m_Model = model;
+  }
+
+  /**
+   * Returns the mean bytes allocated per measured prediction.
+   *
+   * @return the bytes, 0 if no prediction was measured
+   */
+  public double getAllocatedBytesPerPrediction() {
+
+    return m_Model.getMeasure("measureAllocatedBytesPerPrediction");
+  }
+
+  /**
+   * Returns the number of predictions whose allocation was measured.
+   *
+   * @return the count
+   */
+  public long getMeasuredPredictions() {
+
+    return (long) m_Model.getMeasure("measureMeasuredPredictions");
+  }
+
+  /**
+   * Returns the bytes of the primitive case base.
+   *
+   * @return the bytes
+   */
+  public long getCaseBaseBytes() {
+
+    return (long) m_Model.getMeasure("measureCaseBaseBytes");
+  }
+
+  /**
+   * Returns the estimated bytes of the training window the neighbour
+   * search indexes.
+   *
+   * @return the bytes
+   */
+  public long getTrainingWindowBytes() {
+
+    return (long) m_Model.getMeasure("measureTrainingWindowBytes");
+  }
+
+  /**
+   * Returns the estimated bytes of the prediction cache.
+   *
+   * @return the bytes, 0 without a cache
+   */
+  public long getCacheBytes() {
+
+    return (long) m_Model.getMeasure("measureCacheBytes");
+  }
+
+  /**
+   * Returns the bytes of the scratch arenas of all predicting threads.
+   *
+   * @return the bytes
+   */
+  public long getArenaBytes() {
+
+    return (long) m_Model.getMeasure("measureArenaBytes");
+  }
+
+  /**
+   * Returns the largest number of bytes the rules of one arena have held.
+   *
+   * @return the bytes
+   */
+  public long getPeakRuleBytes() {
+
+    return (long) m_Model.getMeasure("measurePeakRuleBytes");
+  }
+
+  /**
+   * Returns the number of training instances.
+   *
+   * @return the count
+   */
+  public int getNumTraining() {
+
+    return m_Model.getNumTraining();
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
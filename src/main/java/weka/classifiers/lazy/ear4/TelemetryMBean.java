@@ -0,0 +1,90 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    TelemetryMBean.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+/**
+ * The JMX view of the memory telemetry of an EAR4 model (see Telemetry).
+ * All sizes are in bytes.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public interface TelemetryMBean {
+
+  /**
+   * Returns the mean bytes allocated per measured prediction.
+   *
+   * @return the bytes, 0 if no prediction was measured
+   */
+  double getAllocatedBytesPerPrediction();
+
+  /**
+   * Returns the number of predictions whose allocation was measured.
+   *
+   * @return the count
+   */
+  long getMeasuredPredictions();
+
+  /**
+   * Returns the bytes of the primitive case base.
+   *
+   * @return the bytes
+   */
+  long getCaseBaseBytes();
+
+  /**
+   * Returns the estimated bytes of the training window the neighbour
+   * search indexes.
+   *
+   * @return the bytes
+   */
+  long getTrainingWindowBytes();
+
+  /**
+   * Returns the estimated bytes of the prediction cache.
+   *
+   * @return the bytes, 0 without a cache
+   */
+  long getCacheBytes();
+
+  /**
+   * Returns the bytes of the scratch arenas of all predicting threads.
+   *
+   * @return the bytes
+   */
+  long getArenaBytes();
+
+  /**
+   * Returns the largest number of bytes the rules of one arena have held.
+   *
+   * @return the bytes
+   */
+  long getPeakRuleBytes();
+
+  /**
+   * Returns the number of training instances.
+   *
+   * @return the count
+   */
+  int getNumTraining();
+}
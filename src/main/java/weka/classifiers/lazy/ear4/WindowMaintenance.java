@@ -0,0 +1,212 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    WindowMaintenance.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.io.Serializable;
+
+/**
+ * Adapts the training window of an incremental EAR4 to the prequential
+ * error: every new case is predicted before it is stored, and its error
+ * (normalised by the class range) drives two decisions.<p/>
+ *
+ * A Page-Hinkley test watches the error for an increase. When it signals
+ * drift, the window shrinks to the cases stored since the estimated start
+ * of the change, so that stale cases stop being retrieved; it then grows
+ * by one case per stored case, back to the configured limit.<p/>
+ *
+ * A new case predicted with an error of at most a given fraction of the
+ * mean error is redundant: the cases already stored reproduce it, so it
+ * is not stored and does not push an older case out of the window.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class WindowMaintenance
+  implements Serializable, RevisionHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = -1947320586631094825L;
+
+  /** The magnitude of error increases the drift test tolerates per case. */
+  public static final double DELTA = 0.005;
+
+  /** The drift test, null if drift is not detected. */
+  protected PageHinkley m_Detector;
+
+  /** The fraction of the mean error below which a case is redundant (0 = none). */
+  protected double m_Redundancy;
+
+  /** The largest window (0 = unlimited). */
+  protected int m_Limit;
+
+  /** The current window (0 = unlimited). */
+  protected int m_Window;
+
+  /** The number of cases stored. */
+  protected long m_Stored;
+
+  /** The number of cases stored when the drift statistic was last at its minimum. */
+  protected long m_StoredAtMinimum;
+
+  /** The number of drifts detected. */
+  protected long m_Drifts;
+
+  /** The number of redundant cases not stored. */
+  protected long m_Skipped;
+
+  /** The mean normalised error since the last drift. */
+  protected double m_ErrorMean;
+
+  /** The number of errors averaged in m_ErrorMean. */
+  protected long m_ErrorCount;
+
+  /**
+   * Creates the maintenance of a window.
+   *
+   * @param threshold the threshold of the Page-Hinkley test on the
+   * normalised errors (0 to not detect drift)
+   * @param redundancy the fraction of the mean error below which a new
+   * case is not stored (0 to store every case)
+   * @param limit the largest window (0 = unlimited)
+   */
+  public WindowMaintenance(double threshold, double redundancy, int limit) {
+
+    if (threshold > 0) {
+      m_Detector = new PageHinkley(DELTA, threshold);
+    }
+    m_Redundancy = redundancy;
+    setLimit(limit);
+  }
+
+  /**
+   * Sets the largest window, and resets the window to it.
+   *
+   * @param limit the largest window (0 = unlimited)
+   */
+  public void setLimit(int limit) {
+
+    m_Limit = limit;
+    m_Window = limit;
+  }
+
+  /**
+   * Observes the prequential error of a new case and decides whether to
+   * store it. On drift the window shrinks (see window()).
+   *
+   * @param error the absolute error of the prediction of the case,
+   * normalised by the class range
+   * @param minimumSize the smallest window to shrink to
+   * @return true if the case is to be stored
+   */
+  public boolean observe(double error, int minimumSize) {
+
+    boolean drift = false;
+    if (m_Detector != null) {
+      drift = m_Detector.add(error);
+      if (m_Detector.sinceMinimum() == 0) {
+        m_StoredAtMinimum = m_Stored;
+      }
+    }
+
+    if (drift) {
+      // keep the cases stored since the change began, plus this one
+      long keep = Math.max(m_Stored - m_StoredAtMinimum + 1, minimumSize);
+      if ((m_Limit > 0) && (keep > m_Limit)) {
+        keep = m_Limit;
+      }
+      m_Window = (int) Math.min(keep, Integer.MAX_VALUE);
+      m_Drifts++;
+      m_Detector.reset();
+      m_StoredAtMinimum = m_Stored;
+      m_ErrorMean = error;
+      m_ErrorCount = 1;
+    } else {
+      boolean redundant = (m_Redundancy > 0)
+        && (m_ErrorCount >= PageHinkley.MIN_OBSERVATIONS)
+        && (error <= m_Redundancy * m_ErrorMean);
+      m_ErrorCount++;
+      m_ErrorMean += (error - m_ErrorMean) / m_ErrorCount;
+      if (redundant) {
+        m_Skipped++;
+        return false;
+      }
+      if ((m_Window > 0) && ((m_Limit == 0) || (m_Window < m_Limit))) {
+        m_Window++;
+      }
+    }
+    m_Stored++;
+    return true;
+  }
+
+  /**
+   * Returns the current window.
+   *
+   * @return the number of cases to keep (0 = unlimited)
+   */
+  public int window() {
+
+    return m_Window;
+  }
+
+  /**
+   * Returns the number of drifts detected.
+   *
+   * @return the number of drifts
+   */
+  public long drifts() {
+
+    return m_Drifts;
+  }
+
+  /**
+   * Returns the number of redundant cases not stored.
+   *
+   * @return the number of cases
+   */
+  public long skipped() {
+
+    return m_Skipped;
+  }
+
+  /**
+   * Returns the mean normalised prequential error since the last drift.
+   *
+   * @return the mean error
+   */
+  public double meanError() {
+
+    return m_ErrorMean;
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    WindowRanges.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.classifiers.lazy.ear4;
+
+import weka.core.Instance;
+import weka.core.RevisionHandler;
+import weka.core.RevisionUtils;
+
+import java.io.Serializable;
+
+/**
+ * The exact minimum and maximum of every attribute over a FIFO window of
+ * cases. Each attribute has two monotonic deques: the minimum deque holds
+ * the values that can still become the minimum once older cases leave the
+ * window (increasing from head to tail), the maximum deque likewise.
+ * Appending a case and dropping the oldest one cost amortised constant
+ * time per attribute, so the ranges never need a rescan of the window.
+ * Missing values are left out.
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class WindowRanges
+  implements Serializable, RevisionHandler {
+
+  /** for serialization. */
+  private static final long serialVersionUID = -6214781130942215830L;
+
+  /** The number of attributes. */
+  protected int m_NumAttributes;
+
+  /** The sequence number of the next case appended. */
+  protected long m_Next;
+
+  /** The sequence number of the oldest case in the window. */
+  protected long m_Oldest;
+
+  /** The deques of candidate minima, one per attribute. */
+  protected Deque[] m_Min;
+
+  /** The deques of candidate maxima, one per attribute. */
+  protected Deque[] m_Max;
+
+  /**
+   * A deque of (sequence number, value) pairs in a circular buffer.
+   */
+  protected static class Deque
+    implements Serializable {
+
+    /** for serialization. */
+    private static final long serialVersionUID = 4409127468817640718L;
+
+    /** The sequence numbers of the cases. */
+    protected long[] m_Sequence = new long[16];
+
+    /** The values. */
+    protected double[] m_Value = new double[16];
+
+    /** The position of the head. */
+    protected int m_Head;
+
+    /** The number of elements. */
+    protected int m_Size;
+
+    /**
+     * Appends a value, first dropping the values from the tail that it
+     * makes irrelevant: those not smaller than it (for a minimum deque) or
+     * not larger than it (for a maximum deque).
+     *
+     * @param sequence the sequence number of the case
+     * @param value the value
+     * @param minimum whether this is a minimum deque
+     */
+    public void push(long sequence, double value, boolean minimum) {
+
+      while (m_Size > 0) {
+        double tail = m_Value[(m_Head + m_Size - 1) % m_Value.length];
+        if (minimum ? (tail < value) : (tail > value)) {
+          break;
+        }
+        m_Size--;
+      }
+      if (m_Size == m_Value.length) {
+        long[] sequences = new long[2 * m_Size];
+        double[] values = new double[2 * m_Size];
+        for (int i = 0; i < m_Size; i++) {
+          sequences[i] = m_Sequence[(m_Head + i) % m_Size];
+          values[i] = m_Value[(m_Head + i) % m_Size];
+        }
+        m_Sequence = sequences;
+        m_Value = values;
+        m_Head = 0;
+      }
+      int tail = (m_Head + m_Size) % m_Value.length;
+      m_Sequence[tail] = sequence;
+      m_Value[tail] = value;
+      m_Size++;
+    }
+
+    /**
+     * Drops the head if it belongs to a case older than the given one.
+     *
+     * @param oldest the sequence number of the oldest case in the window
+     */
+    public void expire(long oldest) {
+
+      if ((m_Size > 0) && (m_Sequence[m_Head] < oldest)) {
+        m_Head = (m_Head + 1) % m_Value.length;
+        m_Size--;
+      }
+    }
+
+    /**
+     * Returns the value at the head.
+     *
+     * @param empty the value to return if the deque is empty
+     * @return the value
+     */
+    public double head(double empty) {
+
+      return (m_Size == 0) ? empty : m_Value[m_Head];
+    }
+  }
+
+  /**
+   * Creates the ranges of an empty window.
+   *
+   * @param numAttributes the number of attributes
+   */
+  public WindowRanges(int numAttributes) {
+
+    m_NumAttributes = numAttributes;
+    m_Min = new Deque[numAttributes];
+    m_Max = new Deque[numAttributes];
+    for (int a = 0; a < numAttributes; a++) {
+      m_Min[a] = new Deque();
+      m_Max[a] = new Deque();
+    }
+  }
+
+  /**
+   * Appends a case to the window.
+   *
+   * @param values the attribute values of the case
+   * @param offset the position of the first value
+   */
+  public void add(double[] values, int offset) {
+
+    for (int a = 0; a < m_NumAttributes; a++) {
+      double value = values[offset + a];
+      if (!Instance.isMissingValue(value)) {
+        m_Min[a].push(m_Next, value, true);
+        m_Max[a].push(m_Next, value, false);
+      }
+    }
+    m_Next++;
+  }
+
+  /**
+   * Drops the oldest case from the window.
+   */
+  public void removeFirst() {
+
+    if (m_Oldest == m_Next) {
+      return;
+    }
+    m_Oldest++;
+    for (int a = 0; a < m_NumAttributes; a++) {
+      m_Min[a].expire(m_Oldest);
+      m_Max[a].expire(m_Oldest);
+    }
+  }
+
+  /**
+   * Returns the minimum of an attribute over the window.
+   *
+   * @param a the index of the attribute
+   * @return the minimum, positive infinity if there is no value
+   */
+  public double min(int a) {
+
+    return m_Min[a].head(Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Returns the maximum of an attribute over the window.
+   *
+   * @param a the index of the attribute
+   * @return the maximum, negative infinity if there is no value
+   */
+  public double max(int a) {
+
+    return m_Max[a].head(Double.NEGATIVE_INFINITY);
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
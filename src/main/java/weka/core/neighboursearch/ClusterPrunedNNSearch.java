@@ -0,0 +1,787 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ClusterPrunedNNSearch.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.core.neighboursearch;
+
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.NormalizableDistance;
+import weka.core.Option;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ <!-- globalinfo-start -->
+ * Exact nearest neighbour search over instances partitioned with k-means.
+ * Every cluster keeps its centroid, its radius (the largest distance of a
+ * member from the centroid) and the distance of every member from the
+ * centroid. A query visits the clusters in the order of the lower bound
+ * d(query, centroid) - radius of their distances and stops at the first
+ * cluster whose bound exceeds the current k-th nearest distance; within a
+ * cluster, members whose bound |d(query, centroid) - d(member, centroid)|
+ * exceeds it are skipped. By the triangle inequality the result is the one
+ * of a LinearNNSearch: the k nearest instances plus the ones tied with the
+ * k-th nearest, at the same distances (only the order of instances at the
+ * same distance may differ).<br/>
+ * New instances are assigned to the nearest centroid, which is not moved,
+ * so the bounds stay valid; when an instance widens the attribute ranges,
+ * the radii are recomputed before the next query. Instances and queries
+ * with missing values, for which the distance is no metric, are always
+ * compared directly. Only the EuclideanDistance is supported.
+ * <p/>
+ <!-- globalinfo-end -->
+ *
+ <!-- options-start -->
+ * Valid options are: <p/>
+ *
+ * <pre> -C &lt;number of clusters&gt;
+ *  The number of clusters.
+ *  (default: 0, the square root of the number of instances)</pre>
+ *
+ * <pre> -I &lt;iterations&gt;
+ *  The largest number of k-means iterations.
+ *  (default: 10)</pre>
+ *
+ * <pre> -S &lt;seed&gt;
+ *  The seed of the initial centroids.
+ *  (default: 1)</pre>
+ *
+ * <pre> -A &lt;classname and options&gt;
+ *  Distance function to use.
+ *  (default: weka.core.EuclideanDistance)</pre>
+ *
+ * <pre> -P
+ *  Calculate performance statistics.</pre>
+ *
+ <!-- options-end -->
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class ClusterPrunedNNSearch
+  extends NearestNeighbourSearch {
+
+  /** for serialization. */
+  private static final long serialVersionUID = -2849035117920568713L;
+
+  /** The number of instances per cluster the centroids are fitted on. */
+  protected static final int SAMPLE_PER_CLUSTER = 50;
+
+  /** Factor making the lower bounds robust against rounding. */
+  protected static final double BOUND_SLACK = 1 - 1e-9;
+
+  /** The number of clusters (0 = the square root of the number of instances). */
+  protected int m_NumClusters = 0;
+
+  /** The largest number of k-means iterations. */
+  protected int m_MaxIterations = 10;
+
+  /** The seed of the initial centroids. */
+  protected int m_Seed = 1;
+
+  /** The centroids. */
+  protected Instance[] m_Centroids;
+
+  /** The indices of the members of every cluster. */
+  protected int[][] m_Members;
+
+  /** The number of members of every cluster. */
+  protected int[] m_MemberCount;
+
+  /** The distance of every instance from its centroid. */
+  protected double[] m_CentroidDistance;
+
+  /** The radius of every cluster. */
+  protected double[] m_Radius;
+
+  /** Whether the radii have to be recomputed, the ranges having changed. */
+  protected boolean m_RadiiStale;
+
+  /** The instances with missing values, compared with every query. */
+  protected int[] m_Unclustered;
+
+  /** The number of instances with missing values. */
+  protected int m_UnclusteredCount;
+
+  /** The distances of the last neighbours found. */
+  protected double[] m_Distances;
+
+  /** The number of instances offered to the heap by the current query. */
+  protected int m_Offered;
+
+  /**
+   * Constructor. Needs setInstances(Instances) to be called before the
+   * class is usable.
+   */
+  public ClusterPrunedNNSearch() {
+
+    super();
+  }
+
+  /**
+   * Constructor that uses the supplied set of instances.
+   *
+   * @param insts the instances to search
+   * @throws Exception if the clusters cannot be built
+   */
+  public ClusterPrunedNNSearch(Instances insts) throws Exception {
+
+    this();
+    setInstances(insts);
+  }
+
+  /**
+   * Returns a string describing this nearest neighbour search algorithm.
+   *
+   * @return a description of the algorithm for displaying in the
+   * explorer/experimenter gui
+   */
+  public String globalInfo() {
+
+    return "Exact nearest neighbour search over instances partitioned with "
+      + "k-means: clusters are visited in the order of the lower bound of "
+      + "their distance (centroid distance minus radius) until none can hold "
+      + "an instance nearer than the current k-th neighbour. New instances "
+      + "are assigned to the nearest centroid. Only the EuclideanDistance is "
+      + "supported.";
+  }
+
+  /**
+   * Returns an enumeration describing the available options.
+   *
+   * @return an enumeration of all the available options.
+   */
+  public Enumeration<Option> listOptions() {
+
+    Vector<Option> result = new Vector<Option>();
+    result.addElement(new Option(
+      "\tThe number of clusters.\n"
+      + "\t(default: 0, the square root of the number of instances)",
+      "C", 1, "-C <number of clusters>"));
+    result.addElement(new Option(
+      "\tThe largest number of k-means iterations.\n"
+      + "\t(default: 10)",
+      "I", 1, "-I <iterations>"));
+    result.addElement(new Option(
+      "\tThe seed of the initial centroids.\n"
+      + "\t(default: 1)",
+      "S", 1, "-S <seed>"));
+    Enumeration<?> enm = super.listOptions();
+    while (enm.hasMoreElements()) {
+      result.addElement((Option) enm.nextElement());
+    }
+    return result.elements();
+  }
+
+  /**
+   * Parses a given list of options. <p/>
+   *
+   <!-- options-start -->
+   * Valid options are: <p/>
+   *
+   * <pre> -C &lt;number of clusters&gt;
+   *  The number of clusters.
+   *  (default: 0, the square root of the number of instances)</pre>
+   *
+   * <pre> -I &lt;iterations&gt;
+   *  The largest number of k-means iterations.
+   *  (default: 10)</pre>
+   *
+   * <pre> -S &lt;seed&gt;
+   *  The seed of the initial centroids.
+   *  (default: 1)</pre>
+   *
+   * <pre> -A &lt;classname and options&gt;
+   *  Distance function to use.
+   *  (default: weka.core.EuclideanDistance)</pre>
+   *
+   * <pre> -P
+   *  Calculate performance statistics.</pre>
+   *
+   <!-- options-end -->
+   *
+   * @param options the list of options as an array of strings
+   * @throws Exception if an option is not supported
+   */
+  public void setOptions(String[] options) throws Exception {
+
+    super.setOptions(options);
+
+    String clusters = Utils.getOption('C', options);
+    if (clusters.length() != 0) {
+      setNumClusters(Integer.parseInt(clusters));
+    } else {
+      setNumClusters(0);
+    }
+
+    String iterations = Utils.getOption('I', options);
+    if (iterations.length() != 0) {
+      setMaxIterations(Integer.parseInt(iterations));
+    } else {
+      setMaxIterations(10);
+    }
+
+    String seed = Utils.getOption('S', options);
+    if (seed.length() != 0) {
+      setSeed(Integer.parseInt(seed));
+    } else {
+      setSeed(1);
+    }
+  }
+
+  /**
+   * Gets the current settings.
+   *
+   * @return an array of strings suitable for passing to setOptions()
+   */
+  public String[] getOptions() {
+
+    Vector<String> result = new Vector<String>();
+    String[] options = super.getOptions();
+    for (int i = 0; i < options.length; i++) {
+      result.add(options[i]);
+    }
+    result.add("-C");
+    result.add("" + getNumClusters());
+    result.add("-I");
+    result.add("" + getMaxIterations());
+    result.add("-S");
+    result.add("" + getSeed());
+    return result.toArray(new String[result.size()]);
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String numClustersTipText() {
+    return "The number of clusters (0 = the square root of the number of instances).";
+  }
+
+  /**
+   * Gets the number of clusters.
+   *
+   * @return the number of clusters (0 = the square root of the number of
+   * instances)
+   */
+  public int getNumClusters() {
+    return m_NumClusters;
+  }
+
+  /**
+   * Sets the number of clusters.
+   *
+   * @param numClusters the number of clusters (0 = the square root of the
+   * number of instances)
+   */
+  public void setNumClusters(int numClusters) {
+    m_NumClusters = numClusters;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String maxIterationsTipText() {
+    return "The largest number of k-means iterations.";
+  }
+
+  /**
+   * Gets the largest number of k-means iterations.
+   *
+   * @return the number of iterations
+   */
+  public int getMaxIterations() {
+    return m_MaxIterations;
+  }
+
+  /**
+   * Sets the largest number of k-means iterations.
+   *
+   * @param maxIterations the number of iterations
+   */
+  public void setMaxIterations(int maxIterations) {
+    m_MaxIterations = maxIterations;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String seedTipText() {
+    return "The seed of the initial centroids.";
+  }
+
+  /**
+   * Gets the seed of the initial centroids.
+   *
+   * @return the seed
+   */
+  public int getSeed() {
+    return m_Seed;
+  }
+
+  /**
+   * Sets the seed of the initial centroids.
+   *
+   * @param seed the seed
+   */
+  public void setSeed(int seed) {
+    m_Seed = seed;
+  }
+
+  /**
+   * Partitions the instances with k-means. The centroids are fitted on a
+   * sample of at most SAMPLE_PER_CLUSTER instances per cluster; then every
+   * instance is assigned to its nearest centroid.
+   *
+   * @param insts the instances to search
+   * @throws Exception if the distance function is not supported
+   */
+  public void setInstances(Instances insts) throws Exception {
+
+    if (!m_DistanceFunction.getClass().equals(EuclideanDistance.class)) {
+      throw new Exception("ClusterPrunedNNSearch only supports the EuclideanDistance!");
+    }
+    super.setInstances(insts);
+    m_DistanceFunction.setInstances(insts);
+
+    int numInstances = insts.numInstances();
+    int[] complete = new int[numInstances];
+    int numComplete = 0;
+    m_Unclustered = new int[Math.max(1, numInstances)];
+    m_UnclusteredCount = 0;
+    for (int i = 0; i < numInstances; i++) {
+      if (insts.instance(i).hasMissingValue()) {
+        m_Unclustered[m_UnclusteredCount++] = i;
+      } else {
+        complete[numComplete++] = i;
+      }
+    }
+
+    int numClusters = m_NumClusters;
+    if (numClusters <= 0) {
+      numClusters = (int) Math.round(Math.sqrt(numComplete));
+    }
+    numClusters = Math.max(1, Math.min(numClusters, numComplete));
+
+    // the initial centroids and the sample they are fitted on
+    Random random = new Random(m_Seed);
+    int sampleSize = (int) Math.min(numComplete, (long) SAMPLE_PER_CLUSTER * numClusters);
+    for (int i = 0; i < sampleSize; i++) {
+      int j = i + random.nextInt(numComplete - i);
+      int swap = complete[i];
+      complete[i] = complete[j];
+      complete[j] = swap;
+    }
+    m_Centroids = new Instance[(numComplete == 0) ? 0 : numClusters];
+    for (int c = 0; c < m_Centroids.length; c++) {
+      m_Centroids[c] = insts.instance(complete[c]);
+    }
+
+    int[] assignment = new int[numInstances];
+    for (int iteration = 0; iteration < m_MaxIterations; iteration++) {
+      boolean moved = false;
+      for (int s = 0; s < sampleSize; s++) {
+        int nearest = nearestCentroid(insts.instance(complete[s]));
+        if ((iteration == 0) || (nearest != assignment[complete[s]])) {
+          assignment[complete[s]] = nearest;
+          moved = true;
+        }
+      }
+      if (!moved) {
+        break;
+      }
+      moveCentroids(complete, sampleSize, assignment);
+    }
+
+    // every instance in its cluster
+    m_Members = new int[m_Centroids.length][];
+    m_MemberCount = new int[m_Members.length];
+    m_Radius = new double[m_Members.length];
+    m_CentroidDistance = new double[numInstances];
+    m_RadiiStale = true;
+    for (int s = 0; s < numComplete; s++) {
+      int i = complete[s];
+      assign(i, nearestCentroid(insts.instance(i)));
+    }
+    refreshRadii();
+  }
+
+  /**
+   * Returns the centroid nearest to an instance.
+   *
+   * @param instance the instance, without missing values
+   * @return the index of the centroid
+   */
+  protected int nearestCentroid(Instance instance) {
+
+    int nearest = 0;
+    double best = Double.POSITIVE_INFINITY;
+    for (int c = 0; c < m_Centroids.length; c++) {
+      double distance = m_DistanceFunction.distance(instance, m_Centroids[c], best, null);
+      if (distance < best) {
+        best = distance;
+        nearest = c;
+      }
+    }
+    return nearest;
+  }
+
+  /**
+   * Moves every centroid to the mean of the sample instances assigned to it
+   * (the most frequent value for nominal attributes). Centroids without
+   * instances stay where they are.
+   *
+   * @param sample the indices of the sample instances
+   * @param sampleSize the number of sample instances
+   * @param assignment the cluster of every instance
+   */
+  protected void moveCentroids(int[] sample, int sampleSize, int[] assignment) {
+
+    int numClusters = m_Centroids.length;
+    int numAttributes = m_Instances.numAttributes();
+    double[][] sums = new double[numClusters][numAttributes];
+    int[] counts = new int[numClusters];
+    int[][][] frequencies = new int[numClusters][numAttributes][];
+    for (int s = 0; s < sampleSize; s++) {
+      Instance instance = m_Instances.instance(sample[s]);
+      int c = assignment[sample[s]];
+      counts[c]++;
+      for (int a = 0; a < numAttributes; a++) {
+        if (m_Instances.attribute(a).isNominal()) {
+          if (frequencies[c][a] == null) {
+            frequencies[c][a] = new int[m_Instances.attribute(a).numValues()];
+          }
+          frequencies[c][a][(int) instance.value(a)]++;
+        } else {
+          sums[c][a] += instance.value(a);
+        }
+      }
+    }
+    for (int c = 0; c < numClusters; c++) {
+      if (counts[c] == 0) {
+        continue;
+      }
+      double[] values = new double[numAttributes];
+      for (int a = 0; a < numAttributes; a++) {
+        if (frequencies[c][a] != null) {
+          values[a] = Utils.maxIndex(frequencies[c][a]);
+        } else {
+          values[a] = sums[c][a] / counts[c];
+        }
+      }
+      m_Centroids[c] = new Instance(1, values);
+      m_Centroids[c].setDataset(m_Instances);
+    }
+  }
+
+  /**
+   * Adds an instance to a cluster and widens the radius of the cluster.
+   *
+   * @param i the index of the instance
+   * @param c the cluster
+   */
+  protected void assign(int i, int c) {
+
+    if (m_Members[c] == null) {
+      m_Members[c] = new int[8];
+    } else if (m_MemberCount[c] == m_Members[c].length) {
+      int[] members = new int[2 * m_MemberCount[c]];
+      System.arraycopy(m_Members[c], 0, members, 0, m_MemberCount[c]);
+      m_Members[c] = members;
+    }
+    m_Members[c][m_MemberCount[c]++] = i;
+    if (!m_RadiiStale) {
+      double distance = Math.sqrt(m_DistanceFunction.distance(
+        m_Instances.instance(i), m_Centroids[c], Double.POSITIVE_INFINITY, null));
+      m_CentroidDistance[i] = distance;
+      m_Radius[c] = Math.max(m_Radius[c], distance);
+    }
+  }
+
+  /**
+   * Recomputes the distance of every instance from its centroid and the
+   * radii, after the attribute ranges have changed.
+   */
+  protected void refreshRadii() {
+
+    for (int c = 0; c < m_Members.length; c++) {
+      Instance centroid = m_Centroids[c];
+      m_Radius[c] = 0;
+      for (int j = 0; j < m_MemberCount[c]; j++) {
+        int i = m_Members[c][j];
+        double distance = Math.sqrt(m_DistanceFunction.distance(
+          m_Instances.instance(i), centroid, Double.POSITIVE_INFINITY, null));
+        m_CentroidDistance[i] = distance;
+        m_Radius[c] = Math.max(m_Radius[c], distance);
+      }
+    }
+    m_RadiiStale = false;
+  }
+
+  /**
+   * Returns the nearest instance in the current neighbourhood to the
+   * supplied instance.
+   *
+   * @param target the instance to find the nearest neighbour for
+   * @return the nearest instance
+   * @throws Exception if the nearest neighbour could not be found
+   */
+  public Instance nearestNeighbour(Instance target) throws Exception {
+
+    return kNearestNeighbours(target, 1).instance(0);
+  }
+
+  /**
+   * Returns the k nearest instances (plus the ones tied with the k-th
+   * nearest), nearest first, visiting the clusters in the order of the
+   * lower bound of their distance.
+   *
+   * @param target the instance to find the k nearest neighbours for
+   * @param kNN the number of nearest neighbours to find
+   * @return the k nearest neighbours
+   * @throws Exception if the neighbours could not be found
+   */
+  public Instances kNearestNeighbours(Instance target, int kNN) throws Exception {
+
+    if (m_Stats != null) {
+      m_Stats.searchStart();
+    }
+    if (m_RadiiStale) {
+      refreshRadii();
+    }
+    MyHeap heap = new MyHeap(kNN);
+    m_Offered = 0;
+    for (int j = 0; j < m_UnclusteredCount; j++) {
+      offer(heap, target, m_Unclustered[j], kNN);
+    }
+
+    int numClusters = m_Members.length;
+    if (target.hasMissingValue()) {
+      // no metric: compare with every instance
+      for (int c = 0; c < numClusters; c++) {
+        for (int j = 0; j < m_MemberCount[c]; j++) {
+          offer(heap, target, m_Members[c][j], kNN);
+        }
+      }
+    } else {
+      double[] centroidDistance = new double[numClusters];
+      double[] bound = new double[numClusters];
+      for (int c = 0; c < numClusters; c++) {
+        centroidDistance[c] = Math.sqrt(m_DistanceFunction.distance(
+          target, m_Centroids[c], Double.POSITIVE_INFINITY, null));
+        bound[c] = Math.max(0, centroidDistance[c] - m_Radius[c]);
+      }
+      int[] order = Utils.sort(bound);
+      for (int o = 0; o < numClusters; o++) {
+        int c = order[o];
+        if ((m_Offered >= kNN) && (square(bound[c]) > heap.peek().distance)) {
+          break;
+        }
+        for (int j = 0; j < m_MemberCount[c]; j++) {
+          int i = m_Members[c][j];
+          if ((m_Offered >= kNN)
+              && (square(centroidDistance[c] - m_CentroidDistance[i]) > heap.peek().distance)) {
+            continue;
+          }
+          offer(heap, target, i, kNN);
+        }
+      }
+    }
+
+    Instances neighbours = new Instances(m_Instances, heap.totalSize());
+    m_Distances = new double[heap.totalSize()];
+    int[] indices = new int[heap.totalSize()];
+    int i = 1;
+    while (heap.noOfKthNearest() > 0) {
+      MyHeapElement h = heap.getKthNearest();
+      indices[indices.length - i] = h.index;
+      m_Distances[indices.length - i] = h.distance;
+      i++;
+    }
+    while (heap.size() > 0) {
+      MyHeapElement h = heap.get();
+      indices[indices.length - i] = h.index;
+      m_Distances[indices.length - i] = h.distance;
+      i++;
+    }
+    m_DistanceFunction.postProcessDistances(m_Distances);
+    for (int k = 0; k < indices.length; k++) {
+      neighbours.add(m_Instances.instance(indices[k]));
+    }
+
+    if (m_Stats != null) {
+      m_Stats.searchFinish();
+    }
+    return neighbours;
+  }
+
+  /**
+   * Offers an instance to the heap of the current query, as LinearNNSearch
+   * does: the first k instances are put, later ones replace the k-th
+   * nearest if nearer or join its ties. The query itself is skipped.
+   *
+   * @param heap the heap
+   * @param target the query
+   * @param i the index of the instance
+   * @param kNN the number of nearest neighbours to find
+   * @throws Exception if the heap cannot be updated
+   */
+  protected void offer(MyHeap heap, Instance target, int i, int kNN) throws Exception {
+
+    Instance instance = m_Instances.instance(i);
+    if (target == instance) {
+      return;
+    }
+    if (m_Stats != null) {
+      m_Stats.incrPointCount();
+    }
+    if (m_Offered < kNN) {
+      heap.put(i, m_DistanceFunction.distance(target, instance,
+                                              Double.POSITIVE_INFINITY, m_Stats));
+      m_Offered++;
+    } else {
+      double kth = heap.peek().distance;
+      double distance = m_DistanceFunction.distance(target, instance, kth, m_Stats);
+      if (distance < kth) {
+        heap.putBySubstitute(i, distance);
+      } else if (distance == kth) {
+        heap.putKthNearest(i, distance);
+      }
+    }
+  }
+
+  /**
+   * Squares a lower bound of a distance, to compare it with the squared
+   * distances of the heap, keeping it a lower bound despite rounding.
+   *
+   * @param bound the lower bound
+   * @return the squared lower bound
+   */
+  protected static double square(double bound) {
+
+    return bound * bound * BOUND_SLACK;
+  }
+
+  /**
+   * Returns the distances of the k nearest neighbours found last.
+   *
+   * @return the distances
+   * @throws Exception if no neighbours have been searched yet
+   */
+  public double[] getDistances() throws Exception {
+
+    if (m_Distances == null) {
+      throw new Exception("No distances available. Please call either "
+                          + "kNearestNeighbours or nearestNeighbours first.");
+    }
+    return m_Distances;
+  }
+
+  /**
+   * Adds an instance, which has already been added to the instances
+   * supplied with setInstances(), to the cluster of its nearest centroid
+   * (or to the instances compared with every query, if it has missing
+   * values). The centroid is not moved. If the instance widens the
+   * attribute ranges, the radii are recomputed before the next query.
+   *
+   * @param ins the instance to add
+   * @throws Exception if no instances have been supplied yet
+   */
+  public void update(Instance ins) throws Exception {
+
+    if (m_Members == null) {
+      throw new Exception("No instances supplied yet. Cannot update without "
+                          + "supplying a set of instances first.");
+    }
+    widenRanges(ins);
+    int i = m_Instances.numInstances() - 1;
+    if (m_CentroidDistance.length <= i) {
+      double[] distances = new double[Math.max(2 * m_CentroidDistance.length, i + 1)];
+      System.arraycopy(m_CentroidDistance, 0, distances, 0, m_CentroidDistance.length);
+      m_CentroidDistance = distances;
+    }
+    if (ins.hasMissingValue() || (m_Centroids.length == 0)) {
+      if (m_UnclusteredCount == m_Unclustered.length) {
+        int[] unclustered = new int[2 * m_UnclusteredCount];
+        System.arraycopy(m_Unclustered, 0, unclustered, 0, m_UnclusteredCount);
+        m_Unclustered = unclustered;
+      }
+      m_Unclustered[m_UnclusteredCount++] = i;
+    } else {
+      assign(i, nearestCentroid(ins));
+    }
+  }
+
+  /**
+   * Adds information from the given instance without modifying the
+   * datastructure: widens the ranges.
+   *
+   * @param ins the instance
+   */
+  public void addInstanceInfo(Instance ins) {
+
+    if (m_Instances != null) {
+      widenRanges(ins);
+    }
+  }
+
+  /**
+   * Widens the ranges of the distance to an instance and marks the radii
+   * stale if they change.
+   *
+   * @param ins the instance
+   */
+  protected void widenRanges(Instance ins) {
+
+    NormalizableDistance distance = (NormalizableDistance) m_DistanceFunction;
+    try {
+      if (!distance.inRanges(ins, distance.getRanges())) {
+        m_RadiiStale = true;
+      }
+    } catch (Exception e) {
+      m_RadiiStale = true;
+    }
+    distance.update(ins);
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}
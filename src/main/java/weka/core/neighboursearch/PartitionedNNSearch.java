@@ -0,0 +1,545 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PartitionedNNSearch.java
+ *    Copyright (C) 2014 Indiana University
+ *
+ */
+
+package weka.core.neighboursearch;
+
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Option;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ <!-- globalinfo-start -->
+ * Splits the instances into contiguous partitions and builds one index
+ * (any nearest neighbour search, e.g. a KDTree) per partition, all
+ * partitions in parallel. The attribute ranges are computed in parallel as
+ * well, and every partition normalises with the ranges of all instances,
+ * so distances are comparable across partitions. A query is answered by
+ * every partition and the answers are merged into the k nearest instances
+ * (plus the ones tied with the k-th nearest), as the wrapped search would
+ * return them for all instances; only the order of instances at the same
+ * distance may differ.<br/>
+ * Only the EuclideanDistance is supported. New instances are added to the
+ * last partition.
+ * <p/>
+ <!-- globalinfo-end -->
+ *
+ <!-- options-start -->
+ * Valid options are: <p/>
+ *
+ * <pre> -N &lt;number of partitions&gt;
+ *  The number of partitions built in parallel.
+ *  (default: 0, one per available processor)</pre>
+ *
+ * <pre> -S &lt;classname and options&gt;
+ *  The nearest neighbour search used per partition.
+ *  (default: weka.core.neighboursearch.LinearNNSearch)</pre>
+ *
+ * <pre> -A &lt;classname and options&gt;
+ *  Distance function to use.
+ *  (default: weka.core.EuclideanDistance)</pre>
+ *
+ * <pre> -P
+ *  Calculate performance statistics.</pre>
+ *
+ <!-- options-end -->
+ *
+ * @author Vahid Jalali (vjalalib@cs.indiana.edu)
+ * @version $Revision: 1.0 $
+ */
+public class PartitionedNNSearch
+  extends NearestNeighbourSearch {
+
+  /** for serialization. */
+  private static final long serialVersionUID = 6093420125837741362L;
+
+  /** The number of partitions (0 = one per available processor). */
+  protected int m_NumPartitions = 0;
+
+  /** The search used per partition, copied for every partition. */
+  protected NearestNeighbourSearch m_Search = new LinearNNSearch();
+
+  /** The searches of the partitions. */
+  protected NearestNeighbourSearch[] m_Partitions;
+
+  /** The attribute ranges over all instances, shared by all partitions. */
+  protected double[][] m_Ranges;
+
+  /** The distances of the last neighbours found. */
+  protected double[] m_Distances;
+
+  /**
+   * A EuclideanDistance normalising with ranges given from outside instead
+   * of the ranges of its own instances. The ranges array is shared by all
+   * partitions, so an update through any of them widens it for all.
+   */
+  protected static class FixedRangeDistance
+    extends EuclideanDistance {
+
+    /** for serialization. */
+    private static final long serialVersionUID = -3385203216645826402L;
+
+    /** The ranges to normalise with. */
+    protected double[][] m_FixedRanges;
+
+    /**
+     * Creates a distance normalising with the given ranges.
+     *
+     * @param ranges the ranges (min, max and width per attribute)
+     */
+    public FixedRangeDistance(double[][] ranges) {
+
+      super();
+      m_FixedRanges = ranges;
+    }
+
+    /**
+     * Uses the fixed ranges instead of computing the ranges of the
+     * instances.
+     *
+     * @return the ranges
+     */
+    public double[][] initializeRanges() {
+
+      m_Ranges = m_FixedRanges;
+      return m_Ranges;
+    }
+  }
+
+  /**
+   * Constructor. Needs setInstances(Instances) to be called before the
+   * class is usable.
+   */
+  public PartitionedNNSearch() {
+
+    super();
+  }
+
+  /**
+   * Constructor that uses the supplied set of instances.
+   *
+   * @param insts the instances to search
+   * @throws Exception if the partitions cannot be built
+   */
+  public PartitionedNNSearch(Instances insts) throws Exception {
+
+    this();
+    setInstances(insts);
+  }
+
+  /**
+   * Returns a string describing this nearest neighbour search algorithm.
+   *
+   * @return a description of the algorithm for displaying in the
+   * explorer/experimenter gui
+   */
+  public String globalInfo() {
+
+    return "Splits the instances into contiguous partitions and builds one "
+      + "index (any nearest neighbour search, e.g. a KDTree) per partition, "
+      + "all partitions in parallel. Every partition normalises with the "
+      + "ranges of all instances; queries are answered by all partitions and "
+      + "the answers merged. Only the EuclideanDistance is supported.";
+  }
+
+  /**
+   * Returns an enumeration describing the available options.
+   *
+   * @return an enumeration of all the available options.
+   */
+  public Enumeration<Option> listOptions() {
+
+    Vector<Option> result = new Vector<Option>();
+    result.addElement(new Option(
+      "\tThe number of partitions built in parallel.\n"
+      + "\t(default: 0, one per available processor)",
+      "N", 1, "-N <number of partitions>"));
+    result.addElement(new Option(
+      "\tThe nearest neighbour search used per partition.\n"
+      + "\t(default: weka.core.neighboursearch.LinearNNSearch)",
+      "S", 1, "-S <classname and options>"));
+    Enumeration<?> enm = super.listOptions();
+    while (enm.hasMoreElements()) {
+      result.addElement((Option) enm.nextElement());
+    }
+    return result.elements();
+  }
+
+  /**
+   * Parses a given list of options. <p/>
+   *
+   <!-- options-start -->
+   * Valid options are: <p/>
+   *
+   * <pre> -N &lt;number of partitions&gt;
+   *  The number of partitions built in parallel.
+   *  (default: 0, one per available processor)</pre>
+   *
+   * <pre> -S &lt;classname and options&gt;
+   *  The nearest neighbour search used per partition.
+   *  (default: weka.core.neighboursearch.LinearNNSearch)</pre>
+   *
+   * <pre> -A &lt;classname and options&gt;
+   *  Distance function to use.
+   *  (default: weka.core.EuclideanDistance)</pre>
+   *
+   * <pre> -P
+   *  Calculate performance statistics.</pre>
+   *
+   <!-- options-end -->
+   *
+   * @param options the list of options as an array of strings
+   * @throws Exception if an option is not supported
+   */
+  public void setOptions(String[] options) throws Exception {
+
+    super.setOptions(options);
+
+    String partitions = Utils.getOption('N', options);
+    if (partitions.length() != 0) {
+      setNumPartitions(Integer.parseInt(partitions));
+    } else {
+      setNumPartitions(0);
+    }
+
+    String search = Utils.getOption('S', options);
+    if (search.length() != 0) {
+      String[] searchSpec = Utils.splitOptions(search);
+      if (searchSpec.length == 0) {
+        throw new Exception("Invalid NearestNeighbourSearch specification string.");
+      }
+      String className = searchSpec[0];
+      searchSpec[0] = "";
+      setSearch((NearestNeighbourSearch) Utils.forName(
+        NearestNeighbourSearch.class, className, searchSpec));
+    } else {
+      setSearch(new LinearNNSearch());
+    }
+  }
+
+  /**
+   * Gets the current settings.
+   *
+   * @return an array of strings suitable for passing to setOptions()
+   */
+  public String[] getOptions() {
+
+    Vector<String> result = new Vector<String>();
+    String[] options = super.getOptions();
+    for (int i = 0; i < options.length; i++) {
+      result.add(options[i]);
+    }
+    result.add("-N");
+    result.add("" + getNumPartitions());
+    result.add("-S");
+    result.add((m_Search.getClass().getName() + " "
+                + Utils.joinOptions(m_Search.getOptions())).trim());
+    return result.toArray(new String[result.size()]);
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String numPartitionsTipText() {
+    return "The number of partitions built in parallel (0 = one per available processor).";
+  }
+
+  /**
+   * Gets the number of partitions.
+   *
+   * @return the number of partitions (0 = one per available processor)
+   */
+  public int getNumPartitions() {
+    return m_NumPartitions;
+  }
+
+  /**
+   * Sets the number of partitions.
+   *
+   * @param numPartitions the number of partitions (0 = one per available
+   * processor)
+   */
+  public void setNumPartitions(int numPartitions) {
+    m_NumPartitions = numPartitions;
+  }
+
+  /**
+   * Returns the tip text for this property.
+   *
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String searchTipText() {
+    return "The nearest neighbour search used per partition; its distance "
+      + "function is replaced by one using the ranges of all instances.";
+  }
+
+  /**
+   * Gets the search used per partition.
+   *
+   * @return the search
+   */
+  public NearestNeighbourSearch getSearch() {
+    return m_Search;
+  }
+
+  /**
+   * Sets the search used per partition.
+   *
+   * @param search the search
+   */
+  public void setSearch(NearestNeighbourSearch search) {
+    m_Search = search;
+  }
+
+  /**
+   * Splits the instances into partitions and builds the index of every
+   * partition, in parallel.
+   *
+   * @param insts the instances to search
+   * @throws Exception if the distance function is not supported or a
+   * partition cannot be built
+   */
+  public void setInstances(Instances insts) throws Exception {
+
+    if (!m_DistanceFunction.getClass().equals(EuclideanDistance.class)) {
+      throw new Exception("PartitionedNNSearch only supports the EuclideanDistance!");
+    }
+    super.setInstances(insts);
+    m_DistanceFunction.setInstances(insts);
+
+    int numInstances = insts.numInstances();
+    int numPartitions = m_NumPartitions;
+    if (numPartitions <= 0) {
+      numPartitions = Runtime.getRuntime().availableProcessors();
+    }
+    numPartitions = Math.max(1, Math.min(numPartitions, numInstances));
+
+    final Instances[] parts = new Instances[numPartitions];
+    for (int p = 0; p < numPartitions; p++) {
+      int first = (int) ((long) p * numInstances / numPartitions);
+      int last = (int) ((long) (p + 1) * numInstances / numPartitions);
+      parts[p] = new Instances(insts, first, last - first);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(numPartitions,
+      Runtime.getRuntime().availableProcessors()));
+    try {
+      // ranges of every partition, merged into the ranges of all instances
+      List<Future<double[][]>> ranges = new ArrayList<Future<double[][]>>(numPartitions);
+      for (int p = 0; p < numPartitions; p++) {
+        final Instances part = parts[p];
+        ranges.add(executor.submit(new Callable<double[][]>() {
+          public double[][] call() {
+            EuclideanDistance distance = new EuclideanDistance();
+            distance.setInstances(part);
+            return distance.initializeRanges();
+          }
+        }));
+      }
+      m_Ranges = new double[insts.numAttributes()][3];
+      for (int a = 0; a < m_Ranges.length; a++) {
+        m_Ranges[a][0] = Double.POSITIVE_INFINITY;
+        m_Ranges[a][1] = Double.NEGATIVE_INFINITY;
+      }
+      for (int p = 0; p < numPartitions; p++) {
+        double[][] partRanges = ranges.get(p).get();
+        for (int a = 0; a < m_Ranges.length; a++) {
+          m_Ranges[a][0] = Math.min(m_Ranges[a][0], partRanges[a][0]);
+          m_Ranges[a][1] = Math.max(m_Ranges[a][1], partRanges[a][1]);
+        }
+      }
+      for (int a = 0; a < m_Ranges.length; a++) {
+        if (m_Ranges[a][0] == Double.POSITIVE_INFINITY) {
+          m_Ranges[a][2] = Double.POSITIVE_INFINITY;
+        } else {
+          m_Ranges[a][2] = m_Ranges[a][1] - m_Ranges[a][0];
+        }
+      }
+
+      // the index of every partition
+      final String[] distanceOptions = ((EuclideanDistance) m_DistanceFunction).getOptions();
+      m_Partitions = new NearestNeighbourSearch[numPartitions];
+      List<Future<NearestNeighbourSearch>> indices =
+        new ArrayList<Future<NearestNeighbourSearch>>(numPartitions);
+      for (int p = 0; p < numPartitions; p++) {
+        final int partition = p;
+        indices.add(executor.submit(new Callable<NearestNeighbourSearch>() {
+          public NearestNeighbourSearch call() throws Exception {
+            NearestNeighbourSearch search = (NearestNeighbourSearch) Utils.forName(
+              NearestNeighbourSearch.class, m_Search.getClass().getName(),
+              m_Search.getOptions());
+            FixedRangeDistance distance = new FixedRangeDistance(m_Ranges);
+            distance.setOptions(distanceOptions.clone());
+            search.setDistanceFunction(distance);
+            search.setInstances(parts[partition]);
+            m_Partitions[partition] = search;
+            return search;
+          }
+        }));
+      }
+      for (int p = 0; p < numPartitions; p++) {
+        indices.get(p).get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Returns the nearest instance in the current neighbourhood to the
+   * supplied instance.
+   *
+   * @param target the instance to find the nearest neighbour for
+   * @return the nearest instance
+   * @throws Exception if the nearest neighbour could not be found
+   */
+  public Instance nearestNeighbour(Instance target) throws Exception {
+
+    return kNearestNeighbours(target, 1).instance(0);
+  }
+
+  /**
+   * Returns the k nearest instances (plus the ones tied with the k-th
+   * nearest), nearest first, merged from the answers of all partitions.
+   * Instances at the same distance are ordered by partition.
+   *
+   * @param target the instance to find the k nearest neighbours for
+   * @param kNN the number of nearest neighbours to find
+   * @return the k nearest neighbours
+   * @throws Exception if the neighbours could not be found
+   */
+  public Instances kNearestNeighbours(Instance target, int kNN) throws Exception {
+
+    if (m_Stats != null) {
+      m_Stats.searchStart();
+    }
+    int numPartitions = m_Partitions.length;
+    Instances[] answers = new Instances[numPartitions];
+    double[][] distances = new double[numPartitions][];
+    int total = 0;
+    for (int p = 0; p < numPartitions; p++) {
+      answers[p] = m_Partitions[p].kNearestNeighbours(target, kNN);
+      distances[p] = m_Partitions[p].getDistances().clone();
+      total += answers[p].numInstances();
+    }
+
+    // merge the sorted answers, keeping the ties with the k-th nearest
+    int[] next = new int[numPartitions];
+    Instances neighbours = new Instances(m_Instances, Math.min(total, kNN));
+    double[] merged = new double[total];
+    int count = 0;
+    while (count < total) {
+      int best = -1;
+      for (int p = 0; p < numPartitions; p++) {
+        if ((next[p] < distances[p].length)
+            && ((best < 0) || (distances[p][next[p]] < distances[best][next[best]]))) {
+          best = p;
+        }
+      }
+      double distance = distances[best][next[best]];
+      if ((count >= kNN) && (distance != merged[count - 1])) {
+        break;
+      }
+      merged[count++] = distance;
+      neighbours.add(answers[best].instance(next[best]++));
+    }
+    m_Distances = new double[count];
+    System.arraycopy(merged, 0, m_Distances, 0, count);
+
+    if (m_Stats != null) {
+      m_Stats.searchFinish();
+    }
+    return neighbours;
+  }
+
+  /**
+   * Returns the distances of the k nearest neighbours found last.
+   *
+   * @return the distances
+   * @throws Exception if no neighbours have been searched yet
+   */
+  public double[] getDistances() throws Exception {
+
+    if (m_Distances == null) {
+      throw new Exception("No distances available. Please call either "
+                          + "kNearestNeighbours or nearestNeighbours first.");
+    }
+    return m_Distances;
+  }
+
+  /**
+   * Adds an instance, which has already been added to the instances
+   * supplied with setInstances(), to the last partition.
+   *
+   * @param ins the instance to add
+   * @throws Exception if the partition cannot be updated
+   */
+  public void update(Instance ins) throws Exception {
+
+    if (m_Partitions == null) {
+      throw new Exception("No instances supplied yet. Cannot update without "
+                          + "supplying a set of instances first.");
+    }
+    NearestNeighbourSearch last = m_Partitions[m_Partitions.length - 1];
+    last.getInstances().add(ins);
+    last.update(last.getInstances().lastInstance());
+    m_DistanceFunction.update(ins);
+  }
+
+  /**
+   * Adds information from the given instance without modifying the
+   * datastructure: widens the ranges of all partitions.
+   *
+   * @param ins the instance
+   */
+  public void addInstanceInfo(Instance ins) {
+
+    if (m_Partitions != null) {
+      m_Partitions[m_Partitions.length - 1].getDistanceFunction().update(ins);
+      m_DistanceFunction.update(ins);
+    }
+  }
+
+  /**
+   * Returns the revision string.
+   *
+   * @return		the revision
+   */
+  public String getRevision() {
+    return RevisionUtils.extract("$Revision: 1.0 $");
+  }
+}